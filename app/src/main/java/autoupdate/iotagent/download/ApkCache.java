@@ -0,0 +1,229 @@
+package autoupdate.iotagent.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class keeps downloaded apks in one directory, named after package, version and SHA-256, so
+ * a second job for the same build is served from disk without touching the network. The cache
+ * holds at most a byte budget; beyond it the least recently used apks are deleted, except those
+ * pinned by a job still waiting for the target app to install them. Apks of jobs without a
+ * SHA-256 are kept under a name marked unverified and never served from the cache: nothing tells
+ * the build they hold from an older one of the same version, so they are downloaded every time.
+ * The recency of an entry is its file's modification time, so the order survives a restart.
+ */
+public class ApkCache {
+
+    private static final String LOG_TAG = "ApkCache";
+
+    static final String APK_SUFFIX = ".apk";
+
+    //hash part of the name of an apk whose SHA-256 is not known
+    static final String UNVERIFIED = "unverified";
+
+    private final File dir;
+
+    private final long budgetBytes;
+
+    //sizes of the committed entries by file name, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    //jobs pinning each entry
+    private final Map<String, Set<String>> pins = new HashMap<>();
+
+    //one lock per entry, held while the entry is downloaded
+    private final Map<String, Object> locks = new HashMap<>();
+
+    private long totalBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Opens the cache and indexes the apks already in the directory.
+     * @param dir the cache directory, created if missing
+     * @param budgetBytes the cache holds at most this many bytes of unpinned apks
+     */
+    public ApkCache(File dir, long budgetBytes) {
+        this.dir = dir;
+        this.budgetBytes = budgetBytes;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            Log.e(LOG_TAG, "could not create cache directory " + dir);
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (!file.getName().endsWith(APK_SUFFIX))
+                continue;
+            entries.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+    }
+
+    /**
+     * @param packageName package name of the app
+     * @param version version code of the build
+     * @param sha256 SHA-256 of the apk as hex, null if unknown
+     * @return where the apk of the build is kept, whether or not it is cached. Without a SHA-256
+     *         the file is never a cache hit.
+     */
+    public File fileFor(String packageName, String version, String sha256) {
+        String hash = sha256 == null ? UNVERIFIED : sha256.toLowerCase();
+        return new File(dir, sanitize(packageName) + "-" + sanitize(version) + "-" + sanitize(hash) + APK_SUFFIX);
+    }
+
+    private static String sanitize(String value) {
+        return value.replaceAll("[^A-Za-z0-9._]", "_");
+    }
+
+    /**
+     * Looks up a committed apk and marks it as recently used.
+     * @return the apk, or null on a miss, which an apk without a SHA-256 always is
+     */
+    public synchronized File lookup(File file) {
+        if (file.getName().endsWith("-" + UNVERIFIED + APK_SUFFIX)) {
+            ++misses;
+            return null;
+        }
+        Long size = entries.get(file.getName());
+        if (size != null && file.length() == size) {
+            ++hits;
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+        //deleted or changed behind our back
+        if (size != null)
+            forget(file.getName());
+        ++misses;
+        return null;
+    }
+
+    /**
+     * Adds a downloaded and verified apk to the cache, then evicts down to the budget.
+     * @param file the apk, as returned by fileFor
+     */
+    public synchronized void commit(File file) {
+        Long previous = entries.put(file.getName(), file.length());
+        totalBytes += file.length() - (previous == null ? 0 : previous);
+        file.setLastModified(System.currentTimeMillis());
+        evict();
+    }
+
+    /**
+     * Keeps an apk from being evicted until the job unpins it.
+     */
+    public synchronized void pin(File file, String jobId) {
+        Set<String> jobs = pins.get(file.getName());
+        if (jobs == null) {
+            jobs = new HashSet<>();
+            pins.put(file.getName(), jobs);
+        }
+        jobs.add(jobId);
+    }
+
+    /**
+     * Drops the pins of a job, e.g. once the target app installed the update or the job failed.
+     */
+    public synchronized void unpin(String jobId) {
+        Iterator<Set<String>> it = pins.values().iterator();
+        while (it.hasNext()) {
+            Set<String> jobs = it.next();
+            if (jobs.remove(jobId) && jobs.isEmpty())
+                it.remove();
+        }
+        evict();
+    }
+
+    /**
+     * @return the lock to hold while downloading the apk, so two jobs for the same build do not
+     *         download it at the same time
+     */
+    public synchronized Object lockFor(File file) {
+        Object lock = locks.get(file.getName());
+        if (lock == null) {
+            lock = new Object();
+            locks.put(file.getName(), lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Deletes least recently used unpinned apks until the cache fits its budget.
+     */
+    private void evict() {
+        if (totalBytes <= budgetBytes)
+            return;
+        List<String> victims = new ArrayList<>();
+        long bytes = totalBytes;
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            if (bytes <= budgetBytes)
+                break;
+            if (pins.containsKey(entry.getKey()))
+                continue;
+            victims.add(entry.getKey());
+            bytes -= entry.getValue();
+        }
+        for (String name : victims) {
+            File file = new File(dir, name);
+            if (!file.delete() && file.exists()) {
+                Log.w(LOG_TAG, "could not evict " + file);
+                continue;
+            }
+            long size = forget(name);
+            ++evictions;
+            Log.i(LOG_TAG, "evicted " + name + ", " + size + " bytes");
+        }
+    }
+
+    /**
+     * Drops an entry from the index.
+     * @return the size it was indexed with
+     */
+    private long forget(String name) {
+        Long size = entries.remove(name);
+        if (size == null)
+            return 0;
+        totalBytes -= size;
+        return size;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+}
@@ -0,0 +1,101 @@
+package autoupdate.iotagent.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * This class builds a file from a binary patch instead of downloading it in full: it downloads the
+ * patch, applies it to a base file, e.g. the installed apk, and checks the result before it
+ * replaces the target. Nothing is left behind when any step fails, so the caller can fall back to
+ * the full download right away.
+ */
+public class DeltaDownloader {
+
+    private static final String LOG_TAG = "DeltaDownloader";
+
+    static final String PATCH_SUFFIX = ".patch";
+
+    static final String PATCHED_SUFFIX = ".patched";
+
+    private final SegmentedDownloader patchDownloader;
+
+    private long expectedSize = -1;
+
+    private String expectedSha256;
+
+    /**
+     * @param segments number of byte ranges the patch is fetched in
+     */
+    public DeltaDownloader(int segments) {
+        this(new SegmentedDownloader(segments));
+    }
+
+    DeltaDownloader(SegmentedDownloader patchDownloader) {
+        this.patchDownloader = patchDownloader;
+    }
+
+    /**
+     * @param progressListener told about the progress of the patch download, may be null
+     */
+    public void setProgressListener(DownloadProgressListener progressListener) {
+        patchDownloader.setProgressListener(progressListener);
+    }
+
+    /**
+     * @param throttle limits the rate of the patch download, may be null
+     */
+    public void setThrottle(DownloadThrottle throttle) {
+        patchDownloader.setThrottle(throttle);
+    }
+
+    /**
+     * @param size expected size of the patch in bytes, -1 if unknown
+     * @param sha256 expected SHA-256 of the patch as hex, null if unknown
+     */
+    public void setExpectedPatch(long size, String sha256) {
+        patchDownloader.setExpectedContent(size, sha256);
+    }
+
+    /**
+     * @param size expected size of the patched file in bytes, -1 if unknown
+     * @param sha256 expected SHA-256 of the patched file as hex, null if unknown
+     */
+    public void setExpectedContent(long size, String sha256) {
+        this.expectedSize = size;
+        this.expectedSha256 = sha256;
+    }
+
+    /**
+     * Downloads the patch at url and writes base + patch to target.
+     * @param url the url of the patch
+     * @param base the file the patch was made against
+     * @param target the file to write to, only replaced once the patched file checked out
+     * @throws DeltaPatcher.CorruptPatchException if the patch is malformed
+     * @throws IntegrityException if the patch or the patched file is not the expected one
+     */
+    public void download(String url, File base, File target) throws IOException {
+        File patch = new File(target.getPath() + PATCH_SUFFIX);
+        File patched = new File(target.getPath() + PATCHED_SUFFIX);
+        boolean done = false;
+        try {
+            patchDownloader.download(url, patch);
+            DeltaPatcher.apply(base, patch, patched, expectedSize, expectedSha256);
+            Files.move(patched.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Log.i(LOG_TAG, "patched " + target.getName() + ", " + patch.length() + " bytes downloaded instead of "
+                    + target.length());
+            done = true;
+        } finally {
+            patch.delete();
+            patched.delete();
+            if (!done) {
+                //the caller falls back to the full download, an unfinished patch is of no use
+                new File(patch.getPath() + ResumableDownloader.PART_SUFFIX).delete();
+                new File(patch.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX).delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package autoupdate.iotagent.download;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * This class applies a bsdiff patch (BSDIFF40 format) to a base file. The patch is read as three
+ * bzip2 streams, control, diff and extra, each from its own offset in the patch file; the base is
+ * read at the positions the control stream seeks to and the result is written front to back. So
+ * memory use is the bzip2 decoders plus two fixed buffers, whatever the size of the apks.
+ */
+public final class DeltaPatcher {
+
+    static final byte[] MAGIC = {'B', 'S', 'D', 'I', 'F', 'F', '4', '0'};
+
+    static final int HEADER_LENGTH = 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Thrown for a patch that is not in BSDIFF40 format or does not fit the base file.
+     */
+    public static class CorruptPatchException extends IOException {
+        CorruptPatchException(String message) {
+            super(message);
+        }
+    }
+
+    private DeltaPatcher() {
+    }
+
+    /**
+     * Writes base + patch to target and checks the result.
+     * @param base the file the patch was made against, e.g. the installed apk
+     * @param patch the patch file
+     * @param target where the result is written, overwritten if present
+     * @param expectedSize size of the result in bytes, -1 if unknown
+     * @param expectedSha256 SHA-256 of the result as hex, null if unknown
+     * @throws CorruptPatchException if the patch is malformed
+     * @throws IntegrityException if the result is not the expected file
+     */
+    public static void apply(File base, File patch, File target, long expectedSize, String expectedSha256)
+            throws IOException {
+        long ctrlLength;
+        long diffLength;
+        long newSize;
+        try (InputStream in = new FileInputStream(patch)) {
+            byte[] header = new byte[HEADER_LENGTH];
+            try {
+                readFully(in, header, HEADER_LENGTH);
+            } catch (EOFException e) {
+                throw new CorruptPatchException("patch shorter than its header");
+            }
+            for (int i = 0; i < MAGIC.length; ++i)
+                if (header[i] != MAGIC[i])
+                    throw new CorruptPatchException("not a BSDIFF40 patch");
+            ctrlLength = offtin(header, 8);
+            diffLength = offtin(header, 16);
+            newSize = offtin(header, 24);
+        }
+        if (ctrlLength < 0 || diffLength < 0 || newSize < 0
+                || HEADER_LENGTH + ctrlLength + diffLength > patch.length())
+            throw new CorruptPatchException("bad patch header");
+        if (expectedSize >= 0 && newSize != expectedSize)
+            throw new IntegrityException("patch yields " + newSize + " bytes, expected " + expectedSize);
+
+        MessageDigest digest = ResumableDownloader.newSha256();
+        try (InputStream ctrl = openBlock(patch, HEADER_LENGTH);
+             InputStream diff = openBlock(patch, HEADER_LENGTH + ctrlLength);
+             InputStream extra = openBlock(patch, HEADER_LENGTH + ctrlLength + diffLength);
+             RandomAccessFile old = new RandomAccessFile(base, "r");
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE)) {
+            long oldSize = old.length();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            byte[] triple = new byte[24];
+            long newPos = 0;
+            long oldPos = 0;
+            while (newPos < newSize) {
+                readBlock(ctrl, triple, 24, "control");
+                long addLength = offtin(triple, 0);
+                long copyLength = offtin(triple, 8);
+                long seek = offtin(triple, 16);
+                if (addLength < 0 || copyLength < 0 || newPos + addLength + copyLength > newSize)
+                    throw new CorruptPatchException("bad control triple at " + newPos);
+
+                //diff bytes are added to the base bytes at oldPos, base bytes outside the base count as 0
+                while (addLength > 0) {
+                    int n = (int) Math.min(addLength, BUFFER_SIZE);
+                    readBlock(diff, buffer, n, "diff");
+                    readOld(old, oldSize, oldPos, oldBuffer, n);
+                    for (int i = 0; i < n; ++i)
+                        buffer[i] += oldBuffer[i];
+                    out.write(buffer, 0, n);
+                    digest.update(buffer, 0, n);
+                    addLength -= n;
+                    newPos += n;
+                    oldPos += n;
+                }
+                //extra bytes are copied as they are
+                while (copyLength > 0) {
+                    int n = (int) Math.min(copyLength, BUFFER_SIZE);
+                    readBlock(extra, buffer, n, "extra");
+                    out.write(buffer, 0, n);
+                    digest.update(buffer, 0, n);
+                    copyLength -= n;
+                    newPos += n;
+                }
+                oldPos += seek;
+            }
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        }
+        String actual = ResumableDownloader.hex(digest.digest());
+        if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(actual)) {
+            target.delete();
+            throw new IntegrityException("patched file has SHA-256 " + actual + ", expected " + expectedSha256);
+        }
+    }
+
+    private static InputStream openBlock(File patch, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(patch);
+        try {
+            in.getChannel().position(offset);
+            return new BZip2CompressorInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        } catch (IOException e) {
+            in.close();
+            throw new CorruptPatchException("bad bzip2 block at " + offset + " : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the base bytes at [pos, pos + n) into buffer, zero where the range leaves the base.
+     */
+    private static void readOld(RandomAccessFile old, long oldSize, long pos, byte[] buffer, int n)
+            throws IOException {
+        long from = Math.max(pos, 0);
+        long to = Math.min(pos + n, oldSize);
+        if (from >= to) {
+            Arrays.fill(buffer, 0, n, (byte) 0);
+            return;
+        }
+        int head = (int) (from - pos);
+        int length = (int) (to - from);
+        Arrays.fill(buffer, 0, head, (byte) 0);
+        Arrays.fill(buffer, head + length, n, (byte) 0);
+        old.seek(from);
+        old.readFully(buffer, head, length);
+    }
+
+    private static void readBlock(InputStream in, byte[] buffer, int n, String block) throws IOException {
+        try {
+            readFully(in, buffer, n);
+        } catch (EOFException e) {
+            throw new CorruptPatchException(block + " block ends early");
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int n) throws IOException {
+        int read = 0;
+        while (read < n) {
+            int r = in.read(buffer, read, n - read);
+            if (r < 0)
+                throw new EOFException();
+            read += r;
+        }
+    }
+
+    /**
+     * Reads the sign and magnitude little endian 64 bit integers bsdiff writes.
+     */
+    static long offtin(byte[] buffer, int offset) {
+        long value = buffer[offset + 7] & 0x7F;
+        for (int i = 6; i >= 0; --i)
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        return (buffer[offset + 7] & 0x80) != 0 ? -value : value;
+    }
+}
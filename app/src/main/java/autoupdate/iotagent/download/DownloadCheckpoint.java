@@ -0,0 +1,129 @@
+package autoupdate.iotagent.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * This class holds the progress of a partially downloaded file. It is stored as a small properties
+ * file next to the partial file, so a download can be resumed after a connection drop, a service
+ * restart or a reboot.
+ */
+public class DownloadCheckpoint {
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LENGTH = "length";
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_SEGMENT = "segment.";
+
+    //url the partial file was fetched from
+    String url;
+
+    //ETag returned by the server for the first byte fetched, null if the server sent none
+    String etag;
+
+    //expected total length of the file, -1 if unknown
+    long length = -1;
+
+    //number of bytes of the partial file known to be on disk
+    long offset;
+
+    //for a segmented download, the next position to fetch in each segment. Null for a single stream.
+    long[] segmentOffsets;
+
+    public DownloadCheckpoint(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getSegmentCount() {
+        return segmentOffsets == null ? 0 : segmentOffsets.length;
+    }
+
+    /**
+     * Returns the first byte of a segment. Segments split the file into equal ranges, the last
+     * one taking the remainder.
+     * @param segment index of the segment, segmentCount for the end of the file
+     */
+    long segmentStart(int segment) {
+        return length * segment / segmentOffsets.length;
+    }
+
+    /**
+     * Loads a checkpoint from disk.
+     * @param file the checkpoint file
+     * @return the stored checkpoint, or null if there is none or it can not be read
+     */
+    public static DownloadCheckpoint load(File file) {
+        if (!file.isFile())
+            return null;
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+            String url = props.getProperty(KEY_URL);
+            if (url == null)
+                return null;
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint(url);
+            checkpoint.etag = props.getProperty(KEY_ETAG);
+            checkpoint.length = Long.parseLong(props.getProperty(KEY_LENGTH, "-1"));
+            checkpoint.offset = Long.parseLong(props.getProperty(KEY_OFFSET, "0"));
+            int segments = Integer.parseInt(props.getProperty(KEY_SEGMENTS, "0"));
+            if (segments > 0) {
+                checkpoint.segmentOffsets = new long[segments];
+                for (int i = 0; i < segments; ++i)
+                    checkpoint.segmentOffsets[i] = Long.parseLong(props.getProperty(KEY_SEGMENT + i));
+            }
+            return checkpoint;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the checkpoint to disk. The data is written to a temporary file which is synced and
+     * then renamed over the old checkpoint, so a crash never leaves a half written checkpoint.
+     * @param file the checkpoint file
+     * @throws IOException if the checkpoint can not be written
+     */
+    public void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(KEY_URL, url);
+        if (etag != null)
+            props.setProperty(KEY_ETAG, etag);
+        props.setProperty(KEY_LENGTH, String.valueOf(length));
+        props.setProperty(KEY_OFFSET, String.valueOf(offset));
+        if (segmentOffsets != null) {
+            props.setProperty(KEY_SEGMENTS, String.valueOf(segmentOffsets.length));
+            for (int i = 0; i < segmentOffsets.length; ++i)
+                props.setProperty(KEY_SEGMENT + i, String.valueOf(segmentOffsets[i]));
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("could not write checkpoint " + file);
+    }
+}
@@ -0,0 +1,13 @@
+package autoupdate.iotagent.download;
+
+/**
+ * Told about the progress of a download every time its checkpoint is saved.
+ */
+public interface DownloadProgressListener {
+
+    /**
+     * @param bytes number of bytes safely on disk
+     * @param total expected length of the file, -1 if unknown
+     */
+    void onProgress(long bytes, long total);
+}
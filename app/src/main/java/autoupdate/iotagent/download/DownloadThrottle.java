@@ -0,0 +1,44 @@
+package autoupdate.iotagent.download;
+
+import java.io.InterruptedIOException;
+
+/**
+ * The throttle of one download. The download engines call it before connecting and for every
+ * buffer they move: it waits while the network is one the job may not use, then takes the bytes
+ * from the bucket of the network class and from the job's own bucket, if the job has a limit.
+ * A download waiting here holds back its reads, so TCP flow control slows the sender down as well.
+ */
+public class DownloadThrottle {
+
+    private final NetworkPolicy policy;
+
+    private final boolean allowMetered;
+
+    //null if the job sets no limit of its own
+    private final TokenBucket jobBucket;
+
+    DownloadThrottle(NetworkPolicy policy, boolean allowMetered, TokenBucket jobBucket) {
+        this.policy = policy;
+        this.allowMetered = allowMetered;
+        this.jobBucket = jobBucket;
+    }
+
+    /**
+     * Waits until the job may use the network.
+     * @throws InterruptedIOException if the download is cancelled while waiting
+     */
+    public void awaitNetwork() throws InterruptedIOException {
+        policy.awaitAllowed(allowMetered);
+    }
+
+    /**
+     * Accounts for bytes moved, waiting as long as the limits ask for.
+     * @throws InterruptedIOException if the download is cancelled while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        NetworkPolicy.NetworkClass networkClass = policy.awaitAllowed(allowMetered);
+        policy.bucketFor(networkClass).acquire(bytes);
+        if (jobBucket != null)
+            jobBucket.acquire(bytes);
+    }
+}
@@ -0,0 +1,14 @@
+package autoupdate.iotagent.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a downloaded file does not have the size or SHA-256 the job document expects.
+ * Retrying does not help, the partial file and checkpoint are dropped.
+ */
+public class IntegrityException extends IOException {
+
+    public IntegrityException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,100 @@
+package autoupdate.iotagent.download;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * This class decides how fast downloads may run on the current network. Each network class has
+ * its own limit, shared by all downloads running on it, and may be closed to downloads altogether.
+ * Metered and roaming networks are only used by jobs that allow metered data. When the network
+ * class changes, downloads pick up the new limit, or pause until a network they may use is back.
+ */
+public class NetworkPolicy {
+
+    //limit of a network class downloads may not use
+    public static final long BLOCKED = -1;
+
+    public enum NetworkClass {
+        //no network
+        NONE,
+        UNMETERED,
+        METERED,
+        ROAMING
+    }
+
+    private final Map<NetworkClass, TokenBucket> buckets = new EnumMap<>(NetworkClass.class);
+
+    private final Map<NetworkClass, Boolean> blocked = new EnumMap<>(NetworkClass.class);
+
+    private NetworkClass networkClass;
+
+    /**
+     * @param unmeteredLimit bytes per second on unmetered networks, TokenBucket.UNLIMITED or BLOCKED
+     * @param meteredLimit bytes per second on metered networks, TokenBucket.UNLIMITED or BLOCKED
+     * @param roamingLimit bytes per second while roaming, TokenBucket.UNLIMITED or BLOCKED
+     * @param networkClass the network class until the first change is reported
+     */
+    public NetworkPolicy(long unmeteredLimit, long meteredLimit, long roamingLimit, NetworkClass networkClass) {
+        setLimit(NetworkClass.UNMETERED, unmeteredLimit);
+        setLimit(NetworkClass.METERED, meteredLimit);
+        setLimit(NetworkClass.ROAMING, roamingLimit);
+        blocked.put(NetworkClass.NONE, true);
+        buckets.put(NetworkClass.NONE, new TokenBucket(TokenBucket.UNLIMITED));
+        this.networkClass = networkClass;
+    }
+
+    private void setLimit(NetworkClass networkClass, long limit) {
+        blocked.put(networkClass, limit == BLOCKED);
+        buckets.put(networkClass, new TokenBucket(limit == BLOCKED ? TokenBucket.UNLIMITED : limit));
+    }
+
+    /**
+     * Reports a change of the network downloads run on.
+     */
+    public synchronized void setNetworkClass(NetworkClass networkClass) {
+        this.networkClass = networkClass;
+        notifyAll();
+    }
+
+    public synchronized NetworkClass getNetworkClass() {
+        return networkClass;
+    }
+
+    /**
+     * @param allowMetered whether the job may use metered and roaming networks
+     * @param maxBytesPerSec limit of the job on top of the network limit, TokenBucket.UNLIMITED for none
+     * @return the throttle for one download
+     */
+    public DownloadThrottle newThrottle(boolean allowMetered, long maxBytesPerSec) {
+        return new DownloadThrottle(this, allowMetered,
+                maxBytesPerSec > 0 ? new TokenBucket(maxBytesPerSec) : null);
+    }
+
+    /**
+     * Waits until the network is one the job may use.
+     * @return the network class to download on
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    synchronized NetworkClass awaitAllowed(boolean allowMetered) throws InterruptedIOException {
+        while (!isAllowed(networkClass, allowMetered)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("download cancelled");
+            }
+        }
+        return networkClass;
+    }
+
+    synchronized boolean isAllowed(NetworkClass networkClass, boolean allowMetered) {
+        if (blocked.get(networkClass))
+            return false;
+        return allowMetered || networkClass == NetworkClass.UNMETERED;
+    }
+
+    TokenBucket bucketFor(NetworkClass networkClass) {
+        return buckets.get(networkClass);
+    }
+}
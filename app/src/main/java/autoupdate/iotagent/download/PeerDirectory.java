@@ -0,0 +1,82 @@
+package autoupdate.iotagent.download;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The apks the agents on the local network have announced, by SHA-256. A peer that stops
+ * announcing, e.g. because it left the network, is forgotten once its last announcement is older
+ * than the time to live.
+ */
+public class PeerDirectory {
+
+    private static class Peer {
+        Set<String> apks;
+        long announcedAtMs;
+    }
+
+    private final long ttlMs;
+
+    //peers by their base url
+    private final Map<String, Peer> peers = new HashMap<>();
+
+    /**
+     * @param ttlMs how long an announcement is trusted
+     */
+    public PeerDirectory(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Takes in an announcement, it replaces the earlier one of the same peer.
+     * @param baseUrl url the peer serves its apks under
+     * @param sha256s the apks the peer has, by SHA-256
+     */
+    public synchronized void update(String baseUrl, Collection<String> sha256s, long nowMs) {
+        Peer peer = peers.get(baseUrl);
+        if (peer == null) {
+            peer = new Peer();
+            peers.put(baseUrl, peer);
+        }
+        peer.apks = new HashSet<>();
+        for (String sha256 : sha256s)
+            peer.apks.add(sha256.toLowerCase());
+        peer.announcedAtMs = nowMs;
+    }
+
+    /**
+     * Forgets a peer, e.g. after it failed to serve an apk it announced.
+     */
+    public synchronized void remove(String baseUrl) {
+        peers.remove(baseUrl);
+    }
+
+    /**
+     * @return the base urls of the peers that have the apk, in random order so the peers of a
+     * site share the load
+     */
+    public synchronized List<String> peersFor(String sha256, long nowMs) {
+        List<String> found = new ArrayList<>();
+        Iterator<Map.Entry<String, Peer>> it = peers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Peer> entry = it.next();
+            if (nowMs - entry.getValue().announcedAtMs > ttlMs)
+                it.remove();
+            else if (entry.getValue().apks.contains(sha256.toLowerCase()))
+                found.add(entry.getKey());
+        }
+        Collections.shuffle(found);
+        return found;
+    }
+
+    public synchronized int size() {
+        return peers.size();
+    }
+}
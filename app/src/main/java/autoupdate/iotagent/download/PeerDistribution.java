@@ -0,0 +1,348 @@
+package autoupdate.iotagent.download;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class lets the agents on one local network download an apk from each other instead of
+ * each fetching it from the origin over the shared uplink. Every agent announces the SHA-256 of
+ * the apks it downloaded and verified in a UDP datagram, by default a broadcast on the discovery
+ * port, and serves them with a PeerServer. An agent about to download an apk with a known SHA-256
+ * first fetches it from a neighbor that announced it; the bytes are checked against the SHA-256
+ * like an origin download, and if no neighbor has the apk or none delivers it intact, the caller
+ * falls back to the origin.
+ */
+public class PeerDistribution {
+
+    private static final String LOG_TAG = "PeerDistribution";
+
+    //an announcement lists at most this many apks, the most recently shared ones, to fit a datagram
+    static final int MAX_ANNOUNCED = 16;
+
+    private static final int MAX_DATAGRAM = 2048;
+
+    //neighbors tried for one apk before falling back to the origin
+    private static final int MAX_PEER_ATTEMPTS = 3;
+
+    //a neighbor's apk is fetched into "target.peer", the origin download's partial file and checkpoint stay as they are
+    static final String SCRATCH_SUFFIX = ".peer";
+
+    //tells this agent's announcements apart from the ones of its neighbors
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final int discoveryPort;
+
+    private final List<InetSocketAddress> announceTargets = new CopyOnWriteArrayList<>();
+
+    private final long announceIntervalMs;
+
+    private final PeerDirectory directory;
+
+    private final PeerServer server;
+
+    private final AtomicLong fetchedBytes = new AtomicLong();
+
+    private final AtomicLong fetchedApks = new AtomicLong();
+
+    private final AtomicLong peerFailures = new AtomicLong();
+
+    private DatagramSocket socket;
+
+    private ScheduledExecutorService announcer;
+
+    private Thread listener;
+
+    /**
+     * @param discoveryPort UDP port announcements are received on, 0 for any free port
+     * @param announceTargets where announcements are sent, e.g. the broadcast address and the discovery port
+     * @param httpPort port the apks are served on, 0 for any free port
+     * @param maxUploads number of neighbors served at the same time
+     * @param announceIntervalMs how often the shared apks are announced
+     * @param peerTtlMs how long a neighbor's announcement is trusted
+     */
+    public PeerDistribution(int discoveryPort, List<InetSocketAddress> announceTargets, int httpPort, int maxUploads,
+                            long announceIntervalMs, long peerTtlMs) {
+        this.discoveryPort = discoveryPort;
+        this.announceTargets.addAll(announceTargets);
+        this.announceIntervalMs = announceIntervalMs;
+        this.directory = new PeerDirectory(peerTtlMs);
+        this.server = new PeerServer(httpPort, maxUploads);
+    }
+
+    /**
+     * Starts serving, listening for the neighbors' announcements and announcing.
+     */
+    public synchronized void start() throws IOException {
+        server.start();
+        socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.setBroadcast(true);
+        socket.bind(new InetSocketAddress(discoveryPort));
+        final DatagramSocket receiving = socket;
+        listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen(receiving);
+            }
+        }, "peer-discovery");
+        listener.setDaemon(true);
+        listener.start();
+        announcer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "peer-announcer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        announcer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                announce();
+            }
+        }, 0, announceIntervalMs, TimeUnit.MILLISECONDS);
+        Log.i(LOG_TAG, "sharing apks on port " + server.getPort() + ", discovery on port " + socket.getLocalPort());
+    }
+
+    public synchronized void stop() {
+        if (announcer != null)
+            announcer.shutdownNow();
+        if (socket != null)
+            socket.close();
+        server.stop();
+    }
+
+    /**
+     * Sends announcements to this target as well, e.g. a neighbor on another subnet.
+     */
+    public void addAnnounceTarget(InetSocketAddress target) {
+        announceTargets.add(target);
+    }
+
+    /**
+     * Offers a verified apk to the neighbors. It is announced right away, so neighbors waiting in
+     * the rollout window find it.
+     */
+    public void share(String sha256, File file) {
+        server.share(sha256, file);
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = announcer;
+        }
+        if (running != null && !running.isShutdown()) {
+            running.execute(new Runnable() {
+                @Override
+                public void run() {
+                    announce();
+                }
+            });
+        }
+    }
+
+    /**
+     * Fetches an apk from a neighbor that announced it, checked against its size and SHA-256. LAN
+     * transfers do not cross the uplink, so they are not throttled like origin downloads. The apk
+     * is fetched into a scratch file next to the target and only moved into place once verified,
+     * so an interrupted origin download of the same target still resumes from its checkpoint.
+     * @param sha256 SHA-256 of the apk as hex
+     * @param size expected size in bytes, -1 if unknown
+     * @param target file to write the apk to
+     * @return true if a neighbor delivered the apk, false to download it from the origin
+     * @throws InterruptedIOException if the download was cancelled
+     */
+    public boolean fetch(String sha256, long size, File target) throws InterruptedIOException {
+        List<String> peers = directory.peersFor(sha256, uptimeMs());
+        if (peers.isEmpty())
+            return false;
+        File scratch = new File(target.getPath() + SCRATCH_SUFFIX);
+        int attempts = 0;
+        try {
+            for (String peer : peers) {
+                if (++attempts > MAX_PEER_ATTEMPTS)
+                    break;
+                if (fetchFrom(peer, sha256, size, scratch)) {
+                    if ((target.exists() && !target.delete()) || !scratch.renameTo(target)) {
+                        Log.e(LOG_TAG, "could not move " + scratch + " to " + target);
+                        return false;
+                    }
+                    fetchedBytes.addAndGet(target.length());
+                    fetchedApks.incrementAndGet();
+                    Log.i(LOG_TAG, "apk " + sha256 + " fetched from neighbor " + peer);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            scratch.delete();
+            new File(scratch.getPath() + ResumableDownloader.PART_SUFFIX).delete();
+            new File(scratch.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX).delete();
+        }
+    }
+
+    /**
+     * Fetches an apk from one neighbor into the scratch file.
+     * @return true if the neighbor delivered the apk intact
+     * @throws InterruptedIOException if the download was cancelled
+     */
+    private boolean fetchFrom(String peer, String sha256, long size, File scratch) throws InterruptedIOException {
+        String url = peer + PeerServer.PATH_PREFIX + sha256.toLowerCase();
+        ResumableDownloader downloader = new ResumableDownloader(1, 500);
+        downloader.setExpectedContent(size, sha256);
+        try {
+            downloader.download(url, scratch);
+            return true;
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IntegrityException e) {
+            //a neighbor serving other bytes than it announced is not asked again
+            directory.remove(peer);
+            peerFailures.incrementAndGet();
+            Log.w(LOG_TAG, "neighbor " + peer + " sent a bad apk : " + e.getMessage());
+        } catch (IOException e) {
+            peerFailures.incrementAndGet();
+            Log.w(LOG_TAG, "could not fetch apk from neighbor " + peer + " : " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * @return the base urls of the neighbors that announced the apk
+     */
+    public List<String> peersFor(String sha256) {
+        return directory.peersFor(sha256, uptimeMs());
+    }
+
+    /**
+     * Sends the shared apks to every announce target.
+     */
+    void announce() {
+        DatagramSocket sending;
+        synchronized (this) {
+            sending = socket;
+        }
+        if (sending == null || sending.isClosed())
+            return;
+        List<String> shared = server.getShared();
+        if (shared.size() > MAX_ANNOUNCED)
+            shared = shared.subList(shared.size() - MAX_ANNOUNCED, shared.size());
+        byte[] payload;
+        try {
+            payload = new JSONObject()
+                    .put("node", nodeId)
+                    .put("port", server.getPort())
+                    .put("apks", new JSONArray(shared))
+                    .toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "err encoding announcement : " + e.getMessage());
+            return;
+        }
+        for (InetSocketAddress target : announceTargets) {
+            try {
+                sending.send(new DatagramPacket(payload, payload.length, target));
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "err announcing to " + target + " : " + e.getMessage());
+            }
+        }
+    }
+
+    private void listen(DatagramSocket receiving) {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (!receiving.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                receiving.receive(packet);
+            } catch (SocketException e) {
+                //closed by stop()
+                return;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "err receiving announcement : " + e.getMessage());
+                continue;
+            }
+            onAnnouncement(packet.getAddress(), new String(packet.getData(), packet.getOffset(), packet.getLength(),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    private void onAnnouncement(InetAddress sender, String message) {
+        try {
+            JSONObject announcement = new JSONObject(message);
+            if (nodeId.equals(announcement.optString("node")))
+                return;
+            JSONArray apks = announcement.getJSONArray("apks");
+            List<String> sha256s = new ArrayList<>();
+            for (int i = 0; i < apks.length(); ++i)
+                sha256s.add(apks.getString(i));
+            String host = sender.getHostAddress();
+            if (host.indexOf(':') >= 0)
+                host = "[" + host + "]";
+            directory.update("http://" + host + ":" + announcement.getInt("port"), sha256s, uptimeMs());
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "malformed announcement from " + sender + " : " + e.getMessage());
+        }
+    }
+
+    private static long uptimeMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @return the UDP port announcements are received on, once started
+     */
+    public synchronized int getDiscoveryPort() {
+        return socket == null ? discoveryPort : socket.getLocalPort();
+    }
+
+    /**
+     * @return the port the apks are served on, once started
+     */
+    public int getHttpPort() {
+        return server.getPort();
+    }
+
+    /**
+     * @return bytes fetched from neighbors instead of the origin
+     */
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    public long getFetchedApks() {
+        return fetchedApks.get();
+    }
+
+    /**
+     * @return fetches from a neighbor that failed and were tried elsewhere
+     */
+    public long getPeerFailures() {
+        return peerFailures.get();
+    }
+
+    /**
+     * @return bytes sent to neighbors
+     */
+    public long getServedBytes() {
+        return server.getServedBytes();
+    }
+}
@@ -0,0 +1,260 @@
+package autoupdate.iotagent.download;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal HTTP server handing the apks this agent downloaded and verified to the agents next
+ * to it. Only GET /apk/{sha256} is served, for apks shared by their SHA-256, with Range requests
+ * so a peer can resume. At most maxUploads requests are served at once, further requests get 503
+ * and the peer moves on to another neighbor or the origin.
+ */
+public class PeerServer {
+
+    private static final String LOG_TAG = "PeerServer";
+
+    static final String PATH_PREFIX = "/apk/";
+
+    private static final int SOCKET_TIMEOUT_MS = 15000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+
+    private final ThreadPoolExecutor uploads;
+
+    //shared apks by SHA-256, in the order they were shared
+    private final Map<String, File> shared = new LinkedHashMap<>();
+
+    private final AtomicLong servedBytes = new AtomicLong();
+
+    private final AtomicLong servedRequests = new AtomicLong();
+
+    private ServerSocket serverSocket;
+
+    private Thread acceptor;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     * @param maxUploads number of requests served at the same time
+     */
+    public PeerServer(int port, int maxUploads) {
+        this.port = port;
+        this.uploads = new ThreadPoolExecutor(maxUploads, maxUploads, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        uploads.allowCoreThreadTimeOut(true);
+    }
+
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        final ServerSocket socket = serverSocket;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(socket);
+            }
+        }, "peer-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public synchronized void stop() {
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "err closing server socket : " + e.getMessage());
+        }
+        uploads.shutdownNow();
+    }
+
+    /**
+     * @return the port the server listens on, once started
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? port : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Offers a verified apk to the peers.
+     */
+    public synchronized void share(String sha256, File file) {
+        shared.put(sha256.toLowerCase(), file);
+    }
+
+    /**
+     * @return the SHA-256 of the apks shared and still on disk, the most recently shared last
+     */
+    public synchronized List<String> getShared() {
+        List<String> available = new ArrayList<>();
+        for (Map.Entry<String, File> entry : shared.entrySet())
+            if (entry.getValue().isFile())
+                available.add(entry.getKey());
+        return available;
+    }
+
+    private synchronized File lookup(String sha256) {
+        File file = shared.get(sha256.toLowerCase());
+        //evicted from the apk cache since it was shared
+        if (file != null && !file.isFile()) {
+            shared.remove(sha256.toLowerCase());
+            return null;
+        }
+        return file;
+    }
+
+    private void accept(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            final Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                if (!socket.isClosed())
+                    Log.e(LOG_TAG, "err accepting peer : " + e.getMessage());
+                continue;
+            }
+            try {
+                uploads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    respond(client.getOutputStream(), "503 Service Unavailable", 0, null);
+                } catch (IOException ignored) {
+                    //the peer will try elsewhere either way
+                }
+                close(client);
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            client.setSoTimeout(SOCKET_TIMEOUT_MS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            String requestLine = in.readLine();
+            String range = null;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Range:", 0, "Range:".length()))
+                    range = line.substring("Range:".length()).trim();
+            }
+            OutputStream out = client.getOutputStream();
+            String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+            if (parts.length < 2 || !parts[0].equals("GET") || !parts[1].startsWith(PATH_PREFIX)) {
+                respond(out, "400 Bad Request", 0, null);
+                return;
+            }
+            File file = lookup(parts[1].substring(PATH_PREFIX.length()));
+            if (file == null) {
+                respond(out, "404 Not Found", 0, null);
+                return;
+            }
+            send(out, file, range);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "err serving peer : " + e.getMessage());
+        } finally {
+            close(client);
+        }
+    }
+
+    /**
+     * Sends the whole file, or the bytes from the start of a "bytes=start-" or "bytes=start-end" range.
+     */
+    private void send(OutputStream out, File file, String range) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long total = raf.length();
+            long start = 0;
+            long end = total - 1;
+            String status = "200 OK";
+            String contentRange = null;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                try {
+                    start = Long.parseLong(bounds[0].trim());
+                    if (bounds.length > 1 && !bounds[1].trim().isEmpty())
+                        end = Math.min(end, Long.parseLong(bounds[1].trim()));
+                } catch (NumberFormatException e) {
+                    respond(out, "400 Bad Request", 0, null);
+                    return;
+                }
+                if (start >= total || start > end) {
+                    respond(out, "416 Range Not Satisfiable", 0, "bytes */" + total);
+                    return;
+                }
+                status = "206 Partial Content";
+                contentRange = "bytes " + start + "-" + end + "/" + total;
+            }
+            long length = end - start + 1;
+            respond(out, status, length, contentRange);
+            raf.seek(start);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long left = length;
+            while (left > 0) {
+                int n = raf.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0)
+                    break;
+                out.write(buffer, 0, n);
+                left -= n;
+                servedBytes.addAndGet(n);
+            }
+            out.flush();
+            servedRequests.incrementAndGet();
+        }
+    }
+
+    private static void respond(OutputStream out, String status, long length, String contentRange) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n")
+                .append("Connection: close\r\n");
+        if (contentRange != null)
+            head.append("Content-Range: ").append(contentRange).append("\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void close(Socket client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+            //nothing left to do with the peer
+        }
+    }
+
+    /**
+     * @return bytes sent to peers
+     */
+    public long getServedBytes() {
+        return servedBytes.get();
+    }
+
+    /**
+     * @return requests served completely
+     */
+    public long getServedRequests() {
+        return servedRequests.get();
+    }
+}
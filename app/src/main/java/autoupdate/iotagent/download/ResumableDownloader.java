@@ -0,0 +1,351 @@
+package autoupdate.iotagent.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class downloads a file over HTTP and resumes it with Range requests when the connection
+ * drops. The bytes are written to "target.part" and the progress is kept in a checkpoint file
+ * "target.ckpt", so a download interrupted by a service restart or a reboot continues from the
+ * last checkpoint on the next call instead of starting over.
+ * If the expected size and SHA-256 are set, the digest is computed inside the write loop and the
+ * download fails with an IntegrityException when they do not match, so verifying the file takes
+ * no second pass over it. Only a download resumed after a restart hashes the bytes already on disk.
+ */
+public class ResumableDownloader {
+
+    private static final String LOG_TAG = "ResumableDownloader";
+
+    static final String PART_SUFFIX = ".part";
+    static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final int CONNECT_TIMEOUT_MS = 15000;
+
+    static final int READ_TIMEOUT_MS = 30000;
+
+    //the checkpoint is synced to disk after every this many bytes
+    static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+    private final int maxRetries;
+
+    private final long retryBackoffMs;
+
+    private DownloadProgressListener progressListener;
+
+    private DownloadThrottle throttle;
+
+    private long expectedSize = -1;
+
+    private String expectedSha256;
+
+    //digest of the first digestedBytes bytes of the partial file, null if no SHA-256 is expected
+    private MessageDigest digest;
+
+    private long digestedBytes;
+
+    public ResumableDownloader() {
+        this(5, 2000);
+    }
+
+    /**
+     * @param maxRetries number of consecutive failed attempts without progress before giving up
+     * @param retryBackoffMs wait before the first retry, doubled on every further failure
+     */
+    public ResumableDownloader(int maxRetries, long retryBackoffMs) {
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    /**
+     * @param progressListener told about the progress every time the checkpoint is saved, may be null
+     */
+    public void setProgressListener(DownloadProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @param throttle limits the download rate and pauses it on networks the job may not use, may be null
+     */
+    public void setThrottle(DownloadThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param size expected size of the file in bytes, -1 if unknown
+     * @param sha256 expected SHA-256 of the file as hex, null if unknown
+     */
+    public void setExpectedContent(long size, String sha256) {
+        this.expectedSize = size;
+        this.expectedSha256 = sha256;
+    }
+
+    /**
+     * Downloads the url into the target file, resuming from an earlier checkpoint if one exists
+     * for the same url. The target file only appears once the download is complete.
+     * @param url the url to download
+     * @param target the file to write to
+     * @throws IOException if the download fails more than maxRetries times in a row
+     * @throws IntegrityException if the file does not have the expected size or SHA-256
+     * @throws ServerBusyException if the server answers 503 or 429, nothing is retried then
+     */
+    public void download(String url, File target) throws IOException {
+        File part = new File(target.getPath() + PART_SUFFIX);
+        File checkpointFile = new File(target.getPath() + CHECKPOINT_SUFFIX);
+
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(checkpointFile);
+        if (checkpoint == null || !url.equals(checkpoint.url) || checkpoint.segmentOffsets != null
+                || part.length() < checkpoint.offset) {
+            checkpoint = new DownloadCheckpoint(url);
+        } else {
+            Log.i(LOG_TAG, "resuming " + target.getName() + " at " + checkpoint.offset + " bytes");
+        }
+        digest = expectedSha256 == null ? null : newSha256();
+        digestedBytes = 0;
+
+        int failures = 0;
+        while (true) {
+            long before = checkpoint.offset;
+            try {
+                transfer(checkpoint, part, checkpointFile);
+                break;
+            } catch (InterruptedIOException | ServerBusyException e) {
+                throw e;
+            } catch (IntegrityException e) {
+                part.delete();
+                checkpointFile.delete();
+                throw e;
+            } catch (IOException e) {
+                if (checkpoint.offset > before)
+                    failures = 0;
+                if (++failures > maxRetries)
+                    throw e;
+                Log.w(LOG_TAG, "download interrupted at " + checkpoint.offset + " bytes : " + e.getMessage());
+                sleep(retryBackoffMs << (failures - 1));
+            }
+        }
+
+        if (digest != null) {
+            //a completed resume after a restart skipped the write loop for the bytes on disk
+            syncDigest(part, checkpoint.offset);
+            String actual = hex(digest.digest());
+            if (!actual.equalsIgnoreCase(expectedSha256)) {
+                part.delete();
+                checkpointFile.delete();
+                throw new IntegrityException("SHA-256 of " + target.getName() + " is " + actual + ", expected " + expectedSha256);
+            }
+        }
+
+        if (target.exists() && !target.delete())
+            throw new IOException("could not replace " + target);
+        if (!part.renameTo(target))
+            throw new IOException("could not move " + part + " to " + target);
+        checkpointFile.delete();
+    }
+
+    /**
+     * Makes one request for the bytes after the checkpoint offset and appends them to the partial
+     * file, saving the checkpoint as it goes.
+     */
+    private void transfer(DownloadCheckpoint checkpoint, File part, File checkpointFile) throws IOException {
+        if (throttle != null)
+            throttle.awaitNetwork();
+        HttpURLConnection conn = (HttpURLConnection) new URL(checkpoint.url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        if (checkpoint.offset > 0) {
+            conn.setRequestProperty("Range", "bytes=" + checkpoint.offset + "-");
+            if (checkpoint.etag != null)
+                conn.setRequestProperty("If-Range", checkpoint.etag);
+        }
+
+        try {
+            int code = conn.getResponseCode();
+            if (ServerBusyException.isBusy(code))
+                throw ServerBusyException.from(conn, code);
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long start = parseContentRangeStart(conn.getHeaderField("Content-Range"));
+                if (start != checkpoint.offset) {
+                    restart(checkpoint, checkpointFile);
+                    throw new IOException("unexpected Content-Range " + conn.getHeaderField("Content-Range"));
+                }
+                if (checkpoint.length < 0)
+                    checkpoint.length = parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                //the server ignored the range or the file changed, start from the beginning
+                if (checkpoint.offset > 0)
+                    Log.i(LOG_TAG, "server sent the whole file, restarting download");
+                checkpoint.offset = 0;
+                checkpoint.etag = conn.getHeaderField("ETag");
+                checkpoint.length = conn.getContentLengthLong();
+                checkpoint.save(checkpointFile);
+            } else if (code == 416 && checkpoint.offset > 0 && checkpoint.offset == checkpoint.length) {
+                return;
+            } else {
+                if (code == 416)
+                    restart(checkpoint, checkpointFile);
+                throw new IOException("HTTP " + code + " for " + checkpoint.url);
+            }
+            if (expectedSize >= 0 && checkpoint.length >= 0 && checkpoint.length != expectedSize)
+                throw new IntegrityException("server has " + checkpoint.length + " bytes, expected " + expectedSize);
+
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw");
+                 InputStream in = conn.getInputStream()) {
+                FileChannel channel = raf.getChannel();
+                channel.truncate(checkpoint.offset);
+                channel.position(checkpoint.offset);
+                if (digest != null)
+                    syncDigest(part, checkpoint.offset);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                long lastSaved = checkpoint.offset;
+                int n;
+                try {
+                    while ((n = in.read(buffer)) != -1) {
+                        if (Thread.currentThread().isInterrupted())
+                            throw new InterruptedIOException("download cancelled");
+                        if (throttle != null)
+                            throttle.acquire(n);
+                        wrapped.clear().limit(n);
+                        while (wrapped.hasRemaining())
+                            channel.write(wrapped);
+                        if (digest != null) {
+                            digest.update(buffer, 0, n);
+                            digestedBytes += n;
+                        }
+                        checkpoint.offset += n;
+                        if (checkpoint.offset - lastSaved >= CHECKPOINT_INTERVAL) {
+                            channel.force(false);
+                            checkpoint.save(checkpointFile);
+                            lastSaved = checkpoint.offset;
+                            if (progressListener != null)
+                                progressListener.onProgress(checkpoint.offset, checkpoint.length);
+                        }
+                    }
+                } finally {
+                    channel.force(false);
+                    checkpoint.save(checkpointFile);
+                }
+            }
+
+            if (checkpoint.length >= 0 && checkpoint.offset != checkpoint.length)
+                throw new IOException("connection closed at " + checkpoint.offset + " of " + checkpoint.length + " bytes");
+            if (expectedSize >= 0 && checkpoint.offset != expectedSize)
+                throw new IntegrityException("downloaded " + checkpoint.offset + " bytes, expected " + expectedSize);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Brings the digest in line with the first length bytes of the partial file. It already is,
+     * unless the download restarted from the beginning or resumed a checkpoint from an earlier run.
+     */
+    private void syncDigest(File part, long length) throws IOException {
+        if (digestedBytes == length)
+            return;
+        digest.reset();
+        digestedBytes = 0;
+        if (length > 0)
+            hashPrefix(digest, part, length);
+        digestedBytes = length;
+    }
+
+    /**
+     * Feeds the first length bytes of a file to the digest.
+     */
+    static void hashPrefix(MessageDigest digest, File file, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0)
+                    throw new IOException(file + " is shorter than " + length + " bytes");
+                digest.update(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //every Java and Android runtime provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Drops the progress of the checkpoint so the next attempt fetches the whole file again.
+     */
+    private void restart(DownloadCheckpoint checkpoint, File checkpointFile) throws IOException {
+        checkpoint.offset = 0;
+        checkpoint.etag = null;
+        checkpoint.length = -1;
+        checkpoint.save(checkpointFile);
+    }
+
+    /**
+     * Reads the first byte position of a "bytes start-end/total" Content-Range header.
+     * @return the start position, or -1 if the header is missing or malformed
+     */
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes "))
+            return -1;
+        int dash = contentRange.indexOf('-');
+        if (dash < 0)
+            return -1;
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the total length of a "bytes start-end/total" Content-Range header.
+     * @return the total length, or -1 if it is missing or "*"
+     */
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null)
+            return -1;
+        int slash = contentRange.indexOf('/');
+        if (slash < 0)
+            return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static void sleep(long ms) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("download cancelled");
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package autoupdate.iotagent.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class splits a download into byte ranges and fetches them on several connections at once.
+ * The file is cut into segments of about SEGMENT_LENGTH, at least one per connection, and the
+ * connections take the segments in file order. Every segment is written straight into its
+ * position of a preallocated partial file with positional FileChannel writes. The progress of
+ * each segment is kept in the same checkpoint file used by ResumableDownloader, so a segmented
+ * download is resumable as well.
+ * Files smaller than MIN_SEGMENTED_LENGTH, and servers without Range support, fall back to a
+ * single resumable stream.
+ * An expected SHA-256 is computed in file order as the write frontier advances, see
+ * OrderedDigest, so there is no pass over the assembled file once the last byte arrived.
+ */
+public class SegmentedDownloader {
+
+    private static final String LOG_TAG = "SegmentedDownloader";
+
+    //below this size the extra connections cost more than they bring
+    static final long MIN_SEGMENTED_LENGTH = 4 * 1024 * 1024;
+
+    //upper bound on the number of parallel connections, whatever the job document asks for
+    static final int MAX_SEGMENTS = 8;
+
+    //length of a segment of a large file, the bytes ahead of the hashed prefix stay within a few of them
+    static final long SEGMENT_LENGTH = 2 * 1024 * 1024;
+
+    private final int segments;
+
+    private final int maxRetries;
+
+    private final long retryBackoffMs;
+
+    private long minSegmentedLength = MIN_SEGMENTED_LENGTH;
+
+    private long segmentLength = SEGMENT_LENGTH;
+
+    private DownloadProgressListener progressListener;
+
+    private DownloadThrottle throttle;
+
+    private long expectedSize = -1;
+
+    private String expectedSha256;
+
+    public SegmentedDownloader(int segments) {
+        this(segments, 5, 2000);
+    }
+
+    /**
+     * @param segments number of byte ranges fetched in parallel, 1 for a single stream
+     * @param maxRetries number of consecutive failed attempts without progress before a segment gives up
+     * @param retryBackoffMs wait before the first retry, doubled on every further failure
+     */
+    public SegmentedDownloader(int segments, int maxRetries, long retryBackoffMs) {
+        this.segments = Math.max(1, Math.min(segments, MAX_SEGMENTS));
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    void setMinSegmentedLength(long minSegmentedLength) {
+        this.minSegmentedLength = minSegmentedLength;
+    }
+
+    void setSegmentLength(long segmentLength) {
+        this.segmentLength = segmentLength;
+    }
+
+    /**
+     * @param progressListener told about the progress every time the checkpoint is saved, may be null
+     */
+    public void setProgressListener(DownloadProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @param throttle limits the download rate and pauses it on networks the job may not use, may be null
+     */
+    public void setThrottle(DownloadThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param size expected size of the file in bytes, -1 if unknown
+     * @param sha256 expected SHA-256 of the file as hex, null if unknown
+     */
+    public void setExpectedContent(long size, String sha256) {
+        this.expectedSize = size;
+        this.expectedSha256 = sha256;
+    }
+
+    /**
+     * Downloads the url into the target file. A segmented checkpoint left by an earlier attempt is
+     * resumed with its own segment layout.
+     * @param url the url to download
+     * @param target the file to write to
+     * @throws IOException if a segment fails more than maxRetries times in a row
+     * @throws IntegrityException if the file does not have the expected size or SHA-256
+     * @throws ServerBusyException if the server answers 503 or 429, nothing is retried then
+     */
+    public void download(String url, File target) throws IOException {
+        download(url, target, true);
+    }
+
+    private void download(String url, File target, boolean restartOnChange) throws IOException {
+        File part = new File(target.getPath() + ResumableDownloader.PART_SUFFIX);
+        File checkpointFile = new File(target.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX);
+
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(checkpointFile);
+        if (checkpoint != null && url.equals(checkpoint.url) && checkpoint.segmentOffsets != null
+                && part.length() == checkpoint.length) {
+            Log.i(LOG_TAG, "resuming " + target.getName() + " in " + checkpoint.getSegmentCount() + " segments");
+        } else if (checkpoint != null && url.equals(checkpoint.url) && checkpoint.segmentOffsets == null) {
+            //a single stream download is already under way, keep going with it
+            singleStream().download(url, target);
+            return;
+        } else {
+            checkpoint = segments > 1 ? probe(url) : null;
+            if (checkpoint == null || checkpoint.length < minSegmentedLength) {
+                singleStream().download(url, target);
+                return;
+            }
+            if (expectedSize >= 0 && checkpoint.length != expectedSize)
+                throw new IntegrityException("server has " + checkpoint.length + " bytes, expected " + expectedSize);
+            int count = (int) Math.max(segments, (checkpoint.length + segmentLength - 1) / segmentLength);
+            checkpoint.segmentOffsets = new long[count];
+            for (int i = 0; i < count; ++i)
+                checkpoint.segmentOffsets[i] = checkpoint.segmentStart(i);
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                raf.setLength(checkpoint.length);
+            }
+            checkpoint.save(checkpointFile);
+            Log.i(LOG_TAG, "downloading " + target.getName() + " in " + count + " segments on " + segments + " connections");
+        }
+
+        OrderedDigest digest = expectedSha256 != null ? new OrderedDigest(checkpoint) : null;
+        try {
+            fetchSegments(checkpoint, part, checkpointFile, digest);
+        } catch (FileChangedException e) {
+            checkpointFile.delete();
+            part.delete();
+            if (!restartOnChange)
+                throw e;
+            Log.i(LOG_TAG, e.getMessage() + ", restarting download");
+            download(url, target, false);
+            return;
+        }
+
+        if (digest != null) {
+            String actual = digest.finish();
+            if (!actual.equalsIgnoreCase(expectedSha256)) {
+                checkpointFile.delete();
+                part.delete();
+                throw new IntegrityException("SHA-256 of " + target.getName() + " is " + actual + ", expected " + expectedSha256);
+            }
+        }
+
+        if (target.exists() && !target.delete())
+            throw new IOException("could not replace " + target);
+        if (!part.renameTo(target))
+            throw new IOException("could not move " + part + " to " + target);
+        checkpointFile.delete();
+    }
+
+    private ResumableDownloader singleStream() {
+        ResumableDownloader downloader = new ResumableDownloader(maxRetries, retryBackoffMs);
+        downloader.setProgressListener(progressListener);
+        downloader.setThrottle(throttle);
+        downloader.setExpectedContent(expectedSize, expectedSha256);
+        return downloader;
+    }
+
+    /**
+     * Asks for the first byte of the url to learn its length and ETag.
+     * @return a checkpoint holding length and ETag, or null if the server does not support ranges
+     */
+    private DownloadCheckpoint probe(String url) throws IOException {
+        if (throttle != null)
+            throttle.awaitNetwork();
+        HttpURLConnection conn = open(url);
+        conn.setRequestProperty("Range", "bytes=0-0");
+        try {
+            int code = conn.getResponseCode();
+            if (ServerBusyException.isBusy(code))
+                throw ServerBusyException.from(conn, code);
+            if (code != HttpURLConnection.HTTP_PARTIAL)
+                return null;
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint(url);
+            checkpoint.length = ResumableDownloader.parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+            checkpoint.etag = conn.getHeaderField("ETag");
+            return checkpoint.length > 0 ? checkpoint : null;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Runs one task per connection, each taking the next unfinished segment in file order until
+     * none is left, and waits for all of them.
+     * @param digest hashes the file as it is written, null if no SHA-256 is expected
+     */
+    private void fetchSegments(final DownloadCheckpoint checkpoint, File part, final File checkpointFile,
+                               final OrderedDigest digest) throws IOException {
+        final int count = checkpoint.segmentOffsets.length;
+        final AtomicInteger nextSegment = new AtomicInteger();
+        int connections = Math.min(segments, count);
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            final FileChannel channel = raf.getChannel();
+            final long[] lastSaved = {totalFetched(checkpoint)};
+            //a resumed download hashes what is already on disk first
+            if (digest != null)
+                digest.written(channel, null, 0, -1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < connections; ++i) {
+                futures.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            int segment;
+                            while ((segment = nextSegment.getAndIncrement()) < count) {
+                                if (position(checkpoint, segment) < checkpoint.segmentStart(segment + 1))
+                                    fetchSegmentWithRetries(checkpoint, segment, channel, checkpointFile, lastSaved, digest);
+                            }
+                        } catch (IOException e) {
+                            throw new SegmentFailedException(e);
+                        }
+                    }
+                }));
+            }
+            try {
+                for (Future<?> future : futures)
+                    future.get();
+                if (digest != null)
+                    digest.written(channel, null, 0, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("download cancelled");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SegmentFailedException)
+                    throw (IOException) cause.getCause();
+                throw new IOException(cause);
+            } finally {
+                pool.shutdownNow();
+                synchronized (checkpoint) {
+                    try {
+                        channel.force(false);
+                        checkpoint.save(checkpointFile);
+                    } catch (IOException e) {
+                        //an interrupted worker closes the channel, the last saved checkpoint stays valid
+                        Log.w(LOG_TAG, "could not save final checkpoint : " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private void fetchSegmentWithRetries(DownloadCheckpoint checkpoint, int segment, FileChannel channel,
+                                         File checkpointFile, long[] lastSaved, OrderedDigest digest) throws IOException {
+        int failures = 0;
+        while (true) {
+            long before = position(checkpoint, segment);
+            try {
+                fetchSegment(checkpoint, segment, channel, checkpointFile, lastSaved, digest);
+                return;
+            } catch (InterruptedIOException | FileChangedException | ServerBusyException e) {
+                throw e;
+            } catch (IOException e) {
+                if (position(checkpoint, segment) > before)
+                    failures = 0;
+                if (++failures > maxRetries)
+                    throw e;
+                Log.w(LOG_TAG, "segment " + segment + " interrupted : " + e.getMessage());
+                ResumableDownloader.sleep(retryBackoffMs << (failures - 1));
+            }
+        }
+    }
+
+    /**
+     * Requests the remaining bytes of a segment and writes them at their position in the file.
+     */
+    private void fetchSegment(DownloadCheckpoint checkpoint, int segment, FileChannel channel,
+                              File checkpointFile, long[] lastSaved, OrderedDigest digest) throws IOException {
+        long position = position(checkpoint, segment);
+        long end = checkpoint.segmentStart(segment + 1);
+        if (position >= end)
+            return;
+
+        if (throttle != null)
+            throttle.awaitNetwork();
+        HttpURLConnection conn = open(checkpoint.url);
+        conn.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+        if (checkpoint.etag != null)
+            conn.setRequestProperty("If-Range", checkpoint.etag);
+        try {
+            int code = conn.getResponseCode();
+            if (ServerBusyException.isBusy(code))
+                throw ServerBusyException.from(conn, code);
+            if (code != HttpURLConnection.HTTP_PARTIAL
+                    || ResumableDownloader.parseContentRangeStart(conn.getHeaderField("Content-Range")) != position) {
+                //the file changed under us, the segments no longer line up
+                throw new FileChangedException("HTTP " + code + " for segment " + segment + ", file changed on server");
+            }
+
+            byte[] buffer = new byte[ResumableDownloader.BUFFER_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            try (InputStream in = conn.getInputStream()) {
+                int n;
+                while (position < end && (n = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1) {
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedIOException("download cancelled");
+                    if (throttle != null)
+                        throttle.acquire(n);
+                    wrapped.clear().limit(n);
+                    long at = position;
+                    while (wrapped.hasRemaining())
+                        at += channel.write(wrapped, at);
+                    position += n;
+                    synchronized (checkpoint) {
+                        checkpoint.segmentOffsets[segment] = position;
+                        long fetched = totalFetched(checkpoint);
+                        if (fetched - lastSaved[0] >= ResumableDownloader.CHECKPOINT_INTERVAL) {
+                            channel.force(false);
+                            checkpoint.save(checkpointFile);
+                            lastSaved[0] = fetched;
+                            if (progressListener != null)
+                                progressListener.onProgress(fetched, checkpoint.length);
+                        }
+                    }
+                    if (digest != null)
+                        digest.written(channel, buffer, n, position - n);
+                }
+            }
+            if (position < end)
+                throw new IOException("connection closed at " + position + " of segment ending at " + end);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static long position(DownloadCheckpoint checkpoint, int segment) {
+        synchronized (checkpoint) {
+            return checkpoint.segmentOffsets[segment];
+        }
+    }
+
+    private static long totalFetched(DownloadCheckpoint checkpoint) {
+        long total = 0;
+        for (int i = 0; i < checkpoint.segmentOffsets.length; ++i)
+            total += checkpoint.segmentOffsets[i] - checkpoint.segmentStart(i);
+        return total;
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(ResumableDownloader.CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(ResumableDownloader.READ_TIMEOUT_MS);
+        return conn;
+    }
+
+    /**
+     * Computes the SHA-256 of a segmented download in file order while it is written. The
+     * segments before the frontier are complete and hashed; bytes written right at the frontier
+     * are hashed from the write buffer, bytes written ahead of it are read back once the frontier
+     * reaches them. The connections take the segments in file order, so those are at most the few
+     * segments in flight, just written and still in the page cache.
+     */
+    private static class OrderedDigest {
+
+        private final MessageDigest digest = ResumableDownloader.newSha256();
+
+        private final DownloadCheckpoint checkpoint;
+
+        //bytes hashed so far, the frontier
+        private long hashed;
+
+        //the segment the frontier is in
+        private int segment;
+
+        OrderedDigest(DownloadCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        /**
+         * Hashes what was written, if it is at the frontier, and whatever on disk the frontier
+         * can then move over. Called after the checkpoint took in the write.
+         * @param buffer the bytes written, null to only catch up with the file
+         * @param at file position the bytes were written to
+         */
+        synchronized void written(FileChannel channel, byte[] buffer, int n, long at) throws IOException {
+            if (buffer != null && at == hashed) {
+                digest.update(buffer, 0, n);
+                hashed += n;
+            }
+            long end;
+            int count = checkpoint.segmentOffsets.length;
+            synchronized (checkpoint) {
+                end = hashed;
+                while (segment < count) {
+                    end = Math.max(end, checkpoint.segmentOffsets[segment]);
+                    if (checkpoint.segmentOffsets[segment] < checkpoint.segmentStart(segment + 1))
+                        break;
+                    ++segment;
+                }
+            }
+            if (end <= hashed)
+                return;
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(ResumableDownloader.BUFFER_SIZE, end - hashed));
+            while (hashed < end) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), end - hashed));
+                int read = channel.read(chunk, hashed);
+                if (read <= 0)
+                    throw new IOException("partial file ends at " + hashed + ", expected " + end + " bytes");
+                digest.update(chunk.array(), 0, read);
+                hashed += read;
+            }
+        }
+
+        /**
+         * @return the SHA-256 of the whole file as hex
+         * @throws IOException if the file was not hashed to its end
+         */
+        synchronized String finish() throws IOException {
+            if (hashed != checkpoint.length)
+                throw new IOException("hashed " + hashed + " of " + checkpoint.length + " bytes");
+            return ResumableDownloader.hex(digest.digest());
+        }
+    }
+
+    /**
+     * Thrown when the server no longer serves the ranges of the checkpointed file.
+     */
+    private static class FileChangedException extends IOException {
+        FileChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Carries a segment's IOException out of its executor task.
+     */
+    private static class SegmentFailedException extends RuntimeException {
+        SegmentFailedException(IOException cause) {
+            super(cause);
+        }
+    }
+}
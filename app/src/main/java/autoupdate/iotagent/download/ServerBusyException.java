@@ -0,0 +1,58 @@
+package autoupdate.iotagent.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Thrown when the server answers 503 or 429, i.e. it is overloaded and asks clients to come back
+ * later. The downloaders do not retry it themselves, hammering a busy server is what got it busy;
+ * the partial file and checkpoint are kept so the job can resume once it is scheduled again.
+ */
+public class ServerBusyException extends IOException {
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    //delay the server asked for, -1 if it sent no usable Retry-After
+    private final long retryAfterMs;
+
+    public ServerBusyException(String message, long retryAfterMs) {
+        super(message);
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /**
+     * @return the delay from the Retry-After header in milliseconds, -1 if there was none
+     */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    static boolean isBusy(int code) {
+        return code == HttpURLConnection.HTTP_UNAVAILABLE || code == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    static ServerBusyException from(HttpURLConnection conn, int code) {
+        long retryAfterMs = parseRetryAfter(conn.getHeaderField("Retry-After"),
+                conn.getHeaderFieldDate("Retry-After", -1), System.currentTimeMillis());
+        return new ServerBusyException("HTTP " + code + " for " + conn.getURL()
+                + (retryAfterMs >= 0 ? ", retry after " + retryAfterMs + " ms" : ""), retryAfterMs);
+    }
+
+    /**
+     * Reads a Retry-After header, which holds either a number of seconds or an HTTP date.
+     * @param value the raw header, null if absent
+     * @param date the header parsed as a date, -1 if it is not one
+     * @param now the current time, to turn a date into a delay
+     * @return the delay in milliseconds, -1 if the header is absent or malformed
+     */
+    static long parseRetryAfter(String value, long date, long now) {
+        if (value == null)
+            return -1;
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            return date < 0 ? -1 : Math.max(0, date - now);
+        }
+    }
+}
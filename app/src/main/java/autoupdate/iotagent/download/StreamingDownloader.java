@@ -0,0 +1,213 @@
+package autoupdate.iotagent.download;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+
+/**
+ * This class downloads a file over HTTP into a Sink instead of a file of its own, e.g. straight
+ * into a PackageInstaller session. A dropped connection is resumed with a Range request and the
+ * sink is reopened at the offset reached. The SHA-256 is computed as the bytes go by, so a sink
+ * never has to be read back; the caller must not use what was written when download throws.
+ * There is no checkpoint, a download interrupted by a restart starts over.
+ */
+public class StreamingDownloader {
+
+    private static final String LOG_TAG = "StreamingDownloader";
+
+    /**
+     * Where the downloaded bytes go.
+     */
+    public interface Sink {
+        /**
+         * Opens the sink for writing at an offset. The stream is closed before the next open.
+         * @param offset number of bytes already written, which the stream continues from
+         * @param length total length of the file, -1 if unknown
+         */
+        OutputStream open(long offset, long length) throws IOException;
+    }
+
+    private final int maxRetries;
+
+    private final long retryBackoffMs;
+
+    private DownloadProgressListener progressListener;
+
+    private DownloadThrottle throttle;
+
+    private long expectedSize = -1;
+
+    private String expectedSha256;
+
+    public StreamingDownloader() {
+        this(5, 2000);
+    }
+
+    /**
+     * @param maxRetries number of consecutive failed attempts without progress before giving up
+     * @param retryBackoffMs wait before the first retry, doubled on every further failure
+     */
+    public StreamingDownloader(int maxRetries, long retryBackoffMs) {
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+    }
+
+    /**
+     * @param progressListener told about the progress after every CHECKPOINT_INTERVAL bytes, may be null
+     */
+    public void setProgressListener(DownloadProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @param throttle limits the download rate and pauses it on networks the job may not use, may be null
+     */
+    public void setThrottle(DownloadThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param size expected size of the file in bytes, -1 if unknown
+     * @param sha256 expected SHA-256 of the file as hex, null if unknown
+     */
+    public void setExpectedContent(long size, String sha256) {
+        this.expectedSize = size;
+        this.expectedSha256 = sha256;
+    }
+
+    /**
+     * Downloads the url into the sink.
+     * @param url the url to download
+     * @param sink where the bytes are written
+     * @return the number of bytes written
+     * @throws IOException if the download fails more than maxRetries times in a row
+     * @throws IntegrityException if the file does not have the expected size or SHA-256
+     * @throws ServerBusyException if the server answers 503 or 429, nothing is retried then
+     */
+    public long download(String url, Sink sink) throws IOException {
+        Transfer transfer = new Transfer(url);
+        int failures = 0;
+        while (true) {
+            long before = transfer.offset;
+            try {
+                transfer(transfer, sink);
+                break;
+            } catch (InterruptedIOException | IntegrityException | ServerBusyException e) {
+                throw e;
+            } catch (IOException e) {
+                if (transfer.offset > before)
+                    failures = 0;
+                if (++failures > maxRetries)
+                    throw e;
+                Log.w(LOG_TAG, "download interrupted at " + transfer.offset + " bytes : " + e.getMessage());
+                ResumableDownloader.sleep(retryBackoffMs << (failures - 1));
+            }
+        }
+        if (expectedSha256 != null) {
+            String actual = ResumableDownloader.hex(transfer.digest.digest());
+            if (!actual.equalsIgnoreCase(expectedSha256))
+                throw new IntegrityException("SHA-256 of " + url + " is " + actual + ", expected " + expectedSha256);
+        }
+        return transfer.offset;
+    }
+
+    /**
+     * Progress of one download, kept in memory only.
+     */
+    private static class Transfer {
+        final String url;
+        final MessageDigest digest = ResumableDownloader.newSha256();
+        long offset;
+        long length = -1;
+        String etag;
+
+        Transfer(String url) {
+            this.url = url;
+        }
+
+        void restart() {
+            offset = 0;
+            length = -1;
+            etag = null;
+            digest.reset();
+        }
+    }
+
+    /**
+     * Makes one request for the bytes after the offset reached and writes them to the sink.
+     */
+    private void transfer(Transfer transfer, Sink sink) throws IOException {
+        if (throttle != null)
+            throttle.awaitNetwork();
+        HttpURLConnection conn = (HttpURLConnection) new URL(transfer.url).openConnection();
+        conn.setConnectTimeout(ResumableDownloader.CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(ResumableDownloader.READ_TIMEOUT_MS);
+        if (transfer.offset > 0) {
+            conn.setRequestProperty("Range", "bytes=" + transfer.offset + "-");
+            if (transfer.etag != null)
+                conn.setRequestProperty("If-Range", transfer.etag);
+        }
+
+        try {
+            int code = conn.getResponseCode();
+            if (ServerBusyException.isBusy(code))
+                throw ServerBusyException.from(conn, code);
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = conn.getHeaderField("Content-Range");
+                if (ResumableDownloader.parseContentRangeStart(contentRange) != transfer.offset) {
+                    transfer.restart();
+                    throw new IOException("unexpected Content-Range " + contentRange);
+                }
+                if (transfer.length < 0)
+                    transfer.length = ResumableDownloader.parseContentRangeTotal(contentRange);
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                //the server ignored the range or the file changed, the sink is written again from the start
+                if (transfer.offset > 0)
+                    Log.i(LOG_TAG, "server sent the whole file, restarting download");
+                transfer.restart();
+                transfer.etag = conn.getHeaderField("ETag");
+                transfer.length = conn.getContentLengthLong();
+            } else {
+                if (code == 416)
+                    transfer.restart();
+                throw new IOException("HTTP " + code + " for " + transfer.url);
+            }
+            if (expectedSize >= 0 && transfer.length >= 0 && transfer.length != expectedSize)
+                throw new IntegrityException("server has " + transfer.length + " bytes, expected " + expectedSize);
+
+            try (InputStream in = conn.getInputStream();
+                 OutputStream out = sink.open(transfer.offset, transfer.length >= 0 ? transfer.length : expectedSize)) {
+                byte[] buffer = new byte[ResumableDownloader.BUFFER_SIZE];
+                long lastReported = transfer.offset;
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted())
+                        throw new InterruptedIOException("download cancelled");
+                    if (throttle != null)
+                        throttle.acquire(n);
+                    out.write(buffer, 0, n);
+                    transfer.digest.update(buffer, 0, n);
+                    transfer.offset += n;
+                    if (progressListener != null
+                            && transfer.offset - lastReported >= ResumableDownloader.CHECKPOINT_INTERVAL) {
+                        progressListener.onProgress(transfer.offset, transfer.length);
+                        lastReported = transfer.offset;
+                    }
+                }
+            }
+
+            if (transfer.length >= 0 && transfer.offset != transfer.length)
+                throw new IOException("connection closed at " + transfer.offset + " of " + transfer.length + " bytes");
+            if (expectedSize >= 0 && transfer.offset != expectedSize)
+                throw new IntegrityException("downloaded " + transfer.offset + " bytes, expected " + expectedSize);
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package autoupdate.iotagent.download;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket rate limiter counting bytes. Tokens accrue at the rate up to a quarter second
+ * worth of them; a caller takes the tokens for the bytes it moved and waits while the bucket is in
+ * debt. A request larger than the bucket is let through once the bucket is full and repaid by the
+ * callers after it, so buffers of any size can be throttled. The rate can change at any time, and
+ * waiting callers pick up the new rate right away.
+ */
+public class TokenBucket {
+
+    //rate 0 lets everything through
+    public static final long UNLIMITED = 0;
+
+    private long bytesPerSecond;
+
+    private double capacity;
+
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the rate, UNLIMITED for no limit
+     */
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+        tokens = capacity;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        capacity = this.bytesPerSecond / 4.0;
+        tokens = Math.min(tokens, capacity);
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes the tokens for a number of bytes, waiting until the bucket can give them.
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public synchronized void acquire(long bytes) throws InterruptedIOException {
+        while (bytesPerSecond > 0) {
+            refill();
+            if (tokens >= Math.min(bytes, capacity)) {
+                tokens -= bytes;
+                return;
+            }
+            double missing = Math.min(bytes, capacity) - tokens;
+            long waitNanos = Math.max(1000000, (long) (missing * 1e9 / bytesPerSecond));
+            try {
+                wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("download cancelled");
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0)
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+    }
+}
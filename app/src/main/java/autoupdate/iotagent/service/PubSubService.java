@@ -12,7 +12,11 @@ import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import autoupdate.iotagent.MainActivity;
+import autoupdate.iotagent.util.AndroidLogger;
 import autoupdate.iotagent.util.IOTHelper;
 
 /**
@@ -26,6 +30,9 @@ public class PubSubService extends Service {
 
     boolean isConnected = false;
 
+    //runs the blocking IOT initialisation off the main thread
+    private final ExecutorService serviceExecutor = Executors.newSingleThreadExecutor();
+
     public PubSubService() {
     }
 
@@ -36,6 +43,8 @@ public class PubSubService extends Service {
 
     @Override
     public void onCreate() {
+        //the core module logs through a platform logger, send its lines to logcat
+        autoupdate.iotagent.platform.Log.setLogger(new AndroidLogger());
         createNotificationChannel();
         Intent notificationIntent = new Intent(getApplicationContext(), MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(getApplicationContext(),
@@ -48,7 +57,7 @@ public class PubSubService extends Service {
 
         startForeground(1, notification);
         try {
-            new Thread(new Runnable() {
+            serviceExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -59,7 +68,7 @@ public class PubSubService extends Service {
                         Log.e(LOG_TAG, "err " + e.getMessage(), e);
                     }
                 }
-            }).start();
+            });
         } catch (Exception e) {
             Log.e(LOG_TAG, e.getMessage());
         }
@@ -67,6 +76,8 @@ public class PubSubService extends Service {
 
     @Override
     public void onDestroy() {
+        serviceExecutor.shutdownNow();
+        IOTHelper.getInstance(getApplicationContext()).shutdown();
         Log.i(LOG_TAG, "Service stopped");
     }
 
@@ -0,0 +1,142 @@
+package autoupdate.iotagent.util;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.download.ApkCache;
+import autoupdate.iotagent.download.NetworkPolicy;
+import autoupdate.iotagent.download.PeerDistribution;
+
+/**
+ * The parts of the agent there is one of per process, however many things it runs jobs for: the
+ * installed versions, the apk cache, the session installer and the network policy. Every thing's
+ * JobMessageHandler uses the same instances, so an apk several things need is downloaded once and
+ * the download rate limit holds for the process as a whole. Verified apks are shared with the
+ * agents on the local network as well, see PeerDistribution.
+ * Pins in the apk cache and install sessions belong to a job of one thing, they are keyed by
+ * jobKey(thing, jobId) so equal job ids of different things do not collide.
+ */
+public class AgentServices {
+
+    private static final String LOG_TAG = "AgentServices";
+
+    //separates the thing from the job id in a job key, thing names and job ids cannot contain it
+    private static final char KEY_SEPARATOR = '/';
+
+    private final Context context;
+
+    //installed version codes, kept current by package broadcasts
+    final PackageVersionCache packageVersions;
+
+    final ApkSignatureVerifier apkVerifier;
+
+    //downloaded apks by package, version and SHA-256
+    final ApkCache apkCache;
+
+    //installs the apks of session mode jobs
+    final SessionInstaller sessionInstaller;
+
+    //download limits of the current network class
+    final NetworkPolicy networkPolicy;
+
+    private final NetworkMonitor networkMonitor;
+
+    //apks fetched from and served to neighbors, null if peer sharing is off or could not start
+    PeerDistribution peers;
+
+    //install result listeners by thing name
+    private final Map<String, SessionInstaller.ResultListener> installListeners = new HashMap<>();
+
+    /**
+     * @param context context of execution
+     */
+    public AgentServices(Context context) {
+        this.context = context;
+        this.packageVersions = new PackageVersionCache(context);
+        this.apkVerifier = new ApkSignatureVerifier(context.getPackageManager());
+        this.apkCache = new ApkCache(new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS),
+                IOTConfigData.APK_CACHE_DIR), IOTConfigData.APK_CACHE_BUDGET_BYTES);
+        this.sessionInstaller = new SessionInstaller(context, new SessionInstaller.ResultListener() {
+            @Override
+            public void onInstallResult(String key, boolean success, String message) {
+                dispatchInstallResult(key, success, message);
+            }
+        });
+        //downloads wait for the first report of the network class
+        this.networkPolicy = new NetworkPolicy(IOTConfigData.DOWNLOAD_LIMIT_UNMETERED, IOTConfigData.DOWNLOAD_LIMIT_METERED,
+                IOTConfigData.DOWNLOAD_LIMIT_ROAMING, NetworkPolicy.NetworkClass.NONE);
+        this.networkMonitor = new NetworkMonitor(context, networkPolicy);
+    }
+
+    /**
+     * Registers for package, install and network broadcasts.
+     */
+    public void register() {
+        packageVersions.register(context);
+        sessionInstaller.register();
+        networkMonitor.register();
+        if (IOTConfigData.PEER_SHARING_ENABLED)
+            startPeerSharing();
+    }
+
+    public void unregister() {
+        packageVersions.unregister(context);
+        sessionInstaller.unregister();
+        networkMonitor.unregister();
+        if (peers != null)
+            peers.stop();
+    }
+
+    private void startPeerSharing() {
+        PeerDistribution distribution = new PeerDistribution(IOTConfigData.PEER_DISCOVERY_PORT,
+                Collections.singletonList(new InetSocketAddress("255.255.255.255", IOTConfigData.PEER_DISCOVERY_PORT)),
+                IOTConfigData.PEER_HTTP_PORT, IOTConfigData.PEER_MAX_UPLOADS,
+                IOTConfigData.PEER_ANNOUNCE_INTERVAL_MS, IOTConfigData.PEER_TTL_MS);
+        try {
+            distribution.start();
+            peers = distribution;
+        } catch (IOException e) {
+            //downloads then all go to the origin
+            distribution.stop();
+            Log.e(LOG_TAG, "could not start peer sharing : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands the install results of a thing's jobs to its listener, with the plain job id.
+     */
+    public synchronized void setInstallListener(String thingName, SessionInstaller.ResultListener listener) {
+        installListeners.put(thingName, listener);
+    }
+
+    private void dispatchInstallResult(String key, boolean success, String message) {
+        int separator = key.indexOf(KEY_SEPARATOR);
+        //sessions committed before gateway mode carry the plain job id of the device
+        String thingName = separator < 0 ? IOTConfigData.DEVICE_ID : key.substring(0, separator);
+        SessionInstaller.ResultListener listener;
+        synchronized (this) {
+            listener = installListeners.get(thingName);
+        }
+        if (listener == null) {
+            Log.w(LOG_TAG, "install result for unknown thing : " + thingName);
+            return;
+        }
+        listener.onInstallResult(key.substring(separator + 1), success, message);
+    }
+
+    /**
+     * @return the key of a job of a thing, for apk cache pins and install sessions
+     */
+    public static String jobKey(String thingName, String jobId) {
+        return thingName + KEY_SEPARATOR + jobId;
+    }
+}
@@ -0,0 +1,18 @@
+package autoupdate.iotagent.util;
+
+import android.util.Log;
+
+import autoupdate.iotagent.platform.Logger;
+
+/**
+ * Routes the log lines of the core module to logcat.
+ */
+public class AndroidLogger implements Logger {
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable error) {
+        if (error != null)
+            message = message + '\n' + Log.getStackTraceString(error);
+        Log.println(priority, tag, message);
+    }
+}
@@ -0,0 +1,95 @@
+package autoupdate.iotagent.util;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class checks a downloaded apk against the installed app it is meant to update: the apk
+ * must be for the same package and be signed with the certificate of the installed app. Android
+ * refuses to install an update signed differently, so a mismatch is caught here instead of by the
+ * target app's install attempt.
+ */
+public class ApkSignatureVerifier {
+
+    private static final String LOG_TAG = "ApkSignatureVerifier";
+
+    private final PackageManager packageManager;
+
+    public ApkSignatureVerifier(PackageManager packageManager) {
+        this.packageManager = packageManager;
+    }
+
+    /**
+     * @param packageName package name of the installed app
+     * @param apkPath path of the downloaded apk
+     * @return true if the apk is for the package and signed with its certificate
+     */
+    public boolean verify(String packageName, String apkPath) {
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P)
+            return verifySigningCertificates(packageName, apkPath);
+
+        PackageInfo archive = packageManager.getPackageArchiveInfo(apkPath, PackageManager.GET_SIGNATURES);
+        if (!isArchiveOf(archive, packageName, apkPath))
+            return false;
+        try {
+            PackageInfo installed = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+            if (archive.signatures == null || archive.signatures.length == 0
+                    || !toSet(archive.signatures).equals(toSet(installed.signatures))) {
+                Log.e(LOG_TAG, apkPath + " is not signed with the certificate of " + packageName);
+                return false;
+            }
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(LOG_TAG, packageName + " is not installed");
+            return false;
+        }
+    }
+
+    /**
+     * From Android P on, the installed app may have rotated its key, so every signer of the apk is
+     * checked with hasSigningCertificate, which accepts past certificates of the installed app.
+     */
+    private boolean verifySigningCertificates(String packageName, String apkPath) {
+        PackageInfo archive = packageManager.getPackageArchiveInfo(apkPath, PackageManager.GET_SIGNING_CERTIFICATES);
+        if (!isArchiveOf(archive, packageName, apkPath))
+            return false;
+        if (archive.signingInfo == null || archive.signingInfo.getApkContentsSigners() == null
+                || archive.signingInfo.getApkContentsSigners().length == 0) {
+            Log.e(LOG_TAG, apkPath + " is not signed");
+            return false;
+        }
+        for (Signature signature : archive.signingInfo.getApkContentsSigners()) {
+            if (!packageManager.hasSigningCertificate(packageName, signature.toByteArray(),
+                    PackageManager.CERT_INPUT_RAW_X509)) {
+                Log.e(LOG_TAG, apkPath + " is not signed with the certificate of " + packageName);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isArchiveOf(PackageInfo archive, String packageName, String apkPath) {
+        if (archive == null) {
+            Log.e(LOG_TAG, apkPath + " is not a valid apk");
+            return false;
+        }
+        if (!packageName.equals(archive.packageName)) {
+            Log.e(LOG_TAG, apkPath + " is for " + archive.packageName + ", expected " + packageName);
+            return false;
+        }
+        return true;
+    }
+
+    private static Set<String> toSet(Signature[] signatures) {
+        Set<String> set = new HashSet<>();
+        if (signatures != null)
+            for (Signature signature : signatures)
+                set.add(signature.toCharsString());
+        return set;
+    }
+}
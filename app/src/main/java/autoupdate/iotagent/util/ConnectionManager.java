@@ -0,0 +1,330 @@
+package autoupdate.iotagent.util;
+
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the mqtt connection up. A lost connection is retried after an exponential
+ * backoff with full jitter, so a fleet dropped by the same broker blip does not come back in
+ * lockstep; the backoff only starts over once a connection has proven stable.
+ * It also tunes the keep-alive, which is fixed for the lifetime of a connection: every stable
+ * connection raises it for the next one to save radio wake-ups, and a connection dropped after
+ * idling for a keep-alive interval, the mark of a NAT mapping timing out, lowers it back to the
+ * last value that held and caps the next raises below it.
+ * Connection counts and uptime are kept as metrics.
+ */
+public class ConnectionManager {
+
+    private static final String LOG_TAG = "ConnectionManager";
+
+    /**
+     * Opens the connection. The outcome is reported back through onConnected and
+     * onConnectionLost.
+     */
+    public interface Connector {
+        /**
+         * @param keepAliveSec keep-alive to use for this connection
+         * @throws Exception if the attempt could not even be started, counts as a failed attempt
+         */
+        void connect(int keepAliveSec) throws Exception;
+    }
+
+    private final Connector connector;
+
+    private final int minKeepAliveSec;
+
+    private final int maxKeepAliveSec;
+
+    private final long stableMs;
+
+    private final long baseBackoffMs;
+
+    private final long maxBackoffMs;
+
+    private final Random random;
+
+    private final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> pending;
+
+    private boolean stopped;
+
+    //keep-alive the next connection uses
+    private int keepAliveSec;
+
+    //keep-alive the current or last connection was made with
+    private int connectionKeepAliveSec;
+
+    //whether the current connection lasted long enough to count as stable
+    private boolean stable;
+
+    //highest keep-alive a connection held with, 0 if none yet
+    private int lastGoodKeepAliveSec;
+
+    //lowest keep-alive a NAT timeout was seen with, 0 if none
+    private int natTimeoutKeepAliveSec;
+
+    //failed attempts since the last stable connection
+    private int attempts;
+
+    //uptime of the current connection, in ms, -1 while disconnected
+    private long connectedAtMs = -1;
+
+    private final Set<String> subscribed = new HashSet<>();
+
+    private long connectCount;
+
+    private long reconnectCount;
+
+    private long lossCount;
+
+    private long natTimeoutCount;
+
+    private long totalUptimeMs;
+
+    /**
+     * @param connector opens the connection
+     * @param initialKeepAliveSec keep-alive of the first connection
+     * @param minKeepAliveSec lower bound of the keep-alive
+     * @param maxKeepAliveSec upper bound of the keep-alive
+     * @param stableMs how long a connection has to last to count as stable, at least three
+     *                 keep-alive intervals are required as well
+     * @param baseBackoffMs backoff before the first retry, doubled per failed attempt
+     * @param maxBackoffMs upper bound of the backoff
+     */
+    public ConnectionManager(Connector connector, int initialKeepAliveSec, int minKeepAliveSec, int maxKeepAliveSec,
+                             long stableMs, long baseBackoffMs, long maxBackoffMs) {
+        this(connector, initialKeepAliveSec, minKeepAliveSec, maxKeepAliveSec, stableMs, baseBackoffMs,
+                maxBackoffMs, new Random());
+    }
+
+    ConnectionManager(Connector connector, int initialKeepAliveSec, int minKeepAliveSec, int maxKeepAliveSec,
+                      long stableMs, long baseBackoffMs, long maxBackoffMs, Random random) {
+        this.connector = connector;
+        this.minKeepAliveSec = minKeepAliveSec;
+        this.maxKeepAliveSec = maxKeepAliveSec;
+        this.keepAliveSec = Math.max(minKeepAliveSec, Math.min(initialKeepAliveSec, maxKeepAliveSec));
+        this.stableMs = stableMs;
+        this.baseBackoffMs = baseBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.random = random;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "mqtt-connection");
+            }
+        });
+    }
+
+    /**
+     * Connects right away. Called once, the manager reconnects on its own afterwards.
+     */
+    public synchronized void start() {
+        schedule(0);
+    }
+
+    /**
+     * Stops reconnecting for good.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (pending != null)
+            pending.cancel(false);
+        if (connectedAtMs >= 0)
+            totalUptimeMs += now() - connectedAtMs;
+        connectedAtMs = -1;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Called when the connection is up.
+     * @return false if the connection was already reported up, e.g. by a repeated status callback,
+     * and nothing has to be done again
+     */
+    public synchronized boolean onConnected() {
+        if (connectedAtMs >= 0)
+            return false;
+        connectedAtMs = now();
+        stable = false;
+        ++connectCount;
+        subscribed.clear();
+        Log.i(LOG_TAG, "connected with keep-alive " + connectionKeepAliveSec + " s after " + attempts + " failed attempts, "
+                + connectCount + " connections so far");
+        if (pending != null)
+            pending.cancel(false);
+        final long connectedAt = connectedAtMs;
+        pending = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onStable(connectedAt);
+            }
+        }, stablePeriodMs(), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Called when a connection was lost or a connection attempt failed. A reconnect is scheduled.
+     */
+    public synchronized void onConnectionLost() {
+        if (stopped)
+            return;
+        if (connectedAtMs >= 0) {
+            long uptimeMs = now() - connectedAtMs;
+            totalUptimeMs += uptimeMs;
+            connectedAtMs = -1;
+            ++lossCount;
+            subscribed.clear();
+            //a NAT timeout shows once the connection idled past the mapping timeout, so not before
+            //the first keep-alive, and connections at a keep-alive that held were stable before
+            if (!stable && uptimeMs >= connectionKeepAliveSec * 1000L && connectionKeepAliveSec > lastGoodKeepAliveSec)
+                onNatTimeout();
+            Log.i(LOG_TAG, "connection lost after " + uptimeMs / 1000 + " s");
+        }
+        if (pending != null)
+            pending.cancel(false);
+        schedule(backoffMs(attempts++));
+    }
+
+    /**
+     * Records that a topic is subscribed to on the current connection.
+     * @return false if it already was, so re-subscribing after a repeated status callback is a no-op
+     */
+    public synchronized boolean markSubscribed(String topic) {
+        return subscribed.add(topic);
+    }
+
+    private void onNatTimeout() {
+        ++natTimeoutCount;
+        if (natTimeoutKeepAliveSec == 0 || connectionKeepAliveSec < natTimeoutKeepAliveSec)
+            natTimeoutKeepAliveSec = connectionKeepAliveSec;
+        int lowered = lastGoodKeepAliveSec > 0
+                ? lastGoodKeepAliveSec : Math.max(minKeepAliveSec, connectionKeepAliveSec / 2);
+        Log.i(LOG_TAG, "connection dropped after idling, NAT timeout suspected below " + connectionKeepAliveSec
+                + " s, keep-alive lowered to " + lowered + " s");
+        keepAliveSec = lowered;
+    }
+
+    private synchronized void onStable(long connectedAt) {
+        if (stopped || connectedAtMs != connectedAt)
+            return;
+        stable = true;
+        attempts = 0;
+        lastGoodKeepAliveSec = Math.max(lastGoodKeepAliveSec, connectionKeepAliveSec);
+        //probe halfway towards a keep-alive that timed out before, doubling otherwise
+        int raised = natTimeoutKeepAliveSec > 0
+                ? (connectionKeepAliveSec + natTimeoutKeepAliveSec) / 2 : connectionKeepAliveSec * 2;
+        raised = Math.min(raised, maxKeepAliveSec);
+        if (raised > keepAliveSec) {
+            //the keep-alive is part of the connect handshake, the next connection uses it
+            Log.i(LOG_TAG, "connection stable, keep-alive raised to " + raised + " s for the next connection");
+            keepAliveSec = raised;
+        }
+    }
+
+    private long stablePeriodMs() {
+        return Math.max(stableMs, connectionKeepAliveSec * 3000L);
+    }
+
+    long backoffMs(int attempt) {
+        long backoff = baseBackoffMs << Math.min(attempt, 20);
+        if (backoff <= 0 || backoff > maxBackoffMs)
+            backoff = maxBackoffMs;
+        //full jitter, anywhere between no wait and the backoff
+        return (random.nextLong() & Long.MAX_VALUE) % (backoff + 1);
+    }
+
+    private void schedule(long delayMs) {
+        if (stopped)
+            return;
+        if (delayMs > 0)
+            Log.i(LOG_TAG, "reconnecting in " + delayMs + " ms, attempt " + attempts);
+        pending = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                int keepAlive;
+                synchronized (ConnectionManager.this) {
+                    if (stopped || connectedAtMs >= 0)
+                        return;
+                    if (connectCount > 0 || attempts > 0)
+                        ++reconnectCount;
+                    keepAlive = keepAliveSec;
+                    connectionKeepAliveSec = keepAlive;
+                }
+                try {
+                    connector.connect(keepAlive);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "connection error : " + e.getMessage());
+                    onConnectionLost();
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * @return the keep-alive the next connection uses, in seconds
+     */
+    public synchronized int getKeepAliveSec() {
+        return keepAliveSec;
+    }
+
+    /**
+     * @return whether the connection is up
+     */
+    public synchronized boolean isConnected() {
+        return connectedAtMs >= 0;
+    }
+
+    /**
+     * @return how long the current connection has been up, 0 while disconnected
+     */
+    public synchronized long getUptimeMs() {
+        return connectedAtMs >= 0 ? now() - connectedAtMs : 0;
+    }
+
+    /**
+     * @return how long the connection was up in total, the current connection included
+     */
+    public synchronized long getTotalUptimeMs() {
+        return totalUptimeMs + getUptimeMs();
+    }
+
+    /**
+     * @return the number of connections established
+     */
+    public synchronized long getConnectCount() {
+        return connectCount;
+    }
+
+    /**
+     * @return the number of connection attempts after the first one
+     */
+    public synchronized long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * @return the number of established connections that were lost
+     */
+    public synchronized long getLossCount() {
+        return lossCount;
+    }
+
+    /**
+     * @return the number of losses taken for NAT timeouts
+     */
+    public synchronized long getNatTimeoutCount() {
+        return natTimeoutCount;
+    }
+}
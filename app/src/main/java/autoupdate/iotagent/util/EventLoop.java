@@ -0,0 +1,102 @@
+package autoupdate.iotagent.util;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single thread that runs posted work one item at a time, in the order it was posted. The agent
+ * core, i.e. the job state, the tracker and the journal, is only touched from this thread, so it
+ * needs no locking however many threads the events come from. Callback threads only post and
+ * return, and anything that blocks for long, like downloads, runs on worker pools and posts its
+ * outcome back.
+ */
+public class EventLoop {
+
+    private static final String LOG_TAG = "EventLoop";
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    private final ExecutorService executor;
+
+    private volatile Thread thread;
+
+    //events posted and not run yet
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param name name of the loop thread
+     */
+    public EventLoop(final String name) {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                thread = new Thread(runnable, name);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs an event on the loop thread after the ones posted before it. An event that throws is
+     * logged and does not stop the loop.
+     * @return false if the loop is shut down and the event was dropped
+     */
+    public boolean post(final Runnable event) {
+        pending.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pending.decrementAndGet();
+                    try {
+                        event.run();
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "event failed", e);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            Log.w(LOG_TAG, "event dropped, loop is shut down");
+            return false;
+        }
+    }
+
+    /**
+     * @return true if called from the loop thread
+     */
+    public boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return the number of events waiting to run
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Lets the events already posted run, drops later ones and waits a short while for the loop
+     * to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "event loop did not drain in time");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
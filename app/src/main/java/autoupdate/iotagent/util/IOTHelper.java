@@ -8,6 +8,7 @@ import com.amazonaws.mobileconnectors.iot.AWSIotKeystoreHelper;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttLastWillAndTestament;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttManager;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttMessageDeliveryCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
 import com.amazonaws.regions.Regions;
@@ -20,22 +21,38 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
 
 import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.metrics.Counter;
+import autoupdate.iotagent.metrics.Gauge;
+import autoupdate.iotagent.metrics.Histogram;
+import autoupdate.iotagent.metrics.MetricsRegistry;
+import autoupdate.iotagent.metrics.MetricsReporter;
+import autoupdate.iotagent.payload.PayloadCodec;
 
 /**
  * This class handles communication with AWS IOT backend.
  * It is responsible for fetching keystore and connecting to the mqtt broker.
  * It also handles publishing and subscribing to IOT topics.
  * We only need a single instance of this class to connect to the mqtt broker, hence it is Singleton
+ * Messages and connection events are handed to the agent's event loop, so the mqtt callback
+ * threads never block and the job state is only touched from one thread.
+ * In gateway mode the one connection serves the jobs of every thing in GATEWAY_THINGS besides the
+ * device: each thing has a ThingAgent with its own topics and job state, its topic handlers are
+ * registered in the shared topic router, and the things share the apk cache through AgentServices.
+ * Payloads go through the PayloadCodec both ways, the rest of the agent only sees JSON text.
  * @author Prabhat Sharma
  */
-public class IOTHelper {
+public class IOTHelper implements MessagePublisher {
 
     private Context context;
 
@@ -62,6 +79,9 @@ public class IOTHelper {
 
     private static final String TEMP_CERT_ID = "6a96fc1677619ae4a5640364a830ff8349de6c63a85d6738a98546c20730ea81";
 
+    //status updates of a job, only the latest pending one is sent
+    private static final Pattern JOB_UPDATE_TOPIC = Pattern.compile("\\$aws/things/[^/]+/jobs/[^/]+/update");
+
     AWSIotClient mIotAndroidClient;
     AWSIotMqttManager mqttManager;
     String clientId = IOTConfigData.DEVICE_ID;
@@ -70,7 +90,30 @@ public class IOTHelper {
     String keystorePassword;
     KeyStore clientKeyStore = null;
     String certificateId;
-    JobMessageHandler jobMessageHandler;
+    AgentServices services;
+    //the things served over the connection by name, the device first
+    final Map<String, ThingAgent> things = new LinkedHashMap<>();
+    //runs the get-jobs polls of all things
+    ScheduledExecutorService pollScheduler;
+    OutboundQueue outboundQueue;
+    ConnectionManager connectionManager;
+    final TopicRouter topicRouter = new TopicRouter();
+    EventLoop eventLoop;
+    MetricsReporter metricsReporter;
+    final MetricsRegistry metrics = new MetricsRegistry();
+    private final Counter messages = metrics.counter("mqtt.messages");
+    private final Counter subscribes = metrics.counter("mqtt.subscribes");
+    private final Counter subscribeErrors = metrics.counter("mqtt.subscribe_errors");
+    private final Counter publishes = metrics.counter("mqtt.publishes");
+    private final Counter publishErrors = metrics.counter("mqtt.publish_errors");
+    private final Counter bytesIn = metrics.counter("mqtt.bytes_in");
+    private final Counter bytesOut = metrics.counter("mqtt.bytes_out");
+    //bytes the compact encodings saved against JSON
+    private final Counter bytesSaved = metrics.counter("mqtt.bytes_saved");
+    private final Counter payloadErrors = metrics.counter("mqtt.payload_errors");
+    final PayloadCodec payloadCodec = new PayloadCodec(PayloadCodec.Encoding.valueOf(IOTConfigData.PAYLOAD_ENCODING));
+    //time messages wait on the event loop, in us, from 10 us up to about 20 s
+    private final Histogram queueDelay = metrics.histogram("loop.queue_delay_us", Histogram.exponentialBounds(10, 2, 22));
 
     private static IOTHelper iotHelper = null;
 
@@ -88,7 +131,7 @@ public class IOTHelper {
      * @param context context of execution
      * @return instance of IOTHelper
      */
-    public static IOTHelper getInstance(Context context)
+    public static synchronized IOTHelper getInstance(Context context)
     {
         if(iotHelper == null)
             iotHelper = new IOTHelper(context);
@@ -101,118 +144,305 @@ public class IOTHelper {
      */
     public void init(final String keystorePath) throws InvalidKeySpecException, NoSuchAlgorithmException, IOException {
 
-        jobMessageHandler = new JobMessageHandler(context);
+        outboundQueue = new OutboundQueue(new OutboundQueue.Sink() {
+            @Override
+            public void send(String msg, String topic, final OutboundQueue.Delivery delivery) throws Exception {
+                try {
+                    byte[] payload = payloadCodec.encode(msg, topic);
+                    //QoS 1, so a message is only reported delivered once the broker acknowledged it
+                    mqttManager.publishData(payload, topic, AWSIotMqttQos.QOS1, new AWSIotMqttMessageDeliveryCallback() {
+                        @Override
+                        public void statusChanged(MessageDeliveryStatus status, Object userData) {
+                            if (status == MessageDeliveryStatus.Success) {
+                                delivery.delivered();
+                            } else {
+                                publishErrors.increment();
+                                delivery.failed();
+                            }
+                        }
+                    }, null);
+                    publishes.increment();
+                    bytesOut.add(payload.length);
+                    if (payloadCodec.encodingFor(topic) != PayloadCodec.Encoding.JSON)
+                        bytesSaved.add(msg.getBytes(StandardCharsets.UTF_8).length - payload.length);
+                } catch (Exception e) {
+                    publishErrors.increment();
+                    throw e;
+                }
+            }
+        }, JOB_UPDATE_TOPIC, new File(context.getFilesDir(), IOTConfigData.OUTBOUND_QUEUE_FILE),
+                IOTConfigData.OUTBOUND_QUEUE_MEMORY_CAPACITY, IOTConfigData.OUTBOUND_QUEUE_SPILL_CAPACITY);
+        //a restarted service gets a fresh loop, the previous one was shut down with the service
+        eventLoop = new EventLoop("agent-core");
+        services = new AgentServices(context);
+        services.register();
+        pollScheduler = Executors.newSingleThreadScheduledExecutor();
+        things.clear();
+        addThing(IOTConfigData.DEVICE_ID);
+        for (String thingName : IOTConfigData.GATEWAY_THINGS)
+            addThing(thingName);
 
         initIoTClient(keystorePath);
+        connectionManager = new ConnectionManager(new ConnectionManager.Connector() {
+            @Override
+            public void connect(int keepAliveSec) {
+                mqttManager.setKeepAlive(keepAliveSec);
+                mqttManager.connect(clientKeyStore, statusCallback);
+            }
+        }, IOTConfigData.MQTT_KEEP_ALIVE_INITIAL_SEC, IOTConfigData.MQTT_KEEP_ALIVE_MIN_SEC,
+                IOTConfigData.MQTT_KEEP_ALIVE_MAX_SEC, IOTConfigData.MQTT_STABLE_CONNECTION_MS,
+                IOTConfigData.MQTT_RECONNECT_BASE_MS, IOTConfigData.MQTT_RECONNECT_MAX_MS);
+        registerGauges();
+        metricsReporter = new MetricsReporter(metrics, new File(context.getFilesDir(), IOTConfigData.METRICS_FILE),
+                IOTConfigData.METRICS_TELEMETRY_ENABLED ? this : null, IOTConfigData.METRICS_TELEMETRY_TOPIC);
+        metricsReporter.start(IOTConfigData.METRICS_EXPORT_INTERVAL_MS);
         connectClick();
 
     }
 
     /**
      * This method initiates a connection with mqtt service. Once connected, it calls subscribeClick
-     * method to subscribe the device to some topics.
+     * method to subscribe the device to some topics. Lost connections are retried by the
+     * connection manager, with a jittered backoff and a keep-alive adapted to the network.
      */
     public void connectClick() {
         Log.d(LOG_TAG, "clientId = " + clientId);
+        connectionManager.start();
+    }
 
-        try {
-            mqttManager.connect(clientKeyStore, new AWSIotMqttClientStatusCallback() {
-                @Override
-                public void onStatusChanged(final AWSIotMqttClientStatus status,
-                                            final Throwable throwable) {
-                    Log.d(LOG_TAG, "Status = " + String.valueOf(status));
-                    if (throwable != null) {
-                        Log.e(LOG_TAG, "Connection error.", throwable);
+    /**
+     * This callback is shared by all connection attempts.
+     */
+    private final AWSIotMqttClientStatusCallback statusCallback = new AWSIotMqttClientStatusCallback() {
+        @Override
+        public void onStatusChanged(final AWSIotMqttClientStatus status,
+                                    final Throwable throwable) {
+            Log.d(LOG_TAG, "Status = " + String.valueOf(status));
+            if (throwable != null) {
+                Log.e(LOG_TAG, "Connection error.", throwable);
+            }
+            //messages published while the connection is down wait in the queue
+            outboundQueue.setConnected(status.equals(AWSIotMqttClientStatus.Connected));
+            if (status.equals(AWSIotMqttClientStatus.ConnectionLost)) {
+                connectionManager.onConnectionLost();
+            } else if (status.equals(AWSIotMqttClientStatus.Connected) && connectionManager.onConnected()) {
+                eventLoop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (String topic : topicRouter.getFilters())
+                            subscribeClick(topic);
+                        for (ThingAgent thing : things.values())
+                            thing.onConnected();
                     }
-                    if (status.equals(AWSIotMqttClientStatus.Connected)) {
+                });
+            }
+        }
+    };
 
-                        subscribeClick(IOTConfigData.GET_JOBS_SUBSCRIBE_TOPIC);
-                        subscribeClick(IOTConfigData.GET_JOB_SUBSCRIBE_TOPIC);
-                        Log.d(LOG_TAG, "Subscribing to topic : \n" + IOTConfigData.GET_JOBS_SUBSCRIBE_TOPIC );
-                        Log.d(LOG_TAG, "Subscribing to topic : \n" + IOTConfigData.GET_JOB_SUBSCRIBE_TOPIC);
-                        getPendingJobsPoller();
+    /**
+     * This callback is shared by all subscriptions. It passes every message to the handler
+     * registered for its topic in the topic router.
+     */
+    private final AWSIotMqttNewMessageCallback messageCallback = new AWSIotMqttNewMessageCallback() {
+        @Override
+        public void onMessageArrived(final String topic, final byte[] data) {
+            //payloads are parsed from the bytes, only their size is logged
+            Log.d(LOG_TAG, "Message arrived on " + topic + ", " + data.length + " bytes");
+            messages.increment();
+            bytesIn.add(data.length);
+            final long postedAt = System.nanoTime();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    queueDelay.record((System.nanoTime() - postedAt) / 1000);
+                    byte[] json;
+                    try {
+                        json = PayloadCodec.decode(data);
+                    } catch (PayloadCodec.MalformedPayloadException e) {
+                        payloadErrors.increment();
+                        Log.e(LOG_TAG, "undecodable payload on " + topic + " : " + e.getMessage());
+                        return;
                     }
+                    if (!topicRouter.route(topic, json))
+                        Log.w(LOG_TAG, "no handler for topic : " + topic);
                 }
             });
-        } catch (final Exception e) {
-            Log.e(LOG_TAG, "Connection error.", e);
         }
-    }
+    };
 
     /**
-     * This method subscribes the device to given topic and listens to those topic. When a message is
-     * received, onMessageReceived callback is called and the message is passed to appropriate handlers.
-     * @param topic the topic name to subscribe to.
+     * Registers the gauges read from the connection manager, the outbound queue and the event loop.
      */
-    public void subscribeClick(String topic) {
-
-        try {
-            mqttManager.subscribeToTopic(topic, AWSIotMqttQos.QOS0,
-                    new AWSIotMqttNewMessageCallback() {
-                        @Override
-                        public void onMessageArrived(final String topic, final byte[] data) {
-
-                            String message = new String(data);
-                            Log.d(LOG_TAG, "Message arrived");
-                            Log.d(LOG_TAG, " Topic: " + topic + " Message: " + message);
-
-                            if(topic.equals(IOTConfigData.GET_JOBS_SUBSCRIBE_TOPIC)) {
-                                    jobMessageHandler.handleGetJobsResponse(message);
-                            }
-                            else {
-                                    jobMessageHandler.handleJobMessage(message);
-                            }
-                        }
-                    });
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Subscription error.", e);
-        }
+    private void registerGauges() {
+        metrics.gauge("mqtt.connects", new Gauge() {
+            @Override
+            public long value() {
+                return connectionManager.getConnectCount();
+            }
+        });
+        metrics.gauge("mqtt.reconnects", new Gauge() {
+            @Override
+            public long value() {
+                return connectionManager.getReconnectCount();
+            }
+        });
+        metrics.gauge("mqtt.losses", new Gauge() {
+            @Override
+            public long value() {
+                return connectionManager.getLossCount();
+            }
+        });
+        metrics.gauge("mqtt.nat_timeouts", new Gauge() {
+            @Override
+            public long value() {
+                return connectionManager.getNatTimeoutCount();
+            }
+        });
+        metrics.gauge("mqtt.uptime_ms", new Gauge() {
+            @Override
+            public long value() {
+                return connectionManager.getUptimeMs();
+            }
+        });
+        metrics.gauge("mqtt.total_uptime_ms", new Gauge() {
+            @Override
+            public long value() {
+                return connectionManager.getTotalUptimeMs();
+            }
+        });
+        metrics.gauge("mqtt.keep_alive_s", new Gauge() {
+            @Override
+            public long value() {
+                return connectionManager.getKeepAliveSec();
+            }
+        });
+        metrics.gauge("outbound.depth", new Gauge() {
+            @Override
+            public long value() {
+                return outboundQueue.getDepth();
+            }
+        });
+        metrics.gauge("outbound.dropped", new Gauge() {
+            @Override
+            public long value() {
+                return outboundQueue.getDroppedCount();
+            }
+        });
+        metrics.gauge("outbound.coalesced", new Gauge() {
+            @Override
+            public long value() {
+                return outboundQueue.getCoalescedCount();
+            }
+        });
+        metrics.gauge("outbound.in_flight", new Gauge() {
+            @Override
+            public long value() {
+                return outboundQueue.getInFlightCount();
+            }
+        });
+        metrics.gauge("outbound.drain_rate", new Gauge() {
+            @Override
+            public long value() {
+                return (long) outboundQueue.getDrainRate();
+            }
+        });
+        metrics.gauge("apk_cache.hits", new Gauge() {
+            @Override
+            public long value() {
+                return services.apkCache.getHitCount();
+            }
+        });
+        metrics.gauge("apk_cache.misses", new Gauge() {
+            @Override
+            public long value() {
+                return services.apkCache.getMissCount();
+            }
+        });
+        metrics.gauge("apk_cache.evictions", new Gauge() {
+            @Override
+            public long value() {
+                return services.apkCache.getEvictionCount();
+            }
+        });
+        metrics.gauge("apk_cache.bytes", new Gauge() {
+            @Override
+            public long value() {
+                return services.apkCache.getTotalBytes();
+            }
+        });
+        metrics.gauge("package_cache.hits", new Gauge() {
+            @Override
+            public long value() {
+                return services.packageVersions.getHitCount();
+            }
+        });
+        metrics.gauge("package_cache.misses", new Gauge() {
+            @Override
+            public long value() {
+                return services.packageVersions.getMissCount();
+            }
+        });
+        metrics.gauge("loop.pending", new Gauge() {
+            @Override
+            public long value() {
+                return eventLoop.getPendingCount();
+            }
+        });
     }
 
     /**
-     * This method is called once connection with mqtt is established. It publishes to a topic at
-     * regular intervals to receive list of pending jobs
+     * Adds a thing to serve over the connection and registers the handlers of its topics. Every
+     * registered topic is subscribed to once connected.
+     * @param thingName the name the thing is registered with
      */
-    public void getPendingJobsPoller(){
-        Log.i(LOG_TAG, "starting polling for new jobs");
-        try {
-            Timer timer = new Timer();
-            TimerTask timerTask = new TimerTask() {
-                @Override
-                public void run() {
-                    String clientToken = "{\"clientToken\":\"123\"}";
-                    publish(clientToken, IOTConfigData.GET_JOBS_PUBLISH_TOPIC);
-                }
-            };
-
-            timer.schedule(timerTask, 0, 30000);
-        }catch (Exception e){
-            Log.e(LOG_TAG, "error in polling : " + e.getMessage());
+    private void addThing(String thingName) {
+        if (things.containsKey(thingName)) {
+            Log.w(LOG_TAG, "thing listed twice : " + thingName);
+            return;
         }
+        ThingAgent thing = new ThingAgent(context, thingName, this, eventLoop, metrics, services, pollScheduler);
+        thing.registerTopicHandlers(topicRouter);
+        things.put(thingName, thing);
+        Log.i(LOG_TAG, "serving jobs of thing : " + thingName);
     }
 
     /**
-     * This method publishes to a topic to get job details of a particular job
-     * @param jobId the job identifier
+     * This method subscribes the device to given topic. Messages are passed to the handler
+     * registered for the topic in the topic router.
+     * @param topic the topic name to subscribe to.
      */
-    public void publishForJobDescription(String jobId){
-        String topic = String.format(IOTConfigData.GET_JOB_PUBLISH_TOPIC, IOTConfigData.DEVICE_ID, jobId);
-        String clientToken = "{\"clientToken\":\"123\"}";
-        publish(clientToken, topic);
+    public void subscribeClick(String topic) {
+        //subscriptions last as long as the connection, a repeated status callback must not double them
+        if (!connectionManager.markSubscribed(topic))
+            return;
+        try {
+            mqttManager.subscribeToTopic(topic, AWSIotMqttQos.QOS0, messageCallback);
+            subscribes.increment();
+            Log.d(LOG_TAG, "Subscribing to topic : \n" + topic);
+        } catch (Exception e) {
+            subscribeErrors.increment();
+            Log.e(LOG_TAG, "Subscription error.", e);
+        }
     }
 
-
     /**
-     * Handles the communication with mqtt when a message is published
+     * Handles the communication with mqtt when a message is published. The message goes through the
+     * outbound queue, which sends it right away while connected and holds it otherwise. A pending
+     * status update of a job is replaced by a newer one, so only the latest status of a job is sent.
      * @param msg the message string
      * @param topic topic to publish message to
      */
+    @Override
     public void publish(String msg, String topic) {
-        try {
-            mqttManager.publishString(msg, topic, AWSIotMqttQos.QOS0);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Publish error.", e);
-        }
+        outboundQueue.offer(msg, topic);
+    }
+
+    /**
+     * Publishes a message like publish(msg, topic) and runs onSent once the broker acknowledged it.
+     * @param onSent runs on the outbound queue's thread, not at all if the message is lost or replaced
+     */
+    public void publish(String msg, String topic, Runnable onSent) {
+        outboundQueue.offer(msg, topic, onSent);
     }
 
     /**
@@ -226,6 +456,31 @@ public class IOTHelper {
         }
     }
 
+    /**
+     * Cancels pending work and disconnects from the IOT backend. Called when the service is destroyed.
+     */
+    public void shutdown() {
+        if (connectionManager != null)
+            connectionManager.stop();
+        for (ThingAgent thing : things.values())
+            thing.stopPolling();
+        if (pollScheduler != null)
+            pollScheduler.shutdownNow();
+        //events already posted still run, the job state is only closed once the loop is done
+        if (eventLoop != null)
+            eventLoop.shutdown();
+        for (ThingAgent thing : things.values())
+            thing.shutdown();
+        if (services != null)
+            services.unregister();
+        //the last report is queued before the outbound queue persists what is pending
+        if (metricsReporter != null)
+            metricsReporter.stop();
+        if (outboundQueue != null)
+            outboundQueue.shutdown();
+        disconnect();
+    }
+
     /**
      * Converts an inputstream to a string
      * @param is the input stream to convert
@@ -296,7 +551,8 @@ public class IOTHelper {
 
         mqttManager = new AWSIotMqttManager(clientId, CUSTOMER_SPECIFIC_ENDPOINT);
 
-        mqttManager.setKeepAlive(10);
+        //reconnects are left to the connection manager, the SDK would retry the whole fleet in lockstep
+        mqttManager.setAutoReconnect(false);
         AWSIotMqttLastWillAndTestament lwt = new AWSIotMqttLastWillAndTestament("my/lwt/topic",
                 "Android client lost connection", AWSIotMqttQos.QOS0);
         mqttManager.setMqttLastWillAndTestament(lwt);
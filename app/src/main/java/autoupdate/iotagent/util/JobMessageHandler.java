@@ -3,110 +3,431 @@ package autoupdate.iotagent.util;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.os.Environment;
 import android.util.Log;
 
-import org.apache.commons.io.FileUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.File;
-import java.net.URL;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.download.ApkCache;
+import autoupdate.iotagent.download.DeltaDownloader;
+import autoupdate.iotagent.download.DownloadProgressListener;
+import autoupdate.iotagent.download.DownloadThrottle;
+import autoupdate.iotagent.download.IntegrityException;
+import autoupdate.iotagent.download.SegmentedDownloader;
+import autoupdate.iotagent.download.ServerBusyException;
+import autoupdate.iotagent.job.AdmissionPolicy;
+import autoupdate.iotagent.job.DeltaPatch;
+import autoupdate.iotagent.job.JobJournal;
+import autoupdate.iotagent.job.JobMessageParser;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobScheduler;
+import autoupdate.iotagent.job.JobStatusEncoder;
+import autoupdate.iotagent.job.JobTask;
+import autoupdate.iotagent.job.JobTracker;
+import autoupdate.iotagent.metrics.Counter;
+import autoupdate.iotagent.metrics.Histogram;
+import autoupdate.iotagent.metrics.MetricsRegistry;
 
 /**
  * This class processes the jobs received form IOTHelper class and updates their status.
  * It is also responsible for downloading the update and sending the broadcast to target apps.
+ * There is one handler per thing the agent serves, with its own job state, journal and download
+ * queue; the apk cache, installer and network policy are shared through AgentServices.
+ * What happens to a job is decided by a JobEvaluator, the handler carries it out on the device.
+ * The job state is owned by the agent's event loop: the public methods are called on the loop
+ * thread, and downloads running on the job scheduler post their outcome back to it.
  * @author Prabhat Sharma
  */
 
-public class JobMessageHandler {
+public class JobMessageHandler implements JobIntake.ExecutionHandler {
 
     private final String LOG_TAG = "JobMessageHandler";
 
-    private PackageManager packageManager;
+    //1 ms up to about a day and a half
+    private static final long[] LATENCY_MS_BOUNDS = Histogram.exponentialBounds(1, 2, 28);
 
-    private IOTHelper iotHelper;
+    //10 us up to about a third of a second
+    private static final long[] PARSE_US_BOUNDS = Histogram.exponentialBounds(10, 2, 16);
+
+    //8 KB/s up to about 256 MB/s
+    private static final long[] THROUGHPUT_KBPS_BOUNDS = Histogram.exponentialBounds(8, 2, 16);
+
+    //the thing the jobs belong to, publishes their status updates and requests
+    private final ThingAgent thing;
+
+    //the thread all job state is handled on
+    private final EventLoop eventLoop;
 
     private  Context context;
 
-    public JobMessageHandler(Context context){
+    private final JobScheduler jobScheduler;
+
+    //decides what happens to the jobs, this handler carries it out
+    private final JobEvaluator jobEvaluator;
+
+    private final JobTracker jobTracker;
+
+    //installed version codes, kept current by package broadcasts
+    private final PackageVersionCache packageVersions;
+
+    private final ApkSignatureVerifier apkVerifier;
+
+    //downloaded apks by package, version and SHA-256, shared by all things
+    private final ApkCache apkCache;
+
+    //installs the apks of session mode jobs
+    private final SessionInstaller sessionInstaller;
+
+    private final AgentServices services;
+
+    //spreads download starts over the rollout window and backs off when the server is busy
+    private final AdmissionPolicy admissionPolicy;
+
+    //null if the journal could not be opened, the agent then works without crash recovery
+    private JobJournal jobJournal;
+
+    //uptime in ms at which each job in flight was received, for the end to end time
+    private final Map<String, Long> receivedAt = new HashMap<>();
+
+    private final Counter jobMessages;
+    private final Counter malformedMessages;
+    private final Histogram parseTime;
+    private final Histogram downloadStartLatency;
+    private final Histogram downloadTime;
+    private final Histogram downloadThroughput;
+    private final Counter downloadedBytes;
+    private final Counter downloadsSucceeded;
+    private final Counter downloadsFailed;
+    private final Counter downloadsBusy;
+    private final Counter cacheHits;
+    private final Counter peerDownloads;
+    private final Counter peerBytes;
+    private final Counter statusUpdates;
+    private final Counter statusUpdateErrors;
+    private final Histogram jobEndToEnd;
+    private final Counter jobsSucceeded;
+    private final Counter jobsFailed;
+    private final Counter jobsRejected;
+
+    /**
+     * @param context context of execution
+     * @param thing the thing the jobs belong to, publishes job status updates and requests
+     * @param eventLoop the loop the handler is called on, the journal is recovered there as well
+     * @param metrics registry the job metrics are kept in
+     * @param services the apk cache, installer and network policy shared by all things
+     */
+    public JobMessageHandler(Context context, ThingAgent thing, EventLoop eventLoop, MetricsRegistry metrics,
+                             AgentServices services){
         this.context = context;
+        this.thing = thing;
+        this.eventLoop = eventLoop;
+        this.jobMessages = metrics.counter("job.messages");
+        this.malformedMessages = metrics.counter("job.messages_malformed");
+        this.parseTime = metrics.histogram("job.message_parse_us", PARSE_US_BOUNDS);
+        this.downloadStartLatency = metrics.histogram("job.message_to_download_start_ms", LATENCY_MS_BOUNDS);
+        this.downloadTime = metrics.histogram("download.time_ms", LATENCY_MS_BOUNDS);
+        this.downloadThroughput = metrics.histogram("download.throughput_kbps", THROUGHPUT_KBPS_BOUNDS);
+        this.downloadedBytes = metrics.counter("download.bytes");
+        this.downloadsSucceeded = metrics.counter("download.succeeded");
+        this.downloadsFailed = metrics.counter("download.failed");
+        this.downloadsBusy = metrics.counter("download.server_busy");
+        this.cacheHits = metrics.counter("download.cache_hits");
+        this.peerDownloads = metrics.counter("download.peer_hits");
+        this.peerBytes = metrics.counter("download.peer_bytes");
+        this.statusUpdates = metrics.counter("job.status_updates");
+        this.statusUpdateErrors = metrics.counter("job.status_update_errors");
+        this.jobEndToEnd = metrics.histogram("job.end_to_end_ms", LATENCY_MS_BOUNDS);
+        this.jobsSucceeded = metrics.counter("job.succeeded");
+        this.jobsFailed = metrics.counter("job.failed");
+        this.jobsRejected = metrics.counter("job.rejected");
+        this.jobScheduler = new JobScheduler(IOTConfigData.MAX_CONCURRENT_DOWNLOADS);
+        this.services = services;
+        this.packageVersions = services.packageVersions;
+        this.apkVerifier = services.apkVerifier;
+        this.apkCache = services.apkCache;
+        this.sessionInstaller = services.sessionInstaller;
+        services.setInstallListener(thing.getTopics().getThingName(), new SessionInstaller.ResultListener() {
+            @Override
+            public void onInstallResult(final String jobId, final boolean success, String message) {
+                eventLoop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSessionInstallResult(jobId, success);
+                    }
+                });
+            }
+        });
+        //each thing gets its own offset in the rollout window
+        this.admissionPolicy = new AdmissionPolicy(thing.getTopics().getThingName(), IOTConfigData.BUSY_BACKOFF_BASE_MS,
+                IOTConfigData.BUSY_BACKOFF_MAX_MS);
+        this.jobEvaluator = new JobEvaluator(new JobEvaluator.InstalledVersions() {
+            @Override
+            public boolean isInstalled(String packageName) {
+                return checkAppAvailability(packageName);
+            }
+
+            @Override
+            public boolean needsUpdate(String packageName, String latestVersion) {
+                return checkVersion(packageName, latestVersion);
+            }
+
+            @Override
+            public Map<String, Boolean> needsUpdate(Map<String, String> latestVersions) {
+                return packageVersions.needsUpdate(latestVersions);
+            }
+        }, new JobEvaluator.Actions() {
+            @Override
+            public void describe(String jobId) {
+                JobMessageHandler.this.thing.publishForJobDescription(jobId);
+            }
+
+            @Override
+            public void requestNext() {
+                JobMessageHandler.this.thing.requestNextJob();
+            }
+
+            @Override
+            public boolean publishStatus(int status, String jobId, String stage) {
+                return publishJobStatus(status, jobId, stage);
+            }
+
+            @Override
+            public void onJobReceived(JobRecord job) {
+                recordJob(job);
+            }
+
+            @Override
+            public void onStateChanged(String jobId, JobTracker.State state, int finalStatus) {
+                recordJobState(jobId, state, finalStatus);
+            }
+
+            @Override
+            public void startDownload(JobRecord job, long delayMs) {
+                downloadAPK(job, delayMs);
+            }
+
+            @Override
+            public void cancelDownload(String jobId) {
+                jobScheduler.cancel(jobId);
+            }
+        }, admissionPolicy);
+        this.jobTracker = jobEvaluator.getTracker();
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                recoverJobs();
+            }
+        });
+    }
+
+    /**
+     * Cancels queued and running downloads. Called when the service is destroyed, the shared
+     * services are unregistered by their owner.
+     */
+    public void shutdown(){
+        jobScheduler.shutdown();
+        if(jobJournal != null) {
+            try {
+                jobJournal.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "err closing job journal : " + e.getMessage());
+            }
+        }
     }
 
     /**
-     * This method receives the list of pending jobs as a string. It combines queued and in_progress
-     * jobs and publishes to a topic to receive respective job details.
-     * @param message the string containing list of queued and in_progress jobs.
+     * This method rebuilds the job state from the journal after a restart. Interrupted downloads
+     * are queued again right away and resume from their checkpoints; jobs that were being
+     * evaluated are dropped and picked up again from the server. A delivered session mode job
+     * whose session is gone had its install result broadcast while the agent was down; if the app
+     * is still at the old version the install failed, otherwise get-jobs reports it succeeded.
      */
-    public void handleGetJobsResponse(String message){
-        iotHelper = IOTHelper.getInstance(context);
+    private void recoverJobs(){
+        long start = System.nanoTime();
         try {
-            JSONObject response = new JSONObject(message);
-            JSONArray queuedJobs = (JSONArray)response.get("queuedJobs");
-            JSONArray inProgressJobs = (JSONArray)response.get("inProgressJobs");
-            JSONArray jobs = inProgressJobs;
-            for(int i = 0; i<queuedJobs.length(); ++i){
-                jobs.put(queuedJobs.get(i));
+            jobJournal = new JobJournal(new File(context.getFilesDir(), thing.getJournalFile()));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not open job journal : " + e.getMessage());
+            return;
+        }
+        int resumed = 0;
+        int failed = 0;
+        for(JobJournal.Entry entry : jobJournal.getEntries()){
+            if(entry.getState() == JobTracker.State.EVALUATING || entry.getState() == JobTracker.State.DESCRIBING) {
+                forgetJob(entry.getJobId());
+                continue;
+            }
+            JobRecord job = entry.getJob();
+            jobTracker.restore(job.getJobId(), job.getVersionNumber(), entry.getState(),
+                    job.getPackageName(), job.getLatestVersion());
+            if(entry.getState() == JobTracker.State.DELIVERED
+                    && JobMessageParser.INSTALL_MODE_SESSION.equals(job.getInstallMode())
+                    && !sessionInstaller.isLive(entry.getSessionId())
+                    && checkVersion(job.getPackageName(), job.getLatestVersion())) {
+                //reported once connected, see onConnected
+                Log.w(LOG_TAG, "install session of job : " + entry.getJobId() + " is gone and the app was not updated");
+                setJobState(entry.getJobId(), JobTracker.State.FINISHED, IOTConfigData.STATUS_FAILED);
+                ++failed;
+                continue;
+            }
+            if(entry.getState() == JobTracker.State.DELIVERED)
+                apkCache.pin(apkCache.fileFor(job.getPackageName(), job.getLatestVersion(), job.getSha256()),
+                        pinKey(job.getJobId()));
+            if(entry.getState() == JobTracker.State.DOWNLOADING) {
+                //a download that already got going was admitted before, it does not wait for its slot again
+                downloadAPK(job, admissionPolicy.startDelayMs(job.getJobId(), job.getRolloutWindowSec() * 1000,
+                        job.isUrgent() || entry.getBytesDownloaded() > 0));
+                ++resumed;
             }
+        }
+        Log.i(LOG_TAG, "recovered " + jobTracker.size() + " jobs from journal, " + resumed + " downloads resumed, "
+                + failed + " lost installs failed, in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Publishes statuses that were decided before a restart but never sent. Called once connected.
+     */
+    public void onConnected(){
+        if(jobJournal == null)
+            return;
+        for(JobJournal.Entry entry : jobJournal.getEntries()){
+            if(entry.getState() == JobTracker.State.DELIVERED && entry.getLastStatusSent() != IOTConfigData.STATUS_INPROGRESS)
+                updateJobStatus(IOTConfigData.STATUS_INPROGRESS, entry.getJobId(),
+                        JobMessageParser.INSTALL_MODE_SESSION.equals(entry.getJob().getInstallMode())
+                                ? IOTConfigData.STAGE_INSTALLING : IOTConfigData.STAGE_DELIVERED);
+            else if(entry.getState() == JobTracker.State.FINISHED && entry.getFinalStatus() >= 0
+                    && entry.getLastStatusSent() != entry.getFinalStatus())
+                updateJobStatus(entry.getFinalStatus(), entry.getJobId());
+        }
+    }
+
+    /**
+     * Moves a job to a new state and records the transition in the journal.
+     * @param jobId the job identifier
+     * @param state the new state
+     */
+    private void setJobState(String jobId, JobTracker.State state){
+        setJobState(jobId, state, -1);
+    }
+
+    /**
+     * Moves a job to a new state and records the transition in the journal.
+     * @param jobId the job identifier
+     * @param state the new state
+     * @param finalStatus the status code the job is finished with, -1 if it is not finished
+     */
+    private void setJobState(String jobId, JobTracker.State state, int finalStatus){
+        jobEvaluator.setState(jobId, state, finalStatus);
+    }
 
-            for(int i = 0; i<inProgressJobs.length(); ++i){
-                JSONObject job = jobs.getJSONObject(i);
-                String jobId = job.getString("jobId");
-                iotHelper.publishForJobDescription(jobId);
+    /**
+     * Records a job's new state in the journal and releases what a finished job held.
+     */
+    private void recordJobState(String jobId, JobTracker.State state, int finalStatus){
+        if(state == JobTracker.State.FINISHED) {
+            apkCache.unpin(pinKey(jobId));
+            recordFinished(jobId, finalStatus);
+        }
+        if(jobJournal != null) {
+            try {
+                jobJournal.recordState(jobId, state, finalStatus);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "err writing job journal : " + e.getMessage());
             }
+        }
+    }
+
+    /**
+     * Stops tracking a job and drops it from the journal.
+     * @param jobId the job identifier
+     */
+    private void forgetJob(String jobId){
+        jobTracker.forget(jobId);
+        receivedAt.remove(jobId);
+        apkCache.unpin(pinKey(jobId));
+        if(jobJournal != null) {
+            try {
+                jobJournal.forget(jobId);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "err writing job journal : " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * This method receives the list of pending jobs as the raw message payload and hands it to
+     * the evaluator, which reconciles the tracked jobs with it, describes or claims the pending
+     * ones and checks delivered jobs against the installed version. Journal entries of jobs no
+     * longer tracked are dropped with their apk cache pins.
+     * @param message the payload containing list of queued and in_progress jobs.
+     * @return true if the list differs from the one received last time
+     */
+    public boolean handleGetJobsResponse(byte[] message){
+        try {
+            boolean changed = jobEvaluator.handleJobList(JobMessageParser.parseJobList(message));
+            if(jobJournal != null) {
+                for(String jobId : jobJournal.getJobIds())
+                    if(jobTracker.getState(jobId) == null) {
+                        jobJournal.forget(jobId);
+                        apkCache.unpin(pinKey(jobId));
+                    }
+            }
+            return changed;
         }catch (Exception je){
             Log.e(LOG_TAG, "err processing jobs message: " + je.getMessage());
+            return false;
         }
     }
 
     /**
-     * This method processes the job received from IOTHelper class and updates its status.
-     * @param message the job message received as a string
+     * This method processes the job description received from IOTHelper class.
+     * @param message the job message payload
      */
-    public void handleJobMessage(String message){
-        String packageName = "";
-        String appName = "";
-        String latestVersion = "";
-        String downloadURL = "";
-        String jobStatus = "";
-        String jobId = "";
-        packageManager = context.getPackageManager();
-        iotHelper = IOTHelper.getInstance(context);
-
+    public void handleJobMessage(byte[] message){
         if(message != null) {
+            jobMessages.increment();
             try {
-                JSONObject jsonMessage = new JSONObject(message);
-                JSONObject jobExec = jsonMessage.getJSONObject("execution");
-                JSONObject jobDoc = jobExec.getJSONObject("jobDocument");
-                Log.i(LOG_TAG, " Job doc received : " + jobDoc.toString());
-
-                packageName = (String)jobDoc.get("packageName");
-                latestVersion = jobDoc.getString("latestVersion");
-                downloadURL = jobDoc.getString("s3URL");
-                appName = jobDoc.getString("appName");
-                jobStatus = jobExec.getString("status");
-                jobId = jobExec.getString("jobId");
-
-                } catch (JSONException je) {
-                    Log.e(LOG_TAG, "json error in job doc : " + je.getMessage());
-                }
-                boolean isAppInstalled = checkAppAvailability(packageName);
-                if(isAppInstalled) {
-                    boolean isUpdateReq = checkVersion(packageName, latestVersion);
-                    if(isUpdateReq && jobStatus.equals("QUEUED"))
-                        downloadAPK(downloadURL, appName, latestVersion, packageName, jobId);
-                    //the inprogress job will remain inprogress if isUpdateReq = true.
-                    else if(!isUpdateReq)
-                        updateJobStatus(IOTConfigData.STATUS_SUCCEEDED, jobId);
-                }
-                else {
-                    Log.d(LOG_TAG, "No such app exists on the device");
-                    updateJobStatus(IOTConfigData.STATUS_REJECTED, jobId);
-                }
+                long start = System.nanoTime();
+                JobRecord execution = JobMessageParser.parseExecution(message, IOTConfigData.DEFAULT_DOWNLOAD_SEGMENTS);
+                parseTime.record((System.nanoTime() - start) / 1000);
+                if(execution == null)
+                    Log.d(LOG_TAG, "job message without execution");
+                else
+                    handleJobExecution(execution);
+            } catch (JobMessageParser.MalformedMessageException je) {
+                malformedMessages.increment();
+                Log.e(LOG_TAG, "malformed job message : " + je.getMessage());
+            }
+        }
+    }
+
+    /**
+     * This method processes a job execution, received from a job description or claimed through
+     * start-next. The evaluator decides whether its apk is downloaded, see JobEvaluator.
+     * @param job the job execution including its job document
+     * @return true if the job was new and is finished already
+     */
+    @Override
+    public boolean handleJobExecution(JobRecord job){
+        return jobEvaluator.handleJobExecution(job);
+    }
+
+    /**
+     * Records a job the evaluator started tracking in the journal.
+     */
+    private void recordJob(JobRecord job){
+        receivedAt.put(job.getJobId(), uptimeMs());
+        if(jobJournal == null)
+            return;
+        try {
+            jobJournal.recordJob(job);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "err writing job journal : " + e.getMessage());
         }
     }
 
@@ -117,39 +438,61 @@ public class JobMessageHandler {
      * @param jobId the jobId identifying a job
      */
     private void updateJobStatus(int jobStatus, String jobId){
+        updateJobStatus(jobStatus, jobId, null);
+    }
+
+    /**
+     * This method updates the status of job and reports the stage it reached in statusDetails.
+     * @param jobStatus the status code of the jobStatus
+     * @param jobId the jobId identifying a job
+     * @param stage the stage to report, null for none
+     */
+    private void updateJobStatus(int jobStatus, String jobId, String stage){
+        jobEvaluator.publishStatus(jobStatus, jobId, stage);
+    }
+
+    /**
+     * Publishes a status update for the evaluator. The status is recorded as sent in the journal
+     * once the outbound queue handed it to the broker; a status still queued when the process
+     * dies is sent again after the restart.
+     * @return true if the update was published
+     */
+    private boolean publishJobStatus(final int jobStatus, final String jobId, String stage){
         Log.i(LOG_TAG, " Updating Job : " + jobId);
         try{
-            JSONObject updateRequest = new JSONObject();
-            updateRequest.put("clientToken", 123);
-            updateRequest.put("stepTimeoutInMinutes", 10000);
-
-            switch (jobStatus){
-                case IOTConfigData.STATUS_SUCCEEDED:
-                    updateRequest.put("status", "SUCCEEDED");
-                    break;
-                case IOTConfigData.STATUS_INPROGRESS:
-                    updateRequest.put("status", "IN_PROGRESS");
-                    break;
-                case IOTConfigData.STATUS_QUEUED:
-                    updateRequest.put("status", "QUEUED");
-                    break;
-                case IOTConfigData.STATUS_REJECTED:
-                    updateRequest.put("status", "REJECTED");
-                    break;
-                case IOTConfigData.STATUS_TIMED_OUT:
-                    updateRequest.put("status", "TIMED_OUT");
-                    break;
-                case IOTConfigData.STATUS_FAILED:
-                    updateRequest.put("status", "FAILED");
-                    break;
-                default:
-                    Log.d(LOG_TAG, "Unrecognised job status code");
-                    break;
-            }
-            String topic = String.format(IOTConfigData.UPDATE_JOB_PUBLISH_TOPIC, IOTConfigData.DEVICE_ID, jobId);
-            iotHelper.publish(updateRequest.toString(), topic);
+            if(JobStatusEncoder.statusName(jobStatus) == null)
+                Log.d(LOG_TAG, "Unrecognised job status code");
+            String topic = thing.getTopics().updateJob(jobId);
+            thing.publish(JobStatusEncoder.encodeUpdate(jobStatus, stage), topic, new Runnable() {
+                @Override
+                public void run() {
+                    eventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            recordStatusSent(jobId, jobStatus);
+                        }
+                    });
+                }
+            });
+            statusUpdates.increment();
+            return true;
         }catch (Exception e){
+            statusUpdateErrors.increment();
             Log.e(LOG_TAG, "err in updating job status of job : " + jobId + " " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Records in the journal that a status of a job reached the broker.
+     */
+    private void recordStatusSent(String jobId, int jobStatus){
+        if(jobJournal == null)
+            return;
+        try {
+            jobJournal.recordStatusSent(jobId, jobStatus);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "err writing job journal : " + e.getMessage());
         }
     }
 
@@ -160,13 +503,10 @@ public class JobMessageHandler {
      */
     private boolean checkAppAvailability(String packageName)
     {
-        try {
-            packageManager.getPackageInfo(packageName, 0);
+        if (packageVersions.isInstalled(packageName))
             return true;
-        } catch (PackageManager.NameNotFoundException e) {
-            Log.d(LOG_TAG, "Package : " + packageName + " not installed");
-            return false;
-        }
+        Log.d(LOG_TAG, "Package : " + packageName + " not installed");
+        return false;
     }
 
     /**
@@ -174,60 +514,269 @@ public class JobMessageHandler {
      * version and current version installed on the device.
      * @param packageName package name of the app
      * @param latestVersion latest available version of the app
-     * @return
+     * @return true if the installed version is older than latestVersion
      */
     private boolean checkVersion(String packageName, String latestVersion){
+        return packageVersions.needsUpdate(packageName, latestVersion);
+    }
 
-        try {
-            long currentVersion;
-            PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P)
-                 currentVersion = packageInfo.getLongVersionCode();
-            else
-                currentVersion = (long)packageInfo.versionCode;
-            long latestVer = Long.parseLong(latestVersion);
-            return latestVer > currentVersion ? true : false;
+    /**
+     * This method queues the download of the updated apk to an external folder. Downloads run on
+     * the job scheduler, at most MAX_CONCURRENT_DOWNLOADS at a time, mandatory and high priority
+     * jobs first. An interrupted download is resumed from its checkpoint, also when the same job
+     * is received again after a restart. The download starts at this device's offset in the
+     * rollout window, and when the server answers busy it is tried again after a backoff.
+     * An apk with a known SHA-256 is fetched from a neighbor on the local network if one has it,
+     * so the devices later in the rollout window mostly do not use the uplink.
+     * @param job the job, its document fields say what to download and how
+     * @param delayMs time before the download starts, this device's slot in the rollout window
+     */
+    private void downloadAPK(final JobRecord job, long delayMs) {
+        final String jobId = job.getJobId();
+        final String packageName = job.getPackageName();
+        final long size = job.getSize();
+        final String sha256 = job.getSha256();
 
-        }catch (Exception e) {
-            Log.e(LOG_TAG, "error checking version : " + e.getMessage());
-            return false;
+        Log.i(LOG_TAG, "Update available for app : " + job.getAppName() + ", queueing download");
+        final File tempFile = apkCache.fileFor(packageName, job.getLatestVersion(), sha256);
+        final String filePath = tempFile.getAbsolutePath();
+        final DownloadThrottle throttle = services.networkPolicy.newThrottle(job.isAllowMetered(), job.getMaxBytesPerSec());
+        //recovered jobs count from now, the time before the restart is not known
+        Long received = receivedAt.get(jobId);
+        final long queuedAtMs = received != null ? received : uptimeMs();
+        boolean queued = jobScheduler.submit(new JobTask(jobId, job.isMandatory(), job.getPriority(), size) {
+            //busy answers from the server so far, for the backoff
+            private int busyAttempts;
+
+            //whether the start latency was recorded, a retry after a busy answer is no new start
+            private boolean started;
+
+            @Override
+            protected void execute() {
+                long startMs = uptimeMs();
+                if (!started) {
+                    started = true;
+                    downloadStartLatency.record(startMs - queuedAtMs);
+                }
+                ProgressRecorder progressListener = new ProgressRecorder(jobId);
+                try {
+                    if (JobMessageParser.INSTALL_MODE_SESSION.equals(job.getInstallMode())) {
+                        sessionInstaller.install(pinKey(jobId), packageName, job.getUrl(), size, sha256, progressListener,
+                                throttle, progressListener);
+                        eventLoop.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onSessionCommitted(jobId);
+                            }
+                        });
+                        return;
+                    }
+                    //a second job for the same build, of this or another thing, waits here and then finds it in the
+                    //cache, unless the build has no SHA-256 and is downloaded again
+                    synchronized (apkCache.lockFor(tempFile)) {
+                        if (apkCache.lookup(tempFile) != null) {
+                            Log.i(LOG_TAG, "apk found in cache : " + filePath);
+                            cacheHits.increment();
+                        } else if (sha256 != null && services.peers != null && services.peers.fetch(sha256, size, tempFile)) {
+                            peerDownloads.increment();
+                            peerBytes.add(tempFile.length());
+                        } else if (job.getDelta() == null || !patchInstalledApk(job.getDelta(), packageName,
+                                job.getSegments(), size, sha256, tempFile, throttle)) {
+                            SegmentedDownloader downloader = new SegmentedDownloader(job.getSegments());
+                            downloader.setProgressListener(progressListener);
+                            downloader.setThrottle(throttle);
+                            downloader.setExpectedContent(size, sha256);
+                            downloader.download(job.getUrl(), tempFile);
+                        }
+                        if (!apkVerifier.verify(packageName, filePath)) {
+                            //the target app would fail to install it anyway
+                            tempFile.delete();
+                            throw new IntegrityException("signing certificate of " + filePath + " does not match " + packageName);
+                        }
+                        //pinned until the target app installed it
+                        apkCache.pin(tempFile, pinKey(jobId));
+                        apkCache.commit(tempFile);
+                        if (sha256 != null && services.peers != null)
+                            services.peers.share(sha256, tempFile);
+                    }
+                    downloadsSucceeded.increment();
+                    downloadTime.record(uptimeMs() - startMs);
+                    progressListener.recordThroughput();
+                    eventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onDownloadSuccess(packageName, filePath, job.getLatestVersion(), jobId);
+                        }
+                    });
+                } catch (Exception e) {
+                    if (isCancelled()) {
+                        Log.i(LOG_TAG, "download cancelled for job : " + jobId);
+                        return;
+                    }
+                    if (e instanceof ServerBusyException) {
+                        //the checkpoint stays, the next attempt resumes where this one stopped
+                        long retryMs = admissionPolicy.busyDelayMs(busyAttempts++, ((ServerBusyException) e).getRetryAfterMs());
+                        Log.w(LOG_TAG, "server busy for job : " + jobId + ", retrying in " + retryMs / 1000 + " s");
+                        downloadsBusy.increment();
+                        retryLater(retryMs);
+                        return;
+                    }
+                    downloadsFailed.increment();
+                    Log.e(LOG_TAG, "err : " + e.getMessage());
+                    eventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onDownloadFailed(jobId);
+                        }
+                    });
+                }
+            }
+        }, delayMs);
+        if (!queued)
+            Log.d(LOG_TAG, "download already scheduled for job : " + jobId);
+        else if (delayMs > 0)
+            Log.i(LOG_TAG, "download for job : " + jobId + " starts in " + delayMs / 1000 + " s of its rollout window");
+    }
+
+    /**
+     * Records download progress and the install session in the journal and measures the transfer
+     * rate. The rate is taken from the first progress report on, so bytes resumed from a
+     * checkpoint do not inflate it.
+     */
+    private class ProgressRecorder implements DownloadProgressListener, SessionInstaller.SessionListener {
+
+        private final String jobId;
+
+        private long firstBytes = -1;
+        private long firstNanos;
+        private long lastBytes;
+        private long lastNanos;
+
+        ProgressRecorder(String jobId) {
+            this.jobId = jobId;
+        }
+
+        @Override
+        public void onProgress(long bytes, long total) {
+            long now = System.nanoTime();
+            if (firstBytes < 0) {
+                firstBytes = bytes;
+                firstNanos = now;
+            }
+            lastBytes = bytes;
+            lastNanos = now;
+            if (jobJournal == null)
+                return;
+            try {
+                jobJournal.recordProgress(jobId, bytes);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "err writing job journal : " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onSessionCreated(int sessionId) {
+            if (jobJournal == null)
+                return;
+            try {
+                jobJournal.recordSession(jobId, sessionId);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "err writing job journal : " + e.getMessage());
+            }
+        }
+
+        void recordThroughput() {
+            if (firstBytes < 0 || lastNanos <= firstNanos)
+                return;
+            long bytes = lastBytes - firstBytes;
+            downloadedBytes.add(bytes);
+            downloadThroughput.record(bytes * 1000000L / 1024 / ((lastNanos - firstNanos) / 1000));
         }
     }
 
     /**
-     * This method downloads the updated apk to an external folder.
-     * @param url url for downloading the apk
-     * @param appName name of the app
-     * @param latestVersion the latest available version
-     * @param packageName package name of the app
+     * Records the end to end time of a finished job, from its arrival to its final status.
+     */
+    private void recordFinished(String jobId, int finalStatus){
+        Long received = receivedAt.remove(jobId);
+        if(received != null)
+            jobEndToEnd.record(uptimeMs() - received);
+        if(finalStatus == IOTConfigData.STATUS_SUCCEEDED)
+            jobsSucceeded.increment();
+        else if(finalStatus == IOTConfigData.STATUS_FAILED)
+            jobsFailed.increment();
+        else if(finalStatus == IOTConfigData.STATUS_REJECTED)
+            jobsRejected.increment();
+    }
+
+    /**
+     * @return the key of a job in the shared apk cache and installer
      */
-    private void downloadAPK(final String url,final String appName,
-                               final String latestVersion, final String packageName, final String jobId) {
-
-        Log.i(LOG_TAG, "Update available for app : " + appName + ", starting download");
-        String subPath = appName + ".apk";
-        final String filePath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
-                .getAbsolutePath() + File.separator + subPath;
-        final File tempFile = new File(filePath);
+    private String pinKey(String jobId){
+        return AgentServices.jobKey(thing.getTopics().getThingName(), jobId);
+    }
+
+    private static long uptimeMs(){
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * This method builds the apk from the job's patch and the installed apk. It is only tried when
+     * the installed version is the one the patch was made against, and when the job gives the
+     * SHA-256 to check the patched apk with.
+     * @return true if the apk was built, false if the full apk has to be downloaded
+     * @throws ServerBusyException if the server is busy, the full apk would not get through either
+     */
+    private boolean patchInstalledApk(DeltaPatch delta, String packageName, int segments, long size, String sha256,
+                                      File target, DownloadThrottle throttle) throws ServerBusyException {
+        if(sha256 == null) {
+            Log.d(LOG_TAG, "no SHA-256 to check a patched apk with, downloading the full apk");
+            return false;
+        }
+        long installed = packageVersions.getVersionCode(packageName);
+        if(installed != delta.getBaseVersion()) {
+            Log.d(LOG_TAG, "patch is for version " + delta.getBaseVersion() + ", installed is " + installed);
+            return false;
+        }
         try {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        FileUtils.copyURLToFile(new URL(url), tempFile);
-                        onDownloadSuccess(packageName, filePath, latestVersion, jobId);
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "err : " + e.getMessage());
-                        updateJobStatus(IOTConfigData.STATUS_FAILED, jobId);
-                        //for anything extra to do, add onDownloadFailed function
-                    }
-                }
-            }).start();
+            PackageInfo packageInfo = context.getPackageManager().getPackageInfo(packageName, 0);
+            DeltaDownloader downloader = new DeltaDownloader(segments);
+            downloader.setExpectedPatch(delta.getSize(), delta.getSha256());
+            downloader.setThrottle(throttle);
+            downloader.setExpectedContent(size, sha256);
+            downloader.download(delta.getUrl(), new File(packageInfo.applicationInfo.sourceDir), target);
+            return true;
+        } catch (ServerBusyException e) {
+            throw e;
         } catch (Exception e) {
-            Log.e(LOG_TAG, e.getMessage());
+            Log.w(LOG_TAG, "patching failed, downloading the full apk : " + e.getMessage());
+            return false;
         }
     }
 
+    /**
+     * Executed when the apk of a session mode job was streamed into a session and committed. The
+     * job stays IN_PROGRESS until the installer reports the outcome.
+     */
+    private void onSessionCommitted(String jobId){
+        //the install result may already have finished the job
+        if(jobTracker.getState(jobId) != JobTracker.State.DOWNLOADING)
+            return;
+        setJobState(jobId, JobTracker.State.DELIVERED);
+        updateJobStatus(IOTConfigData.STATUS_INPROGRESS, jobId, IOTConfigData.STAGE_INSTALLING);
+    }
+
+    /**
+     * Executed when the installer reports the outcome of a session mode job.
+     */
+    private void onSessionInstallResult(String jobId, boolean success){
+        if(jobTracker.getState(jobId) == null || jobTracker.getState(jobId) == JobTracker.State.FINISHED)
+            return;
+        int status = success ? IOTConfigData.STATUS_SUCCEEDED : IOTConfigData.STATUS_FAILED;
+        setJobState(jobId, JobTracker.State.FINISHED, status);
+        updateJobStatus(status, jobId);
+    }
+
     /**
      * Executed when download apk succeeds. It calls the sendBroadcast and updates the status of job
      * to IN_PROGRESS.
@@ -236,9 +785,23 @@ public class JobMessageHandler {
      * @param latestVersion
      */
     private void onDownloadSuccess(String packageName, String filePath, String latestVersion, String jobId){
+        //the job may have been cancelled while the outcome waited on the loop
+        if(jobTracker.getState(jobId) != JobTracker.State.DOWNLOADING)
+            return;
         Log.i(LOG_TAG, "apk downloaded to : " + filePath);
         sendBroadcastIntent(packageName, filePath, latestVersion);
-        updateJobStatus(IOTConfigData.STATUS_INPROGRESS, jobId);
+        setJobState(jobId, JobTracker.State.DELIVERED);
+        updateJobStatus(IOTConfigData.STATUS_INPROGRESS, jobId, IOTConfigData.STAGE_DELIVERED);
+    }
+
+    /**
+     * Executed when the download of a job failed for good. The job is reported FAILED.
+     */
+    private void onDownloadFailed(String jobId){
+        if(jobTracker.getState(jobId) != JobTracker.State.DOWNLOADING)
+            return;
+        setJobState(jobId, JobTracker.State.FINISHED, IOTConfigData.STATUS_FAILED);
+        updateJobStatus(IOTConfigData.STATUS_FAILED, jobId);
     }
 
     /**
@@ -0,0 +1,78 @@
+package autoupdate.iotagent.util;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import autoupdate.iotagent.download.NetworkPolicy;
+
+/**
+ * This class follows the default network and reports its class, unmetered, metered or roaming, to
+ * the NetworkPolicy, which throttles or pauses the downloads accordingly.
+ */
+public class NetworkMonitor {
+
+    private static final String LOG_TAG = "NetworkMonitor";
+
+    private final ConnectivityManager connectivityManager;
+
+    private final NetworkPolicy policy;
+
+    private ConnectivityManager.NetworkCallback callback;
+
+    public NetworkMonitor(Context context, NetworkPolicy policy) {
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.policy = policy;
+    }
+
+    /**
+     * Starts following the default network. The current network is reported right away.
+     */
+    public void register() {
+        callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                report(classify(capabilities));
+            }
+
+            @Override
+            public void onLost(Network network) {
+                report(NetworkPolicy.NetworkClass.NONE);
+            }
+        };
+        connectivityManager.registerDefaultNetworkCallback(callback);
+    }
+
+    /**
+     * Stops following the default network.
+     */
+    public void unregister() {
+        if (callback == null)
+            return;
+        try {
+            connectivityManager.unregisterNetworkCallback(callback);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "callback was not registered : " + e.getMessage());
+        }
+        callback = null;
+    }
+
+    private void report(NetworkPolicy.NetworkClass networkClass) {
+        if (policy.getNetworkClass() == networkClass)
+            return;
+        Log.i(LOG_TAG, "network class changed to " + networkClass);
+        policy.setNetworkClass(networkClass);
+    }
+
+    static NetworkPolicy.NetworkClass classify(NetworkCapabilities capabilities) {
+        //the roaming capability only exists from Android P on, before that roaming counts as metered
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P
+                && !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING))
+            return NetworkPolicy.NetworkClass.ROAMING;
+        if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED))
+            return NetworkPolicy.NetworkClass.UNMETERED;
+        return NetworkPolicy.NetworkClass.METERED;
+    }
+}
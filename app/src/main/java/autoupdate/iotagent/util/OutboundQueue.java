@@ -0,0 +1,494 @@
+package autoupdate.iotagent.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * This class buffers outbound mqtt messages and sends them in batches while connected, in the order
+ * they were offered. Messages to a replaceable topic, i.e. the status updates of a job, are
+ * coalesced: a pending message is dropped when a newer one for the same topic is offered, which
+ * goes to the back of the queue, so a burst of status updates for one job goes out as its latest
+ * state only and never ahead of what was offered before it. While disconnected, messages are kept
+ * in memory up to a bound and spilled to a file beyond it, which also carries them over a restart.
+ * Messages are published at least once: a message handed to the broker stays in flight until the
+ * broker acknowledges it, and is queued again at the head if the delivery fails or the connection
+ * drops before the acknowledgement. A message can carry a callback that runs once the broker
+ * acknowledged it, for state that must only be recorded when the message really reached the broker.
+ */
+public class OutboundQueue {
+
+    private static final String LOG_TAG = "OutboundQueue";
+
+    /**
+     * Sends a message. Throws if the message could not be handed to the broker, otherwise reports
+     * the outcome to the delivery once the broker acknowledged the message or it was lost.
+     */
+    public interface Sink {
+        void send(String msg, String topic, Delivery delivery) throws Exception;
+    }
+
+    /**
+     * Outcome of a message handed to the broker. Either method may be called on any thread.
+     */
+    public interface Delivery {
+        void delivered();
+
+        void failed();
+    }
+
+    //number of messages sent before checking whether more were queued
+    static final int DRAIN_BATCH = 20;
+
+    private final Sink sink;
+
+    private final File spillFile;
+
+    private final int memoryCapacity;
+
+    private final int spillCapacity;
+
+    /**
+     * A message waiting to be sent.
+     */
+    private static class Message {
+        final String topic;
+        final String msg;
+        //run once acknowledged by the broker, null for none
+        Runnable onSent;
+
+        Message(String topic, String msg, Runnable onSent) {
+            this.topic = topic;
+            this.msg = msg;
+            this.onSent = onSent;
+        }
+    }
+
+    //pending messages, oldest first
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+
+    //messages handed to the broker and not acknowledged yet, oldest first
+    private final Set<Message> inFlight = new LinkedHashSet<>();
+
+    //topics whose pending message is replaced by a newer one
+    private final Pattern replaceable;
+
+    //callbacks of spilled messages by topic, only replaceable topics have one spilled message each
+    private final Map<String, Runnable> spilledCallbacks = new HashMap<>();
+
+    private final ExecutorService executor;
+
+    private boolean connected;
+
+    private boolean drainScheduled;
+
+    private int spilled;
+
+    private long sent;
+
+    private long coalesced;
+
+    private long dropped;
+
+    private double drainRate;
+
+    /**
+     * @param sink sends the messages
+     * @param replaceable topics whose pending message is replaced by a newer one, e.g. job status updates
+     * @param spillFile file for messages beyond the memory bound, loaded again if it exists
+     * @param memoryCapacity number of messages kept in memory
+     * @param spillCapacity number of messages kept on disk, further messages are dropped
+     */
+    public OutboundQueue(Sink sink, Pattern replaceable, File spillFile, int memoryCapacity, int spillCapacity) {
+        this.sink = sink;
+        this.replaceable = replaceable;
+        this.spillFile = spillFile;
+        this.memoryCapacity = memoryCapacity;
+        this.spillCapacity = spillCapacity;
+        this.spilled = countSpilled();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "outbound-queue");
+            }
+        });
+    }
+
+    /**
+     * Queues a message and drains the queue if connected.
+     * @param msg the message string
+     * @param topic topic to publish message to
+     */
+    public void offer(String msg, String topic) {
+        offer(msg, topic, null);
+    }
+
+    /**
+     * Queues a message, replacing a pending message for the same topic if the topic is
+     * replaceable, and drains the queue if connected.
+     * @param msg the message string
+     * @param topic topic to publish message to
+     * @param onSent run on the queue's thread once the broker acknowledged the message, null for
+     *               none. It does not run for a message that was replaced, dropped or carried over
+     *               a restart.
+     */
+    public synchronized void offer(String msg, String topic, Runnable onSent) {
+        if (replaceable.matcher(topic).matches()) {
+            Iterator<Message> it = pending.iterator();
+            while (it.hasNext()) {
+                if (it.next().topic.equals(topic)) {
+                    it.remove();
+                    ++coalesced;
+                    break;
+                }
+            }
+            //a spilled message for the topic is skipped when the spill file is read back
+            spilledCallbacks.remove(topic);
+        }
+        pending.addLast(new Message(topic, msg, onSent));
+        if (pending.size() > memoryCapacity)
+            spill();
+        scheduleDrain();
+    }
+
+    /**
+     * Tells the queue whether the connection is up. Going up drains the queue. Going down queues
+     * the messages in flight again, their acknowledgement may never come.
+     */
+    public synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+        if (connected) {
+            scheduleDrain();
+        } else if (!inFlight.isEmpty()) {
+            requeue(new ArrayList<>(inFlight), 0);
+            inFlight.clear();
+        }
+    }
+
+    /**
+     * @return number of messages waiting in memory and on disk
+     */
+    public synchronized int getDepth() {
+        return pending.size() + spilled;
+    }
+
+    /**
+     * @return number of messages the broker acknowledged
+     */
+    public synchronized long getSentCount() {
+        return sent;
+    }
+
+    /**
+     * @return number of messages handed to the broker and not acknowledged yet
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return number of messages replaced by a newer message for a replaceable topic before being sent
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * @return number of messages dropped because the spill file was full
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @return messages per second handed to the broker by the last drain
+     */
+    public synchronized double getDrainRate() {
+        return drainRate;
+    }
+
+    /**
+     * Stops draining and writes the messages still in memory or in flight to the spill file, so
+     * they are sent after a restart.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            connected = false;
+            requeue(new ArrayList<>(inFlight), 0);
+            inFlight.clear();
+            if (!pending.isEmpty())
+                spill(pending.size());
+        }
+    }
+
+    /**
+     * Blocks until the queued drains ran, and then the sent callbacks they queued. Used by tests.
+     */
+    void awaitIdle() throws InterruptedException {
+        for (int i = 0; i < 2; ++i) {
+            try {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }).get(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new InterruptedException(e.getMessage());
+            }
+        }
+    }
+
+    private void scheduleDrain() {
+        if (!connected || drainScheduled || executor.isShutdown())
+            return;
+        drainScheduled = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Sends the pending messages in batches, the spilled ones first. Stops at the first failure and
+     * keeps the failed message at the head of the queue.
+     */
+    private void drain() {
+        long start = System.nanoTime();
+        int count = 0;
+        while (true) {
+            List<Message> batch = new ArrayList<>();
+            synchronized (this) {
+                if (spilled > 0)
+                    unspill();
+                while (!pending.isEmpty() && batch.size() < DRAIN_BATCH)
+                    batch.add(pending.pollFirst());
+                if (batch.isEmpty() || !connected) {
+                    requeue(batch, 0);
+                    drainScheduled = false;
+                    break;
+                }
+            }
+            for (int i = 0; i < batch.size(); ++i) {
+                Message message = batch.get(i);
+                synchronized (this) {
+                    inFlight.add(message);
+                }
+                try {
+                    sink.send(message.msg, message.topic, deliveryOf(message));
+                    ++count;
+                } catch (Exception e) {
+                    Log.w(LOG_TAG, "publish failed, keeping " + (batch.size() - i) + " messages queued : " + e.getMessage());
+                    synchronized (this) {
+                        inFlight.remove(message);
+                        requeue(batch, i);
+                        connected = false;
+                        drainScheduled = false;
+                    }
+                    finishDrain(count, start);
+                    return;
+                }
+            }
+        }
+        finishDrain(count, start);
+    }
+
+    private Delivery deliveryOf(final Message message) {
+        return new Delivery() {
+            @Override
+            public void delivered() {
+                onDelivered(message);
+            }
+
+            @Override
+            public void failed() {
+                onFailed(message);
+            }
+        };
+    }
+
+    /**
+     * Runs the callback of an acknowledged message on the queue's thread. A message queued again
+     * meanwhile, after a disconnect, is acknowledged when it is sent again.
+     */
+    private void onDelivered(final Message message) {
+        synchronized (this) {
+            if (!inFlight.remove(message))
+                return;
+            ++sent;
+        }
+        if (message.onSent == null)
+            return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        message.onSent.run();
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "err in sent callback of " + message.topic + " : " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //shut down, the message is not journaled as sent and goes out again after the restart
+            Log.w(LOG_TAG, "dropping sent callback of " + message.topic + ", queue is shut down");
+        }
+    }
+
+    /**
+     * Queues a message the broker did not acknowledge again at the head of the queue.
+     */
+    private synchronized void onFailed(Message message) {
+        if (!inFlight.remove(message))
+            return;
+        Log.w(LOG_TAG, "delivery failed, queueing again : " + message.topic);
+        requeue(Collections.singletonList(message), 0);
+        scheduleDrain();
+    }
+
+    private synchronized void finishDrain(int count, long start) {
+        if (count == 0)
+            return;
+        drainRate = count / ((System.nanoTime() - start) / 1e9);
+        Log.d(LOG_TAG, "drained " + count + " messages at " + (long) drainRate + " msg/s, depth " + getDepth()
+                + ", coalesced " + coalesced + ", dropped " + dropped);
+    }
+
+    /**
+     * Puts unsent messages of a batch back at the head of the queue, unless a newer message for
+     * the same replaceable topic arrived in the meantime.
+     */
+    private void requeue(List<Message> batch, int from) {
+        Set<String> newer = new HashSet<>();
+        for (Message message : pending)
+            newer.add(message.topic);
+        for (int i = batch.size() - 1; i >= from; --i) {
+            Message message = batch.get(i);
+            if (replaceable.matcher(message.topic).matches() && newer.contains(message.topic))
+                ++coalesced;
+            else
+                pending.addFirst(message);
+        }
+    }
+
+    /**
+     * Moves the older half of the in-memory messages to the spill file.
+     */
+    private void spill() {
+        spill(pending.size() / 2);
+    }
+
+    private void spill(int count) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(spillFile, true), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < count && !pending.isEmpty(); ++i) {
+                Message message = pending.pollFirst();
+                if (spilled >= spillCapacity) {
+                    ++dropped;
+                    continue;
+                }
+                writer.write(escape(message.topic) + '\t' + escape(message.msg) + '\n');
+                if (message.onSent != null)
+                    spilledCallbacks.put(message.topic, message.onSent);
+                ++spilled;
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not spill messages : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the spill file in front of the in-memory messages. A spilled message to a replaceable
+     * topic is skipped if a newer one for the same topic was spilled after it or is in memory.
+     */
+    private void unspill() {
+        List<Message> loaded = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spillFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0)
+                    continue;
+                loaded.add(new Message(unescape(line.substring(0, tab)), unescape(line.substring(tab + 1)), null));
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not read spilled messages : " + e.getMessage());
+        }
+        Set<String> newer = new HashSet<>();
+        for (Message message : pending)
+            newer.add(message.topic);
+        for (int i = loaded.size() - 1; i >= 0; --i) {
+            Message message = loaded.get(i);
+            if (replaceable.matcher(message.topic).matches()) {
+                if (!newer.add(message.topic)) {
+                    ++coalesced;
+                    continue;
+                }
+                message.onSent = spilledCallbacks.remove(message.topic);
+            }
+            pending.addFirst(message);
+        }
+        spilledCallbacks.clear();
+        spillFile.delete();
+        spilled = 0;
+    }
+
+    private int countSpilled() {
+        if (!spillFile.exists())
+            return 0;
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spillFile), StandardCharsets.UTF_8))) {
+            while (reader.readLine() != null)
+                ++count;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not read spilled messages : " + e.getMessage());
+        }
+        return count;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0)
+            return value;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,243 @@
+package autoupdate.iotagent.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the installed version code of every package the agent asked about, so that
+ * evaluating a job is a map lookup instead of a PackageManager call, which is a binder call into
+ * the system server. Packages are looked up on first use, not installed ones included, and
+ * dropped from the cache when a package added, replaced or removed broadcast names them.
+ */
+public class PackageVersionCache {
+
+    private static final String LOG_TAG = "PackageVersionCache";
+
+    //version code of a package that is not installed
+    public static final long NOT_INSTALLED = -1;
+
+    /**
+     * Looks up the installed version code of a package.
+     */
+    interface VersionSource {
+        /**
+         * @return the version code, or NOT_INSTALLED
+         */
+        long getVersionCode(String packageName);
+    }
+
+    private final VersionSource source;
+
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+
+    //bumped on every invalidation, a lookup that raced with one is not cached. Guarded by this, together
+    //with the writes to versions, so an invalidation cannot slip in between the check and the put
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private BroadcastReceiver receiver;
+
+    /**
+     * @param context context used to reach the PackageManager
+     */
+    public PackageVersionCache(Context context) {
+        this(packageManagerSource(context.getPackageManager()));
+    }
+
+    PackageVersionCache(VersionSource source) {
+        this.source = source;
+    }
+
+    private static VersionSource packageManagerSource(final PackageManager packageManager) {
+        return new VersionSource() {
+            @Override
+            public long getVersionCode(String packageName) {
+                try {
+                    PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
+                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P)
+                        return packageInfo.getLongVersionCode();
+                    return (long) packageInfo.versionCode;
+                } catch (PackageManager.NameNotFoundException e) {
+                    return NOT_INSTALLED;
+                }
+            }
+        };
+    }
+
+    /**
+     * Registers for the package broadcasts that invalidate the cache. The broadcasts are implicit,
+     * so they have to be registered at runtime rather than in the manifest.
+     * @param context context to register the receiver with
+     */
+    public void register(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null) {
+                    invalidateAll();
+                    return;
+                }
+                Log.d(LOG_TAG, intent.getAction() + " : " + data.getSchemeSpecificPart());
+                invalidate(data.getSchemeSpecificPart());
+            }
+        };
+        context.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * Unregisters the broadcast receiver.
+     */
+    public void unregister(Context context) {
+        if (receiver == null)
+            return;
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "receiver was not registered : " + e.getMessage());
+        }
+        receiver = null;
+    }
+
+    /**
+     * @param packageName package name of an app
+     * @return the installed version code, or NOT_INSTALLED
+     */
+    public long getVersionCode(String packageName) {
+        Long version = versions.get(packageName);
+        if (version != null) {
+            hits.incrementAndGet();
+            return version;
+        }
+        misses.incrementAndGet();
+        long before;
+        synchronized (this) {
+            before = generation;
+        }
+        //looked up outside the lock, it is a binder call
+        long looked = source.getVersionCode(packageName);
+        synchronized (this) {
+            if (generation == before)
+                versions.put(packageName, looked);
+        }
+        return looked;
+    }
+
+    /**
+     * @param packageName package name of an app
+     * @return whether the package is installed on the device
+     */
+    public boolean isInstalled(String packageName) {
+        return getVersionCode(packageName) != NOT_INSTALLED;
+    }
+
+    /**
+     * @param packageName package name of an app
+     * @param latestVersion latest available version code of the app, as in the job document
+     * @return true if the app is installed with a lower version code. An unparseable version is
+     *         logged and treated as no update needed.
+     */
+    public boolean needsUpdate(String packageName, String latestVersion) {
+        return isOlder(getVersionCode(packageName), latestVersion);
+    }
+
+    /**
+     * Checks a whole campaign of jobs against the cache. The cache is read under one lock for the
+     * whole campaign and the packages it misses are looked up once each and added under one lock,
+     * so the check does not contend with the broadcasts once per package.
+     * @param latestVersions latest available version code, keyed by package name
+     * @return whether each package needs the update, in the order of the given map
+     */
+    public Map<String, Boolean> needsUpdate(Map<String, String> latestVersions) {
+        Map<String, Long> current = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long before;
+        synchronized (this) {
+            before = generation;
+            for (String packageName : latestVersions.keySet()) {
+                Long version = versions.get(packageName);
+                if (version != null)
+                    current.put(packageName, version);
+                else
+                    missing.add(packageName);
+            }
+        }
+        hits.addAndGet(current.size());
+        misses.addAndGet(missing.size());
+        Map<String, Long> looked = new HashMap<>();
+        //looked up outside the lock, they are binder calls
+        for (String packageName : missing)
+            looked.put(packageName, source.getVersionCode(packageName));
+        synchronized (this) {
+            if (generation == before)
+                versions.putAll(looked);
+        }
+        current.putAll(looked);
+
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : latestVersions.entrySet())
+            result.put(entry.getKey(), isOlder(current.get(entry.getKey()), entry.getValue()));
+        return result;
+    }
+
+    /**
+     * @return true if the version code is of an installed app and lower than latestVersion. An
+     *         unparseable version is logged and treated as no update needed.
+     */
+    private static boolean isOlder(long current, String latestVersion) {
+        if (current == NOT_INSTALLED)
+            return false;
+        try {
+            return Long.parseLong(latestVersion) > current;
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "error checking version : " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Drops a package from the cache, it is looked up again on next use.
+     */
+    public synchronized void invalidate(String packageName) {
+        ++generation;
+        versions.remove(packageName);
+    }
+
+    /**
+     * Drops every package from the cache.
+     */
+    public synchronized void invalidateAll() {
+        ++generation;
+        versions.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,215 @@
+package autoupdate.iotagent.util;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInstaller;
+import android.util.Log;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import autoupdate.iotagent.download.DownloadProgressListener;
+import autoupdate.iotagent.download.DownloadThrottle;
+import autoupdate.iotagent.download.StreamingDownloader;
+
+/**
+ * This class installs an update by streaming the apk from the download url straight into a
+ * PackageInstaller session, so the apk never lands in a file of its own and crosses storage once.
+ * The SHA-256 is checked as the bytes arrive and the session is only committed when it matches;
+ * the signature is checked by the installer itself, which refuses an update signed differently.
+ * The outcome of the commit arrives as a broadcast and is handed to the ResultListener. The id of
+ * every session is handed out before the apk is written to it, so a job can tell after a restart
+ * whether its session is still live or its outcome was missed.
+ */
+public class SessionInstaller {
+
+    private static final String LOG_TAG = "SessionInstaller";
+
+    private static final String ACTION_INSTALL_RESULT = "autoupdate.iotagent.INSTALL_RESULT";
+
+    private static final String EXTRA_JOB_ID = "jobId";
+
+    //name of the apk inside the session
+    private static final String SESSION_APK = "base.apk";
+
+    /**
+     * Told about the outcome of a committed session.
+     */
+    public interface ResultListener {
+        /**
+         * @param jobId the job the session was committed for
+         * @param success whether the update was installed
+         * @param message the installer's status message, null on success
+         */
+        void onInstallResult(String jobId, boolean success, String message);
+    }
+
+    /**
+     * Told about a new session before the apk is written to it.
+     */
+    public interface SessionListener {
+        /**
+         * @param sessionId id of the session, see isLive
+         */
+        void onSessionCreated(int sessionId);
+    }
+
+    private final Context context;
+
+    private final PackageInstaller packageInstaller;
+
+    private final ResultListener resultListener;
+
+    private BroadcastReceiver receiver;
+
+    public SessionInstaller(Context context, ResultListener resultListener) {
+        this.context = context;
+        this.packageInstaller = context.getPackageManager().getPackageInstaller();
+        this.resultListener = resultListener;
+    }
+
+    /**
+     * Registers for the install results and abandons sessions left half written by an earlier run.
+     * Their jobs find their session gone once recovered and start over, see isLive.
+     */
+    public void register() {
+        for (PackageInstaller.SessionInfo info : packageInstaller.getMySessions()) {
+            if (info.isActive())
+                continue;
+            Log.i(LOG_TAG, "abandoning stale session " + info.getSessionId() + " for " + info.getAppPackageName());
+            try {
+                packageInstaller.abandonSession(info.getSessionId());
+            } catch (SecurityException e) {
+                Log.w(LOG_TAG, "could not abandon session " + info.getSessionId() + " : " + e.getMessage());
+            }
+        }
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onResult(context, intent);
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(ACTION_INSTALL_RESULT));
+    }
+
+    /**
+     * @param sessionId id of a session created by this installer, -1 for none
+     * @return true if the session still exists, i.e. it is being written or installed and its
+     *         outcome is still to be reported
+     */
+    public boolean isLive(int sessionId) {
+        return sessionId >= 0 && packageInstaller.getSessionInfo(sessionId) != null;
+    }
+
+    /**
+     * Unregisters the result receiver.
+     */
+    public void unregister() {
+        if (receiver == null)
+            return;
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "receiver was not registered : " + e.getMessage());
+        }
+        receiver = null;
+    }
+
+    /**
+     * Downloads the apk into a new session and commits it. Returns once the session is committed;
+     * the outcome follows through the ResultListener.
+     * @param jobId the job the update belongs to
+     * @param packageName package name of the app being updated
+     * @param url download url of the apk
+     * @param size expected apk size in bytes, -1 if unknown
+     * @param sha256 expected SHA-256 of the apk as hex, null if unknown
+     * @param progressListener told about the download progress, may be null
+     * @param throttle limits the download rate, may be null
+     * @param sessionListener told the id of the session before anything is written to it, may be null
+     * @throws IOException if the download fails or the apk is not the expected one, the session
+     *         is abandoned then
+     */
+    public void install(String jobId, String packageName, String url, long size, String sha256,
+                        DownloadProgressListener progressListener, DownloadThrottle throttle,
+                        SessionListener sessionListener) throws IOException {
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.setAppPackageName(packageName);
+        if (size >= 0)
+            params.setSize(size);
+        int sessionId = packageInstaller.createSession(params);
+        if (sessionListener != null)
+            sessionListener.onSessionCreated(sessionId);
+        final PackageInstaller.Session session = packageInstaller.openSession(sessionId);
+        boolean committed = false;
+        try {
+            StreamingDownloader downloader = new StreamingDownloader();
+            downloader.setProgressListener(progressListener);
+            downloader.setThrottle(throttle);
+            downloader.setExpectedContent(size, sha256);
+            long bytes = downloader.download(url, new StreamingDownloader.Sink() {
+                @Override
+                public OutputStream open(long offset, long length) throws IOException {
+                    final OutputStream out = session.openWrite(SESSION_APK, offset, length >= 0 ? length - offset : -1);
+                    return new FilterOutputStream(out) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                session.fsync(out);
+                            } finally {
+                                out.close();
+                            }
+                        }
+                    };
+                }
+            });
+            Intent intent = new Intent(ACTION_INSTALL_RESULT)
+                    .setPackage(context.getPackageName())
+                    .putExtra(EXTRA_JOB_ID, jobId);
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, sessionId, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            session.commit(pendingIntent.getIntentSender());
+            committed = true;
+            Log.i(LOG_TAG, "session " + sessionId + " committed for " + packageName + ", " + bytes + " bytes");
+        } finally {
+            if (!committed)
+                session.abandon();
+            session.close();
+        }
+    }
+
+    private void onResult(Context context, Intent intent) {
+        String jobId = intent.getStringExtra(EXTRA_JOB_ID);
+        int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+        String message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+        switch (status) {
+            case PackageInstaller.STATUS_PENDING_USER_ACTION:
+                //not a device owner or system app, the user has to confirm the install
+                Intent confirm = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+                if (confirm != null) {
+                    Log.i(LOG_TAG, "waiting for the user to confirm the install for job : " + jobId);
+                    confirm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    context.startActivity(confirm);
+                    return;
+                }
+                resultListener.onInstallResult(jobId, false, "confirmation intent missing");
+                return;
+            case PackageInstaller.STATUS_SUCCESS:
+                Log.i(LOG_TAG, "installed update for job : " + jobId);
+                resultListener.onInstallResult(jobId, true, null);
+                return;
+            default:
+                Log.e(LOG_TAG, "install failed for job : " + jobId + ", status " + status + " : " + message);
+                resultListener.onInstallResult(jobId, false, message);
+        }
+    }
+}
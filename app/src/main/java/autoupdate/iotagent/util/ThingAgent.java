@@ -0,0 +1,179 @@
+package autoupdate.iotagent.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledExecutorService;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.config.ThingTopics;
+import autoupdate.iotagent.metrics.MetricsRegistry;
+
+/**
+ * The jobs of one thing the agent serves: its topics, its job handler with its own job state,
+ * journal and download queue, and the intake and poller of its jobs. The device itself is one
+ * thing, in gateway mode every thing in GATEWAY_THINGS gets one more over the same connection.
+ * Messages of the thing are published through the shared connection, and its topic handlers are
+ * registered in the shared topic router.
+ */
+public class ThingAgent implements MessagePublisher {
+
+    private static final String LOG_TAG = "ThingAgent";
+
+    private final ThingTopics topics;
+
+    private final IOTHelper connection;
+
+    private final JobMessageHandler jobMessageHandler;
+
+    private final JobIntake jobIntake;
+
+    private final JobsPoller jobsPoller;
+
+    /**
+     * @param context context of execution
+     * @param thingName the thing the jobs are run for
+     * @param connection the connection shared by all things
+     * @param eventLoop the loop the job state of every thing is handled on
+     * @param metrics registry the job metrics are kept in, shared by all things
+     * @param services the services shared by all things
+     * @param pollScheduler runs the get-jobs polls of all things
+     */
+    public ThingAgent(Context context, String thingName, IOTHelper connection, EventLoop eventLoop,
+                      MetricsRegistry metrics, AgentServices services, ScheduledExecutorService pollScheduler) {
+        this.topics = new ThingTopics(thingName);
+        this.connection = connection;
+        this.jobMessageHandler = new JobMessageHandler(context, this, eventLoop, metrics, services);
+        this.jobIntake = new JobIntake(connection, jobMessageHandler, topics.startNext());
+        this.jobsPoller = new JobsPoller(new Runnable() {
+            @Override
+            public void run() {
+                //publishing only queues the message, it is safe from the poller thread
+                String clientToken = "{\"clientToken\":\"123\"}";
+                publish(clientToken, topics.getJobs());
+            }
+        }, IOTConfigData.JOBS_POLL_MIN_INTERVAL_MS, IOTConfigData.JOBS_POLL_MAX_INTERVAL_MS, pollScheduler);
+    }
+
+    public ThingTopics getTopics() {
+        return topics;
+    }
+
+    /**
+     * @return the name of the job journal of the thing, the device keeps the journal it always had
+     */
+    String getJournalFile() {
+        if (topics.getThingName().equals(IOTConfigData.DEVICE_ID))
+            return IOTConfigData.JOB_JOURNAL_FILE;
+        return String.format(IOTConfigData.GATEWAY_JOB_JOURNAL_FILE, topics.getThingName());
+    }
+
+    /**
+     * Registers the handlers of the thing's topics. Every registered topic is subscribed to once
+     * connected.
+     */
+    public void registerTopicHandlers(TopicRouter router) {
+        router.register(topics.getJobsAccepted(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                boolean changed = jobMessageHandler.handleGetJobsResponse(payload);
+                jobsPoller.onJobsResponse(changed);
+            }
+        });
+        router.register(topics.describeJobAccepted(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobMessageHandler.handleJobMessage(payload);
+            }
+        });
+        router.register(topics.notifyChanged(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                //the pending job list changed, fetch it without waiting for the next poll
+                jobsPoller.pollNow();
+            }
+        });
+        router.register(topics.notifyNext(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                //a job is pending, claim it together with its job document
+                requestNextJob();
+            }
+        });
+        router.register(topics.startNextAccepted(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobIntake.handleStartNextResponse(payload);
+            }
+        });
+        router.register(topics.startNextRejected(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobIntake.handleStartNextRejected(new String(payload, StandardCharsets.UTF_8));
+            }
+        });
+        router.register(topics.updateJobRejected(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                //e.g. the job was cancelled or updated on the server, fetch the current job list
+                Log.w(LOG_TAG, "job update rejected on " + topic + " : " + new String(payload, StandardCharsets.UTF_8));
+                jobsPoller.pollNow();
+            }
+        });
+    }
+
+    /**
+     * Called on the event loop once connected: statuses decided while offline are sent, the poll
+     * starts over at its minimum interval and the next queued job is claimed.
+     */
+    public void onConnected() {
+        jobMessageHandler.onConnected();
+        Log.i(LOG_TAG, "starting polling for new jobs of " + topics.getThingName());
+        jobsPoller.reset();
+        requestNextJob();
+    }
+
+    /**
+     * This method publishes to a topic to get job details of a particular job
+     * @param jobId the job identifier
+     */
+    public void publishForJobDescription(String jobId) {
+        String clientToken = "{\"clientToken\":\"123\"}";
+        publish(clientToken, topics.describeJob(jobId));
+    }
+
+    /**
+     * This method claims the next queued job. The response carries the job document of the claimed
+     * job, which is then already IN_PROGRESS.
+     */
+    public void requestNextJob() {
+        jobIntake.requestNext();
+    }
+
+    @Override
+    public void publish(String msg, String topic) {
+        connection.publish(msg, topic);
+    }
+
+    /**
+     * Publishes a message and runs onSent on the outbound queue's thread once the broker acknowledged it.
+     */
+    public void publish(String msg, String topic, Runnable onSent) {
+        connection.publish(msg, topic, onSent);
+    }
+
+    /**
+     * Stops the poll. Called when the service is destroyed, before the event loop is shut down.
+     */
+    public void stopPolling() {
+        jobsPoller.stop();
+    }
+
+    /**
+     * Cancels queued and running downloads and closes the journal. Called once the event loop is done.
+     */
+    public void shutdown() {
+        jobMessageHandler.shutdown();
+    }
+}
@@ -0,0 +1,145 @@
+package autoupdate.iotagent.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ApkCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File put(ApkCache cache, String packageName, String version, int size) throws IOException {
+        File file = cache.fileFor(packageName, version, "ab" + version);
+        Files.write(file.toPath(), new byte[size]);
+        cache.commit(file);
+        return file;
+    }
+
+    @Test
+    public void fileFor_namesByPackageVersionAndHash() {
+        ApkCache cache = new ApkCache(folder.getRoot(), 1000);
+
+        assertEquals("com.app-12-abcd.apk", cache.fileFor("com.app", "12", "ABCD").getName());
+        assertEquals("com.app-12-unverified.apk", cache.fileFor("com.app", "12", null).getName());
+        assertEquals("com.app-1_2-abcd.apk", cache.fileFor("com.app", "1/2", "abcd").getName());
+    }
+
+    @Test
+    public void lookup_countsHitsAndMisses() throws IOException {
+        ApkCache cache = new ApkCache(folder.getRoot(), 1000);
+        File file = cache.fileFor("com.app", "1", "ab1");
+
+        assertNull(cache.lookup(file));
+        put(cache, "com.app", "1", 100);
+        assertEquals(file, cache.lookup(file));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void lookup_neverServesApksWithoutHash() throws IOException {
+        ApkCache cache = new ApkCache(folder.getRoot(), 1000);
+        File file = cache.fileFor("com.app", "1", null);
+        Files.write(file.toPath(), new byte[100]);
+        cache.commit(file);
+
+        assertNull(cache.lookup(file));
+        assertEquals(0, cache.getHitCount());
+        //still indexed, so it counts against the budget until it is evicted
+        assertEquals(100, cache.getTotalBytes());
+    }
+
+    @Test
+    public void lookup_missesWhenFileChanged() throws IOException {
+        ApkCache cache = new ApkCache(folder.getRoot(), 1000);
+        File file = put(cache, "com.app", "1", 100);
+        Files.write(file.toPath(), new byte[50]);
+
+        assertNull(cache.lookup(file));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void commit_evictsLeastRecentlyUsedBeyondBudget() throws IOException {
+        ApkCache cache = new ApkCache(folder.getRoot(), 250);
+        File first = put(cache, "com.a", "1", 100);
+        File second = put(cache, "com.b", "1", 100);
+        assertNotNull(cache.lookup(first));
+
+        File third = put(cache, "com.c", "1", 100);
+
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertTrue(third.exists());
+        assertEquals(200, cache.getTotalBytes());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void commit_keepsPinnedEntries() throws IOException {
+        ApkCache cache = new ApkCache(folder.getRoot(), 150);
+        File pinned = cache.fileFor("com.a", "1", "ab1");
+        cache.pin(pinned, "job-1");
+        put(cache, "com.a", "1", 100);
+
+        File other = put(cache, "com.b", "1", 100);
+
+        assertTrue(pinned.exists());
+        assertFalse(other.exists());
+
+        cache.unpin("job-1");
+        assertTrue(pinned.exists());
+        assertEquals(100, cache.getTotalBytes());
+    }
+
+    @Test
+    public void unpin_evictsOnceNoJobHoldsTheEntry() throws IOException {
+        ApkCache cache = new ApkCache(folder.getRoot(), 150);
+        File first = cache.fileFor("com.a", "1", "ab1");
+        File second = cache.fileFor("com.b", "1", "ab1");
+        cache.pin(first, "job-1");
+        cache.pin(first, "job-2");
+        cache.pin(second, "job-3");
+        put(cache, "com.a", "1", 100);
+        Files.write(second.toPath(), new byte[100]);
+        cache.commit(second);
+        assertEquals(200, cache.getTotalBytes());
+
+        cache.unpin("job-1");
+        assertTrue(first.exists());
+        cache.unpin("job-2");
+
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        assertEquals(100, cache.getTotalBytes());
+    }
+
+    @Test
+    public void reopen_restoresIndexInRecencyOrder() throws IOException {
+        ApkCache cache = new ApkCache(folder.getRoot(), 1000);
+        File older = put(cache, "com.a", "1", 100);
+        File newer = put(cache, "com.b", "1", 100);
+        older.setLastModified(1000000L);
+        newer.setLastModified(2000000L);
+        Files.write(new File(folder.getRoot(), "other.txt").toPath(), new byte[500]);
+
+        ApkCache reopened = new ApkCache(folder.getRoot(), 150);
+        assertEquals(2, reopened.size());
+        assertEquals(200, reopened.getTotalBytes());
+        assertNotNull(reopened.lookup(newer));
+
+        put(reopened, "com.c", "1", 10);
+
+        assertFalse(older.exists());
+        assertTrue(newer.exists());
+    }
+}
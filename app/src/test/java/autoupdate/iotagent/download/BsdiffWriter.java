@@ -0,0 +1,65 @@
+package autoupdate.iotagent.download;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes BSDIFF40 patches from given control triples, diff and extra bytes. There is no suffix
+ * sorting here; tests lay out the control triples by hand.
+ */
+class BsdiffWriter {
+
+    /**
+     * @param ctrl control triples: bytes to add from the diff block, bytes to copy from the extra
+     *             block, and how far to move in the base afterwards
+     */
+    static byte[] patch(long[][] ctrl, byte[] diff, byte[] extra, long newSize) throws IOException {
+        ByteArrayOutputStream ctrlBytes = new ByteArrayOutputStream();
+        for (long[] triple : ctrl)
+            for (long value : triple)
+                ctrlBytes.write(offtout(value));
+        byte[] ctrlBlock = bzip2(ctrlBytes.toByteArray());
+        byte[] diffBlock = bzip2(diff);
+        byte[] extraBlock = bzip2(extra);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(DeltaPatcher.MAGIC);
+        out.write(offtout(ctrlBlock.length));
+        out.write(offtout(diffBlock.length));
+        out.write(offtout(newSize));
+        out.write(ctrlBlock);
+        out.write(diffBlock);
+        out.write(extraBlock);
+        return out.toByteArray();
+    }
+
+    /**
+     * A patch with one control triple, diffing the new file against the base at the same offsets.
+     */
+    static byte[] bytewise(byte[] base, byte[] target) throws IOException {
+        byte[] diff = new byte[target.length];
+        for (int i = 0; i < target.length; ++i)
+            diff[i] = (byte) (target[i] - (i < base.length ? base[i] : 0));
+        return patch(new long[][]{{target.length, 0, 0}}, diff, new byte[0], target.length);
+    }
+
+    static byte[] offtout(long value) {
+        byte[] bytes = new byte[8];
+        long magnitude = Math.abs(value);
+        for (int i = 0; i < 8; ++i)
+            bytes[i] = (byte) (magnitude >>> (8 * i));
+        if (value < 0)
+            bytes[7] |= 0x80;
+        return bytes;
+    }
+
+    private static byte[] bzip2(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BZip2CompressorOutputStream bzip2 = new BZip2CompressorOutputStream(out)) {
+            bzip2.write(data);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,105 @@
+package autoupdate.iotagent.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaDownloaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] base;
+
+    private byte[] target;
+
+    private File baseFile;
+
+    private TestHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        base = new byte[512 * 1024];
+        new Random(3).nextBytes(base);
+        target = Arrays.copyOf(base, base.length + 100);
+        for (int i = 0; i < target.length; i += 4096)
+            target[i] ^= 0x5A;
+        baseFile = folder.newFile("base.apk");
+        Files.write(baseFile.toPath(), base);
+        server = new TestHttpServer(BsdiffWriter.bytewise(base, target));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return ResumableDownloader.hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private static void assertOnlyTargetLeft(File dir, File target) {
+        for (File file : dir.listFiles())
+            if (!file.getName().equals("base.apk"))
+                assertEquals(target.getName(), file.getName());
+    }
+
+    @Test
+    public void download_patchesBaseIntoTarget() throws Exception {
+        File out = new File(folder.getRoot(), "new.apk");
+        DeltaDownloader downloader = new DeltaDownloader(new SegmentedDownloader(1, 1, 1));
+        downloader.setExpectedPatch(server.content.length, sha256(server.content));
+        downloader.setExpectedContent(target.length, sha256(target));
+
+        downloader.download(server.url(), baseFile, out);
+
+        assertArrayEquals(target, Files.readAllBytes(out.toPath()));
+        assertTrue(server.content.length < target.length / 10);
+        assertOnlyTargetLeft(folder.getRoot(), out);
+    }
+
+    @Test
+    public void download_failsCleanlyOnWrongBase() throws Exception {
+        byte[] otherBase = base.clone();
+        otherBase[100] ^= 1;
+        Files.write(baseFile.toPath(), otherBase);
+        File out = new File(folder.getRoot(), "new.apk");
+        DeltaDownloader downloader = new DeltaDownloader(new SegmentedDownloader(1, 1, 1));
+        downloader.setExpectedContent(target.length, sha256(target));
+
+        try {
+            downloader.download(server.url(), baseFile, out);
+            fail("expected the patched file to be rejected");
+        } catch (IntegrityException expected) {
+        }
+        assertFalse(out.exists());
+        assertOnlyTargetLeft(folder.getRoot(), out);
+    }
+
+    @Test
+    public void download_keepsExistingTargetWhenPatchIsRejected() throws Exception {
+        File out = new File(folder.getRoot(), "new.apk");
+        Files.write(out.toPath(), new byte[]{1, 2, 3});
+        DeltaDownloader downloader = new DeltaDownloader(new SegmentedDownloader(1, 1, 1));
+        downloader.setExpectedPatch(server.content.length, sha256(base));
+
+        try {
+            downloader.download(server.url(), baseFile, out);
+            fail("expected the patch to be rejected");
+        } catch (IntegrityException expected) {
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(out.toPath()));
+        assertOnlyTargetLeft(folder.getRoot(), out);
+    }
+}
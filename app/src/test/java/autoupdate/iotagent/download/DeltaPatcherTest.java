@@ -0,0 +1,132 @@
+package autoupdate.iotagent.download;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaPatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] base;
+
+    private File baseFile;
+
+    @Before
+    public void setUp() throws IOException {
+        base = new byte[200 * 1024];
+        new Random(7).nextBytes(base);
+        baseFile = folder.newFile("base.apk");
+        Files.write(baseFile.toPath(), base);
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return ResumableDownloader.hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    @Test
+    public void apply_rebuildsTargetWithSeeksAndExtraBytes() throws Exception {
+        //first 100K of the base with a few bytes changed, 1000 new bytes, then 100K from offset 50K
+        byte[] inserted = new byte[1000];
+        new Random(8).nextBytes(inserted);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        byte[] head = Arrays.copyOfRange(base, 0, 100 * 1024);
+        head[10] ^= 0x55;
+        head[70000] ^= 0x11;
+        expected.write(head);
+        expected.write(inserted);
+        expected.write(base, 50 * 1024, 100 * 1024);
+        byte[] target = expected.toByteArray();
+
+        byte[] diff = new byte[200 * 1024];
+        for (int i = 0; i < head.length; ++i)
+            diff[i] = (byte) (head[i] - base[i]);
+        long[][] ctrl = {{100 * 1024, 1000, -50 * 1024}, {100 * 1024, 0, 0}};
+        File patch = write("update.patch", BsdiffWriter.patch(ctrl, diff, inserted, target.length));
+        File out = new File(folder.getRoot(), "new.apk");
+
+        DeltaPatcher.apply(baseFile, patch, out, target.length, sha256(target));
+
+        assertArrayEquals(target, Files.readAllBytes(out.toPath()));
+        assertTrue(patch.length() < target.length / 10);
+    }
+
+    @Test
+    public void apply_treatsBaseBytesPastTheEndAsZero() throws Exception {
+        byte[] target = new byte[base.length + 5000];
+        new Random(9).nextBytes(target);
+        File patch = write("update.patch", BsdiffWriter.bytewise(base, target));
+        File out = new File(folder.getRoot(), "new.apk");
+
+        DeltaPatcher.apply(baseFile, patch, out, -1, null);
+
+        assertArrayEquals(target, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void apply_rejectsWrongResultAndLeavesNoTarget() throws Exception {
+        byte[] target = Arrays.copyOf(base, base.length);
+        target[5] ^= 1;
+        File patch = write("update.patch", BsdiffWriter.bytewise(base, target));
+        File out = new File(folder.getRoot(), "new.apk");
+
+        try {
+            DeltaPatcher.apply(baseFile, patch, out, target.length, sha256(base));
+            fail("expected the SHA-256 check to fail");
+        } catch (IntegrityException expected) {
+        }
+        assertFalse(out.exists());
+
+        try {
+            DeltaPatcher.apply(baseFile, patch, out, target.length + 1, null);
+            fail("expected the size check to fail");
+        } catch (IntegrityException expected) {
+        }
+        assertFalse(out.exists());
+    }
+
+    @Test
+    public void apply_rejectsCorruptPatches() throws Exception {
+        byte[] good = BsdiffWriter.bytewise(base, base);
+        byte[] badMagic = good.clone();
+        badMagic[0] = 'X';
+        byte[] truncated = Arrays.copyOf(good, good.length - 20);
+        byte[] badTriple = BsdiffWriter.patch(new long[][]{{base.length + 1L, 0, 0}}, new byte[base.length + 1],
+                new byte[0], base.length);
+        byte[][] patches = {new byte[10], badMagic, truncated, badTriple};
+        File out = new File(folder.getRoot(), "new.apk");
+
+        for (byte[] corrupt : patches) {
+            try {
+                DeltaPatcher.apply(baseFile, write("corrupt.patch", corrupt), out, -1, null);
+                fail("expected a corrupt patch to fail");
+            } catch (IOException expected) {
+            }
+            assertFalse(out.exists());
+        }
+    }
+
+    @Test
+    public void offtin_readsSignAndMagnitude() {
+        for (long value : new long[]{0, 1, -1, 255, 65536, -51200, Long.MAX_VALUE})
+            assertEquals(value, DeltaPatcher.offtin(BsdiffWriter.offtout(value), 0));
+    }
+}
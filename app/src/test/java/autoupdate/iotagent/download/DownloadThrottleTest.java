@@ -0,0 +1,150 @@
+package autoupdate.iotagent.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import autoupdate.iotagent.config.IOTConfigData;
+
+import static org.junit.Assert.*;
+
+public class DownloadThrottleTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] content;
+
+    private TestHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[512 * 1024];
+        new Random(11).nextBytes(content);
+        server = new TestHttpServer(content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static NetworkPolicy policy(NetworkPolicy.NetworkClass networkClass) {
+        return new NetworkPolicy(TokenBucket.UNLIMITED, 256 * 1024, NetworkPolicy.BLOCKED, networkClass);
+    }
+
+    private Thread download(final ResumableDownloader downloader, final File target,
+                            final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    downloader.download(server.url(), target);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void isAllowed_followsNetworkClassAndJobHint() {
+        NetworkPolicy policy = policy(NetworkPolicy.NetworkClass.UNMETERED);
+
+        assertTrue(policy.isAllowed(NetworkPolicy.NetworkClass.UNMETERED, false));
+        assertFalse(policy.isAllowed(NetworkPolicy.NetworkClass.METERED, false));
+        assertTrue(policy.isAllowed(NetworkPolicy.NetworkClass.METERED, true));
+        assertFalse(policy.isAllowed(NetworkPolicy.NetworkClass.ROAMING, true));
+        assertFalse(policy.isAllowed(NetworkPolicy.NetworkClass.NONE, true));
+    }
+
+    @Test
+    public void defaultLimits_letJobsAllowingMeteredDataDownloadWhileRoaming() {
+        NetworkPolicy policy = new NetworkPolicy(IOTConfigData.DOWNLOAD_LIMIT_UNMETERED,
+                IOTConfigData.DOWNLOAD_LIMIT_METERED, IOTConfigData.DOWNLOAD_LIMIT_ROAMING,
+                NetworkPolicy.NetworkClass.ROAMING);
+
+        assertTrue(policy.isAllowed(NetworkPolicy.NetworkClass.ROAMING, true));
+        assertFalse(policy.isAllowed(NetworkPolicy.NetworkClass.ROAMING, false));
+    }
+
+    @Test
+    public void download_pausesOnMeteredNetworkAndResumesOnUnmetered() throws Exception {
+        NetworkPolicy policy = policy(NetworkPolicy.NetworkClass.METERED);
+        ResumableDownloader downloader = new ResumableDownloader(2, 1);
+        downloader.setThrottle(policy.newThrottle(false, TokenBucket.UNLIMITED));
+        File target = new File(folder.getRoot(), "app.apk");
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread thread = download(downloader, target, failure);
+        Thread.sleep(300);
+        assertEquals(0, server.requests.get());
+        assertTrue(thread.isAlive());
+
+        policy.setNetworkClass(NetworkPolicy.NetworkClass.UNMETERED);
+        thread.join(5000);
+
+        assertNull(failure.get());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_runsAtTheMeteredLimit() throws Exception {
+        NetworkPolicy policy = policy(NetworkPolicy.NetworkClass.METERED);
+        ResumableDownloader downloader = new ResumableDownloader(2, 1);
+        downloader.setThrottle(policy.newThrottle(true, TokenBucket.UNLIMITED));
+        File target = new File(folder.getRoot(), "app.apk");
+
+        long start = System.nanoTime();
+        downloader.download(server.url(), target);
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        //512K at 256K/s, less the quarter second the full bucket gives away
+        assertTrue("took " + ms + " ms", ms >= 1500);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_honorsTheJobLimitBelowTheNetworkLimit() throws Exception {
+        NetworkPolicy policy = policy(NetworkPolicy.NetworkClass.UNMETERED);
+        SegmentedDownloader downloader = new SegmentedDownloader(4, 2, 1);
+        downloader.setMinSegmentedLength(0);
+        downloader.setThrottle(policy.newThrottle(true, 512 * 1024));
+        File target = new File(folder.getRoot(), "app.apk");
+
+        long start = System.nanoTime();
+        downloader.download(server.url(), target);
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        //the segments share the job's bucket
+        assertTrue("took " + ms + " ms", ms >= 700);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void cancel_interruptsAPausedDownload() throws Exception {
+        NetworkPolicy policy = policy(NetworkPolicy.NetworkClass.NONE);
+        ResumableDownloader downloader = new ResumableDownloader(2, 1);
+        downloader.setThrottle(policy.newThrottle(true, TokenBucket.UNLIMITED));
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread thread = download(downloader, new File(folder.getRoot(), "app.apk"), failure);
+        Thread.sleep(100);
+        thread.interrupt();
+        thread.join(2000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(failure.get() instanceof InterruptedIOException);
+    }
+}
@@ -0,0 +1,158 @@
+package autoupdate.iotagent.download;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PeerDistributionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<PeerDistribution> agents = new ArrayList<>();
+
+    @After
+    public void stopAgents() {
+        for (PeerDistribution agent : agents)
+            agent.stop();
+    }
+
+    /**
+     * Starts agents on loopback that announce to each other.
+     */
+    private void startAgents(int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            PeerDistribution agent = new PeerDistribution(0, Collections.<InetSocketAddress>emptyList(), 0, 2,
+                    60 * 1000, 60 * 1000);
+            agent.start();
+            agents.add(agent);
+        }
+        for (PeerDistribution agent : agents)
+            for (PeerDistribution other : agents)
+                if (other != agent)
+                    agent.addAnnounceTarget(new InetSocketAddress(InetAddress.getLoopbackAddress(), other.getDiscoveryPort()));
+    }
+
+    private static void awaitPeers(PeerDistribution agent, String sha256, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && agent.peersFor(sha256).size() < count; ++i)
+            Thread.sleep(20);
+        assertEquals(count, agent.peersFor(sha256).size());
+    }
+
+    private File apk(String name, byte[] content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] content(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    @Test
+    public void fetch_getsASharedApkFromANeighbor() throws Exception {
+        startAgents(3);
+        byte[] content = content(300 * 1024, 1);
+        String sha256 = sha256(content);
+        agents.get(0).share(sha256, apk("a.apk", content));
+        awaitPeers(agents.get(1), sha256, 1);
+
+        File target = new File(folder.getRoot(), "b.apk");
+        assertTrue(agents.get(1).fetch(sha256, content.length, target));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(content.length, agents.get(1).getFetchedBytes());
+        assertEquals(content.length, agents.get(0).getServedBytes());
+
+        //the second agent shares what it fetched, the third now has two neighbors to pick from
+        agents.get(1).share(sha256, target);
+        awaitPeers(agents.get(2), sha256, 2);
+        assertTrue(agents.get(2).fetch(sha256, content.length, new File(folder.getRoot(), "c.apk")));
+    }
+
+    @Test
+    public void fetch_fallsBackWhenNoNeighborHasTheApk() throws Exception {
+        startAgents(2);
+        File target = new File(folder.getRoot(), "b.apk");
+
+        assertFalse(agents.get(1).fetch(sha256(content(10, 2)), 10, target));
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void fetch_dropsANeighborServingOtherBytes() throws Exception {
+        startAgents(2);
+        byte[] content = content(64 * 1024, 3);
+        String sha256 = sha256(content);
+        //announced under the hash of other content
+        agents.get(0).share(sha256, apk("a.apk", content(64 * 1024, 4)));
+        awaitPeers(agents.get(1), sha256, 1);
+
+        File target = new File(folder.getRoot(), "b.apk");
+        assertFalse(agents.get(1).fetch(sha256, content.length, target));
+        assertFalse(target.exists());
+        assertEquals(1, agents.get(1).getPeerFailures());
+        assertTrue(agents.get(1).peersFor(sha256).isEmpty());
+    }
+
+    @Test
+    public void fetch_leavesTheOriginDownloadsPartialFileAlone() throws Exception {
+        startAgents(2);
+        byte[] content = content(64 * 1024, 5);
+        String sha256 = sha256(content);
+        File target = new File(folder.getRoot(), "b.apk");
+        //an origin download interrupted halfway
+        File part = apk("b.apk" + ResumableDownloader.PART_SUFFIX, Arrays.copyOf(content, 1000));
+        File checkpoint = apk("b.apk" + ResumableDownloader.CHECKPOINT_SUFFIX, "origin".getBytes("UTF-8"));
+
+        //no neighbor delivers it intact
+        agents.get(0).share(sha256, apk("a.apk", content(64 * 1024, 6)));
+        awaitPeers(agents.get(1), sha256, 1);
+        assertFalse(agents.get(1).fetch(sha256, content.length, target));
+        assertEquals(1000, part.length());
+        assertArrayEquals("origin".getBytes("UTF-8"), Files.readAllBytes(checkpoint.toPath()));
+
+        //the neighbor that sent bad bytes was dropped, it is found again once it shares the right apk
+        agents.get(0).share(sha256, apk("a2.apk", content));
+        awaitPeers(agents.get(1), sha256, 1);
+        assertTrue(agents.get(1).fetch(sha256, content.length, target));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(1000, part.length());
+        assertTrue(checkpoint.exists());
+        assertFalse(new File(target.getPath() + PeerDistribution.SCRATCH_SUFFIX).exists());
+    }
+
+    @Test
+    public void directory_forgetsPeersThatStopAnnouncing() {
+        PeerDirectory directory = new PeerDirectory(1000);
+        directory.update("http://10.0.0.2:8080", Arrays.asList("AB", "cd"), 0);
+
+        assertEquals(Collections.singletonList("http://10.0.0.2:8080"), directory.peersFor("ab", 500));
+        assertTrue(directory.peersFor("ef", 500).isEmpty());
+        assertTrue(directory.peersFor("ab", 1500).isEmpty());
+        assertEquals(0, directory.size());
+    }
+}
@@ -0,0 +1,207 @@
+package autoupdate.iotagent.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResumableDownloaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] content;
+
+    private TestHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[3 * 1024 * 1024 + 123];
+        new Random(42).nextBytes(content);
+        server = new TestHttpServer(content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void download_resumesAfterDroppedConnections() throws IOException {
+        server.cutsRemaining.set(3);
+        server.cutAfterBytes = 700 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+
+        new ResumableDownloader(2, 1).download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(4, server.requests.get());
+        assertFalse(new File(target.getPath() + ResumableDownloader.PART_SUFFIX).exists());
+        assertFalse(new File(target.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX).exists());
+    }
+
+    @Test
+    public void download_resumesFromCheckpointAfterRestart() throws IOException {
+        server.cutsRemaining.set(1);
+        server.cutAfterBytes = 2 * 1024 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+        try {
+            new ResumableDownloader(0, 1).download(server.url(), target);
+            fail("expected the first attempt to fail");
+        } catch (IOException expected) {
+        }
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(new File(target.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX));
+        assertNotNull(checkpoint);
+        assertEquals(content.length, checkpoint.getLength());
+        assertEquals("\"v1\"", checkpoint.getEtag());
+        assertTrue(checkpoint.getOffset() > 0);
+
+        //a new downloader, as after a service restart, only fetches the remaining bytes
+        new ResumableDownloader(0, 1).download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void download_restartsWhenFileChangedOnServer() throws IOException {
+        server.cutsRemaining.set(1);
+        server.cutAfterBytes = 1024 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+        try {
+            new ResumableDownloader(0, 1).download(server.url(), target);
+            fail("expected the first attempt to fail");
+        } catch (IOException expected) {
+        }
+
+        byte[] changed = new byte[content.length / 2];
+        new Random(7).nextBytes(changed);
+        server.content = changed;
+        server.etag = "\"v2\"";
+        new ResumableDownloader(0, 1).download(server.url(), target);
+
+        assertArrayEquals(changed, Files.readAllBytes(target.toPath()));
+    }
+
+    private String sha256(byte[] data) {
+        MessageDigest digest = ResumableDownloader.newSha256();
+        digest.update(data);
+        return ResumableDownloader.hex(digest.digest());
+    }
+
+    @Test
+    public void download_verifiesDigestAcrossResumes() throws IOException {
+        server.cutsRemaining.set(1);
+        server.cutAfterBytes = 2 * 1024 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+        try {
+            ResumableDownloader first = new ResumableDownloader(0, 1);
+            first.setExpectedContent(content.length, sha256(content));
+            first.download(server.url(), target);
+            fail("expected the first attempt to fail");
+        } catch (IOException expected) {
+        }
+
+        //the restarted download hashes the bytes already on disk, then goes on in the write loop
+        ResumableDownloader downloader = new ResumableDownloader(0, 1);
+        downloader.setExpectedContent(content.length, sha256(content).toUpperCase());
+        downloader.download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_failsOnDigestMismatchAndDropsTheFile() throws IOException {
+        File target = new File(folder.getRoot(), "app.apk");
+        ResumableDownloader downloader = new ResumableDownloader(3, 1);
+        downloader.setExpectedContent(content.length, sha256(new byte[]{1}));
+        try {
+            downloader.download(server.url(), target);
+            fail("expected a digest mismatch");
+        } catch (IntegrityException expected) {
+        }
+
+        assertFalse(target.exists());
+        assertFalse(new File(target.getPath() + ResumableDownloader.PART_SUFFIX).exists());
+        assertFalse(new File(target.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX).exists());
+        //a mismatch is not retried
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void download_failsBeforeTransferOnSizeMismatch() throws IOException {
+        File target = new File(folder.getRoot(), "app.apk");
+        ResumableDownloader downloader = new ResumableDownloader(3, 1);
+        downloader.setExpectedContent(content.length - 1, null);
+        try {
+            downloader.download(server.url(), target);
+            fail("expected a size mismatch");
+        } catch (IntegrityException expected) {
+        }
+
+        assertEquals(1, server.requests.get());
+        assertFalse(new File(target.getPath() + ResumableDownloader.PART_SUFFIX).exists());
+    }
+
+    @Test
+    public void download_stopsOnBusyServerWithoutRetrying() throws IOException {
+        File target = new File(folder.getRoot(), "app.apk");
+        ResumableDownloader downloader = new ResumableDownloader(3, 1);
+        server.busyRemaining.set(1);
+        server.retryAfter = "120";
+        try {
+            downloader.download(server.url(), target);
+            fail("expected the server to be busy");
+        } catch (ServerBusyException expected) {
+            assertEquals(120000, expected.getRetryAfterMs());
+        }
+        assertEquals(1, server.requests.get());
+
+        downloader.download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_resumesAfterBusyServerMidway() throws IOException {
+        server.cutsRemaining.set(1);
+        server.cutAfterBytes = 1024 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+        ResumableDownloader downloader = new ResumableDownloader(3, 1);
+        try {
+            new ResumableDownloader(0, 1).download(server.url(), target);
+            fail("expected the cut to fail the download");
+        } catch (IOException expected) {
+        }
+        server.busyRemaining.set(1);
+        try {
+            downloader.download(server.url(), target);
+            fail("expected the server to be busy");
+        } catch (ServerBusyException expected) {
+            assertEquals(-1, expected.getRetryAfterMs());
+        }
+        assertTrue(new File(target.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX).exists());
+
+        downloader.download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void parseRetryAfter_readsSecondsAndDates() {
+        assertEquals(30000, ServerBusyException.parseRetryAfter(" 30", -1, 0));
+        assertEquals(5000, ServerBusyException.parseRetryAfter("Wed, 21 Oct 2015 07:28:05 GMT", 1445412485000L, 1445412480000L));
+        assertEquals(0, ServerBusyException.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", 1445412480000L, 1445412490000L));
+        assertEquals(-1, ServerBusyException.parseRetryAfter("soon", -1, 0));
+        assertEquals(-1, ServerBusyException.parseRetryAfter(null, -1, 0));
+    }
+}
@@ -0,0 +1,81 @@
+package autoupdate.iotagent.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares single stream and segmented download throughput against a local server that throttles
+ * every connection, as a high latency cellular link does. It is left out of the unit tests, see
+ * app/build.gradle, and run with
+ * ./gradlew :app:testDebugUnitTest -Pbenchmarks --tests '*SegmentedDownloadBenchmark'
+ */
+public class SegmentedDownloadBenchmark {
+
+    //bytes per second per connection
+    private static final int LINK_RATE = 1024 * 1024;
+
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] content;
+
+    private TestHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[8 * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        server = new TestHttpServer(content);
+        server.bytesPerSecond = LINK_RATE;
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void singleStreamAgainstSegments() throws IOException {
+        double single = bestSeconds(1);
+        System.out.println(String.format("single stream: %.2f MB/s", megabytes() / single));
+        for (int segments : new int[] {2, 4, 8}) {
+            double segmented = bestSeconds(segments);
+            System.out.println(String.format("%d segments: %.2f MB/s, %.1fx single stream", segments,
+                    megabytes() / segmented, single / segmented));
+        }
+    }
+
+    /**
+     * @return the fastest of ROUNDS downloads in seconds, every one into a new file
+     */
+    private double bestSeconds(int segments) throws IOException {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; ++round) {
+            File target = new File(folder.getRoot(), segments + "-" + round + ".apk");
+            long start = System.nanoTime();
+            if (segments == 1) {
+                new ResumableDownloader(2, 1).download(server.url(), target);
+            } else {
+                SegmentedDownloader downloader = new SegmentedDownloader(segments, 2, 1);
+                downloader.setMinSegmentedLength(0);
+                downloader.download(server.url(), target);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / 1e9);
+            target.delete();
+        }
+        return best;
+    }
+
+    private double megabytes() {
+        return content.length / (1024.0 * 1024.0);
+    }
+}
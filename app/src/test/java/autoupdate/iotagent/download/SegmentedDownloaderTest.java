@@ -0,0 +1,181 @@
+package autoupdate.iotagent.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SegmentedDownloaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] content;
+
+    private TestHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[2 * 1024 * 1024 + 77];
+        new Random(42).nextBytes(content);
+        server = new TestHttpServer(content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private SegmentedDownloader downloader(int segments) {
+        return downloader(segments, 2);
+    }
+
+    private SegmentedDownloader downloader(int segments, int maxRetries) {
+        SegmentedDownloader downloader = new SegmentedDownloader(segments, maxRetries, 1);
+        downloader.setMinSegmentedLength(0);
+        return downloader;
+    }
+
+    @Test
+    public void download_assemblesSegmentsInPlace() throws IOException {
+        File target = new File(folder.getRoot(), "app.apk");
+
+        downloader(4).download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        //one probe plus one request per segment
+        assertEquals(5, server.requests.get());
+    }
+
+    @Test
+    public void download_retriesDroppedSegments() throws IOException {
+        server.cutsRemaining.set(3);
+        server.cutAfterBytes = 100 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+
+        downloader(4).download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_resumesSegmentedCheckpoint() throws IOException {
+        //the probe is answered in full, every segment request is then cut
+        server.cutsRemaining.set(5);
+        server.cutAfterBytes = 64 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+        try {
+            downloader(4, 0).download(server.url(), target);
+            fail("expected the first attempt to fail");
+        } catch (IOException expected) {
+        }
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(new File(target.getPath() + ResumableDownloader.CHECKPOINT_SUFFIX));
+        assertNotNull(checkpoint);
+        assertEquals(4, checkpoint.getSegmentCount());
+
+        //asking for a different segment count keeps the layout of the checkpoint
+        downloader(2).download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_fallsBackToSingleStreamForSmallFiles() throws IOException {
+        File target = new File(folder.getRoot(), "app.apk");
+
+        new SegmentedDownloader(4, 2, 1).download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(2, server.requests.get());
+    }
+
+    @Test
+    public void download_verifiesDigestOfAssembledSegments() throws IOException {
+        MessageDigest digest = ResumableDownloader.newSha256();
+        digest.update(content);
+        String sha256 = ResumableDownloader.hex(digest.digest());
+        File target = new File(folder.getRoot(), "app.apk");
+
+        SegmentedDownloader downloader = downloader(4);
+        downloader.setExpectedContent(content.length, sha256);
+        downloader.download(server.url(), target);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+
+        File other = new File(folder.getRoot(), "other.apk");
+        downloader = downloader(4);
+        downloader.setExpectedContent(content.length, sha256.replace(sha256.charAt(0), sha256.charAt(0) == 'a' ? 'b' : 'a'));
+        try {
+            downloader.download(server.url(), other);
+            fail("expected a digest mismatch");
+        } catch (IntegrityException expected) {
+        }
+        assertFalse(other.exists());
+        assertFalse(new File(other.getPath() + ResumableDownloader.PART_SUFFIX).exists());
+    }
+
+    @Test
+    public void download_hashesSegmentsTakenInOrder() throws IOException {
+        //cut early requests short, so segments are retried and land ahead of the hashed prefix
+        server.cutsRemaining.set(6);
+        server.cutAfterBytes = 50 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+
+        SegmentedDownloader downloader = downloader(3);
+        downloader.setSegmentLength(128 * 1024);
+        downloader.setExpectedContent(content.length, sha256(content));
+        downloader.download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void download_hashesWhatAnEarlierAttemptLeftOnDisk() throws IOException {
+        server.cutsRemaining.set(5);
+        server.cutAfterBytes = 64 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+        SegmentedDownloader downloader = downloader(4, 0);
+        downloader.setExpectedContent(content.length, sha256(content));
+        try {
+            downloader.download(server.url(), target);
+            fail("expected the first attempt to fail");
+        } catch (IOException expected) {
+        }
+
+        downloader = downloader(4);
+        downloader.setExpectedContent(content.length, sha256(content));
+        downloader.download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    private static String sha256(byte[] data) {
+        MessageDigest digest = ResumableDownloader.newSha256();
+        digest.update(data);
+        return ResumableDownloader.hex(digest.digest());
+    }
+
+    /**
+     * Against a server that throttles every connection, as a high latency cellular link does, the
+     * segments are fetched over parallel range requests rather than one after the other.
+     */
+    @Test
+    public void download_fetchesSegmentsInParallelOnThrottledLink() throws IOException {
+        server.bytesPerSecond = 1024 * 1024;
+        File target = new File(folder.getRoot(), "app.apk");
+
+        downloader(4).download(server.url(), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(5, server.requests.get());
+        assertEquals(4, server.maxSending.get());
+    }
+}
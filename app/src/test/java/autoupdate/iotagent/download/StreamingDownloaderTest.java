@@ -0,0 +1,131 @@
+package autoupdate.iotagent.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamingDownloaderTest {
+
+    private byte[] content;
+
+    private TestHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[2 * 1024 * 1024 + 77];
+        new Random(5).nextBytes(content);
+        server = new TestHttpServer(content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return ResumableDownloader.hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    /**
+     * Keeps what was written in memory and the offsets the sink was opened at.
+     */
+    private static class MemorySink implements StreamingDownloader.Sink {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<Long> opens = new ArrayList<>();
+
+        @Override
+        public OutputStream open(long offset, long length) {
+            opens.add(offset);
+            assertTrue(offset <= bytes.size());
+            byte[] kept = bytes.toByteArray();
+            bytes.reset();
+            bytes.write(kept, 0, (int) offset);
+            return bytes;
+        }
+    }
+
+    @Test
+    public void download_resumesIntoSinkAtOffsetReached() throws Exception {
+        server.cutsRemaining.set(2);
+        server.cutAfterBytes = 600 * 1024;
+        MemorySink sink = new MemorySink();
+        StreamingDownloader downloader = new StreamingDownloader(2, 1);
+        downloader.setExpectedContent(content.length, sha256(content));
+
+        long bytes = downloader.download(server.url(), sink);
+
+        assertEquals(content.length, bytes);
+        assertArrayEquals(content, sink.bytes.toByteArray());
+        assertEquals(3, sink.opens.size());
+        assertEquals(0L, (long) sink.opens.get(0));
+        assertTrue(sink.opens.get(1) > 0);
+    }
+
+    @Test
+    public void download_startsSinkOverWhenFileChanges() throws Exception {
+        server.cutsRemaining.set(1);
+        server.cutAfterBytes = 600 * 1024;
+        final byte[] changed = content.clone();
+        changed[0] ^= 1;
+        MemorySink sink = new MemorySink() {
+            @Override
+            public OutputStream open(long offset, long length) {
+                final OutputStream out = super.open(offset, length);
+                if (opens.size() > 1)
+                    return out;
+                //the file changes on the server while the first response is cut short
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void close() throws IOException {
+                        server.content = changed;
+                        server.etag = "\"v2\"";
+                        super.close();
+                    }
+                };
+            }
+        };
+        StreamingDownloader downloader = new StreamingDownloader(3, 1);
+        downloader.setExpectedContent(changed.length, sha256(changed));
+
+        downloader.download(server.url(), sink);
+
+        assertArrayEquals(changed, sink.bytes.toByteArray());
+    }
+
+    @Test
+    public void download_rejectsWrongDigest() throws Exception {
+        StreamingDownloader downloader = new StreamingDownloader(0, 1);
+        downloader.setExpectedContent(content.length, sha256(new byte[1]));
+
+        try {
+            downloader.download(server.url(), new MemorySink());
+            fail("expected the digest check to fail");
+        } catch (IntegrityException expected) {
+        }
+    }
+
+    @Test
+    public void download_rejectsWrongSizeBeforeWriting() throws Exception {
+        MemorySink sink = new MemorySink();
+        StreamingDownloader downloader = new StreamingDownloader(0, 1);
+        downloader.setExpectedContent(content.length + 1, null);
+
+        try {
+            downloader.download(server.url(), sink);
+            fail("expected the size check to fail");
+        } catch (IntegrityException expected) {
+        }
+        assertTrue(sink.opens.isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+package autoupdate.iotagent.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local HTTP server serving a single file with Range support. It can cut connections on purpose
+ * after a number of bytes, throttle every connection to a fixed rate and answer busy.
+ */
+class TestHttpServer implements HttpHandler {
+
+    private final HttpServer server;
+
+    volatile byte[] content;
+
+    volatile String etag = "\"v1\"";
+
+    //number of upcoming responses to cut after cutAfterBytes bytes
+    final AtomicInteger cutsRemaining = new AtomicInteger();
+
+    volatile int cutAfterBytes = Integer.MAX_VALUE;
+
+    //bytes per second per connection, 0 for unthrottled
+    volatile int bytesPerSecond;
+
+    final AtomicInteger requests = new AtomicInteger();
+
+    //responses being sent right now, and the most ever sent at the same time
+    private final AtomicInteger sending = new AtomicInteger();
+
+    final AtomicInteger maxSending = new AtomicInteger();
+
+    //number of upcoming requests answered with 503
+    final AtomicInteger busyRemaining = new AtomicInteger();
+
+    //Retry-After header sent with the 503, null for none
+    volatile String retryAfter;
+
+    TestHttpServer(byte[] content) throws IOException {
+        this.content = content;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/file.apk";
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (busyRemaining.getAndDecrement() > 0) {
+            if (retryAfter != null)
+                exchange.getResponseHeaders().set("Retry-After", retryAfter);
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = content;
+        long start = 0;
+        long end = body.length - 1;
+        int code = 200;
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            String spec = range.substring("bytes=".length());
+            int dash = spec.indexOf('-');
+            start = Long.parseLong(spec.substring(0, dash));
+            if (dash < spec.length() - 1)
+                end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+            if (start >= body.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        long length = end - start + 1;
+        exchange.sendResponseHeaders(code, length);
+
+        long limit = cutsRemaining.getAndDecrement() > 0 ? Math.min(length, cutAfterBytes) : length;
+        OutputStream out = exchange.getResponseBody();
+        int concurrent = sending.incrementAndGet();
+        while (concurrent > maxSending.get() && !maxSending.compareAndSet(maxSending.get(), concurrent));
+        try {
+            int chunk = 8 * 1024;
+            long sent = 0;
+            long began = System.nanoTime();
+            while (sent < limit) {
+                int n = (int) Math.min(chunk, limit - sent);
+                out.write(body, (int) (start + sent), n);
+                out.flush();
+                sent += n;
+                if (bytesPerSecond > 0) {
+                    long due = began + sent * 1000000000L / bytesPerSecond;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            //client went away
+        } finally {
+            sending.decrementAndGet();
+            //closing a short body drops the connection without sending the rest
+            exchange.close();
+        }
+    }
+}
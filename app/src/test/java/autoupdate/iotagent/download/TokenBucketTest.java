@@ -0,0 +1,83 @@
+package autoupdate.iotagent.download;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    private static long millisToAcquire(TokenBucket bucket, long bytes, int chunk) throws InterruptedIOException {
+        long start = System.nanoTime();
+        for (long done = 0; done < bytes; done += chunk)
+            bucket.acquire(chunk);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void acquire_holdsTheRate() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(1024 * 1024);
+
+        //a quarter second comes out of the full bucket, the rest at the rate
+        long ms = millisToAcquire(bucket, 1024 * 1024 + 256 * 1024, 64 * 1024);
+
+        assertTrue("took " + ms + " ms", ms >= 900 && ms < 1600);
+    }
+
+    @Test
+    public void acquire_letsChunksLargerThanTheBucketThrough() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(100 * 1024);
+
+        long ms = millisToAcquire(bucket, 3 * 64 * 1024, 64 * 1024);
+
+        //the first chunk goes into debt right away, the next two wait for it to be repaid
+        assertTrue("took " + ms + " ms", ms >= 1000 && ms < 2200);
+    }
+
+    @Test
+    public void unlimited_neverWaits() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(TokenBucket.UNLIMITED);
+
+        assertTrue(millisToAcquire(bucket, 1L << 30, 1 << 20) < 200);
+    }
+
+    @Test
+    public void setRate_wakesWaitingCallers() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1024);
+        bucket.acquire(256);
+        final AtomicReference<Long> took = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    bucket.acquire(1024 * 1024);
+                    took.set((System.nanoTime() - start) / 1000000);
+                } catch (InterruptedIOException e) {
+                    fail();
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(200);
+        bucket.setRate(TokenBucket.UNLIMITED);
+        thread.join(2000);
+
+        assertNotNull(took.get());
+        assertTrue("took " + took.get() + " ms", took.get() < 1000);
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void acquire_throwsWhenInterrupted() throws InterruptedIOException {
+        TokenBucket bucket = new TokenBucket(1024);
+        bucket.acquire(256);
+        Thread.currentThread().interrupt();
+        try {
+            bucket.acquire(1024 * 1024);
+        } finally {
+            Thread.interrupted();
+        }
+    }
+}
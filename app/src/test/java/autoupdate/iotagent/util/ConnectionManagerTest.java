@@ -0,0 +1,136 @@
+package autoupdate.iotagent.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionManagerTest {
+
+    private ConnectionManager manager;
+
+    @After
+    public void tearDown() {
+        if (manager != null)
+            manager.stop();
+    }
+
+    /**
+     * Connector recording the keep-alive of every attempt, failing the first attempts on request.
+     */
+    private static class FakeConnector implements ConnectionManager.Connector {
+        final List<Integer> keepAlives = new CopyOnWriteArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        final Semaphore attempts = new Semaphore(0);
+
+        @Override
+        public void connect(int keepAliveSec) throws Exception {
+            keepAlives.add(keepAliveSec);
+            attempts.release();
+            if (failures.getAndDecrement() > 0)
+                throw new Exception("broker unreachable");
+        }
+    }
+
+    private ConnectionManager manager(FakeConnector connector, int keepAliveSec, long stableMs) {
+        manager = new ConnectionManager(connector, keepAliveSec, 1, 8, stableMs, 10, 40, new Random(3));
+        return manager;
+    }
+
+    @Test
+    public void backoff_isJitteredAndCapped() {
+        ConnectionManager manager = manager(new FakeConnector(), 1, 0);
+        long sum = 0;
+        for (int i = 0; i < 1000; ++i) {
+            long backoff = manager.backoffMs(i % 10);
+            assertTrue(backoff >= 0 && backoff <= 40);
+            sum += backoff;
+        }
+        //spread over the whole range rather than bunched at the cap
+        assertTrue("average " + sum / 1000, sum / 1000 > 10 && sum / 1000 < 30);
+    }
+
+    @Test
+    public void failedAttempts_areRetried() throws InterruptedException {
+        FakeConnector connector = new FakeConnector();
+        connector.failures.set(2);
+        ConnectionManager manager = manager(connector, 1, 60000);
+
+        manager.start();
+        assertTrue(connector.attempts.tryAcquire(3, 2, TimeUnit.SECONDS));
+        assertTrue(manager.onConnected());
+
+        assertEquals(1, manager.getConnectCount());
+        assertEquals(2, manager.getReconnectCount());
+        assertTrue(manager.isConnected());
+        Thread.sleep(100);
+        assertEquals(3, connector.keepAlives.size());
+    }
+
+    @Test
+    public void repeatedStatus_doesNotResubscribe() throws InterruptedException {
+        FakeConnector connector = new FakeConnector();
+        ConnectionManager manager = manager(connector, 1, 60000);
+        manager.start();
+        assertTrue(connector.attempts.tryAcquire(2, TimeUnit.SECONDS));
+
+        assertTrue(manager.onConnected());
+        assertTrue(manager.markSubscribed("a"));
+        assertFalse(manager.onConnected());
+        assertFalse(manager.markSubscribed("a"));
+
+        manager.onConnectionLost();
+        assertTrue(connector.attempts.tryAcquire(2, TimeUnit.SECONDS));
+        assertTrue(manager.onConnected());
+        assertTrue(manager.markSubscribed("a"));
+        assertEquals(1, manager.getLossCount());
+    }
+
+    @Test
+    public void stableConnection_raisesKeepAliveForTheNextOne() throws InterruptedException {
+        FakeConnector connector = new FakeConnector();
+        ConnectionManager manager = manager(connector, 1, 0);
+        manager.start();
+        assertTrue(connector.attempts.tryAcquire(2, TimeUnit.SECONDS));
+        manager.onConnected();
+
+        //stable after three keep-alive intervals
+        Thread.sleep(3300);
+        assertEquals(2, manager.getKeepAliveSec());
+
+        manager.onConnectionLost();
+        assertTrue(connector.attempts.tryAcquire(2, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(2), connector.keepAlives.get(1));
+        assertEquals(0, manager.getNatTimeoutCount());
+        assertTrue(manager.getTotalUptimeMs() >= 3300);
+    }
+
+    @Test
+    public void dropAfterIdling_lowersKeepAlive() throws InterruptedException {
+        FakeConnector connector = new FakeConnector();
+        ConnectionManager manager = manager(connector, 4, 60000);
+        manager.start();
+        assertTrue(connector.attempts.tryAcquire(2, TimeUnit.SECONDS));
+        manager.onConnected();
+
+        //a blip before the first keep-alive says nothing about NAT
+        manager.onConnectionLost();
+        assertEquals(4, manager.getKeepAliveSec());
+        assertTrue(connector.attempts.tryAcquire(2, TimeUnit.SECONDS));
+        manager.onConnected();
+
+        Thread.sleep(4100);
+        manager.onConnectionLost();
+
+        assertEquals(1, manager.getNatTimeoutCount());
+        assertEquals(2, manager.getKeepAliveSec());
+        assertEquals(0, manager.getUptimeMs());
+    }
+}
@@ -0,0 +1,114 @@
+package autoupdate.iotagent.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class EventLoopTest {
+
+    private final EventLoop loop = new EventLoop("test-loop");
+
+    @After
+    public void tearDown() {
+        loop.shutdown();
+    }
+
+    @Test
+    public void events_runInPostOrderOnOneThread() throws InterruptedException {
+        //not synchronized on purpose, the loop is the only thread touching it
+        final List<Integer> order = new ArrayList<>();
+        final AtomicBoolean offLoop = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread[] posters = new Thread[4];
+        for (int t = 0; t < posters.length; ++t) {
+            final int base = t * 1000;
+            posters[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; ++i) {
+                        final int value = base + i;
+                        loop.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!loop.isLoopThread())
+                                    offLoop.set(true);
+                                order.add(value);
+                            }
+                        });
+                    }
+                }
+            });
+            posters[t].start();
+        }
+        for (Thread poster : posters)
+            poster.join();
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertFalse(offLoop.get());
+        assertFalse(loop.isLoopThread());
+        assertEquals(4000, order.size());
+        //every poster's events keep their order
+        int[] last = {-1, -1, -1, -1};
+        for (int value : order) {
+            assertTrue(value % 1000 > last[value / 1000]);
+            last[value / 1000] = value % 1000;
+        }
+    }
+
+    @Test
+    public void failingEvent_doesNotStopTheLoop() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("boom");
+            }
+        });
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdown_drainsPostedEventsAndDropsLaterOnes() {
+        final AtomicBoolean ran = new AtomicBoolean();
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ran.set(true);
+            }
+        });
+        loop.shutdown();
+
+        assertTrue(ran.get());
+        assertFalse(loop.post(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }));
+        assertEquals(0, loop.getPendingCount());
+    }
+}
@@ -0,0 +1,339 @@
+package autoupdate.iotagent.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Pattern STATUS_TOPICS = Pattern.compile("update/.*");
+
+    /**
+     * Records sent messages and fails while the broker is unreachable. Messages are acknowledged
+     * right away, or held until the test acknowledges them.
+     */
+    private static class RecordingSink implements OutboundQueue.Sink {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final List<OutboundQueue.Delivery> unacknowledged = Collections.synchronizedList(new ArrayList<OutboundQueue.Delivery>());
+        volatile boolean reachable = true;
+        volatile boolean acknowledge = true;
+
+        @Override
+        public void send(String msg, String topic, OutboundQueue.Delivery delivery) throws Exception {
+            if (!reachable)
+                throw new IllegalStateException("not connected");
+            sent.add(topic + "=" + msg);
+            if (acknowledge)
+                delivery.delivered();
+            else
+                unacknowledged.add(delivery);
+        }
+    }
+
+    private static Runnable counting(final AtomicInteger count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void offer_coalescesStatusUpdatesWhileDisconnected() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 100, 100);
+        try {
+            queue.offer("IN_PROGRESS", "update/job1");
+            queue.offer("IN_PROGRESS", "update/job2");
+            queue.offer("SUCCEEDED", "update/job1");
+            assertEquals(2, queue.getDepth());
+            assertEquals(1, queue.getCoalescedCount());
+
+            queue.setConnected(true);
+            queue.awaitIdle();
+
+            //only the latest status of job1 is sent, in the place it was offered in
+            assertEquals(2, sink.sent.size());
+            assertEquals("update/job2=IN_PROGRESS", sink.sent.get(0));
+            assertEquals("update/job1=SUCCEEDED", sink.sent.get(1));
+            assertEquals(0, queue.getDepth());
+            assertEquals(2, queue.getSentCount());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void offer_keepsEveryMessageToOtherTopicsInOrder() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 100, 100);
+        try {
+            queue.offer("1", "start-next");
+            queue.offer("IN_PROGRESS", "update/job1");
+            queue.offer("2", "start-next");
+            assertEquals(3, queue.getDepth());
+            assertEquals(0, queue.getCoalescedCount());
+
+            queue.setConnected(true);
+            queue.awaitIdle();
+
+            assertEquals("start-next=1", sink.sent.get(0));
+            assertEquals("update/job1=IN_PROGRESS", sink.sent.get(1));
+            assertEquals("start-next=2", sink.sent.get(2));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void onSent_runsOnlyOnceTheMessageWasSent() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.reachable = false;
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 100, 100);
+        final AtomicInteger replacedSent = new AtomicInteger();
+        final AtomicInteger latestSent = new AtomicInteger();
+        try {
+            queue.offer("IN_PROGRESS", "update/job1", new Runnable() {
+                @Override
+                public void run() {
+                    replacedSent.incrementAndGet();
+                }
+            });
+            queue.setConnected(true);
+            queue.awaitIdle();
+            assertEquals("a failed send is not acknowledged", 0, replacedSent.get());
+
+            queue.offer("SUCCEEDED", "update/job1", new Runnable() {
+                @Override
+                public void run() {
+                    latestSent.incrementAndGet();
+                }
+            });
+            sink.reachable = true;
+            queue.setConnected(true);
+            queue.awaitIdle();
+
+            assertEquals(Collections.singletonList("update/job1=SUCCEEDED"), sink.sent);
+            assertEquals(0, replacedSent.get());
+            assertEquals(1, latestSent.get());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void onSent_waitsForTheBrokerAcknowledgement() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.acknowledge = false;
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 100, 100);
+        AtomicInteger acknowledged = new AtomicInteger();
+        try {
+            queue.offer("SUCCEEDED", "update/job1", counting(acknowledged));
+            queue.setConnected(true);
+            queue.awaitIdle();
+            assertEquals(1, sink.sent.size());
+            assertEquals(1, queue.getInFlightCount());
+            assertEquals(0, acknowledged.get());
+
+            sink.unacknowledged.get(0).delivered();
+            queue.awaitIdle();
+
+            assertEquals(1, acknowledged.get());
+            assertEquals(0, queue.getInFlightCount());
+            assertEquals(1, queue.getSentCount());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void delivery_failureSendsTheMessageAgain() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.acknowledge = false;
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 100, 100);
+        AtomicInteger acknowledged = new AtomicInteger();
+        try {
+            queue.offer("SUCCEEDED", "update/job1", counting(acknowledged));
+            queue.setConnected(true);
+            queue.awaitIdle();
+
+            sink.acknowledge = true;
+            sink.unacknowledged.get(0).failed();
+            queue.awaitIdle();
+
+            assertEquals(Arrays.asList("update/job1=SUCCEEDED", "update/job1=SUCCEEDED"), sink.sent);
+            assertEquals(1, acknowledged.get());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void disconnect_queuesMessagesInFlightAgain() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.acknowledge = false;
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 100, 100);
+        AtomicInteger acknowledged = new AtomicInteger();
+        try {
+            queue.offer("SUCCEEDED", "update/job1", counting(acknowledged));
+            queue.setConnected(true);
+            queue.awaitIdle();
+
+            //lost in the reconnect, the acknowledgement never comes
+            queue.setConnected(false);
+            assertEquals(1, queue.getDepth());
+            assertEquals(0, queue.getInFlightCount());
+            queue.setConnected(true);
+            queue.awaitIdle();
+            assertEquals(2, sink.sent.size());
+
+            //a late acknowledgement of the first attempt is ignored, the second one counts
+            sink.unacknowledged.get(0).delivered();
+            sink.unacknowledged.get(1).delivered();
+            queue.awaitIdle();
+            assertEquals(1, acknowledged.get());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdown_carriesMessagesInFlightOverARestart() throws InterruptedException {
+        File spill = new File(folder.getRoot(), "q");
+        RecordingSink unacknowledging = new RecordingSink();
+        unacknowledging.acknowledge = false;
+        OutboundQueue queue = new OutboundQueue(unacknowledging, STATUS_TOPICS, spill, 100, 100);
+        queue.offer("SUCCEEDED", "update/job1");
+        queue.setConnected(true);
+        queue.awaitIdle();
+        queue.shutdown();
+
+        RecordingSink sink = new RecordingSink();
+        queue = new OutboundQueue(sink, STATUS_TOPICS, spill, 100, 100);
+        try {
+            queue.setConnected(true);
+            queue.awaitIdle();
+            assertEquals(Collections.singletonList("update/job1=SUCCEEDED"), sink.sent);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void onSent_survivesASpill() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 4, 100);
+        final AtomicInteger sent = new AtomicInteger();
+        try {
+            queue.offer("SUCCEEDED", "update/job1", new Runnable() {
+                @Override
+                public void run() {
+                    sent.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 10; ++i)
+                queue.offer("m" + i, "topic/" + i);
+            assertEquals(0, sent.get());
+
+            queue.setConnected(true);
+            queue.awaitIdle();
+
+            assertEquals("update/job1=SUCCEEDED", sink.sent.get(0));
+            assertEquals(11, sink.sent.size());
+            assertEquals(1, sent.get());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void offer_spillsBeyondMemoryBoundAndDrainsInOrder() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        File spill = new File(folder.getRoot(), "q");
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, spill, 10, 1000);
+        try {
+            for (int i = 0; i < 95; ++i)
+                queue.offer("m" + i, "topic/" + i);
+            assertTrue(spill.exists());
+            assertEquals(95, queue.getDepth());
+
+            queue.setConnected(true);
+            queue.awaitIdle();
+
+            assertEquals(95, sink.sent.size());
+            for (int i = 0; i < 95; ++i)
+                assertEquals("topic/" + i + "=m" + i, sink.sent.get(i));
+            assertFalse(spill.exists());
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void send_failureKeepsMessagesForTheNextConnect() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.reachable = false;
+        OutboundQueue queue = new OutboundQueue(sink, STATUS_TOPICS, new File(folder.getRoot(), "q"), 100, 100);
+        try {
+            queue.setConnected(true);
+            queue.offer("a", "topic/a");
+            queue.offer("b", "topic/b");
+            queue.awaitIdle();
+            assertEquals(2, queue.getDepth());
+
+            sink.reachable = true;
+            queue.setConnected(true);
+            queue.awaitIdle();
+            assertEquals(2, sink.sent.size());
+            assertEquals("topic/a=a", sink.sent.get(0));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdown_carriesMessagesOverARestart() throws InterruptedException {
+        File spill = new File(folder.getRoot(), "q");
+        OutboundQueue queue = new OutboundQueue(new RecordingSink(), STATUS_TOPICS, spill, 100, 100);
+        queue.offer("{\"status\":\"SUCCEEDED\",\n\"x\":\"\\t\"}", "update/job1");
+        queue.shutdown();
+
+        RecordingSink sink = new RecordingSink();
+        queue = new OutboundQueue(sink, STATUS_TOPICS, spill, 100, 100);
+        try {
+            assertEquals(1, queue.getDepth());
+            queue.setConnected(true);
+            queue.awaitIdle();
+            assertEquals("update/job1={\"status\":\"SUCCEEDED\",\n\"x\":\"\\t\"}", sink.sent.get(0));
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void spill_dropsBeyondDiskBound() {
+        OutboundQueue queue = new OutboundQueue(new RecordingSink(), STATUS_TOPICS, new File(folder.getRoot(), "q"), 4, 4);
+        try {
+            for (int i = 0; i < 20; ++i)
+                queue.offer("m", "topic/" + i);
+            assertTrue(queue.getDroppedCount() > 0);
+            assertEquals(20, queue.getDepth() + queue.getDroppedCount());
+        } finally {
+            queue.shutdown();
+        }
+    }
+}
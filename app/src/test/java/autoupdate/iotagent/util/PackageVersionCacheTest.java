@@ -0,0 +1,126 @@
+package autoupdate.iotagent.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PackageVersionCacheTest {
+
+    /**
+     * Stand-in for the PackageManager that counts its lookups.
+     */
+    private static class FakeSource implements PackageVersionCache.VersionSource {
+        final Map<String, Long> installed = new HashMap<>();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public long getVersionCode(String packageName) {
+            lookups.incrementAndGet();
+            Long version = installed.get(packageName);
+            return version == null ? PackageVersionCache.NOT_INSTALLED : version;
+        }
+    }
+
+    @Test
+    public void lookups_areCachedIncludingMissingPackages() {
+        FakeSource source = new FakeSource();
+        source.installed.put("com.example.app", 5L);
+        PackageVersionCache cache = new PackageVersionCache(source);
+
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(cache.isInstalled("com.example.app"));
+            assertTrue(cache.needsUpdate("com.example.app", "6"));
+            assertFalse(cache.needsUpdate("com.example.app", "5"));
+            assertFalse(cache.isInstalled("com.example.missing"));
+            assertFalse(cache.needsUpdate("com.example.missing", "6"));
+        }
+
+        assertEquals(2, source.lookups.get());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(48, cache.getHitCount());
+    }
+
+    @Test
+    public void invalidate_picksUpInstalledAndReplacedPackages() {
+        FakeSource source = new FakeSource();
+        PackageVersionCache cache = new PackageVersionCache(source);
+        assertFalse(cache.isInstalled("com.example.app"));
+
+        //PACKAGE_ADDED
+        source.installed.put("com.example.app", 5L);
+        cache.invalidate("com.example.app");
+        assertTrue(cache.needsUpdate("com.example.app", "6"));
+
+        //PACKAGE_REPLACED with the update
+        source.installed.put("com.example.app", 6L);
+        cache.invalidate("com.example.app");
+        assertFalse(cache.needsUpdate("com.example.app", "6"));
+
+        //PACKAGE_REMOVED
+        source.installed.remove("com.example.app");
+        cache.invalidateAll();
+        assertFalse(cache.isInstalled("com.example.app"));
+    }
+
+    @Test
+    public void needsUpdate_treatsBadVersionsAsNoUpdate() {
+        FakeSource source = new FakeSource();
+        source.installed.put("com.example.app", 5L);
+        PackageVersionCache cache = new PackageVersionCache(source);
+
+        assertFalse(cache.needsUpdate("com.example.app", "2.0-beta"));
+    }
+
+    @Test
+    public void needsUpdate_checksACampaignInBulk() {
+        FakeSource source = new FakeSource();
+        for (int i = 0; i < 50; ++i)
+            source.installed.put("com.example.app" + i, (long) i);
+        PackageVersionCache cache = new PackageVersionCache(source);
+
+        Map<String, String> campaign = new LinkedHashMap<>();
+        for (int i = 0; i < 60; ++i)
+            campaign.put("com.example.app" + i, "25");
+        Map<String, Boolean> result = cache.needsUpdate(campaign);
+        cache.needsUpdate(campaign);
+
+        assertEquals(60, result.size());
+        assertTrue(result.get("com.example.app0"));
+        assertTrue(result.get("com.example.app24"));
+        assertFalse(result.get("com.example.app25"));
+        assertFalse(result.get("com.example.app55"));
+        //every package was looked up once, the second check is answered from the cache
+        assertEquals(60, source.lookups.get());
+        assertEquals(60, cache.getMissCount());
+        assertEquals(60, cache.getHitCount());
+    }
+
+    @Test
+    public void lookup_racingAnInvalidationIsNotCached() {
+        final FakeSource source = new FakeSource();
+        source.installed.put("com.example.app", 5L);
+        final PackageVersionCache[] cache = new PackageVersionCache[1];
+        cache[0] = new PackageVersionCache(new PackageVersionCache.VersionSource() {
+            @Override
+            public long getVersionCode(String packageName) {
+                long version = source.getVersionCode(packageName);
+                //PACKAGE_REPLACED arrives while the old version is being returned
+                if (source.lookups.get() == 1) {
+                    source.installed.put(packageName, 6L);
+                    cache[0].invalidate(packageName);
+                }
+                return version;
+            }
+        });
+
+        assertTrue(cache[0].needsUpdate("com.example.app", "6"));
+        assertFalse(cache[0].needsUpdate("com.example.app", "6"));
+        assertFalse(cache[0].needsUpdate("com.example.app", "6"));
+        assertEquals(2, source.lookups.get());
+    }
+}
@@ -0,0 +1,85 @@
+package autoupdate.iotagent.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.job.DeltaPatch;
+import autoupdate.iotagent.job.JobJournal;
+import autoupdate.iotagent.job.JobMessageParser;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobTracker;
+
+/**
+ * Startup replay time of a journal of thousands of records that was never compacted: 250 jobs
+ * that each went through their download and delivery, 8 records per job.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JobJournalBenchmark {
+
+    private static final int JOBS = 250;
+
+    private File original;
+
+    //a fresh copy for every replay, opening the journal may compact it
+    private File copy;
+
+    @Setup
+    public void setUp() throws IOException {
+        original = File.createTempFile("jobs", ".journal");
+        copy = new File(original.getPath() + ".copy");
+        JobJournal journal = new JobJournal(original);
+        for (int i = 0; i < JOBS; ++i) {
+            String jobId = "job" + i;
+            journal.recordJob(new JobRecord(jobId, "IN_PROGRESS", 3, "claimed", "com.example.app", "42",
+                    "https://example.com/a.apk", "Example App", 4, true, 7, 123456, "9f86d081884c7d65",
+                    new DeltaPatch("https://example.com/41-42.patch", 41, 2048, null),
+                    JobMessageParser.INSTALL_MODE_SESSION, false, 65536, 3600, true));
+            journal.recordState(jobId, JobTracker.State.DOWNLOADING, -1);
+            for (int p = 1; p <= 4; ++p)
+                journal.recordProgress(jobId, p * 1048576L);
+            journal.recordState(jobId, JobTracker.State.DELIVERED, -1);
+            journal.recordStatusSent(jobId, 2);
+        }
+        journal.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyJournal() throws IOException {
+        Files.copy(original.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown
+    public void tearDown() {
+        original.delete();
+        copy.delete();
+    }
+
+    @Benchmark
+    public int replay() throws IOException {
+        JobJournal journal = new JobJournal(copy);
+        int size = journal.getEntries().size();
+        journal.close();
+        return size;
+    }
+}
@@ -0,0 +1,143 @@
+package autoupdate.iotagent.bench;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.config.ThingTopics;
+import autoupdate.iotagent.job.JobList;
+import autoupdate.iotagent.job.JobMessageParser;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobStatusEncoder;
+import autoupdate.iotagent.job.JobTracker;
+
+/**
+ * Messages per second through the job path: parsing a job execution or a get-jobs response, with
+ * the streaming parser and with the org.json tree it replaced, and a whole job from its execution
+ * message through the state machine to the final status update.
+ * Run with the gc profiler, gc.alloc.rate.norm is the allocation per message or per job.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JobMessageBenchmark {
+
+    static final String EXECUTION = "{\"clientToken\":\"123\",\"timestamp\":1572364342,"
+            + "\"execution\":{\"jobId\":\"update-app-42\",\"status\":\"IN_PROGRESS\","
+            + "\"statusDetails\":{\"stage\":\"claimed\"},"
+            + "\"queuedAt\":1572364000,\"startedAt\":1572364100,\"lastUpdatedAt\":1572364200,"
+            + "\"versionNumber\":3,\"executionNumber\":1,"
+            + "\"jobDocument\":{\"packageName\":\"com.example.app\",\"latestVersion\":\"2.1\","
+            + "\"s3URL\":\"https://bucket.s3.amazonaws.com/app.apk?X-Amz-Signature=abcd\","
+            + "\"appName\":\"Example\",\"segments\":2,\"mandatory\":true,\"priority\":7,"
+            + "\"size\":12345678,\"sha256\":\"9f86d081884c7d65\",\"rolloutWindowSec\":3600}}}";
+
+    private byte[] execution;
+
+    private byte[] jobList;
+
+    private JobTracker tracker;
+
+    private final ThingTopics topics = new ThingTopics(IOTConfigData.DEVICE_ID);
+
+    @Setup
+    public void setUp() {
+        execution = EXECUTION.getBytes(StandardCharsets.UTF_8);
+        StringBuilder list = new StringBuilder("{\"inProgressJobs\":[");
+        for (int i = 0; i < 50; ++i) {
+            if (i > 0)
+                list.append(',');
+            list.append("{\"jobId\":\"update-app-").append(i).append("\",\"queuedAt\":1572364000,")
+                    .append("\"lastUpdatedAt\":1572364200,\"startedAt\":1572364100,\"executionNumber\":1,")
+                    .append("\"versionNumber\":").append(i % 5).append('}');
+        }
+        list.append("],\"queuedJobs\":[],\"timestamp\":1572364342,\"clientToken\":\"123\"}");
+        jobList = list.toString().getBytes(StandardCharsets.UTF_8);
+        tracker = new JobTracker();
+    }
+
+    @Benchmark
+    public JobRecord parseExecution() throws JobMessageParser.MalformedMessageException {
+        return JobMessageParser.parseExecution(execution, IOTConfigData.DEFAULT_DOWNLOAD_SEGMENTS);
+    }
+
+    @Benchmark
+    public JobList parseJobList() throws JobMessageParser.MalformedMessageException {
+        return JobMessageParser.parseJobList(jobList);
+    }
+
+    /**
+     * The org.json path the parser replaced: the payload copied into a String, parsed into a tree
+     * and the fields the agent needs read from it.
+     */
+    @Benchmark
+    public void parseExecutionWithJsonObject(Blackhole blackhole) throws JSONException {
+        JSONObject exec = new JSONObject(new String(execution, StandardCharsets.UTF_8)).getJSONObject("execution");
+        JSONObject doc = exec.getJSONObject("jobDocument");
+        blackhole.consume(exec.getString("jobId"));
+        blackhole.consume(exec.getString("status"));
+        blackhole.consume(exec.optLong("versionNumber"));
+        JSONObject details = exec.optJSONObject("statusDetails");
+        blackhole.consume(details == null ? "" : details.optString("stage"));
+        blackhole.consume(doc.getString("packageName"));
+        blackhole.consume(doc.getString("latestVersion"));
+        blackhole.consume(doc.getString("s3URL"));
+        blackhole.consume(doc.getString("appName"));
+        blackhole.consume(doc.optInt("segments", IOTConfigData.DEFAULT_DOWNLOAD_SEGMENTS));
+        blackhole.consume(doc.optBoolean("mandatory"));
+        blackhole.consume(doc.optInt("priority"));
+        blackhole.consume(doc.optLong("size", -1));
+        blackhole.consume(doc.optString("sha256", null));
+        blackhole.consume(doc.optLong("rolloutWindowSec"));
+    }
+
+    @Benchmark
+    public Map<String, Long> parseJobListWithJsonObject() throws JSONException {
+        JSONArray jobs = new JSONObject(new String(jobList, StandardCharsets.UTF_8)).getJSONArray("inProgressJobs");
+        Map<String, Long> pending = new HashMap<>();
+        for (int i = 0; i < jobs.length(); ++i) {
+            JSONObject job = jobs.getJSONObject(i);
+            pending.put(job.getString("jobId"), job.optLong("versionNumber"));
+        }
+        return pending;
+    }
+
+    /**
+     * One job as the agent handles it when the download is served from the cache: the execution
+     * parsed and evaluated, every state change tracked and every status update encoded.
+     */
+    @Benchmark
+    public void job(Blackhole blackhole) throws JobMessageParser.MalformedMessageException {
+        JobRecord job = JobMessageParser.parseExecution(execution, IOTConfigData.DEFAULT_DOWNLOAD_SEGMENTS);
+        String jobId = job.getJobId();
+        tracker.start(jobId, job.getVersionNumber(), job.getPackageName(), job.getLatestVersion());
+        tracker.transition(jobId, JobTracker.State.DOWNLOADING);
+        tracker.transition(jobId, JobTracker.State.DELIVERED);
+        blackhole.consume(topics.updateJob(jobId));
+        blackhole.consume(JobStatusEncoder.encodeUpdate(IOTConfigData.STATUS_INPROGRESS, IOTConfigData.STAGE_CLAIMED));
+        tracker.transition(jobId, JobTracker.State.FINISHED);
+        blackhole.consume(topics.updateJob(jobId));
+        blackhole.consume(JobStatusEncoder.encodeUpdate(IOTConfigData.STATUS_SUCCEEDED, null));
+        tracker.forget(jobId);
+    }
+}
@@ -0,0 +1,73 @@
+package autoupdate.iotagent.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.job.JobStatusEncoder;
+import autoupdate.iotagent.payload.PayloadCodec;
+
+/**
+ * Cost of encoding and decoding a job execution message and a status update in each encoding.
+ * The payload sizes are printed once per trial, next to the times they cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadCodecBenchmark {
+
+    //a topic of the agent's own, the jobs topics always get JSON
+    private static final String TOPIC = "iotagent/thing/metrics";
+
+    @Param({"JSON", "DEFLATE", "CBOR"})
+    public String encoding;
+
+    @Param({"execution", "statusUpdate"})
+    public String message;
+
+    private PayloadCodec codec;
+
+    private String json;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        codec = new PayloadCodec(PayloadCodec.Encoding.valueOf(encoding));
+        json = message.equals("execution") ? JobMessageBenchmark.EXECUTION
+                : JobStatusEncoder.encodeUpdate(IOTConfigData.STATUS_INPROGRESS, IOTConfigData.STAGE_DELIVERED);
+        payload = codec.encode(json, TOPIC);
+    }
+
+    @TearDown
+    public void printSizes() {
+        System.out.println(encoding + " " + message + ": " + json.getBytes(StandardCharsets.UTF_8).length
+                + " bytes as JSON, " + payload.length + " bytes encoded");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(json, TOPIC);
+    }
+
+    @Benchmark
+    public byte[] decode() throws PayloadCodec.MalformedPayloadException {
+        return PayloadCodec.decode(payload);
+    }
+}
@@ -0,0 +1,54 @@
+package autoupdate.iotagent.bench;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.config.ThingTopics;
+import autoupdate.iotagent.job.JobStatusEncoder;
+
+/**
+ * Cost of encoding a status update with its topic, against the org.json tree and String.format
+ * the encoder replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusUpdateBenchmark {
+
+    private final String jobId = "update-app-42";
+
+    private final ThingTopics topics = new ThingTopics(IOTConfigData.DEVICE_ID);
+
+    @Benchmark
+    public void encoder(Blackhole blackhole) {
+        blackhole.consume(topics.updateJob(jobId));
+        blackhole.consume(JobStatusEncoder.encodeUpdate(IOTConfigData.STATUS_INPROGRESS, IOTConfigData.STAGE_CLAIMED));
+    }
+
+    @Benchmark
+    public void jsonObject(Blackhole blackhole) throws JSONException {
+        blackhole.consume(String.format("$aws/things/%s/jobs/%s/update", IOTConfigData.DEVICE_ID, jobId));
+        JSONObject updateRequest = new JSONObject();
+        updateRequest.put("clientToken", 123);
+        updateRequest.put("stepTimeoutInMinutes", 10000);
+        updateRequest.put("statusDetails", new JSONObject().put("stage", IOTConfigData.STAGE_CLAIMED));
+        updateRequest.put("status", "IN_PROGRESS");
+        blackhole.consume(updateRequest.toString());
+    }
+}
@@ -0,0 +1,131 @@
+package autoupdate.iotagent.config;
+
+/**
+ * This class holds some static data required for IOT operations. The data here is used at multiple
+ * points and this class provides a single source of truth and a single point for modifying any value.
+ * @author Prabhat Sharma
+ */
+public class IOTConfigData {
+
+    //the unique thing name to which the device is registered
+    public static final String DEVICE_ID = "\"430a5bc135a68f5af0544d3abbc0c092caff4d41e3cefce6574f2c688aee9344\"";
+
+    //codes for job statuses
+    public static final int STATUS_SUCCEEDED = 0;
+    public static final int STATUS_REJECTED = 1;
+    public static final int STATUS_INPROGRESS = 2;
+    public static final int STATUS_TIMED_OUT = 3;
+    public static final int STATUS_QUEUED = 4;
+    public static final int STATUS_FAILED = 5;
+
+    //number of parallel byte ranges an apk is downloaded in, unless the job document sets "segments"
+    public static final int DEFAULT_DOWNLOAD_SEGMENTS = 4;
+
+    //stage reported in statusDetails of an IN_PROGRESS job that was claimed but not yet delivered to the target app
+    public static final String STAGE_CLAIMED = "claimed";
+
+    //stage reported in statusDetails of an IN_PROGRESS job whose apk was handed to the target app
+    public static final String STAGE_DELIVERED = "delivered";
+
+    //stage reported in statusDetails of an IN_PROGRESS job whose apk was committed to a PackageInstaller session
+    public static final String STAGE_INSTALLING = "installing";
+
+    //the get-jobs poll starts at this interval and goes back to it whenever the job list changes
+    public static final long JOBS_POLL_MIN_INTERVAL_MS = 30 * 1000;
+
+    //the get-jobs poll backs off up to this interval while the job list does not change
+    public static final long JOBS_POLL_MAX_INTERVAL_MS = 30 * 60 * 1000;
+
+    //name of the job journal in the app's files directory
+    public static final String JOB_JOURNAL_FILE = "jobs.journal";
+
+    //maximum number of apk downloads running at the same time, further jobs wait in a priority queue
+    public static final int MAX_CONCURRENT_DOWNLOADS = 2;
+
+    //name of the file in the app's files directory holding outbound messages beyond the in-memory bound
+    public static final String OUTBOUND_QUEUE_FILE = "outbound.queue";
+
+    //number of outbound messages held in memory while disconnected, older ones are spilled to disk
+    public static final int OUTBOUND_QUEUE_MEMORY_CAPACITY = 100;
+
+    //number of outbound messages held on disk, further messages are dropped
+    public static final int OUTBOUND_QUEUE_SPILL_CAPACITY = 5000;
+
+    //directory in Downloads holding downloaded apks, named by package, version and SHA-256
+    public static final String APK_CACHE_DIR = "apk-cache";
+
+    //the apk cache evicts least recently used apks beyond this many bytes, apks awaiting install are kept
+    public static final long APK_CACHE_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    //download rate on unmetered networks in bytes per second, shared by all downloads. 0 for no limit, -1 to not download
+    public static final long DOWNLOAD_LIMIT_UNMETERED = 4 * 1024 * 1024;
+
+    //download rate on metered networks, for jobs that allow metered downloads
+    public static final long DOWNLOAD_LIMIT_METERED = 256 * 1024;
+
+    //download rate while roaming, for jobs that allow metered downloads, which they do unless the job
+    //document sets allowMetered to false. Kept low rather than -1, which would pause those jobs for as long as the device roams
+    public static final long DOWNLOAD_LIMIT_ROAMING = 32 * 1024;
+
+    //encoding of the messages published to the agent's own topics, today only the metrics telemetry:
+    //JSON, DEFLATE or CBOR, see PayloadCodec. It is not negotiated, the telemetry consumer must decode all three.
+    //The jobs topics always get JSON, received messages are accepted in all three.
+    public static final String PAYLOAD_ENCODING = "JSON";
+
+    //whether agents on the local network fetch verified apks from each other before the origin
+    public static final boolean PEER_SHARING_ENABLED = true;
+
+    //UDP port the agents announce the apks they share on, as a broadcast on the local network
+    public static final int PEER_DISCOVERY_PORT = 41234;
+
+    //TCP port the shared apks are served on, 0 for any free port as it is announced
+    public static final int PEER_HTTP_PORT = 0;
+
+    //number of neighbors an agent serves apks to at the same time
+    public static final int PEER_MAX_UPLOADS = 2;
+
+    //how often an agent announces its shared apks, and how long the announcement of a neighbor is trusted
+    public static final long PEER_ANNOUNCE_INTERVAL_MS = 30 * 1000;
+    public static final long PEER_TTL_MS = 2 * 60 * 1000;
+
+    //first delay before downloading again after the server answered 503 or 429, doubled per attempt
+    public static final long BUSY_BACKOFF_BASE_MS = 60 * 1000;
+
+    //longest backoff after 503 or 429, a longer Retry-After from the server is still honored
+    public static final long BUSY_BACKOFF_MAX_MS = 60 * 60 * 1000;
+
+    //mqtt keep-alive of the first connection, in seconds, adapted to the network afterwards
+    public static final int MQTT_KEEP_ALIVE_INITIAL_SEC = 60;
+
+    //bounds of the adaptive mqtt keep-alive, AWS IoT accepts 30 to 1200 seconds
+    public static final int MQTT_KEEP_ALIVE_MIN_SEC = 30;
+    public static final int MQTT_KEEP_ALIVE_MAX_SEC = 1200;
+
+    //a connection lasting this long is stable, the keep-alive is raised and the reconnect backoff starts over
+    public static final long MQTT_STABLE_CONNECTION_MS = 15 * 60 * 1000;
+
+    //reconnect backoff after a lost connection, doubled per failed attempt and jittered
+    public static final long MQTT_RECONNECT_BASE_MS = 2000;
+    public static final long MQTT_RECONNECT_MAX_MS = 5 * 60 * 1000;
+
+    //file in the app's files dir the metrics snapshot is written to
+    public static final String METRICS_FILE = "metrics.json";
+
+    //how often the metrics are exported
+    public static final long METRICS_EXPORT_INTERVAL_MS = 5 * 60 * 1000;
+
+    //whether the compact metrics snapshot is also published as telemetry
+    public static final boolean METRICS_TELEMETRY_ENABLED = false;
+
+    //publish to this topic to report the metrics of the device
+    public static final String METRICS_TELEMETRY_TOPIC = String.format("iotagent/%s/metrics", DEVICE_ID);
+
+    //further things the agent runs jobs for over the device's connection, e.g. devices behind this one
+    //without a connection of their own. Empty to serve the device only. The policy of the device's
+    //certificate has to allow the jobs topics of these things.
+    public static final String[] GATEWAY_THINGS = {};
+
+    //name of the job journal of a gateway thing, format the string with the thing name
+    public static final String GATEWAY_JOB_JOURNAL_FILE = "jobs-%s.journal";
+
+}
@@ -0,0 +1,76 @@
+package autoupdate.iotagent.config;
+
+/**
+ * The AWS IoT Jobs topics of one thing. The device builds its own topics from IOTConfigData.DEVICE_ID,
+ * and one process serving several things builds one instance per thing name.
+ */
+public class ThingTopics {
+
+    private final String thingName;
+
+    private final String prefix;
+
+    public ThingTopics(String thingName) {
+        this.thingName = thingName;
+        this.prefix = "$aws/things/" + thingName + "/jobs/";
+    }
+
+    public String getThingName() {
+        return thingName;
+    }
+
+    //publish to get the list of pending jobs
+    public String getJobs() {
+        return prefix + "get";
+    }
+
+    //subscribe to get the list of pending jobs
+    public String getJobsAccepted() {
+        return prefix + "get/accepted";
+    }
+
+    //publish to get the job description of a job
+    public String describeJob(String jobId) {
+        return prefix + jobId + "/get";
+    }
+
+    //subscribe to get the job descriptions of all jobs
+    public String describeJobAccepted() {
+        return prefix + "+/get/accepted";
+    }
+
+    //subscribe to be told whenever the list of pending jobs changes
+    public String notifyChanged() {
+        return prefix + "notify";
+    }
+
+    //subscribe to receive the execution of the next pending job whenever it changes
+    public String notifyNext() {
+        return prefix + "notify-next";
+    }
+
+    //publish to claim the next queued job
+    public String startNext() {
+        return prefix + "start-next";
+    }
+
+    //subscribe to get the job execution claimed by a start-next request
+    public String startNextAccepted() {
+        return prefix + "start-next/accepted";
+    }
+
+    //subscribe to learn that a start-next request failed
+    public String startNextRejected() {
+        return prefix + "start-next/rejected";
+    }
+
+    //publish to update the status of a job
+    public String updateJob(String jobId) {
+        return prefix + jobId + "/update";
+    }
+
+    //subscribe to learn that the update of any job failed, accepted updates are not listened to
+    public String updateJobRejected() {
+        return prefix + "+/update/rejected";
+    }
+}
@@ -0,0 +1,85 @@
+package autoupdate.iotagent.job;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * This class decides when a download may start, so a fleet does not hit the server all at once.
+ * A job document can give a rollout window, and every device then starts at its own offset in it,
+ * derived from a hash of the device id and job id: the starts are spread evenly over the window,
+ * and a device keeps its offset across restarts. Urgent jobs skip the window.
+ * When the server answers busy, the next attempt waits for an exponential backoff with jitter,
+ * and never less than the Retry-After the server asked for.
+ */
+public class AdmissionPolicy {
+
+    private final String deviceId;
+
+    private final long baseBackoffMs;
+
+    private final long maxBackoffMs;
+
+    private final Random random;
+
+    /**
+     * @param deviceId id of this device, seeds the offset in rollout windows
+     * @param baseBackoffMs backoff after the first busy answer
+     * @param maxBackoffMs upper bound on the backoff, before jitter
+     */
+    public AdmissionPolicy(String deviceId, long baseBackoffMs, long maxBackoffMs) {
+        this(deviceId, baseBackoffMs, maxBackoffMs, new Random());
+    }
+
+    AdmissionPolicy(String deviceId, long baseBackoffMs, long maxBackoffMs, Random random) {
+        this.deviceId = deviceId;
+        this.baseBackoffMs = baseBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.random = random;
+    }
+
+    /**
+     * @param jobId the job to start
+     * @param windowMs rollout window from the job document, 0 for none
+     * @param urgent whether the job document asks to skip the window
+     * @return how long to wait before starting the download, always below windowMs
+     */
+    public long startDelayMs(String jobId, long windowMs, boolean urgent) {
+        if (urgent || windowMs <= 0)
+            return 0;
+        return offset(jobId) % windowMs;
+    }
+
+    /**
+     * @param attempt how many busy answers came before this one for the job, 0 for the first
+     * @param retryAfterMs delay the server asked for, -1 if none
+     * @return how long to wait before trying the job again
+     */
+    public long busyDelayMs(int attempt, long retryAfterMs) {
+        long backoff = baseBackoffMs << Math.min(attempt, 20);
+        if (backoff <= 0 || backoff > maxBackoffMs)
+            backoff = maxBackoffMs;
+        long delay = Math.max(backoff, retryAfterMs);
+        //jitter upwards only, so a Retry-After is always honored while the fleet still spreads out
+        long jitter = delay / 2;
+        if (jitter <= 0)
+            return delay;
+        synchronized (random) {
+            return delay + (random.nextLong() & Long.MAX_VALUE) % jitter;
+        }
+    }
+
+    private long offset(String jobId) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            byte[] hash = sha256.digest((deviceId + "/" + jobId).getBytes(StandardCharsets.UTF_8));
+            long value = 0;
+            for (int i = 0; i < 8; ++i)
+                value = value << 8 | (hash[i] & 0xff);
+            return value & Long.MAX_VALUE;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package autoupdate.iotagent.job;
+
+/**
+ * An immutable binary patch offered by a job document next to the full apk. The patch turns the
+ * apk of one installed version code, the base version, into the apk of the job's latest version.
+ */
+public final class DeltaPatch {
+
+    private final String url;
+    private final long baseVersion;
+    private final long size;
+    private final String sha256;
+
+    /**
+     * @param url download url of the patch, deltaURL in the job document
+     * @param baseVersion version code of the installed apk the patch applies to
+     * @param size patch size in bytes, -1 if unknown
+     * @param sha256 SHA-256 of the patch as hex, null if unknown
+     */
+    public DeltaPatch(String url, long baseVersion, long size, String sha256) {
+        this.url = url;
+        this.baseVersion = baseVersion;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaPatch{" + url + ", base v" + baseVersion + "}";
+    }
+}
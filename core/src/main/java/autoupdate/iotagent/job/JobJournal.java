@@ -0,0 +1,386 @@
+package autoupdate.iotagent.job;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only journal of the jobs the agent works on. It records the job document
+ * fields needed to carry on with a job, its state transitions, download progress, the install
+ * session of a session mode job and the last status sent. Every record is synced to disk before the call returns, and carries a checksum so a
+ * record torn by a crash is detected and dropped on replay. Once enough records piled up the
+ * journal is compacted into one snapshot of the live jobs.
+ * The journal is replayed when it is opened, which lets the agent rebuild its job state after a
+ * restart without polling and downloading again.
+ */
+public class JobJournal implements Closeable {
+
+    private static final String TYPE_JOB = "J";
+    private static final String TYPE_STATE = "S";
+    private static final String TYPE_PROGRESS = "P";
+    private static final String TYPE_STATUS_SENT = "T";
+    private static final String TYPE_SESSION = "I";
+    private static final String TYPE_FORGET = "F";
+
+    //the journal is compacted after this many records
+    static final int COMPACT_THRESHOLD = 2000;
+
+    /**
+     * What the journal knows about a job.
+     */
+    public static class Entry {
+        //the job document fields, status and stage are not journaled so a replayed record has neither
+        final JobRecord job;
+        JobTracker.State state = JobTracker.State.EVALUATING;
+        //final status the job was given, -1 if none
+        int finalStatus = -1;
+        //last status published for the job, -1 if none
+        int lastStatusSent = -1;
+        long bytesDownloaded;
+        //install session of a session mode job, -1 if none was created
+        int sessionId = -1;
+
+        Entry(JobRecord job) {
+            this.job = job;
+        }
+
+        public String getJobId() {
+            return job.getJobId();
+        }
+
+        public JobRecord getJob() {
+            return job;
+        }
+
+        public JobTracker.State getState() {
+            return state;
+        }
+
+        public int getFinalStatus() {
+            return finalStatus;
+        }
+
+        public int getLastStatusSent() {
+            return lastStatusSent;
+        }
+
+        public long getBytesDownloaded() {
+            return bytesDownloaded;
+        }
+
+        public int getSessionId() {
+            return sessionId;
+        }
+    }
+
+    private final File file;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private FileOutputStream out;
+
+    private int records;
+
+    /**
+     * Opens the journal and replays it.
+     * @param file the journal file, created if missing
+     * @throws IOException if the journal can not be read or opened for writing
+     */
+    public JobJournal(File file) throws IOException {
+        this.file = file;
+        int valid = replay();
+        if (records > COMPACT_THRESHOLD || valid < file.length()) {
+            //drop superseded records, and a torn tail left by a crash
+            compact();
+        } else {
+            out = new FileOutputStream(file, true);
+        }
+    }
+
+    /**
+     * Records a job the agent started working on, with the job document fields needed to resume it.
+     */
+    public synchronized void recordJob(JobRecord job) throws IOException {
+        Entry entry = new Entry(job);
+        entries.put(job.getJobId(), entry);
+        append(jobFields(job));
+    }
+
+    /**
+     * Records a state transition.
+     * @param jobId the job identifier
+     * @param state the new state
+     * @param finalStatus the status code the job is finished with, -1 if it is not finished
+     */
+    public synchronized void recordState(String jobId, JobTracker.State state, int finalStatus) throws IOException {
+        Entry entry = entries.get(jobId);
+        if (entry == null)
+            return;
+        entry.state = state;
+        if (finalStatus >= 0)
+            entry.finalStatus = finalStatus;
+        append(TYPE_STATE, jobId, state.name(), String.valueOf(finalStatus));
+    }
+
+    /**
+     * Records how many bytes of the job's apk are on disk.
+     */
+    public synchronized void recordProgress(String jobId, long bytes) throws IOException {
+        Entry entry = entries.get(jobId);
+        if (entry == null)
+            return;
+        entry.bytesDownloaded = bytes;
+        append(TYPE_PROGRESS, jobId, String.valueOf(bytes));
+    }
+
+    /**
+     * Records the install session the job's apk is written to, so its outcome can be looked up
+     * after a restart.
+     */
+    public synchronized void recordSession(String jobId, int sessionId) throws IOException {
+        Entry entry = entries.get(jobId);
+        if (entry == null)
+            return;
+        entry.sessionId = sessionId;
+        append(TYPE_SESSION, jobId, String.valueOf(sessionId));
+    }
+
+    /**
+     * Records a status published for the job.
+     */
+    public synchronized void recordStatusSent(String jobId, int status) throws IOException {
+        Entry entry = entries.get(jobId);
+        if (entry == null)
+            return;
+        entry.lastStatusSent = status;
+        append(TYPE_STATUS_SENT, jobId, String.valueOf(status));
+    }
+
+    /**
+     * Drops a job the agent is done with.
+     */
+    public synchronized void forget(String jobId) throws IOException {
+        if (entries.remove(jobId) != null)
+            append(TYPE_FORGET, jobId);
+    }
+
+    /**
+     * @return the jobs in the journal, in the order they were first recorded
+     */
+    public synchronized Collection<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return the ids of all jobs in the journal
+     */
+    public synchronized List<String> getJobIds() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Rewrites the journal as one snapshot of the live jobs. The snapshot is synced and renamed
+     * over the old journal, so a crash during compaction leaves either the old or the new journal.
+     */
+    public synchronized void compact() throws IOException {
+        if (out != null)
+            out.close();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream snapshot = new FileOutputStream(tmp)) {
+            StringBuilder sb = new StringBuilder();
+            for (Entry entry : entries.values()) {
+                line(sb, jobFields(entry.job));
+                line(sb, TYPE_STATE, entry.getJobId(), entry.state.name(), String.valueOf(entry.finalStatus));
+                if (entry.bytesDownloaded > 0)
+                    line(sb, TYPE_PROGRESS, entry.getJobId(), String.valueOf(entry.bytesDownloaded));
+                if (entry.lastStatusSent >= 0)
+                    line(sb, TYPE_STATUS_SENT, entry.getJobId(), String.valueOf(entry.lastStatusSent));
+                if (entry.sessionId >= 0)
+                    line(sb, TYPE_SESSION, entry.getJobId(), String.valueOf(entry.sessionId));
+            }
+            snapshot.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            snapshot.getFD().sync();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("could not compact journal " + file);
+        records = 0;
+        out = new FileOutputStream(file, true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null)
+            out.close();
+        out = null;
+    }
+
+    private String[] jobFields(JobRecord job) {
+        DeltaPatch delta = job.getDelta();
+        return new String[]{TYPE_JOB, job.getJobId(), String.valueOf(job.getVersionNumber()), job.getPackageName(),
+                job.getLatestVersion(), job.getAppName(), job.getUrl(), String.valueOf(job.getSegments()),
+                String.valueOf(job.isMandatory()), String.valueOf(job.getPriority()), String.valueOf(job.getSize()),
+                job.getSha256(),
+                delta == null ? null : delta.getUrl(),
+                delta == null ? null : String.valueOf(delta.getBaseVersion()),
+                delta == null ? null : String.valueOf(delta.getSize()),
+                delta == null ? null : delta.getSha256(),
+                job.getInstallMode(), String.valueOf(job.isAllowMetered()), String.valueOf(job.getMaxBytesPerSec()),
+                String.valueOf(job.getRolloutWindowSec()), String.valueOf(job.isUrgent())};
+    }
+
+    private void append(String... fields) throws IOException {
+        if (out == null)
+            throw new IOException("journal closed");
+        StringBuilder sb = new StringBuilder();
+        line(sb, fields);
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        out.getFD().sync();
+        if (++records > COMPACT_THRESHOLD)
+            compact();
+    }
+
+    /**
+     * Appends one record: the checksum of the payload, a tab, and the tab separated fields.
+     */
+    private static void line(StringBuilder sb, String... fields) {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < fields.length; ++i) {
+            if (i > 0)
+                payload.append('\t');
+            escape(payload, fields[i]);
+        }
+        byte[] bytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        sb.append(Long.toHexString(crc.getValue())).append('\t').append(payload).append('\n');
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("%0");
+            return;
+        }
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '%')
+                sb.append("%25");
+            else if (c == '\t')
+                sb.append("%09");
+            else if (c == '\n')
+                sb.append("%0A");
+            else
+                sb.append(c);
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.equals("%0"))
+            return null;
+        if (value.indexOf('%') < 0)
+            return value;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                sb.append((char) Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the journal into memory, stopping at the first incomplete or corrupt record.
+     * @return the number of bytes holding valid records
+     */
+    private int replay() throws IOException {
+        if (!file.exists())
+            return 0;
+        byte[] data = Files.readAllBytes(file.toPath());
+        int start = 0;
+        CRC32 crc = new CRC32();
+        while (start < data.length) {
+            int end = start;
+            while (end < data.length && data[end] != '\n')
+                ++end;
+            if (end == data.length)
+                break;
+            int tab = start;
+            while (tab < end && data[tab] != '\t')
+                ++tab;
+            if (tab == end)
+                break;
+            crc.reset();
+            crc.update(data, tab + 1, end - tab - 1);
+            long expected;
+            try {
+                expected = Long.parseLong(new String(data, start, tab - start, StandardCharsets.US_ASCII), 16);
+            } catch (NumberFormatException e) {
+                break;
+            }
+            if (expected != crc.getValue())
+                break;
+            apply(new String(data, tab + 1, end - tab - 1, StandardCharsets.UTF_8).split("\t", -1));
+            ++records;
+            start = end + 1;
+        }
+        return start;
+    }
+
+    /**
+     * Reads the patch fields of a job record, records written before patches were supported have none.
+     */
+    private static DeltaPatch readDelta(String[] fields) {
+        if (fields.length < 16 || unescape(fields[12]) == null)
+            return null;
+        return new DeltaPatch(unescape(fields[12]), Long.parseLong(fields[13]), Long.parseLong(fields[14]),
+                unescape(fields[15]));
+    }
+
+    private void apply(String[] fields) {
+        String type = fields[0];
+        String jobId = unescape(fields[1]);
+        if (type.equals(TYPE_JOB)) {
+            entries.put(jobId, new Entry(new JobRecord(jobId, null, Long.parseLong(fields[2]), "",
+                    unescape(fields[3]), unescape(fields[4]), unescape(fields[6]), unescape(fields[5]),
+                    Integer.parseInt(fields[7]), Boolean.parseBoolean(fields[8]), Integer.parseInt(fields[9]),
+                    Long.parseLong(fields[10]), fields.length > 11 ? unescape(fields[11]) : null, readDelta(fields),
+                    fields.length > 16 ? unescape(fields[16]) : JobMessageParser.INSTALL_MODE_BROADCAST,
+                    fields.length <= 17 || Boolean.parseBoolean(fields[17]),
+                    fields.length > 18 ? Long.parseLong(fields[18]) : 0,
+                    fields.length > 19 ? Long.parseLong(fields[19]) : 0,
+                    fields.length > 20 && Boolean.parseBoolean(fields[20]))));
+            return;
+        }
+        if (type.equals(TYPE_FORGET)) {
+            entries.remove(jobId);
+            return;
+        }
+        Entry entry = entries.get(jobId);
+        if (entry == null)
+            return;
+        if (type.equals(TYPE_STATE)) {
+            entry.state = JobTracker.State.valueOf(fields[2]);
+            int finalStatus = Integer.parseInt(fields[3]);
+            if (finalStatus >= 0)
+                entry.finalStatus = finalStatus;
+        } else if (type.equals(TYPE_PROGRESS)) {
+            entry.bytesDownloaded = Long.parseLong(fields[2]);
+        } else if (type.equals(TYPE_STATUS_SENT)) {
+            entry.lastStatusSent = Integer.parseInt(fields[2]);
+        } else if (type.equals(TYPE_SESSION)) {
+            entry.sessionId = Integer.parseInt(fields[2]);
+        }
+    }
+}
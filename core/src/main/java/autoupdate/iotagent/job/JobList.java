@@ -0,0 +1,27 @@
+package autoupdate.iotagent.job;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The pending jobs of a get-jobs response.
+ */
+public final class JobList {
+
+    private final List<JobRecord> inProgress;
+
+    private final List<JobRecord> queued;
+
+    public JobList(List<JobRecord> inProgress, List<JobRecord> queued) {
+        this.inProgress = Collections.unmodifiableList(inProgress);
+        this.queued = Collections.unmodifiableList(queued);
+    }
+
+    public List<JobRecord> getInProgress() {
+        return inProgress;
+    }
+
+    public List<JobRecord> getQueued() {
+        return queued;
+    }
+}
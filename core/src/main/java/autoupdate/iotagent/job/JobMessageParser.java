@@ -0,0 +1,496 @@
+package autoupdate.iotagent.job;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads jobs messages straight from the mqtt payload. It walks the bytes once, reads
+ * only the fields the agent uses and skips everything else without building it, so a message
+ * costs the job records it yields and little more. Keys are compared as bytes and never turned
+ * into strings.
+ */
+public final class JobMessageParser {
+
+    private static final byte[] EXECUTION = ascii("execution");
+    private static final byte[] JOB_ID = ascii("jobId");
+    private static final byte[] STATUS = ascii("status");
+    private static final byte[] VERSION_NUMBER = ascii("versionNumber");
+    private static final byte[] STATUS_DETAILS = ascii("statusDetails");
+    private static final byte[] STAGE = ascii("stage");
+    private static final byte[] JOB_DOCUMENT = ascii("jobDocument");
+    private static final byte[] PACKAGE_NAME = ascii("packageName");
+    private static final byte[] LATEST_VERSION = ascii("latestVersion");
+    private static final byte[] S3_URL = ascii("s3URL");
+    private static final byte[] APP_NAME = ascii("appName");
+    private static final byte[] SEGMENTS = ascii("segments");
+    private static final byte[] MANDATORY = ascii("mandatory");
+    private static final byte[] PRIORITY = ascii("priority");
+    private static final byte[] SIZE = ascii("size");
+    private static final byte[] SHA256 = ascii("sha256");
+    private static final byte[] DELTA_URL = ascii("deltaURL");
+    private static final byte[] DELTA_BASE_VERSION = ascii("deltaBaseVersion");
+    private static final byte[] DELTA_SIZE = ascii("deltaSize");
+    private static final byte[] DELTA_SHA256 = ascii("deltaSha256");
+    private static final byte[] INSTALL_MODE = ascii("installMode");
+    private static final byte[] ALLOW_METERED = ascii("allowMetered");
+    private static final byte[] MAX_BYTES_PER_SEC = ascii("maxBytesPerSec");
+    private static final byte[] ROLLOUT_WINDOW_SEC = ascii("rolloutWindowSec");
+    private static final byte[] URGENT = ascii("urgent");
+    private static final byte[] IN_PROGRESS_JOBS = ascii("inProgressJobs");
+    private static final byte[] QUEUED_JOBS = ascii("queuedJobs");
+
+    //the apk is handed to the target app with a broadcast, the default
+    public static final String INSTALL_MODE_BROADCAST = "broadcast";
+
+    //the apk is streamed into a PackageInstaller session and installed by the agent
+    public static final String INSTALL_MODE_SESSION = "session";
+
+    /**
+     * Thrown for a payload that is not valid JSON or lacks a required field.
+     */
+    public static class MalformedMessageException extends IOException {
+        MalformedMessageException(String message) {
+            super(message);
+        }
+    }
+
+    private final byte[] data;
+
+    private int pos;
+
+    //bounds of the key read last
+    private int keyStart;
+    private int keyEnd;
+
+    private JobMessageParser(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Reads the execution of a describe or start-next response.
+     * @param data the message payload
+     * @param defaultSegments segment count used when the job document does not set one
+     * @return the execution, or null if the message has none, i.e. no job is pending
+     * @throws MalformedMessageException if the payload is malformed or a job document field is missing
+     */
+    public static JobRecord parseExecution(byte[] data, int defaultSegments) throws MalformedMessageException {
+        JobMessageParser parser = new JobMessageParser(data);
+        JobRecord execution = null;
+        parser.expect('{');
+        if (!parser.endOf('}')) {
+            do {
+                parser.readKey();
+                if (parser.keyIs(EXECUTION) && parser.peek() == '{')
+                    execution = parser.readExecution(defaultSegments);
+                else
+                    parser.skipValue();
+            } while (parser.next(','));
+            parser.expect('}');
+        }
+        return execution;
+    }
+
+    /**
+     * Reads the pending jobs of a get-jobs response.
+     * @param data the message payload
+     * @throws MalformedMessageException if the payload is malformed or a job lacks its jobId
+     */
+    public static JobList parseJobList(byte[] data) throws MalformedMessageException {
+        JobMessageParser parser = new JobMessageParser(data);
+        List<JobRecord> inProgress = new ArrayList<>();
+        List<JobRecord> queued = new ArrayList<>();
+        parser.expect('{');
+        if (!parser.endOf('}')) {
+            do {
+                parser.readKey();
+                if (parser.keyIs(IN_PROGRESS_JOBS) && parser.peek() == '[')
+                    parser.readSummaries(inProgress, "IN_PROGRESS");
+                else if (parser.keyIs(QUEUED_JOBS) && parser.peek() == '[')
+                    parser.readSummaries(queued, "QUEUED");
+                else
+                    parser.skipValue();
+            } while (parser.next(','));
+            parser.expect('}');
+        }
+        return new JobList(inProgress, queued);
+    }
+
+    private JobRecord readExecution(int defaultSegments) throws MalformedMessageException {
+        String jobId = null;
+        String status = null;
+        long versionNumber = 0;
+        String stage = "";
+        String packageName = null;
+        String latestVersion = null;
+        String url = null;
+        String appName = null;
+        int segments = defaultSegments;
+        boolean mandatory = false;
+        int priority = 0;
+        long size = -1;
+        String sha256 = null;
+        String deltaUrl = null;
+        long deltaBaseVersion = -1;
+        long deltaSize = -1;
+        String deltaSha256 = null;
+        String installMode = INSTALL_MODE_BROADCAST;
+        //jobs that do not say otherwise download on any network, as before the hint existed
+        boolean allowMetered = true;
+        long maxBytesPerSec = 0;
+        long rolloutWindowSec = 0;
+        boolean urgent = false;
+        boolean hasDocument = false;
+
+        expect('{');
+        if (!endOf('}')) {
+            do {
+                readKey();
+                if (keyIs(JOB_ID)) {
+                    jobId = readString();
+                } else if (keyIs(STATUS)) {
+                    status = readString();
+                } else if (keyIs(VERSION_NUMBER)) {
+                    versionNumber = readLong(0);
+                } else if (keyIs(STATUS_DETAILS) && peek() == '{') {
+                    expect('{');
+                    if (!endOf('}')) {
+                        do {
+                            readKey();
+                            if (keyIs(STAGE))
+                                stage = readString();
+                            else
+                                skipValue();
+                        } while (next(','));
+                        expect('}');
+                    }
+                } else if (keyIs(JOB_DOCUMENT) && peek() == '{') {
+                    hasDocument = true;
+                    expect('{');
+                    if (!endOf('}')) {
+                        do {
+                            readKey();
+                            if (keyIs(PACKAGE_NAME))
+                                packageName = readString();
+                            else if (keyIs(LATEST_VERSION))
+                                latestVersion = readString();
+                            else if (keyIs(S3_URL))
+                                url = readString();
+                            else if (keyIs(APP_NAME))
+                                appName = readString();
+                            else if (keyIs(SEGMENTS))
+                                segments = (int) readLong(defaultSegments);
+                            else if (keyIs(MANDATORY))
+                                mandatory = readBoolean();
+                            else if (keyIs(PRIORITY))
+                                priority = (int) readLong(0);
+                            else if (keyIs(SIZE))
+                                size = readLong(-1);
+                            else if (keyIs(SHA256))
+                                sha256 = readString();
+                            else if (keyIs(DELTA_URL))
+                                deltaUrl = readString();
+                            else if (keyIs(DELTA_BASE_VERSION))
+                                deltaBaseVersion = readLong(-1);
+                            else if (keyIs(DELTA_SIZE))
+                                deltaSize = readLong(-1);
+                            else if (keyIs(DELTA_SHA256))
+                                deltaSha256 = readString();
+                            else if (keyIs(INSTALL_MODE) && peek() == '"')
+                                installMode = readString();
+                            else if (keyIs(ALLOW_METERED))
+                                allowMetered = readBoolean();
+                            else if (keyIs(MAX_BYTES_PER_SEC))
+                                maxBytesPerSec = readLong(0);
+                            else if (keyIs(ROLLOUT_WINDOW_SEC))
+                                rolloutWindowSec = readLong(0);
+                            else if (keyIs(URGENT))
+                                urgent = readBoolean();
+                            else
+                                skipValue();
+                        } while (next(','));
+                        expect('}');
+                    }
+                } else {
+                    skipValue();
+                }
+            } while (next(','));
+            expect('}');
+        }
+        if (!hasDocument)
+            throw new MalformedMessageException("execution without jobDocument");
+        require(jobId, "jobId");
+        require(status, "status");
+        require(packageName, "packageName");
+        require(latestVersion, "latestVersion");
+        require(url, "s3URL");
+        require(appName, "appName");
+        //a patch without its base version cannot be matched against the installed apk
+        DeltaPatch delta = deltaUrl != null && deltaBaseVersion >= 0
+                ? new DeltaPatch(deltaUrl, deltaBaseVersion, deltaSize, deltaSha256) : null;
+        return new JobRecord(jobId, status, versionNumber, stage, packageName, latestVersion, url, appName,
+                segments, mandatory, priority, size, sha256, delta, installMode,
+                allowMetered, maxBytesPerSec, rolloutWindowSec, urgent);
+    }
+
+    /**
+     * Reads an array of job summaries, keeping jobId and versionNumber of each.
+     */
+    private void readSummaries(List<JobRecord> into, String status) throws MalformedMessageException {
+        expect('[');
+        if (endOf(']'))
+            return;
+        do {
+            String jobId = null;
+            long versionNumber = 0;
+            expect('{');
+            if (!endOf('}')) {
+                do {
+                    readKey();
+                    if (keyIs(JOB_ID))
+                        jobId = readString();
+                    else if (keyIs(VERSION_NUMBER))
+                        versionNumber = readLong(0);
+                    else
+                        skipValue();
+                } while (next(','));
+                expect('}');
+            }
+            require(jobId, "jobId");
+            into.add(JobRecord.summary(jobId, status, versionNumber));
+        } while (next(','));
+        expect(']');
+    }
+
+    private static void require(String value, String name) throws MalformedMessageException {
+        if (value == null)
+            throw new MalformedMessageException("missing " + name);
+    }
+
+    private void readKey() throws MalformedMessageException {
+        expect('"');
+        keyStart = pos;
+        while (pos < data.length && data[pos] != '"') {
+            if (data[pos] == '\\')
+                ++pos;
+            ++pos;
+        }
+        if (pos >= data.length)
+            throw error("unterminated key");
+        keyEnd = pos++;
+        expect(':');
+    }
+
+    private boolean keyIs(byte[] key) {
+        if (keyEnd - keyStart != key.length)
+            return false;
+        for (int i = 0; i < key.length; ++i)
+            if (data[keyStart + i] != key[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Reads a string value. A number, true or false reads as its text, as org.json's optString
+     * gives it, so "latestVersion": 42 is version "42". Null, objects and arrays read as null.
+     */
+    private String readString() throws MalformedMessageException {
+        byte c = peek();
+        if (c != '"') {
+            int start = pos;
+            skipValue();
+            if (c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f')
+                return new String(data, start, pos - start, StandardCharsets.US_ASCII);
+            return null;
+        }
+        int start = ++pos;
+        while (pos < data.length && data[pos] != '"' && data[pos] != '\\')
+            ++pos;
+        if (pos < data.length && data[pos] == '"')
+            return new String(data, start, pos++ - start, StandardCharsets.UTF_8);
+
+        //escaped string, decode runs of plain bytes and the escapes between them
+        StringBuilder sb = new StringBuilder();
+        int run = start;
+        while (pos < data.length && data[pos] != '"') {
+            if (data[pos] != '\\') {
+                ++pos;
+                continue;
+            }
+            sb.append(new String(data, run, pos - run, StandardCharsets.UTF_8));
+            if (pos + 1 >= data.length)
+                throw error("unterminated string");
+            byte escape = data[pos + 1];
+            pos += 2;
+            switch (escape) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > data.length)
+                        throw error("bad unicode escape");
+                    try {
+                        sb.append((char) Integer.parseInt(new String(data, pos, 4, StandardCharsets.US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("bad unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default: sb.append((char) escape);
+            }
+            run = pos;
+        }
+        if (pos >= data.length)
+            throw error("unterminated string");
+        sb.append(new String(data, run, pos - run, StandardCharsets.UTF_8));
+        ++pos;
+        return sb.toString();
+    }
+
+    /**
+     * Reads a number, or a string holding one, as org.json's optLong does.
+     */
+    private long readLong(long defaultValue) throws MalformedMessageException {
+        byte c = peek();
+        if (c == '"') {
+            String value = readString();
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        if (c != '-' && (c < '0' || c > '9')) {
+            skipValue();
+            return defaultValue;
+        }
+        int start = pos;
+        boolean negative = c == '-';
+        if (negative)
+            ++pos;
+        long value = 0;
+        while (pos < data.length && data[pos] >= '0' && data[pos] <= '9')
+            value = value * 10 + (data[pos++] - '0');
+        if (pos < data.length && (data[pos] == '.' || data[pos] == 'e' || data[pos] == 'E')) {
+            while (pos < data.length && isNumberByte(data[pos]))
+                ++pos;
+            try {
+                return (long) Double.parseDouble(new String(data, start, pos - start, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw error("bad number");
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads true or false, or a string holding one, as org.json's optBoolean does.
+     */
+    private boolean readBoolean() throws MalformedMessageException {
+        if (peek() == '"')
+            return "true".equalsIgnoreCase(readString());
+        if (matchLiteral("true"))
+            return true;
+        skipValue();
+        return false;
+    }
+
+    /**
+     * Skips any value, nested objects and arrays included.
+     */
+    private void skipValue() throws MalformedMessageException {
+        byte c = peek();
+        if (c == '"') {
+            ++pos;
+            while (pos < data.length && data[pos] != '"') {
+                if (data[pos] == '\\')
+                    ++pos;
+                ++pos;
+            }
+            if (pos >= data.length)
+                throw error("unterminated string");
+            ++pos;
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                byte b = data[pos];
+                if (b == '"') {
+                    skipValue();
+                    continue;
+                }
+                if (b == '{' || b == '[')
+                    ++depth;
+                else if (b == '}' || b == ']')
+                    --depth;
+                ++pos;
+            } while (depth > 0 && pos < data.length);
+            if (depth > 0)
+                throw error("unterminated " + (char) c);
+        } else if (!matchLiteral("true") && !matchLiteral("false") && !matchLiteral("null")) {
+            int start = pos;
+            while (pos < data.length && isNumberByte(data[pos]))
+                ++pos;
+            if (pos == start)
+                throw error("unexpected '" + (char) c + "'");
+        }
+    }
+
+    private boolean matchLiteral(String literal) {
+        if (pos + literal.length() > data.length)
+            return false;
+        for (int i = 0; i < literal.length(); ++i)
+            if (data[pos + i] != literal.charAt(i))
+                return false;
+        pos += literal.length();
+        return true;
+    }
+
+    private static boolean isNumberByte(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    /**
+     * @return the next non whitespace byte, without consuming it
+     */
+    private byte peek() throws MalformedMessageException {
+        while (pos < data.length && (data[pos] == ' ' || data[pos] == '\n' || data[pos] == '\r' || data[pos] == '\t'))
+            ++pos;
+        if (pos >= data.length)
+            throw error("unexpected end of message");
+        return data[pos];
+    }
+
+    private void expect(char c) throws MalformedMessageException {
+        if (peek() != c)
+            throw error("expected '" + c + "'");
+        ++pos;
+    }
+
+    /**
+     * Consumes the byte if it is next.
+     */
+    private boolean next(char c) throws MalformedMessageException {
+        if (peek() != c)
+            return false;
+        ++pos;
+        return true;
+    }
+
+    /**
+     * Consumes the closing byte of an empty object or array.
+     */
+    private boolean endOf(char c) throws MalformedMessageException {
+        return next(c);
+    }
+
+    private MalformedMessageException error(String message) {
+        return new MalformedMessageException(message + " at " + pos);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,164 @@
+package autoupdate.iotagent.job;
+
+/**
+ * An immutable job execution as read from a jobs message. Entries of a get-jobs list only carry
+ * jobId, status and versionNumber; the job document fields are null there.
+ */
+public final class JobRecord {
+
+    private final String jobId;
+    private final String status;
+    private final long versionNumber;
+    private final String stage;
+    private final String packageName;
+    private final String latestVersion;
+    private final String url;
+    private final String appName;
+    private final int segments;
+    private final boolean mandatory;
+    private final int priority;
+    private final long size;
+    private final String sha256;
+    private final DeltaPatch delta;
+    private final String installMode;
+    private final boolean allowMetered;
+    private final long maxBytesPerSec;
+    private final long rolloutWindowSec;
+    private final boolean urgent;
+
+    /**
+     * @param jobId the job identifier
+     * @param status execution status, e.g. QUEUED or IN_PROGRESS
+     * @param versionNumber version of the job execution, 0 if not given
+     * @param stage statusDetails.stage of the execution, empty if not given
+     * @param packageName package name of the target app
+     * @param latestVersion version the target app is updated to
+     * @param url download url of the apk, s3URL in the job document
+     * @param appName name the apk is stored under
+     * @param segments number of byte ranges the apk is downloaded in
+     * @param mandatory whether the job goes ahead of optional ones
+     * @param priority higher priorities are downloaded first
+     * @param size apk size in bytes, -1 if unknown
+     * @param sha256 SHA-256 of the apk as hex, null if unknown
+     * @param delta patch from an older version to the apk, null if the job offers none
+     * @param installMode how the apk reaches the target app, "broadcast" or "session"
+     * @param allowMetered whether the apk may be downloaded over metered and roaming networks
+     * @param maxBytesPerSec download rate limit of the job, 0 for none
+     * @param rolloutWindowSec window the fleet spreads the download start over, 0 for none
+     * @param urgent whether the download starts right away, whatever the rollout window
+     */
+    public JobRecord(String jobId, String status, long versionNumber, String stage, String packageName,
+                     String latestVersion, String url, String appName, int segments, boolean mandatory,
+                     int priority, long size, String sha256, DeltaPatch delta,
+                     String installMode, boolean allowMetered, long maxBytesPerSec,
+                     long rolloutWindowSec, boolean urgent) {
+        this.jobId = jobId;
+        this.status = status;
+        this.versionNumber = versionNumber;
+        this.stage = stage;
+        this.packageName = packageName;
+        this.latestVersion = latestVersion;
+        this.url = url;
+        this.appName = appName;
+        this.segments = segments;
+        this.mandatory = mandatory;
+        this.priority = priority;
+        this.size = size;
+        this.sha256 = sha256;
+        this.delta = delta;
+        this.installMode = installMode;
+        this.allowMetered = allowMetered;
+        this.maxBytesPerSec = maxBytesPerSec;
+        this.rolloutWindowSec = rolloutWindowSec;
+        this.urgent = urgent;
+    }
+
+    /**
+     * @return an entry of a get-jobs list, which only carries jobId, status and versionNumber
+     */
+    public static JobRecord summary(String jobId, String status, long versionNumber) {
+        return new JobRecord(jobId, status, versionNumber, "", null, null, null, null, 0, false, 0, -1, null, null,
+                null, true, 0, 0, false);
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public long getVersionNumber() {
+        return versionNumber;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getLatestVersion() {
+        return latestVersion;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getAppName() {
+        return appName;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public boolean isMandatory() {
+        return mandatory;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public DeltaPatch getDelta() {
+        return delta;
+    }
+
+    public String getInstallMode() {
+        return installMode;
+    }
+
+    public boolean isAllowMetered() {
+        return allowMetered;
+    }
+
+    public long getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
+    public long getRolloutWindowSec() {
+        return rolloutWindowSec;
+    }
+
+    public boolean isUrgent() {
+        return urgent;
+    }
+
+    @Override
+    public String toString() {
+        return "JobRecord{" + jobId + ", " + status + ", v" + versionNumber + ", " + packageName + " " + latestVersion + "}";
+    }
+}
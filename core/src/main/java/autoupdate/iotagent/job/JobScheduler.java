@@ -0,0 +1,170 @@
+package autoupdate.iotagent.job;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import autoupdate.iotagent.platform.Log;
+
+/**
+ * This class runs job tasks on a bounded pool of worker threads. Tasks waiting for a thread are
+ * kept in a priority queue, see JobTask for the order. A job can only have one task scheduled at
+ * a time, and its task can be cancelled whether it is still queued or already running.
+ * A task can be submitted with a delay, and can ask to run again later; until it is due it only
+ * sits on a timer and takes neither a worker thread nor a place in the queue.
+ */
+public class JobScheduler {
+
+    private static final String LOG_TAG = "JobScheduler";
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Map<String, JobTask> tasks = new ConcurrentHashMap<>();
+
+    //starts delayed tasks when they are due
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param maxConcurrent maximum number of tasks running at the same time
+     */
+    public JobScheduler(int maxConcurrent) {
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "job-worker-" + count.incrementAndGet());
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "job-admission");
+            }
+        });
+    }
+
+    /**
+     * Queues a task.
+     * @param task the task to run
+     * @return false if a task for the same job is already scheduled or the scheduler is shut down
+     */
+    public boolean submit(JobTask task) {
+        return submit(task, 0);
+    }
+
+    /**
+     * Queues a task once a delay has passed. The job counts as scheduled right away.
+     * @param task the task to run
+     * @param delayMs time before the task is queued, 0 to queue it now
+     * @return false if a task for the same job is already scheduled or the scheduler is shut down
+     */
+    public boolean submit(JobTask task, long delayMs) {
+        if (executor.isShutdown() || tasks.putIfAbsent(task.jobId, task) != null)
+            return false;
+        task.scheduler = this;
+        queue(task, delayMs);
+        return true;
+    }
+
+    private void queue(final JobTask task, long delayMs) {
+        if (delayMs <= 0) {
+            task.admission = null;
+            executor.execute(task);
+            Log.d(LOG_TAG, "job " + task.jobId + " scheduled, " + executor.getQueue().size() + " waiting");
+            return;
+        }
+        try {
+            task.admission = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!task.cancelled && !executor.isShutdown())
+                        queue(task, 0);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //shut down meanwhile
+            tasks.remove(task.jobId, task);
+            return;
+        }
+        Log.d(LOG_TAG, "job " + task.jobId + " scheduled in " + delayMs + " ms");
+    }
+
+    /**
+     * Cancels the task of a job. A queued task is dropped, a running task has its thread
+     * interrupted.
+     * @param jobId the job identifier
+     * @return true if the job had a task scheduled
+     */
+    public boolean cancel(String jobId) {
+        JobTask task = tasks.remove(jobId);
+        if (task == null)
+            return false;
+        task.cancelled = true;
+        ScheduledFuture<?> admission = task.admission;
+        if (admission != null)
+            admission.cancel(false);
+        if (!executor.remove(task)) {
+            Thread runner = task.runner;
+            if (runner != null)
+                runner.interrupt();
+        }
+        Log.i(LOG_TAG, "job " + jobId + " cancelled");
+        return true;
+    }
+
+    /**
+     * @return true if the job has a task waiting for its start, queued or running
+     */
+    public boolean isScheduled(String jobId) {
+        return tasks.containsKey(jobId);
+    }
+
+    /**
+     * @return the number of tasks waiting for their start, queued or running
+     */
+    public int size() {
+        return tasks.size();
+    }
+
+    /**
+     * Cancels all tasks and waits a short while for running ones to stop.
+     */
+    public void shutdown() {
+        for (JobTask task : tasks.values())
+            task.cancelled = true;
+        tasks.clear();
+        timer.shutdownNow();
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.w(LOG_TAG, "job workers did not stop in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void finished(JobTask task) {
+        long retryDelayMs = task.retryDelayMs;
+        task.retryDelayMs = -1;
+        if (retryDelayMs >= 0 && !task.cancelled && !timer.isShutdown() && tasks.get(task.jobId) == task) {
+            queue(task, Math.max(1, retryDelayMs));
+            return;
+        }
+        tasks.remove(task.jobId, task);
+    }
+}
@@ -0,0 +1,86 @@
+package autoupdate.iotagent.job;
+
+import autoupdate.iotagent.config.IOTConfigData;
+
+/**
+ * This class writes the job execution requests the agent publishes, i.e. status updates and
+ * start-next requests. The requests are small and always have the same shape, so they are written
+ * straight into a string builder instead of going through a JSON tree.
+ */
+public final class JobStatusEncoder {
+
+    private JobStatusEncoder() {
+    }
+
+    /**
+     * @param status one of the IOTConfigData.STATUS_* codes
+     * @return the status as the jobs API names it, null for an unknown code
+     */
+    public static String statusName(int status) {
+        switch (status) {
+            case IOTConfigData.STATUS_SUCCEEDED:
+                return "SUCCEEDED";
+            case IOTConfigData.STATUS_INPROGRESS:
+                return "IN_PROGRESS";
+            case IOTConfigData.STATUS_QUEUED:
+                return "QUEUED";
+            case IOTConfigData.STATUS_REJECTED:
+                return "REJECTED";
+            case IOTConfigData.STATUS_TIMED_OUT:
+                return "TIMED_OUT";
+            case IOTConfigData.STATUS_FAILED:
+                return "FAILED";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param status one of the IOTConfigData.STATUS_* codes, an unknown code leaves the status out
+     * @param stage stage to report in statusDetails, null for none
+     * @return the body of an update job execution request
+     */
+    public static String encodeUpdate(int status, String stage) {
+        StringBuilder out = new StringBuilder(128);
+        out.append("{\"clientToken\":123,\"stepTimeoutInMinutes\":10000");
+        String name = statusName(status);
+        if (name != null)
+            out.append(",\"status\":\"").append(name).append('"');
+        appendStage(out, stage);
+        return out.append('}').toString();
+    }
+
+    /**
+     * @param stage stage to report in statusDetails of the claimed job, null for none
+     * @return the body of a start-next request
+     */
+    public static String encodeStartNext(String stage) {
+        StringBuilder out = new StringBuilder(96);
+        out.append("{\"clientToken\":\"123\",\"stepTimeoutInMinutes\":10000");
+        appendStage(out, stage);
+        return out.append('}').toString();
+    }
+
+    private static void appendStage(StringBuilder out, String stage) {
+        if (stage == null)
+            return;
+        out.append(",\"statusDetails\":{\"stage\":");
+        appendString(out, stage);
+        out.append('}');
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,106 @@
+package autoupdate.iotagent.job;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A unit of work for one job, run by JobScheduler. Tasks are ordered by the mandatory flag and the
+ * priority from the job document, then by size so small updates are not stuck behind large ones,
+ * and finally in the order they were submitted.
+ */
+public abstract class JobTask implements Runnable, Comparable<JobTask> {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    final String jobId;
+
+    final boolean mandatory;
+
+    final int priority;
+
+    //expected download size in bytes, -1 if unknown
+    final long size;
+
+    private final long sequence = SEQUENCE.getAndIncrement();
+
+    volatile boolean cancelled;
+
+    volatile Thread runner;
+
+    JobScheduler scheduler;
+
+    //pending start of a task submitted with a delay, null once it is queued
+    volatile ScheduledFuture<?> admission;
+
+    //set by retryLater, -1 if the task is done when execute returns
+    volatile long retryDelayMs = -1;
+
+    /**
+     * @param jobId the job this task works on
+     * @param mandatory whether the job document marks the update as mandatory
+     * @param priority priority from the job document, higher runs first
+     * @param size expected download size in bytes, -1 if unknown
+     */
+    public JobTask(String jobId, boolean mandatory, int priority, long size) {
+        this.jobId = jobId;
+        this.mandatory = mandatory;
+        this.priority = priority;
+        this.size = size;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * @return true once the task was cancelled. Long running work should check this, or the
+     * interrupt flag of its thread, and stop early.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Asks for the task to run again after a delay once execute returns, e.g. when the server
+     * asked to come back later. The job stays scheduled meanwhile without holding a thread.
+     */
+    protected void retryLater(long delayMs) {
+        retryDelayMs = delayMs;
+    }
+
+    /**
+     * Does the actual work. Runs on a scheduler thread, which is interrupted on cancellation.
+     */
+    protected abstract void execute();
+
+    @Override
+    public final void run() {
+        runner = Thread.currentThread();
+        try {
+            if (!cancelled)
+                execute();
+        } finally {
+            runner = null;
+            //do not let a cancellation leak into the next task on this thread
+            Thread.interrupted();
+            if (scheduler != null)
+                scheduler.finished(this);
+        }
+    }
+
+    @Override
+    public int compareTo(JobTask other) {
+        if (mandatory != other.mandatory)
+            return mandatory ? -1 : 1;
+        if (priority != other.priority)
+            return priority > other.priority ? -1 : 1;
+        if (size != other.size) {
+            if (size < 0)
+                return 1;
+            if (other.size < 0)
+                return -1;
+            return size < other.size ? -1 : 1;
+        }
+        return sequence < other.sequence ? -1 : 1;
+    }
+}
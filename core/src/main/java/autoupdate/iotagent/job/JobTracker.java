@@ -0,0 +1,214 @@
+package autoupdate.iotagent.job;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the state of every job the agent is working on, keyed by jobId and
+ * versionNumber. It makes sure a job execution is run at most once, that no describe is sent for
+ * a job that is already in flight, and it is reconciled with the list of pending jobs on every
+ * get-jobs response. A new versionNumber, i.e. a job updated on the server, starts over.
+ */
+public class JobTracker {
+
+    /**
+     * States of a tracked job.
+     */
+    public enum State {
+        //a describe request was published, the job execution has not arrived yet
+        DESCRIBING,
+        //the job execution arrived and is being evaluated
+        EVALUATING,
+        //the apk is being downloaded
+        DOWNLOADING,
+        //the apk was handed to the target app, waiting for it to be installed
+        DELIVERED,
+        //a final status was reported
+        FINISHED
+    }
+
+    /**
+     * A tracked job.
+     */
+    public static class Entry {
+        final String jobId;
+        long versionNumber;
+        State state;
+        long since;
+        String packageName;
+        String latestVersion;
+
+        Entry(String jobId, long versionNumber, State state, long now) {
+            this.jobId = jobId;
+            this.versionNumber = versionNumber;
+            this.state = state;
+            this.since = now;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public long getVersionNumber() {
+            return versionNumber;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public String getLatestVersion() {
+            return latestVersion;
+        }
+    }
+
+    //a describe without answer for this long is sent again
+    static final long DESCRIBE_TIMEOUT_MS = 60 * 1000;
+
+    private final Map<String, Entry> jobs = new HashMap<>();
+
+    /**
+     * Decides whether a describe request should be sent for a pending job and, if so, records it.
+     * @param jobId the job identifier
+     * @param versionNumber the version of the job from the get-jobs response
+     * @return true if the job is unknown, was updated on the server or its describe timed out
+     */
+    public synchronized boolean shouldDescribe(String jobId, long versionNumber) {
+        long now = now();
+        Entry entry = jobs.get(jobId);
+        if (entry != null && entry.versionNumber == versionNumber
+                && (entry.state != State.DESCRIBING || now - entry.since < DESCRIBE_TIMEOUT_MS))
+            return false;
+        jobs.put(jobId, new Entry(jobId, versionNumber, State.DESCRIBING, now));
+        return true;
+    }
+
+    /**
+     * Starts the evaluation of a job execution. Fails if the same version of the job is already
+     * being evaluated, downloaded, delivered or finished, so an execution is never run twice.
+     * @param jobId the job identifier
+     * @param versionNumber the version of the job execution
+     * @param packageName package name of the target app
+     * @param latestVersion version the target app is updated to
+     * @return true if the caller should go on with the job
+     */
+    public synchronized boolean start(String jobId, long versionNumber, String packageName, String latestVersion) {
+        Entry entry = jobs.get(jobId);
+        if (entry != null && entry.versionNumber == versionNumber && entry.state != State.DESCRIBING)
+            return false;
+        entry = new Entry(jobId, versionNumber, State.EVALUATING, now());
+        entry.packageName = packageName;
+        entry.latestVersion = latestVersion;
+        jobs.put(jobId, entry);
+        return true;
+    }
+
+    /**
+     * Puts back a job recovered from the journal after a restart.
+     * @param jobId the job identifier
+     * @param versionNumber the version of the job execution
+     * @param state the state the job was in
+     * @param packageName package name of the target app
+     * @param latestVersion version the target app is updated to
+     */
+    public synchronized void restore(String jobId, long versionNumber, State state, String packageName, String latestVersion) {
+        Entry entry = new Entry(jobId, versionNumber, state, now());
+        entry.packageName = packageName;
+        entry.latestVersion = latestVersion;
+        jobs.put(jobId, entry);
+    }
+
+    /**
+     * Moves a tracked job to a new state.
+     * @param jobId the job identifier
+     * @param state the new state
+     */
+    public synchronized void transition(String jobId, State state) {
+        Entry entry = jobs.get(jobId);
+        if (entry != null) {
+            entry.state = state;
+            entry.since = now();
+        }
+    }
+
+    /**
+     * Notes a status update the agent published for a job. The server increments the version of
+     * an execution with every update, the tracked version follows so the agent's own update does
+     * not look like a job changed on the server.
+     * @param jobId the job identifier
+     */
+    public synchronized void statusPublished(String jobId) {
+        Entry entry = jobs.get(jobId);
+        if (entry != null)
+            ++entry.versionNumber;
+    }
+
+    /**
+     * Stops tracking a job, e.g. after its download was cancelled, so it is handled afresh.
+     */
+    public synchronized void forget(String jobId) {
+        jobs.remove(jobId);
+    }
+
+    /**
+     * @return the state of a job, or null if it is not tracked
+     */
+    public synchronized State getState(String jobId) {
+        Entry entry = jobs.get(jobId);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * Reconciles the tracked jobs with the pending jobs reported by the server. Jobs the server no
+     * longer lists are dropped. A higher version on the server means the execution was updated:
+     * delivered and finished jobs take over the new version, as it usually comes from their own
+     * status update, every other job is dropped and handled afresh. A lower version comes from a
+     * response older than the tracked state and is ignored.
+     * @param pending versionNumber of every pending job, keyed by jobId
+     * @return the dropped jobs that were still downloading, their downloads should be cancelled
+     */
+    public synchronized List<String> reconcile(Map<String, Long> pending) {
+        List<String> cancelled = new ArrayList<>();
+        Iterator<Entry> it = jobs.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            Long version = pending.get(entry.jobId);
+            if (version != null && version <= entry.versionNumber)
+                continue;
+            if (version != null && (entry.state == State.DELIVERED || entry.state == State.FINISHED)) {
+                entry.versionNumber = version;
+                continue;
+            }
+            if (entry.state == State.DOWNLOADING)
+                cancelled.add(entry.jobId);
+            it.remove();
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return the jobs that were delivered and are waiting for the target app to be updated
+     */
+    public synchronized List<Entry> getDelivered() {
+        List<Entry> delivered = new ArrayList<>();
+        for (Entry entry : jobs.values())
+            if (entry.state == State.DELIVERED)
+                delivered.add(entry);
+        return delivered;
+    }
+
+    public synchronized int size() {
+        return jobs.size();
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,24 @@
+package autoupdate.iotagent.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count that only goes up. Increments from many threads do not contend, the sum is only
+ * formed when the count is read.
+ */
+public class Counter {
+
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,10 @@
+package autoupdate.iotagent.metrics;
+
+/**
+ * A value read from its owner whenever a snapshot is taken, e.g. a queue depth or the uptime of
+ * the connection.
+ */
+public interface Gauge {
+
+    long value();
+}
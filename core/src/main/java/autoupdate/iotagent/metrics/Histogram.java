@@ -0,0 +1,120 @@
+package autoupdate.iotagent.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of values over fixed buckets. Recording finds the bucket by binary search and
+ * bumps an atomic count, so it takes no lock and allocates nothing; percentiles are estimated from
+ * the buckets when read.
+ */
+public class Histogram {
+
+    //inclusive upper bound of every bucket but the last, which takes everything above
+    private final long[] bounds;
+
+    private final AtomicLongArray counts;
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param bounds ascending upper bounds of the buckets, values above the last bound go to an
+     *               extra overflow bucket
+     */
+    public Histogram(long[] bounds) {
+        for (int i = 1; i < bounds.length; ++i)
+            if (bounds[i] <= bounds[i - 1])
+                throw new IllegalArgumentException("bucket bounds must ascend");
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * @return count bounds starting at first, each factor times the previous one
+     */
+    public static long[] exponentialBounds(long first, double factor, int count) {
+        long[] bounds = new long[count];
+        double bound = first;
+        for (int i = 0; i < count; ++i) {
+            bounds[i] = i == 0 ? first : Math.max(bounds[i - 1] + 1, Math.round(bound));
+            bound *= factor;
+        }
+        return bounds;
+    }
+
+    public void record(long value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (value <= bounds[mid])
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        counts.incrementAndGet(low);
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //another thread raised the max meanwhile, try again
+        }
+    }
+
+    long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return the count of every bucket, the overflow bucket last
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; ++i)
+            snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); ++i)
+            count += counts.get(i);
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the largest value recorded, 0 if none
+     */
+    public long getMax() {
+        long value = max.get();
+        return value == Long.MIN_VALUE ? 0 : value;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the upper bound of the bucket holding the quantile, the max for the overflow
+     * bucket, 0 if nothing was recorded
+     */
+    public long getPercentile(double quantile) {
+        long[] snapshot = getCounts();
+        long total = 0;
+        for (long count : snapshot)
+            total += count;
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0)
+                return i < bounds.length ? Math.min(bounds[i], getMax()) : getMax();
+        }
+        return getMax();
+    }
+}
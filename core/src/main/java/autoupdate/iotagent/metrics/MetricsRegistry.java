@@ -0,0 +1,161 @@
+package autoupdate.iotagent.metrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class holds the agent's metrics by name. Callers look a metric up once and keep it, so the
+ * hot paths only touch the metric itself. Snapshots come in two forms: a full one with every
+ * histogram bucket, written to a local file, and a compact one for telemetry publishes that
+ * leaves out what is zero and sums histograms up as count, sum, percentiles and max.
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @return the counter of that name, created on first use
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * @param bounds bucket bounds, only used when the histogram is created
+     * @return the histogram of that name, created on first use
+     */
+    public Histogram histogram(String name, long[] bounds) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram(bounds));
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing one of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return every metric, histograms with their buckets
+     */
+    public JSONObject snapshot() throws JSONException {
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("time", System.currentTimeMillis());
+        JSONObject counterValues = new JSONObject();
+        for (Map.Entry<String, Counter> entry : sorted(counters).entrySet())
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        snapshot.put("counters", counterValues);
+        snapshot.put("gauges", gaugeValues(false));
+        JSONObject histogramValues = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : sorted(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            JSONObject value = new JSONObject();
+            value.put("count", histogram.getCount());
+            value.put("sum", histogram.getSum());
+            value.put("max", histogram.getMax());
+            value.put("p50", histogram.getPercentile(0.5));
+            value.put("p90", histogram.getPercentile(0.9));
+            value.put("p99", histogram.getPercentile(0.99));
+            JSONArray bounds = new JSONArray();
+            for (long bound : histogram.getBounds())
+                bounds.put(bound);
+            value.put("bounds", bounds);
+            JSONArray counts = new JSONArray();
+            for (long count : histogram.getCounts())
+                counts.put(count);
+            value.put("counts", counts);
+            histogramValues.put(entry.getKey(), value);
+        }
+        snapshot.put("histograms", histogramValues);
+        return snapshot;
+    }
+
+    /**
+     * @return the non-zero metrics, every histogram as [count, sum, p50, p90, p99, max]
+     */
+    public JSONObject compactSnapshot() throws JSONException {
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("t", System.currentTimeMillis() / 1000);
+        JSONObject counterValues = new JSONObject();
+        for (Map.Entry<String, Counter> entry : sorted(counters).entrySet()) {
+            long value = entry.getValue().get();
+            if (value != 0)
+                counterValues.put(entry.getKey(), value);
+        }
+        snapshot.put("c", counterValues);
+        snapshot.put("g", gaugeValues(true));
+        JSONObject histogramValues = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : sorted(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.getCount() == 0)
+                continue;
+            histogramValues.put(entry.getKey(), new JSONArray()
+                    .put(histogram.getCount())
+                    .put(histogram.getSum())
+                    .put(histogram.getPercentile(0.5))
+                    .put(histogram.getPercentile(0.9))
+                    .put(histogram.getPercentile(0.99))
+                    .put(histogram.getMax()));
+        }
+        snapshot.put("h", histogramValues);
+        return snapshot;
+    }
+
+    /**
+     * Writes the full snapshot to a file. The file is replaced in one step, a reader never sees
+     * half a snapshot.
+     */
+    public void writeTo(File file) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = snapshot().toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            throw new IOException("could not build metrics snapshot", e);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(bytes);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("could not replace " + file);
+    }
+
+    private JSONObject gaugeValues(boolean skipZero) throws JSONException {
+        JSONObject values = new JSONObject();
+        for (Map.Entry<String, Gauge> entry : sorted(gauges).entrySet()) {
+            long value = entry.getValue().value();
+            if (value != 0 || !skipZero)
+                values.put(entry.getKey(), value);
+        }
+        return values;
+    }
+
+    private static <T> Map<String, T> sorted(Map<String, T> metrics) {
+        return new TreeMap<>(metrics);
+    }
+}
@@ -0,0 +1,88 @@
+package autoupdate.iotagent.metrics;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.platform.Log;
+import autoupdate.iotagent.util.MessagePublisher;
+
+/**
+ * This class exports the metrics periodically: the full snapshot to a local file, and if a
+ * publisher is given, the compact snapshot as a telemetry message. Publishing goes through the
+ * outbound queue like every other message, so a report made while disconnected waits there and is
+ * replaced by the next one.
+ */
+public class MetricsReporter {
+
+    private static final String LOG_TAG = "MetricsReporter";
+
+    private final MetricsRegistry registry;
+
+    private final File file;
+
+    private final MessagePublisher publisher;
+
+    private final String topic;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param registry the metrics to export
+     * @param file the file the full snapshot is written to
+     * @param publisher publishes the compact snapshot, null to only write the file
+     * @param topic topic of the telemetry publish
+     */
+    public MetricsReporter(MetricsRegistry registry, File file, MessagePublisher publisher, String topic) {
+        this.registry = registry;
+        this.file = file;
+        this.publisher = publisher;
+        this.topic = topic;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "metrics-reporter");
+            }
+        });
+    }
+
+    /**
+     * Exports every intervalMs, the first time after one interval.
+     */
+    public void start(long intervalMs) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Exports a last time and stops.
+     */
+    public void stop() {
+        executor.shutdownNow();
+        report();
+    }
+
+    void report() {
+        try {
+            registry.writeTo(file);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "could not write metrics : " + e.getMessage());
+        }
+        if (publisher == null)
+            return;
+        try {
+            publisher.publish(registry.compactSnapshot().toString(), topic);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "could not build telemetry : " + e.getMessage());
+        }
+    }
+}
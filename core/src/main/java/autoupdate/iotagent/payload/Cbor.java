@@ -0,0 +1,327 @@
+package autoupdate.iotagent.payload;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Converts JSON text to CBOR (RFC 7049) and back, for the values JSON has: maps, arrays, text,
+ * integers, floating point numbers, true, false and null. Integers are written in the fewest
+ * bytes, keys and strings without quotes or escapes, so a CBOR message is usually a good deal
+ * smaller than the JSON it came from. Indefinite lengths and byte strings are not produced and
+ * not accepted.
+ */
+public final class Cbor {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int FALSE = 20;
+    private static final int TRUE = 21;
+    private static final int NULL = 22;
+    private static final int FLOAT16 = 25;
+    private static final int FLOAT32 = 26;
+    private static final int FLOAT64 = 27;
+
+    //nesting deeper than this is refused, a hostile message could otherwise exhaust the stack
+    private static final int MAX_DEPTH = 64;
+
+    private Cbor() {
+    }
+
+    /**
+     * @param json a JSON object or array
+     * @return the same value in CBOR
+     * @throws JSONException if the text is not valid JSON
+     */
+    public static byte[] fromJson(String json) throws JSONException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length());
+        write(out, new JSONTokener(json).nextValue());
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, Object value) throws JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writeHead(out, MAJOR_MAP, object.length());
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writeText(out, key);
+                write(out, object.get(key));
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writeHead(out, MAJOR_ARRAY, array.length());
+            for (int i = 0; i < array.length(); ++i)
+                write(out, array.get(i));
+        } else if (value instanceof String) {
+            writeText(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.write(MAJOR_SIMPLE << 5 | ((Boolean) value ? TRUE : FALSE));
+        } else if (value == null || value == JSONObject.NULL) {
+            out.write(MAJOR_SIMPLE << 5 | NULL);
+        } else if (value instanceof Number) {
+            writeNumber(out, (Number) value);
+        } else {
+            throw new JSONException("no CBOR type for " + value.getClass().getSimpleName());
+        }
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, Number number) {
+        long integer;
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+            integer = number.longValue();
+        } else if (number instanceof BigInteger && ((BigInteger) number).bitLength() < 64) {
+            integer = number.longValue();
+        } else if (number instanceof BigDecimal && isLong((BigDecimal) number)) {
+            integer = number.longValue();
+        } else {
+            double d = number.doubleValue();
+            out.write(MAJOR_SIMPLE << 5 | FLOAT64);
+            writeBytes(out, Double.doubleToLongBits(d), 8);
+            return;
+        }
+        if (integer >= 0)
+            writeHead(out, MAJOR_UNSIGNED, integer);
+        else
+            writeHead(out, MAJOR_NEGATIVE, -1 - integer);
+    }
+
+    private static boolean isLong(BigDecimal decimal) {
+        try {
+            decimal.longValueExact();
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        writeHead(out, MAJOR_TEXT, utf8.length);
+        out.write(utf8, 0, utf8.length);
+    }
+
+    /**
+     * Writes the major type with its argument in the shortest form.
+     */
+    private static void writeHead(ByteArrayOutputStream out, int major, long argument) {
+        int type = major << 5;
+        if (argument < 24) {
+            out.write(type | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(type | 24);
+            writeBytes(out, argument, 1);
+        } else if (argument < 0x10000) {
+            out.write(type | 25);
+            writeBytes(out, argument, 2);
+        } else if (argument < 0x100000000L) {
+            out.write(type | 26);
+            writeBytes(out, argument, 4);
+        } else {
+            out.write(type | 27);
+            writeBytes(out, argument, 8);
+        }
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, long value, int count) {
+        for (int shift = (count - 1) * 8; shift >= 0; shift -= 8)
+            out.write((int) (value >>> shift) & 0xff);
+    }
+
+    /**
+     * @param data a CBOR data item
+     * @param offset where the item starts
+     * @return the item as JSON text
+     * @throws PayloadCodec.MalformedPayloadException if the data is not a complete CBOR item of the supported types
+     */
+    public static String toJson(byte[] data, int offset) throws PayloadCodec.MalformedPayloadException {
+        Reader reader = new Reader(data, offset);
+        StringBuilder out = new StringBuilder(data.length * 2);
+        reader.read(out, 0);
+        if (reader.pos != data.length)
+            throw new PayloadCodec.MalformedPayloadException((data.length - reader.pos) + " bytes after the CBOR item");
+        return out.toString();
+    }
+
+    private static class Reader {
+        final byte[] data;
+        int pos;
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        void read(StringBuilder out, int depth) throws PayloadCodec.MalformedPayloadException {
+            if (depth > MAX_DEPTH)
+                throw new PayloadCodec.MalformedPayloadException("CBOR nested too deep");
+            int initial = next();
+            int major = initial >>> 5;
+            int info = initial & 0x1f;
+            switch (major) {
+                case MAJOR_UNSIGNED:
+                    out.append(unsigned(argument(info)));
+                    break;
+                case MAJOR_NEGATIVE: {
+                    long argument = argument(info);
+                    //-1 - argument, also for arguments beyond Long.MAX_VALUE
+                    out.append(argument >= 0 ? Long.toString(-1 - argument)
+                            : new BigInteger(unsigned(argument)).add(BigInteger.ONE).negate().toString());
+                    break;
+                }
+                case MAJOR_TEXT: {
+                    int length = length(argument(info));
+                    out.append(JSONObject.quote(new String(data, pos, length, StandardCharsets.UTF_8)));
+                    pos += length;
+                    break;
+                }
+                case MAJOR_ARRAY: {
+                    int count = length(argument(info));
+                    out.append('[');
+                    for (int i = 0; i < count; ++i) {
+                        if (i > 0)
+                            out.append(',');
+                        read(out, depth + 1);
+                    }
+                    out.append(']');
+                    break;
+                }
+                case MAJOR_MAP: {
+                    int count = length(argument(info));
+                    out.append('{');
+                    for (int i = 0; i < count; ++i) {
+                        if (i > 0)
+                            out.append(',');
+                        if ((peek() >>> 5) != MAJOR_TEXT)
+                            throw new PayloadCodec.MalformedPayloadException("CBOR map key is not text");
+                        read(out, depth + 1);
+                        out.append(':');
+                        read(out, depth + 1);
+                    }
+                    out.append('}');
+                    break;
+                }
+                case MAJOR_TAG:
+                    //tags add meaning JSON has no place for, the tagged item stands for itself
+                    argument(info);
+                    read(out, depth + 1);
+                    break;
+                case MAJOR_SIMPLE:
+                    readSimple(out, info);
+                    break;
+                case MAJOR_BYTES:
+                default:
+                    throw new PayloadCodec.MalformedPayloadException("unsupported CBOR major type " + major);
+            }
+        }
+
+        void readSimple(StringBuilder out, int info) throws PayloadCodec.MalformedPayloadException {
+            double value;
+            switch (info) {
+                case FALSE:
+                    out.append("false");
+                    return;
+                case TRUE:
+                    out.append("true");
+                    return;
+                case NULL:
+                    out.append("null");
+                    return;
+                case FLOAT16:
+                    value = halfToDouble((int) bytes(2));
+                    break;
+                case FLOAT32:
+                    value = Float.intBitsToFloat((int) bytes(4));
+                    break;
+                case FLOAT64:
+                    value = Double.longBitsToDouble(bytes(8));
+                    break;
+                default:
+                    throw new PayloadCodec.MalformedPayloadException("unsupported CBOR simple value " + info);
+            }
+            if (Double.isNaN(value) || Double.isInfinite(value))
+                throw new PayloadCodec.MalformedPayloadException("CBOR number " + value + " has no JSON form");
+            out.append(value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value));
+        }
+
+        long argument(int info) throws PayloadCodec.MalformedPayloadException {
+            if (info < 24)
+                return info;
+            switch (info) {
+                case 24:
+                    return bytes(1);
+                case 25:
+                    return bytes(2);
+                case 26:
+                    return bytes(4);
+                case 27:
+                    return bytes(8);
+                default:
+                    throw new PayloadCodec.MalformedPayloadException("unsupported CBOR length " + info);
+            }
+        }
+
+        /**
+         * @return the argument as a length that fits in the rest of the data
+         */
+        int length(long argument) throws PayloadCodec.MalformedPayloadException {
+            //every element takes at least one byte, so no count can exceed the bytes left
+            if (argument < 0 || argument > data.length - pos)
+                throw new PayloadCodec.MalformedPayloadException("CBOR length " + argument + " beyond the message");
+            return (int) argument;
+        }
+
+        long bytes(int count) throws PayloadCodec.MalformedPayloadException {
+            if (pos + count > data.length)
+                throw new PayloadCodec.MalformedPayloadException("CBOR message truncated");
+            long value = 0;
+            for (int i = 0; i < count; ++i)
+                value = value << 8 | (data[pos++] & 0xff);
+            return value;
+        }
+
+        int next() throws PayloadCodec.MalformedPayloadException {
+            if (pos >= data.length)
+                throw new PayloadCodec.MalformedPayloadException("CBOR message truncated");
+            return data[pos++] & 0xff;
+        }
+
+        int peek() throws PayloadCodec.MalformedPayloadException {
+            if (pos >= data.length)
+                throw new PayloadCodec.MalformedPayloadException("CBOR message truncated");
+            return data[pos] & 0xff;
+        }
+
+        private static String unsigned(long value) {
+            return value >= 0 ? Long.toString(value) : new BigInteger(Long.toHexString(value), 16).toString();
+        }
+
+        private static double halfToDouble(int half) {
+            int exponent = (half >>> 10) & 0x1f;
+            int mantissa = half & 0x3ff;
+            double value;
+            if (exponent == 0)
+                value = mantissa * Math.pow(2, -24);
+            else if (exponent == 31)
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            else
+                value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            return (half & 0x8000) != 0 ? -value : value;
+        }
+    }
+}
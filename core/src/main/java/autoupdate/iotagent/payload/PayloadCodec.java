@@ -0,0 +1,177 @@
+package autoupdate.iotagent.payload;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class encodes the messages the agent publishes and decodes the ones it receives, so the
+ * rest of the agent only ever sees JSON text. Besides plain JSON a payload may be
+ * <ul>
+ *     <li>DEFLATE: a marker byte 0x01 followed by a raw deflate stream compressed against
+ *     DICTIONARY, which holds the keys every telemetry message repeats, i.e. the metric names,
+ *     so a report shrinks to little more than its numbers</li>
+ *     <li>CBOR: a marker byte 0x02 followed by the message in CBOR</li>
+ * </ul>
+ * JSON always starts with '{', '[' or white space, so the marker tells the three apart and every
+ * subscription accepts all of them. What is published is chosen per topic: the AWS IoT reserved
+ * topics, i.e. the jobs API, only take JSON, the agent's own topics use the configured encoding.
+ * The encoding is not negotiated, whoever subscribes to the agent's own topics must decode all three.
+ * A new dictionary needs a new marker, peers decoding with the old one would read garbage.
+ */
+public class PayloadCodec {
+
+    public enum Encoding {
+        JSON, DEFLATE, CBOR
+    }
+
+    /**
+     * Thrown for a payload that cannot be decoded.
+     */
+    public static class MalformedPayloadException extends IOException {
+        public MalformedPayloadException(String message) {
+            super(message);
+        }
+    }
+
+    static final byte MARKER_DEFLATE = 0x01;
+    static final byte MARKER_CBOR = 0x02;
+
+    //topics of the AWS IoT services, they only accept JSON
+    private static final String RESERVED_TOPIC_PREFIX = "$aws/";
+
+    //a decoded message larger than this is refused, a small hostile message could inflate to any size
+    static final int MAX_DECODED_BYTES = 1024 * 1024;
+
+    /**
+     * Preset dictionary of the DEFLATE encoding, version 1: a compact metrics snapshot with every
+     * metric the agent registers, in the order MetricsRegistry writes them. Only the agent's own
+     * topics are ever encoded and the telemetry report is the one message published there, so the
+     * dictionary is built from it alone. A renamed or new metric belongs here too.
+     */
+    static final byte[] DICTIONARY = ("{\"t\":1572364342,\"c\":{\"download.bytes\":,\"download.cache_hits\":,"
+            + "\"download.failed\":,\"download.peer_bytes\":,\"download.peer_hits\":,\"download.server_busy\":,"
+            + "\"download.succeeded\":,\"job.failed\":,\"job.messages\":,\"job.messages_malformed\":,"
+            + "\"job.rejected\":,\"job.status_update_errors\":,\"job.status_updates\":,\"job.succeeded\":,"
+            + "\"mqtt.bytes_in\":,\"mqtt.bytes_out\":,\"mqtt.bytes_saved\":,\"mqtt.messages\":,"
+            + "\"mqtt.payload_errors\":,\"mqtt.publish_errors\":,\"mqtt.publishes\":,\"mqtt.subscribe_errors\":,"
+            + "\"mqtt.subscribes\":},\"g\":{\"apk_cache.bytes\":,\"apk_cache.evictions\":,\"apk_cache.hits\":,"
+            + "\"apk_cache.misses\":,\"loop.pending\":,\"mqtt.connects\":,\"mqtt.keep_alive_s\":,\"mqtt.losses\":,"
+            + "\"mqtt.nat_timeouts\":,\"mqtt.reconnects\":,\"mqtt.total_uptime_ms\":,\"mqtt.uptime_ms\":,"
+            + "\"outbound.coalesced\":,\"outbound.depth\":,\"outbound.drain_rate\":,\"outbound.dropped\":,"
+            + "\"outbound.in_flight\":,\"package_cache.hits\":,\"package_cache.misses\":},"
+            + "\"h\":{\"download.throughput_kbps\":[,\"download.time_ms\":[,\"job.end_to_end_ms\":[,"
+            + "\"job.message_parse_us\":[,\"job.message_to_download_start_ms\":[,\"loop.queue_delay_us\":[]}}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Encoding outbound;
+
+    /**
+     * @param outbound encoding of the messages published to the agent's own topics
+     */
+    public PayloadCodec(Encoding outbound) {
+        this.outbound = outbound;
+    }
+
+    /**
+     * @return the encoding a message to the topic is published in
+     */
+    public Encoding encodingFor(String topic) {
+        return topic.startsWith(RESERVED_TOPIC_PREFIX) ? Encoding.JSON : outbound;
+    }
+
+    /**
+     * Encodes a message for its topic. A DEFLATE message that would not come out smaller is sent
+     * as JSON.
+     * @param json the message as JSON text
+     * @param topic the topic it is published to
+     * @return the payload to publish
+     */
+    public byte[] encode(String json, String topic) {
+        byte[] utf8 = json.getBytes(StandardCharsets.UTF_8);
+        switch (encodingFor(topic)) {
+            case DEFLATE: {
+                byte[] deflated = deflate(utf8);
+                return deflated.length < utf8.length ? deflated : utf8;
+            }
+            case CBOR:
+                try {
+                    byte[] cbor = Cbor.fromJson(json);
+                    byte[] framed = new byte[cbor.length + 1];
+                    framed[0] = MARKER_CBOR;
+                    System.arraycopy(cbor, 0, framed, 1, cbor.length);
+                    return framed;
+                } catch (JSONException e) {
+                    //not JSON after all, it goes out as it is
+                    return utf8;
+                }
+            default:
+                return utf8;
+        }
+    }
+
+    /**
+     * Decodes a received payload in any of the encodings.
+     * @return the message as UTF-8 JSON text, the payload itself if it already is
+     * @throws MalformedPayloadException if a marked payload cannot be decoded
+     */
+    public static byte[] decode(byte[] payload) throws MalformedPayloadException {
+        if (payload.length == 0)
+            return payload;
+        switch (payload[0]) {
+            case MARKER_DEFLATE:
+                return inflate(payload);
+            case MARKER_CBOR:
+                return Cbor.toJson(payload, 1).getBytes(StandardCharsets.UTF_8);
+            default:
+                return payload;
+        }
+    }
+
+    static byte[] deflate(byte[] utf8) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(utf8);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 2 + 16);
+            out.write(MARKER_DEFLATE);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] payload) throws MalformedPayloadException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(payload, 1, payload.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new MalformedPayloadException("deflate stream truncated");
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_DECODED_BYTES)
+                    throw new MalformedPayloadException("deflate payload inflates beyond " + MAX_DECODED_BYTES + " bytes");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new MalformedPayloadException("bad deflate stream : " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package autoupdate.iotagent.platform;
+
+/**
+ * Logging for the core, with the calls of android.util.Log so core classes read like the rest of
+ * the agent. Lines go to the logger installed with setLogger.
+ */
+public final class Log {
+
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static volatile Logger logger = new Logger() {
+        @Override
+        public void log(int priority, String tag, String message, Throwable error) {
+            //debug lines would drown benchmark and test output
+            if (priority < INFO)
+                return;
+            System.err.println("IWE".charAt(priority - INFO) + "/" + tag + ": " + message);
+            if (error != null)
+                error.printStackTrace();
+        }
+    };
+
+    private Log() {
+    }
+
+    /**
+     * Routes all later log lines of the core to a logger.
+     */
+    public static void setLogger(Logger logger) {
+        Log.logger = logger;
+    }
+
+    public static void d(String tag, String message) {
+        logger.log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        logger.log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        logger.log(WARN, tag, message, null);
+    }
+
+    public static void e(String tag, String message) {
+        logger.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        logger.log(ERROR, tag, message, error);
+    }
+}
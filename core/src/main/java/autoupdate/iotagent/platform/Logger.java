@@ -0,0 +1,16 @@
+package autoupdate.iotagent.platform;
+
+/**
+ * Where the core writes its log lines. The app routes them to logcat, plain JVM users such as
+ * tests and benchmarks get standard error by default.
+ */
+public interface Logger {
+
+    /**
+     * @param priority one of the priorities in Log
+     * @param tag tag of the class logging
+     * @param message the log line
+     * @param error throwable to log with the line, null for none
+     */
+    void log(int priority, String tag, String message, Throwable error);
+}
@@ -0,0 +1,257 @@
+package autoupdate.iotagent.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.job.AdmissionPolicy;
+import autoupdate.iotagent.job.JobList;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobTracker;
+import autoupdate.iotagent.platform.Log;
+
+/**
+ * This class decides what happens to the jobs of one thing: it reconciles the tracked jobs with
+ * the get-jobs list, tells which jobs to describe and when to ask start-next for the next one,
+ * and evaluates every new execution against the installed version of its app, which either
+ * finishes the job right away or starts its download at the thing's offset in the rollout window.
+ * What the decisions are carried out with, the installed versions and the actions, is handed in,
+ * so the agent and the simulator's virtual agents run the same logic.
+ * It is not thread safe, the caller runs it on the thread that owns the job state.
+ */
+public class JobEvaluator implements JobIntake.ExecutionHandler {
+
+    private static final String LOG_TAG = "JobEvaluator";
+
+    /**
+     * The apps installed on the device.
+     */
+    public interface InstalledVersions {
+        boolean isInstalled(String packageName);
+
+        /**
+         * @return true if the installed version is older than latestVersion
+         */
+        boolean needsUpdate(String packageName, String latestVersion);
+
+        /**
+         * Checks a whole campaign at once.
+         * @param latestVersions latest available version, keyed by package name
+         * @return whether each package is installed with an older version
+         */
+        Map<String, Boolean> needsUpdate(Map<String, String> latestVersions);
+    }
+
+    /**
+     * Carries out the decisions.
+     */
+    public interface Actions {
+        /**
+         * Publishes a describe request for the job.
+         */
+        void describe(String jobId);
+
+        /**
+         * Asks start-next for the next pending job.
+         */
+        void requestNext();
+
+        /**
+         * Publishes a status update of the job.
+         * @param stage the stage to report in statusDetails, null for none
+         * @return true if the update was published
+         */
+        boolean publishStatus(int status, String jobId, String stage);
+
+        /**
+         * Called for a job that is tracked from now on, before its state is set.
+         */
+        void onJobReceived(JobRecord job);
+
+        /**
+         * Called after a job moved to a new state.
+         * @param finalStatus the status code the job is finished with, -1 if it is not finished
+         */
+        void onStateChanged(String jobId, JobTracker.State state, int finalStatus);
+
+        /**
+         * Starts the download of a job's apk.
+         * @param delayMs time to wait before it starts, the job's slot in its rollout window
+         */
+        void startDownload(JobRecord job, long delayMs);
+
+        /**
+         * Cancels the download of a job that is no longer pending.
+         */
+        void cancelDownload(String jobId);
+    }
+
+    private final JobTracker jobTracker = new JobTracker();
+
+    private final InstalledVersions installed;
+
+    private final Actions actions;
+
+    //spreads download starts over the rollout window
+    private final AdmissionPolicy admissionPolicy;
+
+    //job ids and versions of the last get-jobs response, used to tell whether the list changed
+    private String lastJobsSignature;
+
+    public JobEvaluator(InstalledVersions installed, Actions actions, AdmissionPolicy admissionPolicy) {
+        this.installed = installed;
+        this.actions = actions;
+        this.admissionPolicy = admissionPolicy;
+    }
+
+    /**
+     * @return the tracked jobs, for restoring them after a restart and checking their state
+     */
+    public JobTracker getTracker() {
+        return jobTracker;
+    }
+
+    /**
+     * Handles the list of pending jobs. Jobs no longer listed are dropped and their downloads
+     * cancelled, in progress jobs that are not in flight yet are described, and queued jobs are
+     * claimed through start-next. Start-next returns a job already in progress before any queued
+     * one, so while a job is in progress the queued ones are described instead. Delivered jobs are
+     * checked against the installed version.
+     * @return true if the list differs from the one received last time
+     */
+    public boolean handleJobList(JobList jobs) {
+        Map<String, Long> pending = new HashMap<>();
+        StringBuilder signature = new StringBuilder();
+        for (JobRecord job : jobs.getInProgress()) {
+            pending.put(job.getJobId(), job.getVersionNumber());
+            signature.append(job.getJobId()).append(':').append(job.getVersionNumber()).append(',');
+        }
+        signature.append('|');
+        for (JobRecord job : jobs.getQueued()) {
+            pending.put(job.getJobId(), job.getVersionNumber());
+            signature.append(job.getJobId()).append(':').append(job.getVersionNumber()).append(',');
+        }
+
+        for (String jobId : jobTracker.reconcile(pending)) {
+            Log.i(LOG_TAG, "job no longer pending, cancelling download : " + jobId);
+            actions.cancelDownload(jobId);
+        }
+        for (JobRecord job : jobs.getInProgress()) {
+            if (jobTracker.shouldDescribe(job.getJobId(), job.getVersionNumber()))
+                actions.describe(job.getJobId());
+        }
+        checkDelivered();
+        if (jobs.getInProgress().isEmpty() && !jobs.getQueued().isEmpty()) {
+            actions.requestNext();
+        } else {
+            for (JobRecord job : jobs.getQueued()) {
+                if (jobTracker.shouldDescribe(job.getJobId(), job.getVersionNumber()))
+                    actions.describe(job.getJobId());
+            }
+        }
+
+        boolean changed = !signature.toString().equals(lastJobsSignature);
+        lastJobsSignature = signature.toString();
+        return changed;
+    }
+
+    /**
+     * Finishes the delivered jobs whose app was updated, checking all of them in one campaign. A
+     * second delivered job for the same package with another version is checked on its own.
+     */
+    private void checkDelivered() {
+        List<JobTracker.Entry> delivered = jobTracker.getDelivered();
+        if (delivered.isEmpty())
+            return;
+        Map<String, String> latestVersions = new HashMap<>();
+        for (JobTracker.Entry entry : delivered) {
+            if (!latestVersions.containsKey(entry.getPackageName()))
+                latestVersions.put(entry.getPackageName(), entry.getLatestVersion());
+        }
+        Map<String, Boolean> needsUpdate = installed.needsUpdate(latestVersions);
+        for (JobTracker.Entry entry : delivered) {
+            boolean pending = entry.getLatestVersion().equals(latestVersions.get(entry.getPackageName()))
+                    ? needsUpdate.get(entry.getPackageName())
+                    : installed.needsUpdate(entry.getPackageName(), entry.getLatestVersion());
+            if (!pending && installed.isInstalled(entry.getPackageName()))
+                finish(entry.getJobId(), IOTConfigData.STATUS_SUCCEEDED);
+        }
+    }
+
+    /**
+     * Evaluates a job execution, received from a job description or claimed through start-next.
+     * The apk is downloaded for queued jobs and for IN_PROGRESS jobs that were claimed but whose
+     * apk was never delivered. Start-next starts a queued job without statusDetails, the claimed
+     * stage is reported by an update afterwards.
+     * @param job the job execution including its job document
+     * @return true if the job was new and is finished already
+     */
+    @Override
+    public boolean handleJobExecution(JobRecord job) {
+        String jobId = job.getJobId();
+        Log.i(LOG_TAG, "job received : " + job);
+        if (!jobTracker.start(jobId, job.getVersionNumber(), job.getPackageName(), job.getLatestVersion())) {
+            Log.d(LOG_TAG, "job already in flight : " + jobId);
+            return false;
+        }
+        actions.onJobReceived(job);
+        if (!installed.isInstalled(job.getPackageName())) {
+            Log.d(LOG_TAG, "No such app exists on the device : " + job.getPackageName());
+            finish(jobId, IOTConfigData.STATUS_REJECTED);
+            return true;
+        }
+        if (!installed.needsUpdate(job.getPackageName(), job.getLatestVersion())) {
+            finish(jobId, IOTConfigData.STATUS_SUCCEEDED);
+            return true;
+        }
+        boolean inProgress = job.getStatus().equals("IN_PROGRESS");
+        //just started by start-next, or claimed but interrupted before the apk was delivered
+        boolean isStarted = inProgress && job.getStage().isEmpty();
+        boolean isClaimed = isStarted || (inProgress && job.getStage().equals(IOTConfigData.STAGE_CLAIMED));
+        if (job.getStatus().equals("QUEUED") || isClaimed) {
+            setState(jobId, JobTracker.State.DOWNLOADING);
+            if (isStarted)
+                publishStatus(IOTConfigData.STATUS_INPROGRESS, jobId, IOTConfigData.STAGE_CLAIMED);
+            actions.startDownload(job, admissionPolicy.startDelayMs(jobId, job.getRolloutWindowSec() * 1000, job.isUrgent()));
+            return false;
+        }
+        //delivered before, the job stays IN_PROGRESS until the installed version catches up
+        setState(jobId, JobTracker.State.DELIVERED);
+        return false;
+    }
+
+    /**
+     * Moves a job to a new state.
+     */
+    public void setState(String jobId, JobTracker.State state) {
+        setState(jobId, state, -1);
+    }
+
+    /**
+     * Moves a job to a new state.
+     * @param finalStatus the status code the job is finished with, -1 if it is not finished
+     */
+    public void setState(String jobId, JobTracker.State state, int finalStatus) {
+        jobTracker.transition(jobId, state);
+        actions.onStateChanged(jobId, state, finalStatus);
+    }
+
+    /**
+     * Finishes a job and reports its final status.
+     */
+    public void finish(String jobId, int status) {
+        setState(jobId, JobTracker.State.FINISHED, status);
+        publishStatus(status, jobId, null);
+    }
+
+    /**
+     * Publishes a status update of a job. The broker bumps the version of the execution for it,
+     * so the update is not mistaken for a change made elsewhere.
+     * @param stage the stage to report in statusDetails, null for none
+     */
+    public void publishStatus(int status, String jobId, String stage) {
+        if (actions.publishStatus(status, jobId, stage))
+            jobTracker.statusPublished(jobId);
+    }
+}
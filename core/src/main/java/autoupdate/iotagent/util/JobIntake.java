@@ -0,0 +1,118 @@
+package autoupdate.iotagent.util;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.job.JobMessageParser;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobStatusEncoder;
+import autoupdate.iotagent.platform.Log;
+
+/**
+ * This class takes in queued jobs through the StartNextPendingJobExecution API. One publish to the
+ * start-next topic claims the next queued job, marks it IN_PROGRESS and returns its job document,
+ * so a job needs a single round trip instead of a describe followed by a status update.
+ * The broker hands back an execution that is already IN_PROGRESS before it starts a queued one,
+ * so the request carries no statusDetails, which would overwrite the stage of such an execution,
+ * and the next job is only requested right away when the handler finished the returned one.
+ * Only one request is outstanding at a time.
+ */
+public class JobIntake {
+
+    private static final String LOG_TAG = "JobIntake";
+
+    //a request without response for this long is considered lost
+    static final long REQUEST_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Receives the executions claimed by the intake.
+     */
+    public interface ExecutionHandler {
+        /**
+         * @param execution the job execution, including its job document
+         * @return true if the execution was new and is finished already, so it is no longer pending
+         */
+        boolean handleJobExecution(JobRecord execution);
+    }
+
+    private final MessagePublisher publisher;
+
+    private final ExecutionHandler handler;
+
+    private final String publishTopic;
+
+    private boolean inFlight;
+
+    private long requestedAt;
+
+    private long responses;
+
+    private long totalLatencyNanos;
+
+    /**
+     * @param publishTopic start-next topic of the thing the jobs are claimed for
+     */
+    public JobIntake(MessagePublisher publisher, ExecutionHandler handler, String publishTopic) {
+        this.publisher = publisher;
+        this.handler = handler;
+        this.publishTopic = publishTopic;
+    }
+
+    /**
+     * Asks the broker for the next pending job, unless a request is already on its way.
+     */
+    public void requestNext() {
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (inFlight && now - requestedAt < REQUEST_TIMEOUT_MS * 1000000L)
+                return;
+            inFlight = true;
+            requestedAt = now;
+        }
+        publisher.publish(JobStatusEncoder.encodeStartNext(null), publishTopic);
+    }
+
+    /**
+     * Handles a message on the start-next accepted topic. The execution is passed to the handler;
+     * only if the handler finished it is the next job requested right away, an execution still in
+     * progress, or one the handler already knew, would just be returned again.
+     * @param message the response of the start-next request
+     */
+    public void handleStartNextResponse(byte[] message) {
+        JobRecord execution;
+        synchronized (this) {
+            if (inFlight) {
+                ++responses;
+                totalLatencyNanos += System.nanoTime() - requestedAt;
+            }
+            inFlight = false;
+        }
+        try {
+            execution = JobMessageParser.parseExecution(message, IOTConfigData.DEFAULT_DOWNLOAD_SEGMENTS);
+        } catch (JobMessageParser.MalformedMessageException e) {
+            Log.e(LOG_TAG, "err processing start-next response : " + e.getMessage());
+            return;
+        }
+        if (execution == null) {
+            Log.d(LOG_TAG, "no pending jobs left");
+            return;
+        }
+        if (handler.handleJobExecution(execution))
+            requestNext();
+    }
+
+    /**
+     * Handles a message on the start-next rejected topic, so a later request is not held back.
+     */
+    public void handleStartNextRejected(String message) {
+        synchronized (this) {
+            inFlight = false;
+        }
+        Log.e(LOG_TAG, "start-next rejected : " + message);
+    }
+
+    /**
+     * @return mean time between a start-next request and its response, in milliseconds
+     */
+    public synchronized double getMeanLatencyMs() {
+        return responses == 0 ? 0 : totalLatencyNanos / 1e6 / responses;
+    }
+}
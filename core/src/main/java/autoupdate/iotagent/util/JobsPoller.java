@@ -0,0 +1,169 @@
+package autoupdate.iotagent.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.platform.Log;
+
+/**
+ * This class asks for the list of pending jobs as a safety net next to the jobs notify topics.
+ * It starts at the minimum interval and doubles the interval, up to the maximum, every time a
+ * response shows no change. A change or a reconnect brings it back to the minimum interval.
+ * There is only ever one poll scheduled, however often it is reset. A reset polls no sooner than
+ * the minimum interval after the last poll, so a burst of reconnects does not flood the broker.
+ * A poll asked for by a notify message only waits out NOTIFY_DEBOUNCE_MS, which folds a burst of
+ * notify messages into one poll without holding the change back for the minimum interval.
+ */
+public class JobsPoller {
+
+    private static final String LOG_TAG = "JobsPoller";
+
+    //shortest time between a poll and one asked for by pollNow
+    static final long NOTIFY_DEBOUNCE_MS = 500;
+
+    private final Runnable poll;
+
+    private final long minIntervalMs;
+
+    private final long maxIntervalMs;
+
+    private final ScheduledExecutorService executor;
+
+    //whether the executor is the poller's own and is shut down with it
+    private final boolean ownExecutor;
+
+    private boolean stopped;
+
+    //the poll waiting to run, null while one runs and none is scheduled after it
+    private ScheduledFuture<?> next;
+
+    //counts the polls scheduled, a starting poll tells by it whether next is its own
+    private long scheduled;
+
+    private long intervalMs;
+
+    //uptime of the last poll, in ms
+    private long lastPollMs = Long.MIN_VALUE / 2;
+
+    /**
+     * @param poll publishes the get-jobs request
+     * @param minIntervalMs interval used after a start, a reconnect or a change in the job list
+     * @param maxIntervalMs upper bound of the interval while nothing changes
+     */
+    public JobsPoller(Runnable poll, long minIntervalMs, long maxIntervalMs) {
+        this(poll, minIntervalMs, maxIntervalMs, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "jobs-poller");
+            }
+        }), true);
+    }
+
+    /**
+     * Polls on a shared executor, e.g. one for many pollers, which is left running on stop.
+     */
+    public JobsPoller(Runnable poll, long minIntervalMs, long maxIntervalMs, ScheduledExecutorService executor) {
+        this(poll, minIntervalMs, maxIntervalMs, executor, false);
+    }
+
+    private JobsPoller(Runnable poll, long minIntervalMs, long maxIntervalMs, ScheduledExecutorService executor,
+                       boolean ownExecutor) {
+        this.poll = poll;
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.intervalMs = minIntervalMs;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * Polls as soon as the minimum interval since the last poll allows and continues at the
+     * minimum interval. Called on every (re)connect.
+     */
+    public synchronized void reset() {
+        intervalMs = minIntervalMs;
+        schedule(soonestDelayMs());
+    }
+
+    /**
+     * Polls once NOTIFY_DEBOUNCE_MS passed since the last poll, without changing the current
+     * interval, e.g. when a notify message says the job list changed. A poll already due sooner
+     * is kept.
+     */
+    public synchronized void pollNow() {
+        long delayMs = Math.max(0, lastPollMs + NOTIFY_DEBOUNCE_MS - now());
+        if (next != null && !next.isDone() && next.getDelay(TimeUnit.MILLISECONDS) <= delayMs)
+            return;
+        schedule(delayMs);
+    }
+
+    private long soonestDelayMs() {
+        return Math.max(0, lastPollMs + minIntervalMs - now());
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Adjusts the interval after a get-jobs response.
+     * @param changed whether the job list differs from the previous response
+     */
+    public synchronized void onJobsResponse(boolean changed) {
+        if (changed) {
+            if (intervalMs != minIntervalMs) {
+                intervalMs = minIntervalMs;
+                schedule(intervalMs);
+            }
+        } else {
+            intervalMs = Math.min(intervalMs * 2, maxIntervalMs);
+        }
+    }
+
+    synchronized long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Stops polling for good.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (next != null)
+            next.cancel(false);
+        if (ownExecutor)
+            executor.shutdownNow();
+    }
+
+    private void schedule(long delayMs) {
+        if (stopped || executor.isShutdown())
+            return;
+        if (next != null)
+            next.cancel(false);
+        final long id = ++scheduled;
+        next = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (JobsPoller.this) {
+                    lastPollMs = now();
+                    if (scheduled == id)
+                        next = null;
+                }
+                try {
+                    poll.run();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "error in polling : " + e.getMessage());
+                }
+                synchronized (JobsPoller.this) {
+                    //a notify during the poll scheduled a sooner one, which is kept
+                    if (next != null && !next.isDone() && next.getDelay(TimeUnit.MILLISECONDS) <= intervalMs)
+                        return;
+                    schedule(intervalMs);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
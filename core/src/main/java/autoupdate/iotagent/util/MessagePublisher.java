@@ -0,0 +1,15 @@
+package autoupdate.iotagent.util;
+
+/**
+ * Something that can publish a message to an mqtt topic. Implemented by IOTHelper, and by broker
+ * stand-ins in tests.
+ */
+public interface MessagePublisher {
+
+    /**
+     * Publishes a message
+     * @param msg the message string
+     * @param topic topic to publish message to
+     */
+    void publish(String msg, String topic);
+}
@@ -0,0 +1,144 @@
+package autoupdate.iotagent.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class dispatches mqtt messages to the handler registered for their topic. Topic filters,
+ * with the + and # wildcards, are compiled into a trie with one node per topic level, so finding
+ * the handler of a message takes one step per level of its topic, however many filters are
+ * registered. When several filters match, the most specific one wins: at every level an exact
+ * level is tried before +, and + before #.
+ * As in MQTT, wildcards at the first level do not match topics starting with $.
+ */
+public class TopicRouter {
+
+    /**
+     * Handles the messages of one topic filter.
+     */
+    public interface Handler {
+        /**
+         * @param topic the topic the message arrived on
+         * @param payload the message payload
+         */
+        void handle(String topic, byte[] payload);
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Node plus;
+        //handler of the filter ending in # below this node
+        Handler hash;
+        //handler of the filter ending at this node
+        Handler handler;
+    }
+
+    private final Node root = new Node();
+
+    private final List<String> filters = new ArrayList<>();
+
+    /**
+     * Registers the handler of a topic filter, replacing the handler registered before for the
+     * same filter.
+     * @param filter the topic filter, + matches one level and # the remaining levels
+     * @param handler handles the messages matching the filter
+     * @throws IllegalArgumentException if # is not the last level or a wildcard is not a whole level
+     */
+    public synchronized void register(String filter, Handler handler) {
+        String[] levels = filter.split("/", -1);
+        Node node = root;
+        for (int i = 0; i < levels.length; ++i) {
+            String level = levels[i];
+            if (level.equals("#")) {
+                if (i != levels.length - 1)
+                    throw new IllegalArgumentException("# must be the last level of " + filter);
+                node.hash = handler;
+                addFilter(filter);
+                return;
+            }
+            if ((level.contains("#") || level.contains("+")) && !level.equals("+"))
+                throw new IllegalArgumentException("wildcard must be a whole level in " + filter);
+            if (level.equals("+")) {
+                if (node.plus == null)
+                    node.plus = new Node();
+                node = node.plus;
+            } else {
+                Node child = node.children.get(level);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(level, child);
+                }
+                node = child;
+            }
+        }
+        node.handler = handler;
+        addFilter(filter);
+    }
+
+    private void addFilter(String filter) {
+        if (!filters.contains(filter))
+            filters.add(filter);
+    }
+
+    /**
+     * @return the registered filters, in the order they were first registered
+     */
+    public synchronized List<String> getFilters() {
+        return new ArrayList<>(filters);
+    }
+
+    /**
+     * Finds the handler for a topic.
+     * @param topic the topic name, without wildcards
+     * @return the handler of the most specific matching filter, or null if no filter matches
+     */
+    public synchronized Handler match(String topic) {
+        return match(root, topic, 0, true);
+    }
+
+    /**
+     * Dispatches a message to the handler of its topic.
+     * @param topic the topic the message arrived on
+     * @param payload the message payload
+     * @return false if no filter matches the topic
+     */
+    public boolean route(String topic, byte[] payload) {
+        Handler handler = match(topic);
+        if (handler == null)
+            return false;
+        handler.handle(topic, payload);
+        return true;
+    }
+
+    /**
+     * Matches the levels of the topic from start on against the subtree of node.
+     */
+    private Handler match(Node node, String topic, int start, boolean first) {
+        boolean wildcardAllowed = !(first && topic.startsWith("$"));
+        if (start > topic.length()) {
+            //all levels consumed, a filter ending here or in # matches, as a/# matches a
+            if (node.handler != null)
+                return node.handler;
+            return node.hash;
+        }
+        int end = topic.indexOf('/', start);
+        if (end < 0)
+            end = topic.length();
+        String level = topic.substring(start, end);
+
+        Node child = node.children.get(level);
+        if (child != null) {
+            Handler handler = match(child, topic, end + 1, false);
+            if (handler != null)
+                return handler;
+        }
+        if (node.plus != null && wildcardAllowed) {
+            Handler handler = match(node.plus, topic, end + 1, false);
+            if (handler != null)
+                return handler;
+        }
+        return wildcardAllowed ? node.hash : null;
+    }
+}
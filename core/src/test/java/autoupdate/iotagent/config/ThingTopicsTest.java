@@ -0,0 +1,35 @@
+package autoupdate.iotagent.config;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThingTopicsTest {
+
+    @Test
+    public void topicsOfTheDevice_followTheJobsTopicLayout() {
+        ThingTopics topics = new ThingTopics(IOTConfigData.DEVICE_ID);
+        String prefix = "$aws/things/" + IOTConfigData.DEVICE_ID + "/jobs/";
+
+        assertEquals(IOTConfigData.DEVICE_ID, topics.getThingName());
+        assertEquals(prefix + "get", topics.getJobs());
+        assertEquals(prefix + "get/accepted", topics.getJobsAccepted());
+        assertEquals(prefix + "job-1/get", topics.describeJob("job-1"));
+        assertEquals(prefix + "+/get/accepted", topics.describeJobAccepted());
+        assertEquals(prefix + "notify", topics.notifyChanged());
+        assertEquals(prefix + "notify-next", topics.notifyNext());
+        assertEquals(prefix + "start-next", topics.startNext());
+        assertEquals(prefix + "start-next/accepted", topics.startNextAccepted());
+        assertEquals(prefix + "start-next/rejected", topics.startNextRejected());
+        assertEquals(prefix + "job-1/update", topics.updateJob("job-1"));
+        assertEquals(prefix + "+/update/rejected", topics.updateJobRejected());
+    }
+
+    @Test
+    public void topicsOfAnotherThing_useItsName() {
+        ThingTopics topics = new ThingTopics("sim-0007");
+
+        assertEquals("$aws/things/sim-0007/jobs/start-next", topics.startNext());
+        assertEquals("$aws/things/sim-0007/jobs/job-1/update", topics.updateJob("job-1"));
+    }
+}
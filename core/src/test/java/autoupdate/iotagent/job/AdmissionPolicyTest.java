@@ -0,0 +1,65 @@
+package autoupdate.iotagent.job;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AdmissionPolicyTest {
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private static AdmissionPolicy policy(String deviceId) {
+        return new AdmissionPolicy(deviceId, 1000, 60000, new Random(5));
+    }
+
+    @Test
+    public void startDelay_isStablePerDeviceAndWithinTheWindow() {
+        AdmissionPolicy policy = policy("device-1");
+        long delay = policy.startDelayMs("job1", HOUR_MS, false);
+
+        assertTrue(delay >= 0 && delay < HOUR_MS);
+        assertEquals(delay, policy("device-1").startDelayMs("job1", HOUR_MS, false));
+    }
+
+    @Test
+    public void startDelay_spreadsAFleetOverTheWindow() {
+        int[] buckets = new int[10];
+        for (int i = 0; i < 10000; ++i)
+            ++buckets[(int) (policy("device-" + i).startDelayMs("job1", HOUR_MS, false) * 10 / HOUR_MS)];
+
+        for (int count : buckets)
+            assertTrue("bucket holds " + count, count > 850 && count < 1150);
+    }
+
+    @Test
+    public void startDelay_isZeroForUrgentJobsAndWithoutWindow() {
+        AdmissionPolicy policy = policy("device-1");
+
+        assertEquals(0, policy.startDelayMs("job1", HOUR_MS, true));
+        assertEquals(0, policy.startDelayMs("job1", 0, false));
+    }
+
+    @Test
+    public void busyDelay_growsUpToTheCapWithJitter() {
+        AdmissionPolicy policy = policy("device-1");
+
+        for (int attempt = 0; attempt < 40; ++attempt) {
+            long backoff = Math.min(1000L << Math.min(attempt, 20), 60000);
+            long delay = policy.busyDelayMs(attempt, -1);
+            assertTrue("attempt " + attempt + " waits " + delay, delay >= backoff && delay < backoff * 3 / 2);
+        }
+    }
+
+    @Test
+    public void busyDelay_neverUndercutsRetryAfter() {
+        AdmissionPolicy policy = policy("device-1");
+
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(policy.busyDelayMs(0, 30000) >= 30000);
+            //a server asking for longer than the cap still gets its way
+            assertTrue(policy.busyDelayMs(10, 2 * HOUR_MS) >= 2 * HOUR_MS);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package autoupdate.iotagent.job;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class JobJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static JobRecord job(String jobId) {
+        return new JobRecord(jobId, "IN_PROGRESS", 3, "claimed", "com.example.app", "42",
+                "https://example.com/a.apk?x=%20", "Example\tApp", 4, true, 7, 123456, "9f86d081884c7d65",
+                new DeltaPatch("https://example.com/41-42.patch", 41, 2048, null),
+                JobMessageParser.INSTALL_MODE_SESSION, false, 65536, 3600, true);
+    }
+
+    @Test
+    public void replay_restoresJobsAfterRestart() throws IOException {
+        File file = folder.newFile("jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        journal.recordJob(job("job1"));
+        journal.recordState("job1", JobTracker.State.DOWNLOADING, -1);
+        journal.recordProgress("job1", 1048576);
+        journal.recordSession("job1", 17);
+        journal.recordJob(job("job2"));
+        journal.recordState("job2", JobTracker.State.FINISHED, 1);
+        journal.recordStatusSent("job2", 1);
+        journal.recordJob(job("job3"));
+        journal.forget("job3");
+        journal.close();
+
+        JobJournal replayed = new JobJournal(file);
+        Iterator<JobJournal.Entry> entries = replayed.getEntries().iterator();
+        JobJournal.Entry job1 = entries.next();
+        assertEquals("job1", job1.getJobId());
+        assertEquals(JobTracker.State.DOWNLOADING, job1.getState());
+        assertEquals(1048576, job1.getBytesDownloaded());
+        assertEquals("Example\tApp", job1.getJob().getAppName());
+        assertEquals("https://example.com/a.apk?x=%20", job1.getJob().getUrl());
+        assertTrue(job1.getJob().isMandatory());
+        assertEquals(7, job1.getJob().getPriority());
+        assertEquals("9f86d081884c7d65", job1.getJob().getSha256());
+        assertEquals("https://example.com/41-42.patch", job1.getJob().getDelta().getUrl());
+        assertEquals(41, job1.getJob().getDelta().getBaseVersion());
+        assertEquals(2048, job1.getJob().getDelta().getSize());
+        assertNull(job1.getJob().getDelta().getSha256());
+        assertEquals(JobMessageParser.INSTALL_MODE_SESSION, job1.getJob().getInstallMode());
+        assertFalse(job1.getJob().isAllowMetered());
+        assertEquals(65536, job1.getJob().getMaxBytesPerSec());
+        assertEquals(3600, job1.getJob().getRolloutWindowSec());
+        assertTrue(job1.getJob().isUrgent());
+        assertEquals(17, job1.getSessionId());
+        JobJournal.Entry job2 = entries.next();
+        assertEquals(1, job2.getFinalStatus());
+        assertEquals(1, job2.getLastStatusSent());
+        assertEquals(-1, job2.getSessionId());
+        assertFalse(entries.hasNext());
+        replayed.close();
+    }
+
+    @Test
+    public void replay_dropsTornTail() throws IOException {
+        File file = folder.newFile("jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        journal.recordJob(job("job1"));
+        journal.recordState("job1", JobTracker.State.DOWNLOADING, -1);
+        journal.close();
+        //a crash in the middle of the next append
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("1234abcd\tS\tjob1\tDELIV".getBytes("UTF-8"));
+        }
+
+        journal = new JobJournal(file);
+        assertEquals(JobTracker.State.DOWNLOADING, journal.getEntries().iterator().next().getState());
+        //the journal is usable again after the torn record was cut off
+        journal.recordState("job1", JobTracker.State.DELIVERED, -1);
+        journal.close();
+        assertEquals(JobTracker.State.DELIVERED, new JobJournal(file).getEntries().iterator().next().getState());
+    }
+
+    @Test
+    public void compaction_keepsLiveState() throws IOException {
+        File file = folder.newFile("jobs.journal");
+        JobJournal journal = new JobJournal(file);
+        journal.recordJob(job("job1"));
+        journal.recordSession("job1", 17);
+        for (int i = 0; i < JobJournal.COMPACT_THRESHOLD + 10; ++i)
+            journal.recordProgress("job1", i);
+        journal.close();
+
+        assertTrue("journal should have been compacted, size " + file.length(), file.length() < 10 * 1024);
+        JobJournal.Entry job1 = new JobJournal(file).getEntries().iterator().next();
+        assertEquals(JobJournal.COMPACT_THRESHOLD + 9, job1.getBytesDownloaded());
+        assertEquals(17, job1.getSessionId());
+    }
+
+    @Test
+    public void replay_readsJobRecordsWrittenBeforeTheSha256Field() throws IOException {
+        File file = folder.newFile("jobs.journal");
+        //a job record as written by an earlier version, without the sha256 field
+        String payload = "J\told\t1\tcom.example.app\t2\tapp\thttps://example.com/a.apk\t4\tfalse\t0\t-1";
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(StandardCharsets.UTF_8));
+        Files.write(file.toPath(), (Long.toHexString(crc.getValue()) + "\t" + payload + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        JobJournal.Entry entry = new JobJournal(file).getEntries().iterator().next();
+
+        assertEquals("old", entry.getJobId());
+        assertNull(entry.getJob().getSha256());
+        assertNull(entry.getJob().getDelta());
+        assertEquals(JobMessageParser.INSTALL_MODE_BROADCAST, entry.getJob().getInstallMode());
+        assertTrue(entry.getJob().isAllowMetered());
+        assertEquals(0, entry.getJob().getMaxBytesPerSec());
+        assertEquals(0, entry.getJob().getRolloutWindowSec());
+        assertFalse(entry.getJob().isUrgent());
+    }
+}
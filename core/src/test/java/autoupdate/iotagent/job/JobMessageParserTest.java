@@ -0,0 +1,157 @@
+package autoupdate.iotagent.job;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class JobMessageParserTest {
+
+    private static final String EXECUTION = "{\"clientToken\":\"123\",\"timestamp\":1572364342,"
+            + "\"execution\":{\"jobId\":\"update-app-42\",\"status\":\"IN_PROGRESS\","
+            + "\"statusDetails\":{\"stage\":\"claimed\",\"note\":[1,{\"a\":\"}\"}]},"
+            + "\"queuedAt\":1572364000,\"startedAt\":1572364100,\"lastUpdatedAt\":1572364200,"
+            + "\"versionNumber\":3,\"executionNumber\":1,"
+            + "\"jobDocument\":{\"packageName\":\"com.example.app\",\"latestVersion\":\"2.1\","
+            + "\"s3URL\":\"https://bucket.s3.amazonaws.com/app.apk?X-Amz-Signature=ab\\/cd\","
+            + "\"appName\":\"Caf\\u00e9 \u00fcber\",\"segments\":2,\"mandatory\":true,\"priority\":\"7\","
+            + "\"size\":12345678,\"sha256\":\"9f86d081884c7d65\",\"changelog\":\"fixes \\\"quoted\\\" things\",\"extra\":null}}}";
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void parseExecution_readsNeededFieldsAndSkipsTheRest() throws Exception {
+        JobRecord job = JobMessageParser.parseExecution(bytes(EXECUTION), 4);
+
+        assertEquals("update-app-42", job.getJobId());
+        assertEquals("IN_PROGRESS", job.getStatus());
+        assertEquals(3, job.getVersionNumber());
+        assertEquals("claimed", job.getStage());
+        assertEquals("com.example.app", job.getPackageName());
+        assertEquals("2.1", job.getLatestVersion());
+        assertEquals("https://bucket.s3.amazonaws.com/app.apk?X-Amz-Signature=ab/cd", job.getUrl());
+        assertEquals("Caf\u00e9 \u00fcber", job.getAppName());
+        assertEquals(2, job.getSegments());
+        assertTrue(job.isMandatory());
+        assertEquals(7, job.getPriority());
+        assertEquals(12345678, job.getSize());
+        assertEquals("9f86d081884c7d65", job.getSha256());
+    }
+
+    @Test
+    public void parseExecution_appliesDefaults() throws Exception {
+        JobRecord job = JobMessageParser.parseExecution(bytes("{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\","
+                + "\"jobDocument\":{\"packageName\":\"p\",\"latestVersion\":\"1\",\"s3URL\":\"u\",\"appName\":\"a\"}}}"), 4);
+
+        assertEquals(0, job.getVersionNumber());
+        assertEquals("", job.getStage());
+        assertEquals(4, job.getSegments());
+        assertFalse(job.isMandatory());
+        assertEquals(-1, job.getSize());
+        assertNull(job.getSha256());
+        assertNull(job.getDelta());
+        assertEquals(JobMessageParser.INSTALL_MODE_BROADCAST, job.getInstallMode());
+        assertTrue(job.isAllowMetered());
+        assertEquals(0, job.getMaxBytesPerSec());
+        assertEquals(0, job.getRolloutWindowSec());
+        assertFalse(job.isUrgent());
+    }
+
+    @Test
+    public void parseExecution_readsRolloutWindow() throws Exception {
+        JobRecord job = JobMessageParser.parseExecution(bytes("{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\","
+                + "\"jobDocument\":{\"packageName\":\"p\",\"latestVersion\":\"1\",\"s3URL\":\"u\",\"appName\":\"a\","
+                + "\"rolloutWindowSec\":7200,\"urgent\":true}}}"), 4);
+
+        assertEquals(7200, job.getRolloutWindowSec());
+        assertTrue(job.isUrgent());
+    }
+
+    @Test
+    public void parseExecution_readsNetworkHints() throws Exception {
+        JobRecord job = JobMessageParser.parseExecution(bytes("{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\","
+                + "\"jobDocument\":{\"packageName\":\"p\",\"latestVersion\":\"1\",\"s3URL\":\"u\",\"appName\":\"a\","
+                + "\"allowMetered\":false,\"maxBytesPerSec\":131072}}}"), 4);
+
+        assertFalse(job.isAllowMetered());
+        assertEquals(131072, job.getMaxBytesPerSec());
+    }
+
+    @Test
+    public void parseExecution_readsDeltaPatchAndInstallMode() throws Exception {
+        JobRecord job = JobMessageParser.parseExecution(bytes("{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\","
+                + "\"jobDocument\":{\"packageName\":\"p\",\"latestVersion\":\"42\",\"s3URL\":\"u\",\"appName\":\"a\","
+                + "\"deltaURL\":\"d\",\"deltaBaseVersion\":\"41\",\"deltaSize\":2048,\"deltaSha256\":\"ab\","
+                + "\"installMode\":\"session\"}}}"), 4);
+
+        assertEquals("d", job.getDelta().getUrl());
+        assertEquals(41, job.getDelta().getBaseVersion());
+        assertEquals(2048, job.getDelta().getSize());
+        assertEquals("ab", job.getDelta().getSha256());
+        assertEquals(JobMessageParser.INSTALL_MODE_SESSION, job.getInstallMode());
+
+        JobRecord withoutBase = JobMessageParser.parseExecution(bytes("{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\","
+                + "\"jobDocument\":{\"packageName\":\"p\",\"latestVersion\":\"42\",\"s3URL\":\"u\",\"appName\":\"a\","
+                + "\"deltaURL\":\"d\"}}}"), 4);
+        assertNull(withoutBase.getDelta());
+    }
+
+    @Test
+    public void parseExecution_readsANumericLatestVersionAsText() throws Exception {
+        JobRecord job = JobMessageParser.parseExecution(bytes("{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\","
+                + "\"jobDocument\":{\"packageName\":\"p\",\"latestVersion\":42,\"s3URL\":\"u\",\"appName\":\"a\","
+                + "\"installMode\":null}}}"), 4);
+
+        assertEquals("42", job.getLatestVersion());
+        assertEquals(JobMessageParser.INSTALL_MODE_BROADCAST, job.getInstallMode());
+    }
+
+    @Test
+    public void parseExecution_returnsNullWithoutExecution() throws Exception {
+        assertNull(JobMessageParser.parseExecution(bytes("{\"clientToken\":\"123\",\"timestamp\":1}"), 4));
+        assertNull(JobMessageParser.parseExecution(bytes("{\"execution\":null}"), 4));
+        assertNull(JobMessageParser.parseExecution(bytes("{}"), 4));
+    }
+
+    @Test
+    public void parseExecution_rejectsMalformedMessages() {
+        String[] malformed = {
+                "",
+                "{\"execution\":{\"jobId\":\"j\"",
+                "{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\"}}",
+                "{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\",\"jobDocument\":{\"packageName\":\"p\"}}}",
+                "{\"execution\":{\"jobId\":\"j\",\"status\":\"QUEUED\",\"jobDocument\":{\"packageName\":\"p\",\"latestVersion\":\"1\",\"s3URL\":\"u\",\"appName\":\"a\"}}",
+                "[1,2]",
+        };
+        for (String message : malformed) {
+            try {
+                JobMessageParser.parseExecution(bytes(message), 4);
+                fail("accepted " + message);
+            } catch (JobMessageParser.MalformedMessageException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void parseJobList_readsIdsAndVersions() throws Exception {
+        JobList jobs = JobMessageParser.parseJobList(bytes("{\"inProgressJobs\":[{\"jobId\":\"a\",\"versionNumber\":2,"
+                + "\"queuedAt\":1}],\"queuedJobs\":[{\"jobId\":\"b\",\"executionNumber\":1},{\"jobId\":\"c\",\"versionNumber\":1}],"
+                + "\"timestamp\":1,\"clientToken\":\"123\"}"));
+
+        assertEquals(1, jobs.getInProgress().size());
+        assertEquals("a", jobs.getInProgress().get(0).getJobId());
+        assertEquals(2, jobs.getInProgress().get(0).getVersionNumber());
+        assertEquals("IN_PROGRESS", jobs.getInProgress().get(0).getStatus());
+        assertEquals(2, jobs.getQueued().size());
+        assertEquals("b", jobs.getQueued().get(0).getJobId());
+        assertEquals(0, jobs.getQueued().get(0).getVersionNumber());
+        assertEquals("c", jobs.getQueued().get(1).getJobId());
+
+        JobList empty = JobMessageParser.parseJobList(bytes("{\"inProgressJobs\":[],\"queuedJobs\":[]}"));
+        assertTrue(empty.getInProgress().isEmpty());
+        assertTrue(empty.getQueued().isEmpty());
+    }
+}
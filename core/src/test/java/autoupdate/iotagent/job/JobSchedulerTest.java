@@ -0,0 +1,182 @@
+package autoupdate.iotagent.job;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JobSchedulerTest {
+
+    private final JobScheduler scheduler = new JobScheduler(1);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Task that blocks until released and records the order it ran in.
+     */
+    private static class RecordingTask extends JobTask {
+        final List<String> order;
+        final CountDownLatch release;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean interrupted;
+
+        RecordingTask(String jobId, boolean mandatory, int priority, long size, List<String> order, CountDownLatch release) {
+            super(jobId, mandatory, priority, size);
+            this.order = order;
+            this.release = release;
+        }
+
+        @Override
+        protected void execute() {
+            order.add(jobId);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void queuedTasks_runByMandatoryPriorityThenSize() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingTask blocker = new RecordingTask("blocker", false, 0, -1, order, gate);
+        scheduler.submit(blocker);
+        assertTrue(blocker.started.await(2, TimeUnit.SECONDS));
+
+        CountDownLatch open = new CountDownLatch(0);
+        List<RecordingTask> tasks = new ArrayList<>();
+        tasks.add(new RecordingTask("unknown-size", false, 0, -1, order, open));
+        tasks.add(new RecordingTask("large", false, 0, 50000000, order, open));
+        tasks.add(new RecordingTask("small", false, 0, 1000, order, open));
+        tasks.add(new RecordingTask("priority", false, 5, 90000000, order, open));
+        tasks.add(new RecordingTask("mandatory", true, 0, 90000000, order, open));
+        for (RecordingTask task : tasks)
+            assertTrue(scheduler.submit(task));
+        gate.countDown();
+        for (RecordingTask task : tasks)
+            assertTrue(task.done.await(2, TimeUnit.SECONDS));
+
+        assertEquals(new ArrayList<String>() {{
+            add("blocker");
+            add("mandatory");
+            add("priority");
+            add("small");
+            add("large");
+            add("unknown-size");
+        }}, order);
+    }
+
+    @Test
+    public void concurrency_isBounded() throws InterruptedException {
+        JobScheduler pool = new JobScheduler(2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; ++i) {
+            pool.submit(new JobTask("job" + i, false, 0, -1) {
+                @Override
+                protected void execute() {
+                    int now = running.incrementAndGet();
+                    peak.accumulateAndGet(now, Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ignored) {
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, peak.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void cancel_interruptsRunningAndDropsQueued() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch never = new CountDownLatch(1);
+        RecordingTask running = new RecordingTask("running", false, 0, -1, order, never);
+        RecordingTask queued = new RecordingTask("queued", false, 0, -1, order, never);
+        scheduler.submit(running);
+        assertTrue(running.started.await(2, TimeUnit.SECONDS));
+        scheduler.submit(queued);
+        assertFalse("duplicate job must not be scheduled twice", scheduler.submit(
+                new RecordingTask("queued", false, 0, -1, order, never)));
+
+        assertTrue(scheduler.cancel("queued"));
+        assertTrue(scheduler.cancel("running"));
+        assertTrue(running.done.await(2, TimeUnit.SECONDS));
+
+        assertTrue(running.interrupted);
+        assertEquals(Collections.singletonList("running"), order);
+        assertFalse(scheduler.isScheduled("running"));
+    }
+
+    @Test
+    public void delayedTask_holdsItsJobWithoutAThread() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch open = new CountDownLatch(0);
+        RecordingTask delayed = new RecordingTask("delayed", false, 0, -1, order, open);
+        RecordingTask now = new RecordingTask("now", false, 0, -1, order, open);
+        assertTrue(scheduler.submit(delayed, 300));
+        assertTrue(scheduler.submit(now));
+        assertFalse(scheduler.submit(new RecordingTask("delayed", false, 0, -1, order, open)));
+
+        assertTrue(now.done.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(scheduler.isScheduled("delayed"));
+        assertTrue(delayed.done.await(2, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("now", "delayed"), order);
+    }
+
+    @Test
+    public void cancel_dropsADelayedTask() throws InterruptedException {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        RecordingTask delayed = new RecordingTask("delayed", false, 0, -1, order, new CountDownLatch(0));
+        scheduler.submit(delayed, 200);
+
+        assertTrue(scheduler.cancel("delayed"));
+        Thread.sleep(400);
+
+        assertTrue(order.isEmpty());
+        assertFalse(scheduler.isScheduled("delayed"));
+    }
+
+    @Test
+    public void retryLater_runsTheTaskAgain() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(new JobTask("busy", false, 0, -1) {
+            @Override
+            protected void execute() {
+                if (runs.incrementAndGet() < 3)
+                    retryLater(100);
+                else
+                    done.countDown();
+            }
+        });
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(3, runs.get());
+        Thread.sleep(50);
+        assertFalse(scheduler.isScheduled("busy"));
+    }
+}
@@ -0,0 +1,38 @@
+package autoupdate.iotagent.job;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import autoupdate.iotagent.config.IOTConfigData;
+
+import static org.junit.Assert.*;
+
+public class JobStatusEncoderTest {
+
+    @Test
+    public void encodeUpdate_writesStatusAndStage() throws Exception {
+        JSONObject update = new JSONObject(JobStatusEncoder.encodeUpdate(IOTConfigData.STATUS_INPROGRESS, "delivered"));
+
+        assertEquals(123, update.getInt("clientToken"));
+        assertEquals(10000, update.getInt("stepTimeoutInMinutes"));
+        assertEquals("IN_PROGRESS", update.getString("status"));
+        assertEquals("delivered", update.getJSONObject("statusDetails").getString("stage"));
+    }
+
+    @Test
+    public void encodeUpdate_leavesOutWhatIsNotGiven() throws Exception {
+        JSONObject update = new JSONObject(JobStatusEncoder.encodeUpdate(42, null));
+
+        assertFalse(update.has("status"));
+        assertFalse(update.has("statusDetails"));
+    }
+
+    @Test
+    public void encodeStartNext_escapesTheStage() throws Exception {
+        JSONObject request = new JSONObject(JobStatusEncoder.encodeStartNext("a \"b\" \\ c\n"));
+
+        assertEquals("123", request.getString("clientToken"));
+        assertEquals("a \"b\" \\ c\n", request.getJSONObject("statusDetails").getString("stage"));
+    }
+
+}
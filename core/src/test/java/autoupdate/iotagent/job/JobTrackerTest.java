@@ -0,0 +1,87 @@
+package autoupdate.iotagent.job;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JobTrackerTest {
+
+    private final JobTracker tracker = new JobTracker();
+
+    private static Map<String, Long> pending(Object... idsAndVersions) {
+        Map<String, Long> pending = new HashMap<>();
+        for (int i = 0; i < idsAndVersions.length; i += 2)
+            pending.put((String) idsAndVersions[i], ((Number) idsAndVersions[i + 1]).longValue());
+        return pending;
+    }
+
+    @Test
+    public void describe_isSentOncePerVersion() {
+        assertTrue(tracker.shouldDescribe("job1", 1));
+        assertFalse(tracker.shouldDescribe("job1", 1));
+        assertTrue(tracker.start("job1", 1, "com.example", "2"));
+        tracker.transition("job1", JobTracker.State.DOWNLOADING);
+        assertFalse(tracker.shouldDescribe("job1", 1));
+        assertTrue("a new version starts over", tracker.shouldDescribe("job1", 2));
+    }
+
+    @Test
+    public void start_runsAnExecutionAtMostOnce() {
+        assertTrue(tracker.start("job1", 3, "com.example", "2"));
+        assertFalse(tracker.start("job1", 3, "com.example", "2"));
+        tracker.transition("job1", JobTracker.State.DELIVERED);
+        assertFalse(tracker.start("job1", 3, "com.example", "2"));
+        assertEquals(1, tracker.getDelivered().size());
+    }
+
+    @Test
+    public void reconcile_cancelsDownloadsOfJobsNoLongerPending() {
+        tracker.start("gone", 1, "com.example", "2");
+        tracker.transition("gone", JobTracker.State.DOWNLOADING);
+        tracker.start("kept", 1, "com.example", "2");
+        tracker.transition("kept", JobTracker.State.DOWNLOADING);
+        tracker.shouldDescribe("describing", 1);
+
+        List<String> cancelled = tracker.reconcile(pending("kept", 1));
+
+        assertEquals(Collections.singletonList("gone"), cancelled);
+        assertNull(tracker.getState("gone"));
+        assertNull(tracker.getState("describing"));
+        assertEquals(JobTracker.State.DOWNLOADING, tracker.getState("kept"));
+    }
+
+    @Test
+    public void reconcile_ignoresStaleVersionsAndFollowsOwnUpdates() {
+        tracker.start("job1", 5, "com.example", "2");
+        tracker.transition("job1", JobTracker.State.DOWNLOADING);
+        tracker.start("job2", 5, "com.example", "2");
+        tracker.transition("job2", JobTracker.State.DELIVERED);
+
+        //a response older than the claim of job1 still lists version 4
+        assertTrue(tracker.reconcile(pending("job1", 4, "job2", 5)).isEmpty());
+        assertEquals(JobTracker.State.DOWNLOADING, tracker.getState("job1"));
+
+        //job2's own IN_PROGRESS update bumped its version
+        assertTrue(tracker.reconcile(pending("job1", 5, "job2", 6)).isEmpty());
+        assertEquals(JobTracker.State.DELIVERED, tracker.getState("job2"));
+        assertFalse(tracker.shouldDescribe("job2", 6));
+    }
+
+    @Test
+    public void statusPublished_keepsADownloadingJobAcrossItsOwnUpdate() {
+        tracker.start("job1", 2, "com.example", "2");
+        tracker.transition("job1", JobTracker.State.DOWNLOADING);
+        //the stage update sent after start-next claimed the job
+        tracker.statusPublished("job1");
+
+        assertTrue(tracker.reconcile(pending("job1", 3)).isEmpty());
+        assertEquals(JobTracker.State.DOWNLOADING, tracker.getState("job1"));
+        assertFalse(tracker.shouldDescribe("job1", 3));
+        assertFalse(tracker.start("job1", 3, "com.example", "2"));
+    }
+}
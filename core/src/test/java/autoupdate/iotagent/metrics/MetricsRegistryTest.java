@@ -0,0 +1,156 @@
+package autoupdate.iotagent.metrics;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import autoupdate.iotagent.util.MessagePublisher;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void counter_countsAcrossThreads() throws InterruptedException {
+        MetricsRegistry registry = new MetricsRegistry();
+        final Counter counter = registry.counter("events");
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; ++j)
+                        counter.increment();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(40000, counter.get());
+        assertSame(counter, registry.counter("events"));
+    }
+
+    @Test
+    public void histogram_bucketsValuesAndEstimatesPercentiles() {
+        Histogram histogram = new Histogram(new long[]{10, 100, 1000});
+        for (int i = 0; i < 90; ++i)
+            histogram.record(5);
+        for (int i = 0; i < 9; ++i)
+            histogram.record(50);
+        histogram.record(5000);
+
+        assertArrayEquals(new long[]{90, 9, 0, 1}, histogram.getCounts());
+        assertEquals(100, histogram.getCount());
+        assertEquals(90 * 5 + 9 * 50 + 5000, histogram.getSum());
+        assertEquals(5000, histogram.getMax());
+        assertEquals(10, histogram.getPercentile(0.5));
+        assertEquals(10, histogram.getPercentile(0.9));
+        assertEquals(100, histogram.getPercentile(0.99));
+        //the overflow bucket has no bound, the max stands in for it
+        assertEquals(5000, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void histogram_boundsOnTheEdgeGoToTheLowerBucket() {
+        Histogram histogram = new Histogram(new long[]{10, 100});
+        histogram.record(10);
+        histogram.record(11);
+
+        assertArrayEquals(new long[]{1, 1, 0}, histogram.getCounts());
+        //a percentile is never above the largest value seen
+        assertEquals(11, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void histogram_emptyReadsAsZero() {
+        Histogram histogram = new Histogram(Histogram.exponentialBounds(1, 2, 4));
+
+        assertArrayEquals(new long[]{1, 2, 4, 8}, histogram.getBounds());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void compactSnapshot_leavesOutZeros() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("used").add(3);
+        registry.counter("unused");
+        registry.histogram("latency", new long[]{10, 100}).record(42);
+        registry.histogram("idle", new long[]{10, 100});
+        registry.gauge("depth", new Gauge() {
+            @Override
+            public long value() {
+                return 7;
+            }
+        });
+        registry.gauge("empty", new Gauge() {
+            @Override
+            public long value() {
+                return 0;
+            }
+        });
+
+        JSONObject compact = registry.compactSnapshot();
+        assertEquals(3, compact.getJSONObject("c").getLong("used"));
+        assertFalse(compact.getJSONObject("c").has("unused"));
+        assertEquals(7, compact.getJSONObject("g").getLong("depth"));
+        assertFalse(compact.getJSONObject("g").has("empty"));
+        assertFalse(compact.getJSONObject("h").has("idle"));
+        JSONArray latency = compact.getJSONObject("h").getJSONArray("latency");
+        assertEquals(6, latency.length());
+        assertEquals(1, latency.getLong(0));
+        assertEquals(42, latency.getLong(5));
+
+        JSONObject full = registry.snapshot();
+        assertEquals(0, full.getJSONObject("counters").getLong("unused"));
+        assertEquals(3, full.getJSONObject("histograms").getJSONObject("latency").getJSONArray("counts").length());
+    }
+
+    @Test
+    public void writeTo_replacesTheFile() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        File file = new File(folder.getRoot(), "metrics.json");
+        registry.counter("writes").increment();
+        registry.writeTo(file);
+        registry.counter("writes").increment();
+        registry.writeTo(file);
+
+        JSONObject written = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertEquals(2, written.getJSONObject("counters").getLong("writes"));
+        assertFalse(new File(folder.getRoot(), "metrics.json.tmp").exists());
+    }
+
+    @Test
+    public void report_writesFileAndPublishesTelemetry() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("jobs").increment();
+        final List<String> published = new ArrayList<>();
+        File file = new File(folder.getRoot(), "metrics.json");
+        MetricsReporter reporter = new MetricsReporter(registry, file, new MessagePublisher() {
+            @Override
+            public void publish(String msg, String topic) {
+                published.add(topic + " " + msg);
+            }
+        }, "metrics/topic");
+
+        reporter.report();
+
+        assertTrue(file.exists());
+        assertEquals(1, published.size());
+        assertTrue(published.get(0).startsWith("metrics/topic "));
+        assertTrue(published.get(0).contains("\"jobs\":1"));
+    }
+}
@@ -0,0 +1,135 @@
+package autoupdate.iotagent.payload;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.config.ThingTopics;
+import autoupdate.iotagent.job.JobMessageParser;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobStatusEncoder;
+
+import static org.junit.Assert.*;
+
+public class PayloadCodecTest {
+
+    private static final String EXECUTION = "{\"clientToken\":\"123\",\"timestamp\":1572364342,"
+            + "\"execution\":{\"jobId\":\"update-app-42\",\"status\":\"IN_PROGRESS\","
+            + "\"statusDetails\":{\"stage\":\"claimed\"},\"versionNumber\":3,\"executionNumber\":1,"
+            + "\"jobDocument\":{\"packageName\":\"com.example.app\",\"latestVersion\":\"2.1\","
+            + "\"s3URL\":\"https://bucket.s3.amazonaws.com/app.apk\",\"appName\":\"Example\","
+            + "\"mandatory\":true,\"priority\":7,\"size\":12345678,\"ratio\":0.25}}}";
+
+    private static final String TELEMETRY = "{\"t\":1572364342,\"c\":{\"download.bytes\":48234112,"
+            + "\"download.succeeded\":3,\"job.messages\":17,\"job.status_updates\":9,\"job.succeeded\":3,"
+            + "\"mqtt.bytes_in\":18342,\"mqtt.bytes_out\":6231,\"mqtt.messages\":17,\"mqtt.publishes\":12,"
+            + "\"mqtt.subscribes\":6},\"g\":{\"apk_cache.bytes\":96468224,\"apk_cache.hits\":1,"
+            + "\"apk_cache.misses\":3,\"mqtt.connects\":1,\"mqtt.keep_alive_s\":300,\"mqtt.total_uptime_ms\":3600412,"
+            + "\"mqtt.uptime_ms\":3600412,\"outbound.drain_rate\":4,\"package_cache.hits\":5,"
+            + "\"package_cache.misses\":1},\"h\":{\"download.throughput_kbps\":[3,61203,20480,24576,24576,24001],"
+            + "\"download.time_ms\":[3,7934,2048,4096,4096,3310],\"job.end_to_end_ms\":[3,12877,4096,8192,8192,5120],"
+            + "\"job.message_parse_us\":[17,1190,64,128,256,201],\"loop.queue_delay_us\":[52,4411,40,160,640,602]}}";
+
+    private static final String OWN_TOPIC = "iotagent/thing/metrics";
+
+    private static String decode(byte[] payload) throws Exception {
+        return new String(PayloadCodec.decode(payload), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void reservedTopics_alwaysGetJson() {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.CBOR);
+        String update = JobStatusEncoder.encodeUpdate(IOTConfigData.STATUS_SUCCEEDED, null);
+        String topic = new ThingTopics("thing").updateJob("job-1");
+
+        assertEquals(PayloadCodec.Encoding.JSON, codec.encodingFor(topic));
+        assertArrayEquals(update.getBytes(StandardCharsets.UTF_8), codec.encode(update, topic));
+        assertEquals(PayloadCodec.Encoding.CBOR, codec.encodingFor(OWN_TOPIC));
+    }
+
+    @Test
+    public void deflate_roundTripsAndShrinksTelemetry() throws Exception {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.DEFLATE);
+
+        byte[] telemetryPayload = codec.encode(TELEMETRY, OWN_TOPIC);
+        byte[] executionPayload = codec.encode(EXECUTION, OWN_TOPIC);
+
+        assertEquals(TELEMETRY, decode(telemetryPayload));
+        assertEquals(EXECUTION, decode(executionPayload));
+        //the dictionary holds every metric name, plain deflate gets the report down to 372 bytes
+        assertEquals(736, TELEMETRY.length());
+        assertEquals(174, telemetryPayload.length);
+    }
+
+    @Test
+    public void deflate_sendsJsonWhenItWouldNotShrink() throws Exception {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.DEFLATE);
+
+        assertEquals("{}", new String(codec.encode("{}", OWN_TOPIC), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void cbor_roundTripsToEquivalentJson() throws Exception {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.Encoding.CBOR);
+        String message = "{\"s\":\"\\u00e9\\\"x\",\"n\":-1,\"big\":-4294967297,\"d\":-0.5,\"t\":true,\"f\":false,"
+                + "\"z\":null,\"a\":[1,255,65536,[]],\"o\":{}}";
+
+        byte[] payload = codec.encode(EXECUTION, OWN_TOPIC);
+
+        assertEquals(312, payload.length);
+        assertEquals(new JSONObject(EXECUTION).toString(), new JSONObject(decode(payload)).toString());
+        assertEquals(new JSONObject(message).toString(),
+                new JSONObject(decode(codec.encode(message, OWN_TOPIC))).toString());
+    }
+
+    @Test
+    public void decodedPayloads_parseLikeJson() throws Exception {
+        for (PayloadCodec.Encoding encoding : PayloadCodec.Encoding.values()) {
+            byte[] payload = new PayloadCodec(encoding).encode(EXECUTION, OWN_TOPIC);
+            JobRecord execution = JobMessageParser.parseExecution(PayloadCodec.decode(payload), 1);
+
+            assertEquals(encoding.name(), "update-app-42", execution.getJobId());
+            assertEquals(encoding.name(), 12345678, execution.getSize());
+        }
+    }
+
+    @Test
+    public void cbor_readsHalfFloatsAndTags() throws Exception {
+        //tag 1 (epoch time) on a half float 1.5, in a one entry map
+        byte[] payload = {PayloadCodec.MARKER_CBOR, (byte) 0xa1, 0x61, 't', (byte) 0xc1, (byte) 0xf9, 0x3e, 0x00};
+
+        assertEquals("{\"t\":1.5}", decode(payload));
+    }
+
+    @Test
+    public void malformedPayloads_areRefused() {
+        byte[][] payloads = {
+                {PayloadCodec.MARKER_DEFLATE, 0x12, 0x34},
+                {PayloadCodec.MARKER_CBOR, (byte) 0xa1, 0x61},
+                {PayloadCodec.MARKER_CBOR, 0x7a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff},
+                {PayloadCodec.MARKER_CBOR, (byte) 0xa1, 0x01, 0x01},
+                {PayloadCodec.MARKER_CBOR, 0x01, 0x01},
+        };
+        for (byte[] payload : payloads) {
+            try {
+                PayloadCodec.decode(payload);
+                fail("decoded " + payload.length + " byte payload");
+            } catch (PayloadCodec.MalformedPayloadException expected) {
+                //refused
+            }
+        }
+    }
+
+    @Test
+    public void deflateBomb_isRefused() {
+        byte[] zeros = new byte[PayloadCodec.MAX_DECODED_BYTES * 2];
+        try {
+            PayloadCodec.decode(PayloadCodec.deflate(zeros));
+            fail();
+        } catch (PayloadCodec.MalformedPayloadException expected) {
+            //refused
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package autoupdate.iotagent.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.job.AdmissionPolicy;
+import autoupdate.iotagent.job.JobList;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobTracker;
+
+import static org.junit.Assert.*;
+
+public class JobEvaluatorTest {
+
+    //installed version of every app, apps not listed are not installed
+    private final Map<String, String> installed = new HashMap<>();
+
+    //what the evaluator asked for, in order
+    private final List<String> actions = new ArrayList<>();
+
+    private JobEvaluator evaluator;
+
+    @Before
+    public void setUp() {
+        installed.put("com.example.app", "1");
+        evaluator = new JobEvaluator(new JobEvaluator.InstalledVersions() {
+            @Override
+            public boolean isInstalled(String packageName) {
+                return installed.containsKey(packageName);
+            }
+
+            @Override
+            public boolean needsUpdate(String packageName, String latestVersion) {
+                return Long.parseLong(installed.get(packageName)) < Long.parseLong(latestVersion);
+            }
+
+            @Override
+            public Map<String, Boolean> needsUpdate(Map<String, String> latestVersions) {
+                actions.add("check " + latestVersions.keySet());
+                Map<String, Boolean> result = new HashMap<>();
+                for (Map.Entry<String, String> entry : latestVersions.entrySet())
+                    result.put(entry.getKey(), needsUpdate(entry.getKey(), entry.getValue()));
+                return result;
+            }
+        }, new JobEvaluator.Actions() {
+            @Override
+            public void describe(String jobId) {
+                actions.add("describe " + jobId);
+            }
+
+            @Override
+            public void requestNext() {
+                actions.add("start-next");
+            }
+
+            @Override
+            public boolean publishStatus(int status, String jobId, String stage) {
+                actions.add("status " + jobId + " " + status + (stage == null ? "" : " " + stage));
+                return true;
+            }
+
+            @Override
+            public void onJobReceived(JobRecord job) {
+            }
+
+            @Override
+            public void onStateChanged(String jobId, JobTracker.State state, int finalStatus) {
+            }
+
+            @Override
+            public void startDownload(JobRecord job, long delayMs) {
+                actions.add("download " + job.getJobId() + " in " + delayMs);
+            }
+
+            @Override
+            public void cancelDownload(String jobId) {
+                actions.add("cancel " + jobId);
+            }
+        }, new AdmissionPolicy("thing", 1000, 60000));
+    }
+
+    private static JobRecord execution(String jobId, String status, String stage, String packageName, String version) {
+        return new JobRecord(jobId, status, 2, stage, packageName, version, "https://example.com/a.apk", "Example", 1,
+                false, 0, -1, null, null, null, true, 0, 0, false);
+    }
+
+    private static JobRecord summary(String jobId, long versionNumber) {
+        return JobRecord.summary(jobId, "QUEUED", versionNumber);
+    }
+
+    @Test
+    public void execution_startedByStartNextIsClaimedAndDownloaded() {
+        assertFalse(evaluator.handleJobExecution(execution("job1", "IN_PROGRESS", "", "com.example.app", "2")));
+
+        assertEquals(Arrays.asList("status job1 " + IOTConfigData.STATUS_INPROGRESS + " " + IOTConfigData.STAGE_CLAIMED,
+                "download job1 in 0"), actions);
+        assertEquals(JobTracker.State.DOWNLOADING, evaluator.getTracker().getState("job1"));
+    }
+
+    @Test
+    public void execution_finishesRightAwayWhenNothingIsToDo() {
+        assertTrue(evaluator.handleJobExecution(execution("job1", "QUEUED", "", "com.example.other", "2")));
+        assertTrue(evaluator.handleJobExecution(execution("job2", "QUEUED", "", "com.example.app", "1")));
+
+        assertEquals(Arrays.asList("status job1 " + IOTConfigData.STATUS_REJECTED,
+                "status job2 " + IOTConfigData.STATUS_SUCCEEDED), actions);
+    }
+
+    @Test
+    public void execution_deliveredBeforeWaitsForTheInstall() {
+        assertFalse(evaluator.handleJobExecution(execution("job1", "IN_PROGRESS", IOTConfigData.STAGE_DELIVERED,
+                "com.example.app", "2")));
+        assertTrue(actions.isEmpty());
+        assertEquals(JobTracker.State.DELIVERED, evaluator.getTracker().getState("job1"));
+
+        installed.put("com.example.app", "2");
+        evaluator.handleJobList(new JobList(Collections.singletonList(summary("job1", 3)), new ArrayList<JobRecord>()));
+
+        assertEquals(Arrays.asList("check [com.example.app]", "status job1 " + IOTConfigData.STATUS_SUCCEEDED), actions);
+    }
+
+    @Test
+    public void jobList_claimsQueuedJobsOnlyWhileNoneIsInProgress() {
+        assertTrue(evaluator.handleJobList(new JobList(new ArrayList<JobRecord>(),
+                Arrays.asList(summary("job1", 1), summary("job2", 1)))));
+        assertEquals(Collections.singletonList("start-next"), actions);
+
+        actions.clear();
+        evaluator.handleJobList(new JobList(Collections.singletonList(summary("job1", 2)),
+                Collections.singletonList(summary("job2", 1))));
+        assertEquals(Arrays.asList("describe job1", "describe job2"), actions);
+    }
+
+    @Test
+    public void jobList_cancelsJobsNoLongerPending() {
+        evaluator.handleJobExecution(execution("job1", "QUEUED", "", "com.example.app", "2"));
+        actions.clear();
+
+        assertTrue(evaluator.handleJobList(new JobList(new ArrayList<JobRecord>(), new ArrayList<JobRecord>())));
+        assertFalse(evaluator.handleJobList(new JobList(new ArrayList<JobRecord>(), new ArrayList<JobRecord>())));
+
+        assertEquals(Collections.singletonList("cancel job1"), actions);
+        assertNull(evaluator.getTracker().getState("job1"));
+    }
+}
@@ -0,0 +1,333 @@
+package autoupdate.iotagent.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobTracker;
+import autoupdate.iotagent.platform.Log;
+
+import static org.junit.Assert.*;
+
+public class JobIntakeTest {
+
+    private static final String START_NEXT = "$aws/things/thing/jobs/start-next";
+
+    private static final long BROKER_LATENCY_MS = 5;
+
+    private final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        network.shutdownNow();
+    }
+
+    /**
+     * Local stand-in for the AWS IoT Jobs API. It answers start-next, describe and update requests
+     * after a fixed one way latency and counts the messages exchanged. Like AWS, start-next returns
+     * an execution already IN_PROGRESS before it starts a queued one, and applies the statusDetails
+     * of the request to whichever execution it returns. It records when each execution went
+     * IN_PROGRESS, and how many messages had been exchanged by then.
+     */
+    private class FakeJobsBroker implements MessagePublisher {
+        //executions in the order they were queued
+        final Map<String, FakeExecution> executions = new LinkedHashMap<>();
+        final List<String> startNextRequests = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger messages = new AtomicInteger();
+        //released once a request was answered and the answer handled
+        final Semaphore answered = new Semaphore(0);
+        final Map<String, Long> inProgressAtNanos = new ConcurrentHashMap<>();
+        final Map<String, Integer> messagesToInProgress = new ConcurrentHashMap<>();
+        JobIntake intake;
+        MessagePublisher describeListener;
+
+        FakeJobsBroker(int jobs) {
+            for (int i = 0; i < jobs; ++i)
+                add("job-" + i, "QUEUED", null, 1);
+        }
+
+        synchronized FakeExecution add(String jobId, String status, String stage, long versionNumber) {
+            FakeExecution execution = new FakeExecution(jobId, status, stage, versionNumber);
+            executions.put(jobId, execution);
+            return execution;
+        }
+
+        @Override
+        public void publish(final String msg, final String topic) {
+            messages.incrementAndGet();
+            if (topic.equals(START_NEXT))
+                startNextRequests.add(msg);
+            network.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    messages.incrementAndGet();
+                    try {
+                        answer(topic, new JSONObject(msg));
+                    } catch (JSONException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        answered.release();
+                    }
+                }
+            }, 2 * BROKER_LATENCY_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private void answer(String topic, JSONObject request) throws JSONException {
+            if (topic.equals(START_NEXT)) {
+                JSONObject response = new JSONObject();
+                synchronized (this) {
+                    FakeExecution next = next();
+                    if (next != null) {
+                        JSONObject details = request.optJSONObject("statusDetails");
+                        //starting a queued execution or changing its details is an update of the execution
+                        if (next.status.equals("QUEUED") || details != null)
+                            ++next.versionNumber;
+                        if (next.status.equals("QUEUED"))
+                            started(next.jobId);
+                        next.status = "IN_PROGRESS";
+                        if (details != null)
+                            next.stage = details.optString("stage", null);
+                        response.put("execution", next.toJson());
+                    }
+                }
+                intake.handleStartNextResponse(response.toString().getBytes(StandardCharsets.UTF_8));
+            } else if (topic.endsWith("/update")) {
+                synchronized (this) {
+                    FakeExecution execution = executions.get(topic.split("/")[4]);
+                    String status = request.optString("status", execution.status);
+                    if (status.equals("IN_PROGRESS") && execution.status.equals("QUEUED"))
+                        started(execution.jobId);
+                    execution.status = status;
+                    ++execution.versionNumber;
+                }
+            } else if (topic.endsWith("/get")) {
+                describeListener.publish(new FakeExecution(topic.split("/")[4], "QUEUED", null, 1).toJson().toString(), topic);
+            }
+        }
+
+        private void started(String jobId) {
+            inProgressAtNanos.put(jobId, System.nanoTime());
+            messagesToInProgress.put(jobId, messages.get());
+        }
+
+        private FakeExecution next() {
+            for (FakeExecution execution : executions.values())
+                if (execution.status.equals("IN_PROGRESS"))
+                    return execution;
+            for (FakeExecution execution : executions.values())
+                if (execution.status.equals("QUEUED"))
+                    return execution;
+            return null;
+        }
+    }
+
+    private static class FakeExecution {
+        final String jobId;
+        String status;
+        String stage;
+        long versionNumber;
+
+        FakeExecution(String jobId, String status, String stage, long versionNumber) {
+            this.jobId = jobId;
+            this.status = status;
+            this.stage = stage;
+            this.versionNumber = versionNumber;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject()
+                    .put("jobId", jobId)
+                    .put("status", status)
+                    .put("versionNumber", versionNumber)
+                    .put("jobDocument", new JSONObject()
+                            .put("packageName", "com.example.app")
+                            .put("latestVersion", "2")
+                            .put("s3URL", "https://example.com/app.apk")
+                            .put("appName", "app"));
+            if (stage != null)
+                json.put("statusDetails", new JSONObject().put("stage", stage));
+            return json;
+        }
+    }
+
+    @Test
+    public void startNext_claimsJobsFinishedRightAwayOneAfterTheOther() throws Exception {
+        int jobs = 20;
+        final FakeJobsBroker broker = new FakeJobsBroker(jobs);
+        final List<String> claimed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(jobs);
+        broker.intake = new JobIntake(broker, new JobIntake.ExecutionHandler() {
+            @Override
+            public boolean handleJobExecution(JobRecord execution) {
+                claimed.add(execution.getJobId());
+                assertNotNull(execution.getUrl());
+                //e.g. the app is already up to date
+                broker.publish("{\"status\":\"SUCCEEDED\"}", "$aws/things/thing/jobs/" + execution.getJobId() + "/update");
+                done.countDown();
+                return true;
+            }
+        }, START_NEXT);
+
+        broker.intake.requestNext();
+        //duplicate triggers, e.g. notify-next and a get-jobs response, must not fan out
+        broker.intake.requestNext();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        //a start-next per job, the final one answered empty, and an update per job
+        assertTrue(broker.answered.tryAcquire(2 * jobs + 1, 5, TimeUnit.SECONDS));
+
+        assertEquals(jobs, claimed.size());
+        assertEquals(jobs, new HashSet<>(claimed).size());
+        assertEquals(jobs + 1, broker.startNextRequests.size());
+        //a start-next and an update per job, each with its response, plus the final empty answer
+        assertEquals(4 * jobs + 2, broker.messages.get());
+        for (String request : broker.startNextRequests)
+            assertFalse(request, new JSONObject(request).has("statusDetails"));
+    }
+
+    @Test
+    public void startNext_stopsAtAJobInProgress() throws Exception {
+        FakeJobsBroker broker = new FakeJobsBroker(3);
+        final Semaphore handled = new Semaphore(0);
+        final AtomicInteger claimed = new AtomicInteger();
+        broker.intake = new JobIntake(broker, new JobIntake.ExecutionHandler() {
+            @Override
+            public boolean handleJobExecution(JobRecord execution) {
+                claimed.incrementAndGet();
+                handled.release();
+                //the apk is being downloaded, the job stays IN_PROGRESS
+                return false;
+            }
+        }, START_NEXT);
+
+        broker.intake.requestNext();
+        assertTrue(handled.tryAcquire(5, TimeUnit.SECONDS));
+        //once the answer was handled, a further start-next would have been published
+        assertTrue(broker.answered.tryAcquire(5, TimeUnit.SECONDS));
+
+        assertEquals(1, claimed.get());
+        assertEquals(1, broker.startNextRequests.size());
+        assertEquals("QUEUED", broker.executions.get("job-1").status);
+    }
+
+    /**
+     * A delivered job waits IN_PROGRESS for the target app, and every start-next returns it again.
+     * It must neither lose its stage nor be taken for a new claim.
+     */
+    @Test
+    public void startNext_leavesADeliveredJobAlone() throws Exception {
+        FakeJobsBroker broker = new FakeJobsBroker(0);
+        FakeExecution delivered = broker.add("job-0", "IN_PROGRESS", IOTConfigData.STAGE_DELIVERED, 3);
+        broker.add("job-1", "QUEUED", null, 1);
+        final JobTracker tracker = new JobTracker();
+        tracker.start("job-0", 3, "com.example.app", "2");
+        tracker.transition("job-0", JobTracker.State.DELIVERED);
+        final Semaphore handled = new Semaphore(0);
+        final AtomicInteger started = new AtomicInteger();
+        broker.intake = new JobIntake(broker, new JobIntake.ExecutionHandler() {
+            @Override
+            public boolean handleJobExecution(JobRecord execution) {
+                if (tracker.start(execution.getJobId(), execution.getVersionNumber(),
+                        execution.getPackageName(), execution.getLatestVersion()))
+                    started.incrementAndGet();
+                handled.release();
+                return false;
+            }
+        }, START_NEXT);
+
+        for (int i = 0; i < 5; ++i) {
+            //e.g. a reconnect or notify-next
+            broker.intake.requestNext();
+            assertTrue(handled.tryAcquire(5, TimeUnit.SECONDS));
+            assertTrue(broker.answered.tryAcquire(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(0, started.get());
+        assertEquals(5, broker.startNextRequests.size());
+        assertEquals(IOTConfigData.STAGE_DELIVERED, delivered.stage);
+        assertEquals(JobTracker.State.DELIVERED, tracker.getState("job-0"));
+        assertEquals("QUEUED", broker.executions.get("job-1").status);
+    }
+
+    /**
+     * The path start-next replaces: a describe per job followed by an IN_PROGRESS update.
+     */
+    @Test
+    public void describeThenUpdate_needsTwiceTheMessages() throws InterruptedException {
+        int jobs = 20;
+        final FakeJobsBroker broker = new FakeJobsBroker(jobs);
+        final CountDownLatch done = new CountDownLatch(jobs);
+        broker.describeListener = new MessagePublisher() {
+            @Override
+            public void publish(String msg, String topic) {
+                //the update request that marks the described job IN_PROGRESS
+                broker.publish("{\"status\":\"IN_PROGRESS\"}", topic.replace("/get", "/update"));
+                done.countDown();
+            }
+        };
+
+        for (int i = 0; i < jobs; ++i)
+            broker.publish("{\"clientToken\":\"123\"}", "$aws/things/thing/jobs/job-" + i + "/get");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        //a describe and an update per job
+        assertTrue(broker.answered.tryAcquire(2 * jobs, 5, TimeUnit.SECONDS));
+
+        assertEquals(4 * jobs, broker.messages.get());
+    }
+
+    /**
+     * Time from a notify until the broker has the job IN_PROGRESS. With start-next the claim is
+     * one round trip, describing the job first and then updating it takes two.
+     */
+    @Test
+    public void notifyToInProgress_takesOneRoundTripWithStartNext() throws Exception {
+        final FakeJobsBroker startNext = new FakeJobsBroker(1);
+        startNext.intake = new JobIntake(startNext, new JobIntake.ExecutionHandler() {
+            @Override
+            public boolean handleJobExecution(JobRecord execution) {
+                return false;
+            }
+        }, START_NEXT);
+        long notifiedAt = System.nanoTime();
+        //what notify-next triggers
+        startNext.intake.requestNext();
+        assertTrue(startNext.answered.tryAcquire(5, TimeUnit.SECONDS));
+        long startNextUs = (startNext.inProgressAtNanos.get("job-0") - notifiedAt) / 1000;
+
+        final FakeJobsBroker describe = new FakeJobsBroker(1);
+        describe.describeListener = new MessagePublisher() {
+            @Override
+            public void publish(String msg, String topic) {
+                describe.publish("{\"status\":\"IN_PROGRESS\"}", topic.replace("/get", "/update"));
+            }
+        };
+        notifiedAt = System.nanoTime();
+        //what notify triggered before start-next
+        describe.publish("{\"clientToken\":\"123\"}", "$aws/things/thing/jobs/job-0/get");
+        assertTrue(describe.answered.tryAcquire(2, 5, TimeUnit.SECONDS));
+        long describeUs = (describe.inProgressAtNanos.get("job-0") - notifiedAt) / 1000;
+
+        Log.i("JobIntakeTest", "notify to IN_PROGRESS with " + BROKER_LATENCY_MS + " ms one way: start-next "
+                + startNextUs + " us, describe and update " + describeUs + " us");
+        //request and response of start-next, against those of the describe plus the update and its response
+        assertEquals(2, (int) startNext.messagesToInProgress.get("job-0"));
+        assertEquals(4, (int) describe.messagesToInProgress.get("job-0"));
+    }
+}
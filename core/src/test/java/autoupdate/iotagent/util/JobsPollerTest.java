@@ -0,0 +1,143 @@
+package autoupdate.iotagent.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JobsPollerTest {
+
+    @Test
+    public void interval_backsOffWhileUnchangedAndResetsOnChange() {
+        JobsPoller poller = new JobsPoller(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1000, 5000);
+        try {
+            poller.onJobsResponse(false);
+            assertEquals(2000, poller.getIntervalMs());
+            poller.onJobsResponse(false);
+            poller.onJobsResponse(false);
+            assertEquals(5000, poller.getIntervalMs());
+            poller.onJobsResponse(true);
+            assertEquals(1000, poller.getIntervalMs());
+            poller.onJobsResponse(false);
+            poller.reset();
+            assertEquals(1000, poller.getIntervalMs());
+        } finally {
+            poller.stop();
+        }
+    }
+
+    @Test
+    public void reset_doesNotStackPolls() throws InterruptedException {
+        final AtomicInteger polls = new AtomicInteger();
+        JobsPoller poller = new JobsPoller(new Runnable() {
+            @Override
+            public void run() {
+                polls.incrementAndGet();
+            }
+        }, 200, 200);
+        try {
+            //a burst of reconnects
+            for (int i = 0; i < 10; ++i)
+                poller.reset();
+            Thread.sleep(500);
+        } finally {
+            poller.stop();
+        }
+        //one immediate poll and two at the interval, not one timer per reset
+        assertTrue("polls: " + polls.get(), polls.get() >= 2 && polls.get() <= 4);
+    }
+
+    @Test
+    public void pollNow_doesNotWaitForTheMinimumInterval() throws InterruptedException {
+        final AtomicInteger polls = new AtomicInteger();
+        JobsPoller poller = new JobsPoller(new Runnable() {
+            @Override
+            public void run() {
+                polls.incrementAndGet();
+            }
+        }, 60000, 60000);
+        try {
+            poller.reset();
+            Thread.sleep(100);
+            assertEquals(1, polls.get());
+
+            //a burst of notify messages right after the poll
+            for (int i = 0; i < 10; ++i)
+                poller.pollNow();
+            Thread.sleep(JobsPoller.NOTIFY_DEBOUNCE_MS + 300);
+        } finally {
+            poller.stop();
+        }
+        //one poll for the whole burst, long before the minute is up
+        assertEquals(2, polls.get());
+    }
+
+    @Test
+    public void pollNow_duringAPollIsNotPushedBackByTheInterval() throws InterruptedException {
+        final AtomicInteger polls = new AtomicInteger();
+        final CountDownLatch polling = new CountDownLatch(1);
+        final CountDownLatch notified = new CountDownLatch(1);
+        final CountDownLatch polledAgain = new CountDownLatch(1);
+        JobsPoller poller = new JobsPoller(new Runnable() {
+            @Override
+            public void run() {
+                if (polls.incrementAndGet() == 1) {
+                    polling.countDown();
+                    try {
+                        notified.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else {
+                    polledAgain.countDown();
+                }
+            }
+        }, 60000, 60000);
+        try {
+            poller.reset();
+            assertTrue(polling.await(1, TimeUnit.SECONDS));
+            //the notify arrives while the get-jobs request is still going out
+            poller.pollNow();
+            notified.countDown();
+
+            assertTrue(polledAgain.await(JobsPoller.NOTIFY_DEBOUNCE_MS + 1000, TimeUnit.MILLISECONDS));
+        } finally {
+            poller.stop();
+        }
+    }
+
+    @Test
+    public void stop_leavesASharedExecutorRunning() throws InterruptedException {
+        ScheduledExecutorService shared = Executors.newSingleThreadScheduledExecutor();
+        final AtomicInteger polls = new AtomicInteger();
+        Runnable poll = new Runnable() {
+            @Override
+            public void run() {
+                polls.incrementAndGet();
+            }
+        };
+        JobsPoller stopped = new JobsPoller(poll, 100, 100, shared);
+        JobsPoller running = new JobsPoller(poll, 100, 100, shared);
+        try {
+            stopped.reset();
+            stopped.stop();
+            running.reset();
+            Thread.sleep(250);
+            assertFalse(shared.isShutdown());
+            //only the running poller keeps polling
+            assertTrue("polls: " + polls.get(), polls.get() >= 2 && polls.get() <= 4);
+        } finally {
+            running.stop();
+            shared.shutdownNow();
+        }
+    }
+}
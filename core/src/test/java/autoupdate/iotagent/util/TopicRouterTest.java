@@ -0,0 +1,118 @@
+package autoupdate.iotagent.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TopicRouterTest {
+
+    private static class NamedHandler implements TopicRouter.Handler {
+        final String name;
+        final List<String> topics = new ArrayList<>();
+
+        NamedHandler(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void handle(String topic, byte[] payload) {
+            topics.add(topic);
+        }
+    }
+
+    private static String nameOf(TopicRouter.Handler handler) {
+        return handler == null ? null : ((NamedHandler) handler).name;
+    }
+
+    private TopicRouter jobsRouter() {
+        TopicRouter router = new TopicRouter();
+        router.register("$aws/things/t/jobs/get/accepted", new NamedHandler("get-jobs"));
+        router.register("$aws/things/t/jobs/+/get/accepted", new NamedHandler("describe"));
+        router.register("$aws/things/t/jobs/notify", new NamedHandler("notify"));
+        router.register("$aws/things/t/jobs/notify-next", new NamedHandler("notify-next"));
+        router.register("$aws/things/t/jobs/start-next/accepted", new NamedHandler("start-next"));
+        router.register("$aws/things/t/jobs/+/update/#", new NamedHandler("update"));
+        return router;
+    }
+
+    @Test
+    public void match_findsTheHandlerOfEachJobsTopic() {
+        TopicRouter router = jobsRouter();
+
+        assertEquals("get-jobs", nameOf(router.match("$aws/things/t/jobs/get/accepted")));
+        assertEquals("describe", nameOf(router.match("$aws/things/t/jobs/job-1/get/accepted")));
+        assertEquals("notify", nameOf(router.match("$aws/things/t/jobs/notify")));
+        assertEquals("notify-next", nameOf(router.match("$aws/things/t/jobs/notify-next")));
+        assertEquals("start-next", nameOf(router.match("$aws/things/t/jobs/start-next/accepted")));
+        assertEquals("update", nameOf(router.match("$aws/things/t/jobs/job-1/update/rejected")));
+        //# also matches the parent level
+        assertEquals("update", nameOf(router.match("$aws/things/t/jobs/job-1/update")));
+
+        assertNull(router.match("$aws/things/t/jobs/start-next/rejected"));
+        assertNull(router.match("$aws/things/other/jobs/notify"));
+        assertNull(router.match("$aws/things/t/jobs"));
+    }
+
+    @Test
+    public void match_prefersTheMostSpecificFilter() {
+        TopicRouter router = new TopicRouter();
+        router.register("a/#", new NamedHandler("hash"));
+        router.register("a/+/c", new NamedHandler("plus"));
+        router.register("a/b/c", new NamedHandler("exact"));
+
+        assertEquals("exact", nameOf(router.match("a/b/c")));
+        assertEquals("plus", nameOf(router.match("a/x/c")));
+        assertEquals("hash", nameOf(router.match("a/b/d")));
+        assertEquals("hash", nameOf(router.match("a/b/c/d")));
+    }
+
+    @Test
+    public void match_keepsWildcardsOffDollarTopicsAtTheFirstLevel() {
+        TopicRouter router = new TopicRouter();
+        router.register("#", new NamedHandler("all"));
+        router.register("+/things", new NamedHandler("things"));
+
+        assertEquals("all", nameOf(router.match("devices/x")));
+        assertEquals("things", nameOf(router.match("a/things")));
+        assertNull(router.match("$aws/things"));
+    }
+
+    @Test
+    public void route_dispatchesToTheRegisteredHandler() {
+        TopicRouter router = new TopicRouter();
+        NamedHandler handler = new NamedHandler("h");
+        router.register("a/+", handler);
+
+        assertTrue(router.route("a/b", new byte[0]));
+        assertFalse(router.route("b/a", new byte[0]));
+        assertEquals(1, handler.topics.size());
+        assertEquals("a/b", handler.topics.get(0));
+    }
+
+    @Test
+    public void register_rejectsMisplacedWildcards() {
+        TopicRouter router = new TopicRouter();
+        String[] invalid = {"a/#/b", "a/b#", "a/+b/c"};
+        for (String filter : invalid) {
+            try {
+                router.register(filter, new NamedHandler("x"));
+                fail("accepted " + filter);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertTrue(router.getFilters().isEmpty());
+    }
+
+    @Test
+    public void register_keepsFiltersInRegistrationOrder() {
+        TopicRouter router = jobsRouter();
+        router.register("$aws/things/t/jobs/notify", new NamedHandler("notify-2"));
+
+        assertEquals(6, router.getFilters().size());
+        assertEquals("$aws/things/t/jobs/get/accepted", router.getFilters().get(0));
+        assertEquals("notify-2", nameOf(router.match("$aws/things/t/jobs/notify")));
+    }
+}
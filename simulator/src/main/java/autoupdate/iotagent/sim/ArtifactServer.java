@@ -0,0 +1,122 @@
+package autoupdate.iotagent.sim;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server standing in for the artifact origin, e.g. the S3 bucket the apks are in. It
+ * serves one artifact and counts the requests it gets, in total and per second.
+ */
+public class ArtifactServer implements HttpHandler {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final byte[] content;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    //requests per second of uptime
+    private final ConcurrentMap<Long, AtomicInteger> perSecond = new ConcurrentHashMap<>();
+
+    private volatile long firstRequestNanos;
+
+    private volatile long lastRequestNanos;
+
+    /**
+     * @param size size of the artifact in bytes
+     * @param threads number of requests served at once
+     */
+    public ArtifactServer(int size, int threads) throws IOException {
+        content = new byte[size];
+        new Random(size).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/", this);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long now = System.nanoTime();
+        if (requests.getAndIncrement() == 0)
+            firstRequestNanos = now;
+        lastRequestNanos = now;
+        Long second = TimeUnit.NANOSECONDS.toSeconds(now);
+        AtomicInteger count = perSecond.get(second);
+        if (count == null) {
+            perSecond.putIfAbsent(second, new AtomicInteger());
+            count = perSecond.get(second);
+        }
+        count.incrementAndGet();
+        try {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+            bytesSent.addAndGet(content.length);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param name file name of the artifact in the url, the same content is served under any name
+     */
+    public String getUrl(String name) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name;
+    }
+
+    public int getSize() {
+        return content.length;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return requests per second between the first and the last request
+     */
+    public double getMeanRequestRate() {
+        long count = requests.get();
+        double seconds = (lastRequestNanos - firstRequestNanos) / 1e9;
+        return seconds <= 0 ? count : count / seconds;
+    }
+
+    /**
+     * @return the most requests seen within one second
+     */
+    public int getPeakRequestRate() {
+        int peak = 0;
+        for (AtomicInteger count : perSecond.values())
+            peak = Math.max(peak, count.get());
+        return peak;
+    }
+
+    public void shutdown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,38 @@
+package autoupdate.iotagent.sim;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The apks a device has downloaded, standing in for the ApkCache of the app. A gateway shares one
+ * cache between all its things, so a download of an apk that is already running for another thing
+ * waits for it and then finds the apk in the cache instead of fetching it from the origin again.
+ */
+class DownloadCache {
+
+    private final Set<String> downloaded = new HashSet<>();
+
+    private final Map<String, Object> locks = new HashMap<>();
+
+    /**
+     * @return the lock downloads of the url are serialized on
+     */
+    synchronized Object lockFor(String url) {
+        Object lock = locks.get(url);
+        if (lock == null) {
+            lock = new Object();
+            locks.put(url, lock);
+        }
+        return lock;
+    }
+
+    synchronized boolean contains(String url) {
+        return downloaded.contains(url);
+    }
+
+    synchronized void add(String url) {
+        downloaded.add(url);
+    }
+}
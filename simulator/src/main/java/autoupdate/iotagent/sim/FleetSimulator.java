@@ -0,0 +1,232 @@
+package autoupdate.iotagent.sim;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.metrics.Histogram;
+import autoupdate.iotagent.platform.Log;
+import autoupdate.iotagent.platform.Logger;
+import autoupdate.iotagent.util.MessagePublisher;
+
+/**
+ * Headless load test of the job path. It starts a fleet of virtual agents against a local broker
+ * with the Jobs API stand-in and a local artifact server, creates jobs for the whole fleet and
+ * waits until every execution reached a final status. The result gives the broker messages per
+ * job, the time from job creation to SUCCEEDED and the request rate at the artifact origin, so
+ * polling, push and batched reporting can be compared by numbers. In gateway mode the agents are
+ * grouped into gateways whose things share a connection and a download cache, as the app does
+ * with GATEWAY_THINGS.
+ *
+ * Run with ./gradlew :simulator:run --args='--agents 2000 --strategy PUSH', see usage() for the
+ * other options.
+ */
+public class FleetSimulator {
+
+    private final Strategy strategy;
+
+    private final int agents;
+
+    private final int jobs;
+
+    private final long latencyMs;
+
+    private final long pollMinMs;
+
+    private final long pollMaxMs;
+
+    private final long installDelayMs;
+
+    private final int artifactBytes;
+
+    private final int downloadThreads;
+
+    private int thingsPerGateway = 1;
+
+    //window the agents spread their download starts over, 0 for none
+    private long rolloutWindowSec;
+
+    /**
+     * @param strategy how the agents take in jobs and report on them
+     * @param agents number of virtual agents
+     * @param jobs number of jobs created for every agent
+     * @param latencyMs one way latency between an agent and the broker
+     * @param pollMinMs shortest get-jobs poll interval
+     * @param pollMaxMs longest get-jobs poll interval
+     * @param installDelayMs time a target app takes to install a delivered apk
+     * @param artifactBytes size of the apk
+     * @param downloadThreads number of downloads running at once across the fleet
+     */
+    public FleetSimulator(Strategy strategy, int agents, int jobs, long latencyMs, long pollMinMs, long pollMaxMs,
+                          long installDelayMs, int artifactBytes, int downloadThreads) {
+        this.strategy = strategy;
+        this.agents = agents;
+        this.jobs = jobs;
+        this.latencyMs = latencyMs;
+        this.pollMinMs = pollMinMs;
+        this.pollMaxMs = pollMaxMs;
+        this.installDelayMs = installDelayMs;
+        this.artifactBytes = artifactBytes;
+        this.downloadThreads = downloadThreads;
+    }
+
+    /**
+     * Groups the agents into gateways of this many things, which share a connection and a
+     * download cache. 1, the default, gives every agent its own.
+     */
+    public void setThingsPerGateway(int thingsPerGateway) {
+        this.thingsPerGateway = thingsPerGateway;
+    }
+
+    /**
+     * Sets the rollout window of the jobs, the agents spread their download starts over it as
+     * devices do. 0, the default, starts every download right away.
+     */
+    public void setRolloutWindowSec(long rolloutWindowSec) {
+        this.rolloutWindowSec = rolloutWindowSec;
+    }
+
+    /**
+     * Runs the simulation once.
+     * @param timeoutMs how long to wait for the executions to finish
+     */
+    public SimulationResult run(long timeoutMs) throws IOException, InterruptedException {
+        LocalBroker broker = new LocalBroker(latencyMs);
+        JobsService service = new JobsService(broker);
+        ArtifactServer origin = new ArtifactServer(artifactBytes, downloadThreads);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        ExecutorService downloads = Executors.newFixedThreadPool(downloadThreads);
+        List<VirtualAgent> fleet = new ArrayList<>();
+        List<String> things = new ArrayList<>();
+        int connections = 0;
+        try {
+            MessagePublisher connection = null;
+            DownloadCache cache = null;
+            for (int i = 0; i < agents; ++i) {
+                if (i % thingsPerGateway == 0) {
+                    connection = broker.connect();
+                    cache = new DownloadCache();
+                    ++connections;
+                }
+                String thing = "sim-thing-" + i;
+                things.add(thing);
+                fleet.add(new VirtualAgent(thing, strategy, broker, connection, scheduler, downloads, cache,
+                        pollMinMs, pollMaxMs, installDelayMs));
+            }
+            for (VirtualAgent agent : fleet)
+                agent.start();
+            //let the start-up traffic settle, so it is not counted against the jobs
+            Thread.sleep(4 * latencyMs + 100);
+            long messagesBefore = broker.getMessageCount();
+
+            long start = System.nanoTime();
+            for (int j = 0; j < jobs; ++j)
+                service.createJob("update-app-" + j, document(origin, j), things);
+            boolean done = service.awaitFinished(agents * jobs, timeoutMs);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (!done)
+                Log.w("FleetSimulator", "timed out with " + (service.getSucceededCount() + service.getFailedCount())
+                        + " of " + agents * jobs + " executions finished");
+
+            Histogram times = service.getTimeToSucceeded();
+            return new SimulationResult(strategy, agents, connections, agents * jobs, service.getSucceededCount(),
+                    service.getFailedCount(), broker.getMessageCount() - messagesBefore,
+                    times.getPercentile(0.5), times.getPercentile(0.99), times.getMax(),
+                    origin.getRequestCount(), origin.getMeanRequestRate(), origin.getPeakRequestRate(), elapsedMs);
+        } finally {
+            for (VirtualAgent agent : fleet)
+                agent.stop();
+            scheduler.shutdownNow();
+            downloads.shutdownNow();
+            broker.shutdown();
+            origin.shutdown();
+        }
+    }
+
+    private JSONObject document(ArtifactServer origin, int job) {
+        try {
+            return new JSONObject()
+                    .put("packageName", "com.example.app" + job)
+                    .put("latestVersion", "2")
+                    .put("appName", "app" + job)
+                    .put("s3URL", origin.getUrl("app" + job + ".apk"))
+                    .put("size", origin.getSize())
+                    .put("rolloutWindowSec", rolloutWindowSec);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: FleetSimulator [--strategy POLL|PUSH|PUSH_BATCHED|ALL] [--agents n] [--jobs n]\n"
+                + "       [--latency-ms n] [--poll-min-ms n] [--poll-max-ms n] [--install-ms n]\n"
+                + "       [--artifact-kb n] [--download-threads n] [--things-per-gateway n] [--rollout-window-s n]\n"
+                + "       [--timeout-s n]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String strategies = "ALL";
+        int agents = 1000;
+        int jobs = 1;
+        long latencyMs = 20;
+        long pollMinMs = 2000;
+        long pollMaxMs = 30000;
+        long installDelayMs = 500;
+        int artifactKb = 64;
+        int downloadThreads = 32;
+        int thingsPerGateway = 1;
+        long rolloutWindowSec = 0;
+        long timeoutSec = 300;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--strategy": strategies = value.toUpperCase(); break;
+                case "--agents": agents = Integer.parseInt(value); break;
+                case "--jobs": jobs = Integer.parseInt(value); break;
+                case "--latency-ms": latencyMs = Long.parseLong(value); break;
+                case "--poll-min-ms": pollMinMs = Long.parseLong(value); break;
+                case "--poll-max-ms": pollMaxMs = Long.parseLong(value); break;
+                case "--install-ms": installDelayMs = Long.parseLong(value); break;
+                case "--artifact-kb": artifactKb = Integer.parseInt(value); break;
+                case "--download-threads": downloadThreads = Integer.parseInt(value); break;
+                case "--things-per-gateway": thingsPerGateway = Integer.parseInt(value); break;
+                case "--rollout-window-s": rolloutWindowSec = Long.parseLong(value); break;
+                case "--timeout-s": timeoutSec = Long.parseLong(value); break;
+                default: usage();
+            }
+        }
+        if (args.length % 2 != 0)
+            usage();
+
+        //thousands of agents would drown the report in their log lines, only errors are shown
+        Log.setLogger(new Logger() {
+            @Override
+            public void log(int priority, String tag, String message, Throwable error) {
+                if (priority >= Log.ERROR)
+                    System.err.println(tag + ": " + message);
+            }
+        });
+        List<Strategy> runs = new ArrayList<>();
+        if (strategies.equals("ALL")) {
+            for (Strategy strategy : Strategy.values())
+                runs.add(strategy);
+        } else {
+            runs.add(Strategy.valueOf(strategies));
+        }
+        for (Strategy strategy : runs) {
+            FleetSimulator simulator = new FleetSimulator(strategy, agents, jobs, latencyMs, pollMinMs, pollMaxMs,
+                    installDelayMs, artifactKb * 1024, downloadThreads);
+            simulator.setThingsPerGateway(thingsPerGateway);
+            simulator.setRolloutWindowSec(rolloutWindowSec);
+            System.out.println(simulator.run(timeoutSec * 1000));
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package autoupdate.iotagent.sim;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.config.ThingTopics;
+import autoupdate.iotagent.metrics.Histogram;
+
+/**
+ * Local stand-in for the AWS IoT Jobs API behind the LocalBroker. It keeps a job execution per
+ * job and thing and answers get-jobs, describe, start-next and update requests on the thing's
+ * topics, and sends notify and notify-next messages when the pending jobs of a thing change.
+ * Start-next behaves as the AWS API does: it returns an execution already IN_PROGRESS before it
+ * starts a queued one, applies the statusDetails of the request, and only bumps the version of
+ * the execution when that changed it.
+ * It runs on the broker thread only and measures the time from the creation of a job to the
+ * final status of every execution.
+ */
+public class JobsService implements LocalBroker.Service {
+
+    private static final String THINGS_PREFIX = "$aws/things/";
+
+    /**
+     * The execution of a job on one thing.
+     */
+    private static class Execution {
+        final String jobId;
+        final JSONObject document;
+        final long createdAtNanos;
+        String status = "QUEUED";
+        String stage;
+        long versionNumber = 1;
+
+        Execution(String jobId, JSONObject document, long createdAtNanos) {
+            this.jobId = jobId;
+            this.document = document;
+            this.createdAtNanos = createdAtNanos;
+        }
+
+        boolean isPending() {
+            return status.equals("QUEUED") || status.equals("IN_PROGRESS");
+        }
+    }
+
+    private final LocalBroker broker;
+
+    //executions of every thing, in the order the jobs were created
+    private final Map<String, Map<String, Execution>> executions = new HashMap<>();
+
+    private final Map<String, ThingTopics> topics = new HashMap<>();
+
+    //time from job creation to SUCCEEDED, 1 ms up to about 2 hours in steps of 25%
+    private final Histogram timeToSucceeded = new Histogram(Histogram.exponentialBounds(1, 1.25, 72));
+
+    private int created;
+
+    private int succeeded;
+
+    private int failed;
+
+    public JobsService(LocalBroker broker) {
+        this.broker = broker;
+        broker.setService(this);
+    }
+
+    /**
+     * Creates a job for every thing given. Things subscribed to the notify topics learn about it
+     * right away.
+     */
+    public void createJob(final String jobId, final JSONObject document, final Collection<String> things) {
+        broker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (String thing : things) {
+                    Map<String, Execution> jobs = executions(thing);
+                    boolean wasIdle = next(jobs) == null;
+                    jobs.put(jobId, new Execution(jobId, document, now));
+                    synchronized (JobsService.this) {
+                        ++created;
+                    }
+                    notifyChanged(thing, wasIdle);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void handle(String topic, byte[] payload) {
+        if (!topic.startsWith(THINGS_PREFIX))
+            return;
+        String thing = LocalBroker.thingName(topic);
+        String request = topic.substring(THINGS_PREFIX.length() + thing.length() + "/jobs/".length());
+        try {
+            if (request.equals("get"))
+                getJobs(thing);
+            else if (request.equals("start-next"))
+                startNext(thing, new JSONObject(new String(payload, StandardCharsets.UTF_8)));
+            else if (request.endsWith("/get"))
+                describe(thing, request.substring(0, request.length() - "/get".length()));
+            else if (request.endsWith("/update"))
+                update(thing, request.substring(0, request.length() - "/update".length()),
+                        new JSONObject(new String(payload, StandardCharsets.UTF_8)));
+        } catch (JSONException e) {
+            throw new IllegalStateException("bad request on " + topic, e);
+        }
+    }
+
+    private void getJobs(String thing) throws JSONException {
+        JSONArray inProgress = new JSONArray();
+        JSONArray queued = new JSONArray();
+        for (Execution execution : executions(thing).values()) {
+            if (!execution.isPending())
+                continue;
+            JSONObject summary = new JSONObject()
+                    .put("jobId", execution.jobId)
+                    .put("versionNumber", execution.versionNumber)
+                    .put("executionNumber", 1);
+            (execution.status.equals("QUEUED") ? queued : inProgress).put(summary);
+        }
+        JSONObject response = new JSONObject()
+                .put("inProgressJobs", inProgress)
+                .put("queuedJobs", queued)
+                .put("clientToken", "123");
+        broker.deliver(topics(thing).getJobsAccepted(), response.toString());
+    }
+
+    private void describe(String thing, String jobId) throws JSONException {
+        Execution execution = executions(thing).get(jobId);
+        if (execution == null) {
+            broker.deliver(THINGS_PREFIX + thing + "/jobs/" + jobId + "/get/rejected", "{\"code\":\"ResourceNotFound\"}");
+            return;
+        }
+        broker.deliver(THINGS_PREFIX + thing + "/jobs/" + jobId + "/get/accepted",
+                new JSONObject().put("execution", toJson(execution)).toString());
+    }
+
+    private void startNext(String thing, JSONObject request) throws JSONException {
+        Execution next = null;
+        for (Execution execution : executions(thing).values()) {
+            if (execution.status.equals("IN_PROGRESS")) {
+                next = execution;
+                break;
+            }
+            if (next == null && execution.status.equals("QUEUED"))
+                next = execution;
+        }
+        JSONObject response = new JSONObject().put("clientToken", "123");
+        if (next != null) {
+            boolean changed = false;
+            if (next.status.equals("QUEUED")) {
+                next.status = "IN_PROGRESS";
+                changed = true;
+            }
+            String stage = stage(request);
+            if (stage != null && !stage.equals(next.stage)) {
+                next.stage = stage;
+                changed = true;
+            }
+            if (changed)
+                ++next.versionNumber;
+            response.put("execution", toJson(next));
+        }
+        broker.deliver(topics(thing).startNextAccepted(), response.toString());
+    }
+
+    private void update(String thing, String jobId, JSONObject request) throws JSONException {
+        Map<String, Execution> jobs = executions(thing);
+        Execution execution = jobs.get(jobId);
+        String responseTopic = THINGS_PREFIX + thing + "/jobs/" + jobId + "/update/";
+        if (execution == null || !execution.isPending()) {
+            broker.deliver(responseTopic + "rejected", "{\"code\":\"InvalidStateTransition\"}");
+            return;
+        }
+        String status = request.optString("status", execution.status);
+        execution.status = status;
+        execution.stage = stage(request);
+        ++execution.versionNumber;
+        broker.deliver(responseTopic + "accepted", new JSONObject().put("clientToken", "123").toString());
+        if (execution.isPending())
+            return;
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - execution.createdAtNanos);
+        synchronized (this) {
+            if (status.equals("SUCCEEDED")) {
+                ++succeeded;
+                timeToSucceeded.record(elapsedMs);
+            } else {
+                ++failed;
+            }
+            notifyAll();
+        }
+        notifyChanged(thing, true);
+    }
+
+    /**
+     * Sends notify, and notify-next if the next pending execution may have changed.
+     */
+    private void notifyChanged(String thing, boolean nextChanged) {
+        try {
+            broker.deliver(topics(thing).notifyChanged(), new JSONObject().put("jobs", new JSONObject()).toString());
+            if (!nextChanged)
+                return;
+            Execution next = next(executions(thing));
+            JSONObject message = new JSONObject().put("timestamp", System.currentTimeMillis() / 1000);
+            if (next != null)
+                message.put("execution", toJson(next));
+            broker.deliver(topics(thing).notifyNext(), message.toString());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Execution next(Map<String, Execution> jobs) {
+        for (Execution execution : jobs.values())
+            if (execution.isPending())
+                return execution;
+        return null;
+    }
+
+    private static String stage(JSONObject request) {
+        JSONObject details = request.optJSONObject("statusDetails");
+        return details == null ? null : details.optString("stage", null);
+    }
+
+    private static JSONObject toJson(Execution execution) throws JSONException {
+        JSONObject json = new JSONObject()
+                .put("jobId", execution.jobId)
+                .put("status", execution.status)
+                .put("versionNumber", execution.versionNumber)
+                .put("executionNumber", 1)
+                .put("jobDocument", execution.document);
+        if (execution.stage != null)
+            json.put("statusDetails", new JSONObject().put("stage", execution.stage));
+        return json;
+    }
+
+    private Map<String, Execution> executions(String thing) {
+        Map<String, Execution> jobs = executions.get(thing);
+        if (jobs == null) {
+            jobs = new LinkedHashMap<>();
+            executions.put(thing, jobs);
+        }
+        return jobs;
+    }
+
+    private ThingTopics topics(String thing) {
+        ThingTopics thingTopics = topics.get(thing);
+        if (thingTopics == null) {
+            thingTopics = new ThingTopics(thing);
+            topics.put(thing, thingTopics);
+        }
+        return thingTopics;
+    }
+
+    /**
+     * Waits until every execution created so far reached a final status.
+     * @return false if the timeout passed first
+     */
+    public synchronized boolean awaitFinished(int executions, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (succeeded + failed < executions) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0)
+                return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    public synchronized int getCreatedCount() {
+        return created;
+    }
+
+    public synchronized int getSucceededCount() {
+        return succeeded;
+    }
+
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * @return time from job creation to SUCCEEDED, in ms
+     */
+    public Histogram getTimeToSucceeded() {
+        return timeToSucceeded;
+    }
+}
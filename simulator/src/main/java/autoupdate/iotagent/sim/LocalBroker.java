@@ -0,0 +1,145 @@
+package autoupdate.iotagent.sim;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import autoupdate.iotagent.util.MessagePublisher;
+import autoupdate.iotagent.util.TopicRouter;
+
+/**
+ * In-process stand-in for the mqtt broker. Clients subscribe per thing and publish requests,
+ * which go to the service behind the broker; the service answers by delivering to the things'
+ * topics. Every message is delayed by a fixed one way latency. All delivery happens on one
+ * thread, so messages arrive in the order they were sent, as on a single mqtt connection.
+ * Only publishes are counted as messages, subscriptions last as long as a connection and are
+ * not part of the per job cost.
+ */
+public class LocalBroker {
+
+    private static final String THINGS_PREFIX = "$aws/things/";
+
+    /**
+     * The service the clients' publishes are sent to.
+     */
+    public interface Service {
+        void handle(String topic, byte[] payload);
+    }
+
+    private final long latencyMs;
+
+    private final ScheduledExecutorService network;
+
+    private final ConcurrentMap<String, TopicRouter> subscriptions = new ConcurrentHashMap<>();
+
+    private final AtomicLong messages = new AtomicLong();
+
+    private volatile Service service;
+
+    /**
+     * @param latencyMs one way latency between a client and the broker
+     */
+    public LocalBroker(long latencyMs) {
+        this.latencyMs = latencyMs;
+        this.network = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "local-broker");
+            }
+        });
+    }
+
+    public void setService(Service service) {
+        this.service = service;
+    }
+
+    /**
+     * Subscribes a thing to a topic filter, + and # wildcards included.
+     */
+    public void subscribe(String thingName, String filter, TopicRouter.Handler handler) {
+        TopicRouter router = subscriptions.get(thingName);
+        if (router == null) {
+            subscriptions.putIfAbsent(thingName, new TopicRouter());
+            router = subscriptions.get(thingName);
+        }
+        router.register(filter, handler);
+    }
+
+    /**
+     * @return a client connection, everything published on it goes to the service
+     */
+    public MessagePublisher connect() {
+        return new MessagePublisher() {
+            @Override
+            public void publish(String msg, final String topic) {
+                messages.incrementAndGet();
+                final byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Service target = service;
+                        if (target != null)
+                            target.handle(topic, payload);
+                    }
+                }, latencyMs);
+            }
+        };
+    }
+
+    /**
+     * Delivers a message from the service to the thing the topic belongs to, if it subscribed to
+     * the topic. The service calls this on the broker thread.
+     */
+    public void deliver(final String topic, String msg) {
+        final TopicRouter router = subscriptions.get(thingName(topic));
+        if (router == null || router.match(topic) == null)
+            return;
+        messages.incrementAndGet();
+        final byte[] payload = msg.getBytes(StandardCharsets.UTF_8);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                router.route(topic, payload);
+            }
+        }, latencyMs);
+    }
+
+    /**
+     * Runs work on the broker thread, e.g. changes to the service's state from outside.
+     */
+    public void execute(Runnable work) {
+        schedule(work, 0);
+    }
+
+    /**
+     * @return the number of messages published by clients and delivered to them
+     */
+    public long getMessageCount() {
+        return messages.get();
+    }
+
+    public void shutdown() {
+        network.shutdownNow();
+    }
+
+    private void schedule(Runnable work, long delayMs) {
+        try {
+            network.schedule(work, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //the broker is shut down, the message is lost like on a closed connection
+        }
+    }
+
+    static String thingName(String topic) {
+        if (!topic.startsWith(THINGS_PREFIX))
+            return "";
+        int end = topic.indexOf('/', THINGS_PREFIX.length());
+        return end < 0 ? topic.substring(THINGS_PREFIX.length()) : topic.substring(THINGS_PREFIX.length(), end);
+    }
+}
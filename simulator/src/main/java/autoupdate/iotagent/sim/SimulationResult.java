@@ -0,0 +1,103 @@
+package autoupdate.iotagent.sim;
+
+/**
+ * The numbers of one simulation run.
+ */
+public class SimulationResult {
+
+    final Strategy strategy;
+
+    final int agents;
+
+    //broker connections, fewer than agents when things share a gateway
+    final int connections;
+
+    //executions created, jobs times agents
+    final int executions;
+
+    final int succeeded;
+
+    final int failed;
+
+    final long brokerMessages;
+
+    final long p50Ms;
+
+    final long p99Ms;
+
+    final long maxMs;
+
+    final long originRequests;
+
+    final double originMeanRate;
+
+    final int originPeakRate;
+
+    final long elapsedMs;
+
+    SimulationResult(Strategy strategy, int agents, int connections, int executions, int succeeded, int failed, long brokerMessages,
+                     long p50Ms, long p99Ms, long maxMs, long originRequests, double originMeanRate,
+                     int originPeakRate, long elapsedMs) {
+        this.strategy = strategy;
+        this.agents = agents;
+        this.connections = connections;
+        this.executions = executions;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.brokerMessages = brokerMessages;
+        this.p50Ms = p50Ms;
+        this.p99Ms = p99Ms;
+        this.maxMs = maxMs;
+        this.originRequests = originRequests;
+        this.originMeanRate = originMeanRate;
+        this.originPeakRate = originPeakRate;
+        this.elapsedMs = elapsedMs;
+    }
+
+    /**
+     * @return broker messages, both directions, per job execution
+     */
+    public double getMessagesPerJob() {
+        return executions == 0 ? 0 : brokerMessages / (double) executions;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getExecutions() {
+        return executions;
+    }
+
+    public long getP50Ms() {
+        return p50Ms;
+    }
+
+    public long getP99Ms() {
+        return p99Ms;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public long getOriginRequests() {
+        return originRequests;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d agents on %d connections, %d/%d executions succeeded (%d failed) in %.1f s%n"
+                        + "  broker messages per job : %.1f (%d total)%n"
+                        + "  time to SUCCEEDED       : p50 %d ms, p99 %d ms, max %d ms%n"
+                        + "  origin requests         : %d, %.1f/s mean, %d/s peak",
+                strategy, agents, connections, succeeded, executions, failed, elapsedMs / 1000.0,
+                getMessagesPerJob(), brokerMessages,
+                p50Ms, p99Ms, maxMs,
+                originRequests, originMeanRate, originPeakRate);
+    }
+}
@@ -0,0 +1,34 @@
+package autoupdate.iotagent.sim;
+
+/**
+ * How the virtual agents learn about jobs and report on them.
+ */
+public enum Strategy {
+
+    /**
+     * No notify subscriptions: jobs are found by the get-jobs poll only, claimed with start-next,
+     * and reported delivered and then SUCCEEDED once a later poll sees the app updated.
+     */
+    POLL(false, true),
+
+    /**
+     * The agent as it ships: notify-next claims a job right away and the poll backs off as a
+     * safety net. Delivery and SUCCEEDED are reported as with POLL.
+     */
+    PUSH(true, true),
+
+    /**
+     * Push intake with the status updates of a job batched into one: no delivered stage update,
+     * SUCCEEDED is sent as soon as the app is updated, as for session installs.
+     */
+    PUSH_BATCHED(true, false);
+
+    final boolean push;
+
+    final boolean reportDelivery;
+
+    Strategy(boolean push, boolean reportDelivery) {
+        this.push = push;
+        this.reportDelivery = reportDelivery;
+    }
+}
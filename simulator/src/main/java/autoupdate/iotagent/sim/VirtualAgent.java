@@ -0,0 +1,335 @@
+package autoupdate.iotagent.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import autoupdate.iotagent.config.IOTConfigData;
+import autoupdate.iotagent.config.ThingTopics;
+import autoupdate.iotagent.job.AdmissionPolicy;
+import autoupdate.iotagent.job.JobMessageParser;
+import autoupdate.iotagent.job.JobRecord;
+import autoupdate.iotagent.job.JobStatusEncoder;
+import autoupdate.iotagent.job.JobTracker;
+import autoupdate.iotagent.platform.Log;
+import autoupdate.iotagent.util.JobEvaluator;
+import autoupdate.iotagent.util.JobIntake;
+import autoupdate.iotagent.util.JobsPoller;
+import autoupdate.iotagent.util.MessagePublisher;
+import autoupdate.iotagent.util.TopicRouter;
+
+/**
+ * One simulated device. It handles jobs the way IOTHelper and JobMessageHandler do, with the same
+ * parser, evaluator, intake, poller and encoder, so downloads start at the same slot of the
+ * rollout window as on a device. It has no threads of its own: polls, installs and delayed
+ * download starts run on shared schedulers and downloads on a shared pool, so thousands of agents
+ * fit in one process. The target app is simulated as well, it is updated a fixed time after delivery.
+ * Handlers are synchronized on the agent, which stands in for the agent's event loop.
+ * The things behind a gateway are agents sharing one connection and one download cache.
+ */
+public class VirtualAgent {
+
+    private static final String LOG_TAG = "VirtualAgent";
+
+    private final ThingTopics topics;
+
+    private final Strategy strategy;
+
+    private final MessagePublisher connection;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ExecutorService downloads;
+
+    private final DownloadCache cache;
+
+    private final long installDelayMs;
+
+    //decides what happens to the jobs, as it does for JobMessageHandler
+    private final JobEvaluator jobEvaluator;
+
+    private final JobTracker jobTracker;
+
+    private final JobIntake jobIntake;
+
+    private final JobsPoller jobsPoller;
+
+    //installed version of every app on the device, apps not listed are at version 1
+    private final Map<String, String> installed = new HashMap<>();
+
+    private long downloadsDone;
+
+    /**
+     * @param thingName thing the agent runs as
+     * @param broker broker the agent subscribes with
+     * @param connection connection the agent publishes on, shared by the things of a gateway
+     * @param scheduler runs the polls and the simulated installs
+     * @param downloads runs the downloads
+     * @param cache apks downloaded so far, shared by the things of a gateway
+     * @param pollMinMs shortest get-jobs poll interval
+     * @param pollMaxMs longest get-jobs poll interval
+     * @param installDelayMs time the target app takes to install a delivered apk
+     */
+    public VirtualAgent(String thingName, Strategy strategy, LocalBroker broker, MessagePublisher connection,
+                        ScheduledExecutorService scheduler, ExecutorService downloads, DownloadCache cache,
+                        long pollMinMs, long pollMaxMs, long installDelayMs) {
+        this.topics = new ThingTopics(thingName);
+        this.strategy = strategy;
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.downloads = downloads;
+        this.cache = cache;
+        this.installDelayMs = installDelayMs;
+        this.jobEvaluator = new JobEvaluator(new JobEvaluator.InstalledVersions() {
+            @Override
+            public boolean isInstalled(String packageName) {
+                return true;
+            }
+
+            @Override
+            public boolean needsUpdate(String packageName, String latestVersion) {
+                return VirtualAgent.this.needsUpdate(packageName, latestVersion);
+            }
+
+            @Override
+            public Map<String, Boolean> needsUpdate(Map<String, String> latestVersions) {
+                Map<String, Boolean> result = new HashMap<>();
+                for (Map.Entry<String, String> entry : latestVersions.entrySet())
+                    result.put(entry.getKey(), VirtualAgent.this.needsUpdate(entry.getKey(), entry.getValue()));
+                return result;
+            }
+        }, new JobEvaluator.Actions() {
+            @Override
+            public void describe(String jobId) {
+                connection.publish("{\"clientToken\":\"123\"}", topics.describeJob(jobId));
+            }
+
+            @Override
+            public void requestNext() {
+                jobIntake.requestNext();
+            }
+
+            @Override
+            public boolean publishStatus(int status, String jobId, String stage) {
+                connection.publish(JobStatusEncoder.encodeUpdate(status, stage), topics.updateJob(jobId));
+                return true;
+            }
+
+            @Override
+            public void onJobReceived(JobRecord job) {
+            }
+
+            @Override
+            public void onStateChanged(String jobId, JobTracker.State state, int finalStatus) {
+            }
+
+            @Override
+            public void startDownload(JobRecord job, long delayMs) {
+                VirtualAgent.this.startDownload(job, delayMs);
+            }
+
+            @Override
+            public void cancelDownload(String jobId) {
+                //a download runs to its end, its outcome is dropped once the job is no longer downloading
+            }
+        }, new AdmissionPolicy(thingName, IOTConfigData.BUSY_BACKOFF_BASE_MS, IOTConfigData.BUSY_BACKOFF_MAX_MS));
+        this.jobTracker = jobEvaluator.getTracker();
+        this.jobIntake = new JobIntake(connection, new JobIntake.ExecutionHandler() {
+            @Override
+            public boolean handleJobExecution(JobRecord execution) {
+                return VirtualAgent.this.handleJobExecution(execution);
+            }
+        }, topics.startNext());
+        this.jobsPoller = new JobsPoller(new Runnable() {
+            @Override
+            public void run() {
+                connection.publish("{\"clientToken\":\"123\"}", topics.getJobs());
+            }
+        }, pollMinMs, pollMaxMs, scheduler);
+        subscribe(broker);
+    }
+
+    private void subscribe(LocalBroker broker) {
+        String thing = topics.getThingName();
+        broker.subscribe(thing, topics.getJobsAccepted(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobsPoller.onJobsResponse(handleGetJobsResponse(payload));
+            }
+        });
+        broker.subscribe(thing, topics.describeJobAccepted(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                handleJobMessage(payload);
+            }
+        });
+        broker.subscribe(thing, topics.startNextAccepted(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobIntake.handleStartNextResponse(payload);
+            }
+        });
+        broker.subscribe(thing, topics.startNextRejected(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobIntake.handleStartNextRejected(new String(payload));
+            }
+        });
+        broker.subscribe(thing, topics.updateJobRejected(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobsPoller.pollNow();
+            }
+        });
+        if (!strategy.push)
+            return;
+        broker.subscribe(thing, topics.notifyChanged(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobsPoller.pollNow();
+            }
+        });
+        broker.subscribe(thing, topics.notifyNext(), new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                jobIntake.requestNext();
+            }
+        });
+    }
+
+    /**
+     * Starts the agent as a fresh connection does: the poll starts over and the next job is
+     * requested.
+     */
+    public void start() {
+        jobsPoller.reset();
+        jobIntake.requestNext();
+    }
+
+    public void stop() {
+        jobsPoller.stop();
+    }
+
+    synchronized boolean handleGetJobsResponse(byte[] message) {
+        try {
+            return jobEvaluator.handleJobList(JobMessageParser.parseJobList(message));
+        } catch (JobMessageParser.MalformedMessageException e) {
+            Log.e(LOG_TAG, "malformed jobs message : " + e.getMessage());
+            return false;
+        }
+    }
+
+    synchronized void handleJobMessage(byte[] message) {
+        try {
+            JobRecord execution = JobMessageParser.parseExecution(message, IOTConfigData.DEFAULT_DOWNLOAD_SEGMENTS);
+            if (execution != null)
+                handleJobExecution(execution);
+        } catch (JobMessageParser.MalformedMessageException e) {
+            Log.e(LOG_TAG, "malformed job message : " + e.getMessage());
+        }
+    }
+
+    synchronized boolean handleJobExecution(JobRecord job) {
+        return jobEvaluator.handleJobExecution(job);
+    }
+
+    /**
+     * Starts a download once the job's slot in the rollout window came.
+     */
+    private void startDownload(final JobRecord job, long delayMs) {
+        final Runnable download = new Runnable() {
+            @Override
+            public void run() {
+                boolean ok = download(job.getUrl(), job.getSize());
+                onDownloadDone(job, ok);
+            }
+        };
+        if (delayMs <= 0) {
+            downloads.execute(download);
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                downloads.execute(download);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onDownloadDone(final JobRecord job, boolean ok) {
+        final String jobId = job.getJobId();
+        if (jobTracker.getState(jobId) != JobTracker.State.DOWNLOADING)
+            return;
+        if (!ok) {
+            jobEvaluator.finish(jobId, IOTConfigData.STATUS_FAILED);
+            return;
+        }
+        ++downloadsDone;
+        jobEvaluator.setState(jobId, JobTracker.State.DELIVERED);
+        if (strategy.reportDelivery)
+            jobEvaluator.publishStatus(IOTConfigData.STATUS_INPROGRESS, jobId, IOTConfigData.STAGE_DELIVERED);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onInstalled(job);
+            }
+        }, installDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onInstalled(JobRecord job) {
+        installed.put(job.getPackageName(), job.getLatestVersion());
+        //without delivery reports the agent reports the outcome itself, otherwise the next poll does
+        if (!strategy.reportDelivery && jobTracker.getState(job.getJobId()) == JobTracker.State.DELIVERED)
+            jobEvaluator.finish(job.getJobId(), IOTConfigData.STATUS_SUCCEEDED);
+    }
+
+    private boolean needsUpdate(String packageName, String latestVersion) {
+        String version = installed.get(packageName);
+        return !latestVersion.equals(version == null ? "1" : version);
+    }
+
+    private boolean download(String url, long size) {
+        //a second thing of a gateway waits here and then finds the apk in the cache
+        synchronized (cache.lockFor(url)) {
+            if (cache.contains(url))
+                return true;
+            if (!fetch(url, size))
+                return false;
+            cache.add(url);
+            return true;
+        }
+    }
+
+    private static boolean fetch(String url, long size) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+                return false;
+            long read = 0;
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = connection.getInputStream()) {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    read += n;
+            }
+            return size < 0 || read == size;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "download failed : " + e.getMessage());
+            return false;
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+    public synchronized long getDownloadCount() {
+        return downloadsDone;
+    }
+}
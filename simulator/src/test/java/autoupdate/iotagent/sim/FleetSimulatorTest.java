@@ -0,0 +1,64 @@
+package autoupdate.iotagent.sim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FleetSimulatorTest {
+
+    private static SimulationResult run(Strategy strategy) throws Exception {
+        FleetSimulator simulator = new FleetSimulator(strategy, 50, 2, 2, 300, 1200, 20, 4096, 8);
+        return simulator.run(20000);
+    }
+
+    @Test
+    public void everyStrategy_finishesEveryJobWithOneDownloadEach() throws Exception {
+        for (Strategy strategy : Strategy.values()) {
+            SimulationResult result = run(strategy);
+            assertEquals(strategy.name(), 100, result.getExecutions());
+            assertEquals(strategy.name(), 100, result.getSucceeded());
+            assertEquals(strategy.name(), 0, result.getFailed());
+            assertEquals(strategy.name(), 100, result.getOriginRequests());
+            assertTrue(strategy.name(), result.getP50Ms() > 0 && result.getP50Ms() <= result.getP99Ms());
+        }
+    }
+
+    @Test
+    public void batchedReporting_needsFewerMessagesAndFinishesSooner() throws Exception {
+        SimulationResult push = run(Strategy.PUSH);
+        SimulationResult batched = run(Strategy.PUSH_BATCHED);
+
+        assertTrue(batched.getMessagesPerJob() < push.getMessagesPerJob());
+        //SUCCEEDED no longer waits for the next poll
+        assertTrue(batched.getP50Ms() < push.getP50Ms());
+    }
+
+    @Test
+    public void gateway_downloadsEachApkOncePerGateway() throws Exception {
+        FleetSimulator simulator = new FleetSimulator(Strategy.PUSH_BATCHED, 50, 2, 2, 300, 1200, 20, 4096, 8);
+        simulator.setThingsPerGateway(10);
+        SimulationResult result = simulator.run(20000);
+
+        assertEquals(5, result.getConnections());
+        assertEquals(100, result.getSucceeded());
+        //every thing got both jobs, the origin only saw one request per apk and gateway
+        assertEquals(10, result.getOriginRequests());
+    }
+
+    @Test
+    public void rolloutWindow_spreadsTheDownloadStarts() throws Exception {
+        FleetSimulator simulator = new FleetSimulator(Strategy.PUSH_BATCHED, 50, 2, 2, 300, 1200, 20, 4096, 8);
+        simulator.setRolloutWindowSec(2);
+        SimulationResult result = simulator.run(20000);
+
+        assertEquals(100, result.getSucceeded());
+        //the agents wait for their slot in the window, as devices do
+        assertTrue(result.getP99Ms() >= 1000);
+    }
+
+    @Test
+    public void thingName_isTheThirdLevel() {
+        assertEquals("thing-1", LocalBroker.thingName("$aws/things/thing-1/jobs/get"));
+        assertEquals("", LocalBroker.thingName("other/topic"));
+    }
+}